@@ -0,0 +1,66 @@
+package com.ossoftware.ossmartcontrol;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+
+import java.util.TimeZone;
+
+// Arms a single inexact alarm for the next automation session. The alarm
+// window equals the batching window, so the OS is free to align it with
+// other wakeups without us missing any rule in the session.
+public class AutomationAlarms {
+
+    public static final String ACTION_RUN_AUTOMATIONS = "com.ossoftware.ossmartcontrol.RUN_AUTOMATIONS";
+
+    public static AutomationScheduler createScheduler(PreferencesManager preferencesManager) {
+        return new AutomationScheduler(TimeSource.SYSTEM, TimeZone.getDefault(),
+                preferencesManager.getSolarCalculator(), AutomationScheduler.DEFAULT_WINDOW_MS);
+    }
+
+    public static void schedule(Context context) {
+        PreferencesManager preferencesManager = new PreferencesManager(context);
+        AutomationScheduler scheduler = createScheduler(preferencesManager);
+
+        // Never fire retroactively for rules created before the first session
+        long lastRun = preferencesManager.getAutomationLastRun();
+        if (lastRun == 0) {
+            lastRun = System.currentTimeMillis();
+            preferencesManager.setAutomationLastRun(lastRun);
+        }
+
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent pendingIntent = createPendingIntent(context);
+
+        // Rules the controller runs from its own clock need no wakeup
+        AutomationScheduler.Session session =
+                scheduler.planNext(preferencesManager.loadPhoneAutomations(), lastRun);
+        if (session == null) {
+            alarmManager.cancel(pendingIntent);
+            return;
+        }
+
+        alarmManager.setWindow(AlarmManager.RTC_WAKEUP, session.getStartTime(),
+                scheduler.getWindowMs(), pendingIntent);
+    }
+
+    // Marks the due session as handled so the alarm moves on to the next one
+    public static void skipDueSession(Context context, String reason) {
+        PreferencesManager preferencesManager = new PreferencesManager(context);
+        AutomationScheduler.Session session = createScheduler(preferencesManager).planNext(
+                preferencesManager.loadPhoneAutomations(), preferencesManager.getAutomationLastRun());
+        if (session != null && session.isDue()) {
+            preferencesManager.setAutomationLastRun(session.getCoveredUntil());
+            preferencesManager.addAutomationReport(reason);
+        }
+        schedule(context);
+    }
+
+    private static PendingIntent createPendingIntent(Context context) {
+        Intent intent = new Intent(context, AutomationReceiver.class);
+        intent.setAction(ACTION_RUN_AUTOMATIONS);
+        return PendingIntent.getBroadcast(context, 0, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    }
+}
@@ -0,0 +1,130 @@
+package com.ossoftware.ossmartcontrol;
+
+import android.content.Context;
+import android.text.InputType;
+import android.widget.EditText;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AlertDialog;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+public class AutomationDialogManager {
+
+    private Context context;
+    private AutomationDialogListener dialogListener;
+
+    public interface AutomationDialogListener {
+        void onAutomationCreated(SceneModel scene, String schedule);
+
+        void onAutomationDeleteRequested(AutomationRule rule);
+
+        void onAutomationEnabledChanged(AutomationRule rule, boolean enabled);
+    }
+
+    public AutomationDialogManager(Context context, AutomationDialogListener listener) {
+        this.context = context;
+        this.dialogListener = listener;
+    }
+
+    public void showAutomationsDialog(List<AutomationRule> rules, List<SceneModel> scenes,
+                                      AutomationScheduler scheduler) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE HH:mm", Locale.getDefault());
+        long now = System.currentTimeMillis();
+
+        String[] items = new String[rules.size() + 1];
+        for (int i = 0; i < rules.size(); i++) {
+            AutomationRule rule = rules.get(i);
+            String sceneName = findSceneName(scenes, rule.getSceneId());
+            long next = scheduler.nextFireTime(rule, now);
+            String nextText = !rule.isEnabled() ? "disabled"
+                    : next < 0 ? "never" : "next " + format.format(new Date(next));
+            items[i] = sceneName + " @ " + rule.getSchedule() + " (" + nextText + ")";
+        }
+        items[rules.size()] = "+ Add automation";
+
+        new AlertDialog.Builder(context)
+                .setTitle("Automations")
+                .setItems(items, (dialog, which) -> {
+                    if (which == rules.size()) {
+                        showPickSceneDialog(scenes);
+                    } else {
+                        showAutomationOptions(rules.get(which));
+                    }
+                })
+                .setNegativeButton("Close", null)
+                .show();
+    }
+
+    private void showAutomationOptions(AutomationRule rule) {
+        new AlertDialog.Builder(context)
+                .setTitle(rule.getSchedule())
+                .setPositiveButton(rule.isEnabled() ? "Disable" : "Enable", (dialog, which) -> {
+                    if (dialogListener != null) {
+                        dialogListener.onAutomationEnabledChanged(rule, !rule.isEnabled());
+                    }
+                })
+                .setNegativeButton("Delete", (dialog, which) -> {
+                    if (dialogListener != null) {
+                        dialogListener.onAutomationDeleteRequested(rule);
+                    }
+                })
+                .setNeutralButton("Close", null)
+                .show();
+    }
+
+    private void showPickSceneDialog(List<SceneModel> scenes) {
+        if (scenes.isEmpty()) {
+            Toast.makeText(context, "Save a scene first", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        String[] names = new String[scenes.size()];
+        for (int i = 0; i < scenes.size(); i++) {
+            names[i] = scenes.get(i).getName();
+        }
+
+        new AlertDialog.Builder(context)
+                .setTitle("Run which scene?")
+                .setItems(names, (dialog, which) -> showScheduleDialog(scenes.get(which)))
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private void showScheduleDialog(SceneModel scene) {
+        EditText etSchedule = new EditText(context);
+        etSchedule.setHint("30 18 * * 1-5  or  sunset-15");
+        etSchedule.setInputType(InputType.TYPE_CLASS_TEXT);
+
+        new AlertDialog.Builder(context)
+                .setTitle("When?")
+                .setMessage("Cron (minute hour day month weekday) or sunrise/sunset with an offset in minutes")
+                .setView(etSchedule)
+                .setPositiveButton("Save", (dialog, which) -> {
+                    String schedule = etSchedule.getText().toString().trim();
+                    try {
+                        AutomationSchedule.parse(schedule);
+                    } catch (IllegalArgumentException e) {
+                        Toast.makeText(context, "Invalid schedule: " + e.getMessage(), Toast.LENGTH_LONG).show();
+                        return;
+                    }
+                    if (dialogListener != null) {
+                        dialogListener.onAutomationCreated(scene, schedule);
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    private String findSceneName(List<SceneModel> scenes, String sceneId) {
+        for (SceneModel scene : scenes) {
+            if (scene.getId().equals(sceneId)) {
+                return scene.getName();
+            }
+        }
+        return "(deleted scene)";
+    }
+}
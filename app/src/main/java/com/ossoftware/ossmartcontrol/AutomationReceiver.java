@@ -0,0 +1,29 @@
+package com.ossoftware.ossmartcontrol;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import androidx.core.content.ContextCompat;
+
+// Scheduling only: the session itself runs in ControllerService, which goes
+// foreground before it connects so the system doesn't cut it short
+public class AutomationReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+
+        if (AutomationAlarms.ACTION_RUN_AUTOMATIONS.equals(action)) {
+            try {
+                ContextCompat.startForegroundService(context, ControllerService.createAutomationIntent(context));
+            } catch (IllegalStateException e) {
+                // Android 12+ may refuse a foreground start from the background
+                AutomationAlarms.skipDueSession(context, "Automation skipped: service not allowed to start");
+            }
+        } else if (Intent.ACTION_BOOT_COMPLETED.equals(action)
+                || Intent.ACTION_MY_PACKAGE_REPLACED.equals(action)) {
+            AutomationAlarms.schedule(context);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class AutomationRule {
+    private String id;
+    private String sceneId;
+    private String schedule; // See AutomationSchedule for the format
+    private boolean enabled;
+
+    // Default constructor
+    public AutomationRule() {
+    }
+
+    public AutomationRule(String id, String sceneId, String schedule) {
+        this.id = id;
+        this.sceneId = sceneId;
+        this.schedule = schedule;
+        this.enabled = true;
+    }
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getSceneId() {
+        return sceneId;
+    }
+
+    public void setSceneId(String sceneId) {
+        this.sceneId = sceneId;
+    }
+
+    public String getSchedule() {
+        return schedule;
+    }
+
+    public void setSchedule(String schedule) {
+        this.schedule = schedule;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    // Convert to JSON string
+    public String toJson() {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("sceneId", sceneId);
+            json.put("schedule", schedule);
+            json.put("enabled", enabled);
+            return json.toString();
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return "{}";
+        }
+    }
+
+    // Create from JSON string
+    public static AutomationRule fromJson(String jsonStr) {
+        try {
+            JSONObject json = new JSONObject(jsonStr);
+            AutomationRule rule = new AutomationRule();
+            rule.setId(json.optString("id", ""));
+            rule.setSceneId(json.optString("sceneId", ""));
+            rule.setSchedule(json.optString("schedule", ""));
+            rule.setEnabled(json.optBoolean("enabled", true));
+            return rule;
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.ossoftware.ossmartcontrol;
+
+import android.content.Context;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Runs one automation session inside ControllerService: connect to the last
+// controller, send the merged scene diff, disconnect, and record how long
+// the radio was on. The service is in the foreground for all of it.
+public class AutomationRunner implements ControllerService.ControllerListener {
+
+    private static final String TAG = "AutomationRunner";
+    private static final long SESSION_TIMEOUT_MS = 25000;
+    private static final long LINGER_MS = 500; // Let the last write drain before closing
+
+    public interface Callback {
+        void onFinished();
+    }
+
+    private final ControllerService service;
+    private final PreferencesManager preferencesManager;
+    private final Callback callback;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private AutomationScheduler.Session session;
+    private SceneCompiler.CompiledScene compiled;
+    private List<DeviceModel> switches;
+
+    private long radioOnStart;
+    private long batteryStart;
+    // Only a link opened for this session is closed at the end of it
+    private boolean openedLink = false;
+    private boolean finished = false;
+
+    public AutomationRunner(ControllerService service, PreferencesManager preferencesManager, Callback callback) {
+        this.service = service;
+        this.preferencesManager = preferencesManager;
+        this.callback = callback;
+    }
+
+    public void run() {
+        AutomationScheduler scheduler = AutomationAlarms.createScheduler(preferencesManager);
+
+        session = scheduler.planNext(preferencesManager.loadPhoneAutomations(),
+                preferencesManager.getAutomationLastRun());
+        if (session == null || !session.isDue()) {
+            finish();
+            return;
+        }
+
+        // This session is handled whatever the outcome, so a dead board can't cause a retry storm
+        preferencesManager.setAutomationLastRun(session.getCoveredUntil());
+
+        String mac = preferencesManager.getLastDeviceMac();
+        if (mac.isEmpty()) {
+            report("Automation skipped: no controller connected before");
+            finish();
+            return;
+        }
+
+        Map<String, SceneModel> scenesById = new HashMap<>();
+        for (SceneModel scene : preferencesManager.loadScenes()) {
+            scenesById.put(scene.getId(), scene);
+        }
+
+        switches = preferencesManager.loadSwitches();
+        compiled = SceneCompiler.compileForUnknownState(
+                AutomationScheduler.buildSessionScene(session, scenesById), switches);
+        if (compiled.isEmpty()) {
+            finish();
+            return;
+        }
+
+        // The app already holds a link - reuse it, no extra radio time
+        if (service.isConnected()) {
+            long delay = 0;
+            for (SceneCompiler.Batch batch : compiled.getBatches()) {
+                delay += batch.getDelayMs();
+                handler.postDelayed(() -> service.applySceneBatch(batch), delay);
+            }
+            handler.postDelayed(() -> {
+                report("Automation: " + session.getRules().size() + " job(s) over the open link");
+                finish();
+            }, delay + LINGER_MS);
+            return;
+        }
+
+        // A LAN board that takes datagrams needs no connection at all
+        BoardCapabilities capabilities = preferencesManager.loadCapabilities(mac);
+        if (LanLink.isAddress(mac) && capabilities != null && capabilities.has(BoardCapabilities.Feature.UDP)) {
+            long delay = 0;
+            for (SceneCompiler.Batch batch : compiled.getBatches()) {
+                delay += batch.getDelayMs();
+                handler.postDelayed(() -> service.sendSceneBatchDatagram(mac, batch), delay);
+            }
+            handler.postDelayed(() -> {
+                report("Automation: " + session.getRules().size() + " job(s), "
+                        + compiled.getCommandCount() + " command(s) as datagrams");
+                finish();
+            }, delay + LINGER_MS);
+            return;
+        }
+
+        // Radio only comes up now that there is something to send
+        radioOnStart = SystemClock.elapsedRealtime();
+        batteryStart = readChargeCounter();
+
+        openedLink = true;
+        service.addListener(this);
+        if (!service.isConnecting()) {
+            String name = preferencesManager.getLastDeviceName();
+            service.connectToDevice(name.isEmpty() ? mac : name, mac);
+        }
+
+        handler.postDelayed(() -> {
+            if (!finished) {
+                report("Automation timed out after " + SESSION_TIMEOUT_MS / 1000 + "s");
+                closeLink();
+            }
+        }, SESSION_TIMEOUT_MS);
+    }
+
+    @Override
+    public void onConnected(String deviceName, String mac) {
+        long delay = 0;
+        for (SceneCompiler.Batch batch : compiled.getBatches()) {
+            delay += batch.getDelayMs();
+            handler.postDelayed(() -> service.applySceneBatch(batch), delay);
+        }
+
+        handler.postDelayed(() -> {
+            if (finished) {
+                return;
+            }
+
+            long radioOnMs = SystemClock.elapsedRealtime() - radioOnStart;
+            int jobs = session.getRules().size();
+            String time = new SimpleDateFormat("HH:mm", Locale.getDefault())
+                    .format(new Date(session.getStartTime()));
+            StringBuilder report = new StringBuilder();
+            report.append("Automation ").append(time).append(": ")
+                    .append(jobs).append(" job(s), ")
+                    .append(compiled.getCommandCount()).append(" command(s), radio on ")
+                    .append(String.format(Locale.US, "%.1fs (%.1fs/job)",
+                            radioOnMs / 1000.0, radioOnMs / 1000.0 / jobs));
+
+            long batteryEnd = readChargeCounter();
+            if (batteryStart > 0 && batteryEnd > 0) {
+                report.append(", battery ").append(Math.max(0, batteryStart - batteryEnd)).append("µAh");
+            }
+            report(report.toString());
+            closeLink();
+        }, delay + LINGER_MS);
+    }
+
+    @Override
+    public void onConnectionError(String error) {
+        if (!finished) {
+            report("Automation failed to connect: " + error);
+            finish();
+        }
+    }
+
+    @Override
+    public void onDisconnected() {
+        finish();
+    }
+
+    @Override
+    public void onSwitchesChanged(List<DeviceModel> switches) {
+        // The service saves what the batches set
+    }
+
+    @Override
+    public void onDeviceFound(String name, String mac) {
+    }
+
+    @Override
+    public void onScanFinished(int deviceCount) {
+    }
+
+    @Override
+    public void onScanError(String error) {
+    }
+
+    @Override
+    public void onLog(String message, LogManager.LogType type, String deviceName) {
+    }
+
+    @Override
+    public void onLinkHealthChanged(LinkMonitor.Health health, String deviceName) {
+    }
+
+    @Override
+    public void onLinkQualityChanged(int bars, LinkQuality.Level level) {
+    }
+
+    private void closeLink() {
+        service.removeListener(this);
+        if (openedLink) {
+            service.releaseLink();
+        }
+        finish();
+    }
+
+    private long readChargeCounter() {
+        BatteryManager batteryManager = (BatteryManager) service.getSystemService(Context.BATTERY_SERVICE);
+        if (batteryManager == null) {
+            return -1;
+        }
+        long value = batteryManager.getLongProperty(BatteryManager.BATTERY_PROPERTY_CHARGE_COUNTER);
+        return value == Long.MIN_VALUE ? -1 : value;
+    }
+
+    private void report(String message) {
+        Log.d(TAG, message);
+        preferencesManager.addAutomationReport(message);
+    }
+
+    private void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        handler.removeCallbacksAndMessages(null);
+        service.removeListener(this);
+        if (callback != null) {
+            callback.onFinished();
+        }
+    }
+}
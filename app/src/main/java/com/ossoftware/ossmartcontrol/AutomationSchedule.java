@@ -0,0 +1,265 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+// When an automation fires. Two spec formats are supported:
+//   cron:  "minute hour day-of-month month day-of-week"   e.g. "30 18 * * 1-5"
+//   solar: "sunrise|sunset[+/-minutes] [day-of-week]"     e.g. "sunset-15 *"
+// Fields accept '*', numbers, ranges (1-5) and lists (1,3,5). Day-of-week is 0-6, Sunday = 0.
+public class AutomationSchedule {
+
+    private static final int MAX_SEARCH_DAYS = 400;
+
+    private final String spec;
+    private final boolean solar;
+    private final boolean sunrise;
+    private final int offsetMinutes;
+
+    private final boolean[] minutes;
+    private final boolean[] hours;
+    private final boolean[] daysOfMonth;
+    private final boolean[] months;
+    private final boolean[] daysOfWeek;
+    private final boolean anyDayOfMonth;
+    private final boolean anyDayOfWeek;
+
+    private AutomationSchedule(String spec, boolean solar, boolean sunrise, int offsetMinutes,
+                               boolean[] minutes, boolean[] hours, boolean[] daysOfMonth,
+                               boolean[] months, boolean[] daysOfWeek,
+                               boolean anyDayOfMonth, boolean anyDayOfWeek) {
+        this.spec = spec;
+        this.solar = solar;
+        this.sunrise = sunrise;
+        this.offsetMinutes = offsetMinutes;
+        this.minutes = minutes;
+        this.hours = hours;
+        this.daysOfMonth = daysOfMonth;
+        this.months = months;
+        this.daysOfWeek = daysOfWeek;
+        this.anyDayOfMonth = anyDayOfMonth;
+        this.anyDayOfWeek = anyDayOfWeek;
+    }
+
+    public static AutomationSchedule parse(String spec) {
+        if (spec == null) {
+            throw new IllegalArgumentException("Empty schedule");
+        }
+        String clean = spec.trim().toLowerCase(Locale.US).replaceAll("\\s+", " ");
+        String[] fields = clean.split(" ");
+
+        if (fields[0].startsWith("sunrise") || fields[0].startsWith("sunset")) {
+            if (fields.length > 2) {
+                throw new IllegalArgumentException("Expected 'sunset[+/-min] [days]': " + spec);
+            }
+            boolean rising = fields[0].startsWith("sunrise");
+            String offset = fields[0].substring(rising ? "sunrise".length() : "sunset".length());
+            int offsetMinutes = 0;
+            if (!offset.isEmpty()) {
+                try {
+                    offsetMinutes = Integer.parseInt(offset.startsWith("+") ? offset.substring(1) : offset);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Bad offset: " + offset);
+                }
+            }
+            String dow = fields.length == 2 ? fields[1] : "*";
+            return new AutomationSchedule(clean, true, rising, offsetMinutes,
+                    null, null, null, null, parseDaysOfWeek(dow), true, dow.equals("*"));
+        }
+
+        if (fields.length != 5) {
+            throw new IllegalArgumentException("Expected 5 cron fields: " + spec);
+        }
+        return new AutomationSchedule(clean, false, false, 0,
+                parseField(fields[0], 0, 59),
+                parseField(fields[1], 0, 23),
+                parseField(fields[2], 1, 31),
+                parseField(fields[3], 1, 12),
+                parseDaysOfWeek(fields[4]),
+                fields[2].equals("*"),
+                fields[4].equals("*"));
+    }
+
+    private static boolean[] parseDaysOfWeek(String field) {
+        boolean[] days = parseField(field, 0, 7);
+        // Allow 7 for Sunday as cron does
+        days[0] |= days[7];
+        return days;
+    }
+
+    private static boolean[] parseField(String field, int min, int max) {
+        boolean[] values = new boolean[max + 1];
+        for (String part : field.split(",")) {
+            int step = 1;
+            int slash = part.indexOf('/');
+            if (slash >= 0) {
+                step = parseNumber(part.substring(slash + 1), 1, max);
+                part = part.substring(0, slash);
+            }
+
+            int from;
+            int to;
+            if (part.equals("*")) {
+                from = min;
+                to = max;
+            } else if (part.contains("-")) {
+                String[] range = part.split("-");
+                if (range.length != 2) {
+                    throw new IllegalArgumentException("Bad range: " + part);
+                }
+                from = parseNumber(range[0], min, max);
+                to = parseNumber(range[1], min, max);
+            } else {
+                from = parseNumber(part, min, max);
+                to = slash >= 0 ? max : from;
+            }
+
+            for (int v = from; v <= to; v += step) {
+                values[v] = true;
+            }
+        }
+        return values;
+    }
+
+    private static int parseNumber(String value, int min, int max) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number < min || number > max) {
+                throw new IllegalArgumentException("Out of range " + min + "-" + max + ": " + value);
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + value);
+        }
+    }
+
+    public boolean isSolar() {
+        return solar;
+    }
+
+    // First fire time strictly after 'after', or -1 if none within a year
+    // (or a solar schedule without a known location)
+    public long nextFireTime(long after, TimeZone zone, SolarCalculator solarCalculator) {
+        if (solar && solarCalculator == null) {
+            return -1;
+        }
+
+        Calendar day = Calendar.getInstance(zone, Locale.US);
+        day.setTimeInMillis(after);
+        day.set(Calendar.HOUR_OF_DAY, 0);
+        day.set(Calendar.MINUTE, 0);
+        day.set(Calendar.SECOND, 0);
+        day.set(Calendar.MILLISECOND, 0);
+        // Start a day early so negative solar offsets crossing midnight are not missed
+        day.add(Calendar.DAY_OF_MONTH, -1);
+
+        for (int i = 0; i < MAX_SEARCH_DAYS; i++, day.add(Calendar.DAY_OF_MONTH, 1)) {
+            if (!matchesDay(day)) {
+                continue;
+            }
+
+            long candidate = solar
+                    ? solarTime(day, solarCalculator)
+                    : firstCronTimeOnDay(day, after);
+            if (candidate > after) {
+                return candidate;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matchesDay(Calendar day) {
+        boolean dowMatch = daysOfWeek[day.get(Calendar.DAY_OF_WEEK) - 1];
+        if (solar) {
+            return dowMatch;
+        }
+        if (!months[day.get(Calendar.MONTH) + 1]) {
+            return false;
+        }
+        boolean domMatch = daysOfMonth[day.get(Calendar.DAY_OF_MONTH)];
+        // Cron semantics: when both day fields are restricted either one may match
+        if (!anyDayOfMonth && !anyDayOfWeek) {
+            return domMatch || dowMatch;
+        }
+        return domMatch && dowMatch;
+    }
+
+    private long solarTime(Calendar day, SolarCalculator calculator) {
+        int year = day.get(Calendar.YEAR);
+        int month = day.get(Calendar.MONTH) + 1;
+        int dayOfMonth = day.get(Calendar.DAY_OF_MONTH);
+        long event = sunrise
+                ? calculator.sunrise(year, month, dayOfMonth)
+                : calculator.sunset(year, month, dayOfMonth);
+        if (event < 0) {
+            return -1;
+        }
+        // Align to the minute like cron times
+        long time = event + offsetMinutes * 60000L;
+        return time - Math.floorMod(time, 60000L);
+    }
+
+    private long firstCronTimeOnDay(Calendar day, long after) {
+        Calendar time = (Calendar) day.clone();
+        for (int hour = 0; hour < 24; hour++) {
+            if (!hours[hour]) {
+                continue;
+            }
+            for (int minute = 0; minute < 60; minute++) {
+                if (!minutes[minute]) {
+                    continue;
+                }
+                time.set(Calendar.HOUR_OF_DAY, hour);
+                time.set(Calendar.MINUTE, minute);
+                long candidate = time.getTimeInMillis();
+                if (candidate > after) {
+                    return candidate;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // The parsed fields, for BoardProgramCompiler to encode; null on solar schedules
+    boolean isSunrise() {
+        return sunrise;
+    }
+
+    int getOffsetMinutes() {
+        return offsetMinutes;
+    }
+
+    boolean[] getMinutes() {
+        return minutes;
+    }
+
+    boolean[] getHours() {
+        return hours;
+    }
+
+    boolean[] getDaysOfMonth() {
+        return daysOfMonth;
+    }
+
+    boolean[] getMonths() {
+        return months;
+    }
+
+    boolean[] getDaysOfWeek() {
+        return daysOfWeek;
+    }
+
+    boolean isAnyDayOfMonth() {
+        return anyDayOfMonth;
+    }
+
+    boolean isAnyDayOfWeek() {
+        return anyDayOfWeek;
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
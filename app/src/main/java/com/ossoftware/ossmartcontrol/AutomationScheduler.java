@@ -0,0 +1,153 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+// Decides when the next automation session runs and which rules it covers.
+// Rules firing within one window of each other share a session, so the link
+// only has to come up once for all of them.
+public class AutomationScheduler {
+
+    public static final long DEFAULT_WINDOW_MS = 5 * 60 * 1000L;
+
+    private final TimeSource timeSource;
+    private final TimeZone timeZone;
+    private final SolarCalculator solarCalculator; // null when location unknown
+    private final long windowMs;
+
+    public static class DueRule {
+        private final AutomationRule rule;
+        private final long fireTime;
+
+        DueRule(AutomationRule rule, long fireTime) {
+            this.rule = rule;
+            this.fireTime = fireTime;
+        }
+
+        public AutomationRule getRule() {
+            return rule;
+        }
+
+        public long getFireTime() {
+            return fireTime;
+        }
+    }
+
+    public static class Session {
+        private final long startTime;
+        private final long coveredUntil;
+        private final boolean due;
+        private final List<DueRule> rules;
+
+        Session(long startTime, long coveredUntil, boolean due, List<DueRule> rules) {
+            this.startTime = startTime;
+            this.coveredUntil = coveredUntil;
+            this.due = due;
+            this.rules = rules;
+        }
+
+        // Earliest fire time in the session; the alarm should be set for this
+        public long getStartTime() {
+            return startTime;
+        }
+
+        // Every fire time up to here is handled by this session
+        public long getCoveredUntil() {
+            return coveredUntil;
+        }
+
+        // True when the session should run now
+        public boolean isDue() {
+            return due;
+        }
+
+        // Rules in fire-time order
+        public List<DueRule> getRules() {
+            return rules;
+        }
+    }
+
+    public AutomationScheduler(TimeSource timeSource, TimeZone timeZone,
+                               SolarCalculator solarCalculator, long windowMs) {
+        this.timeSource = timeSource;
+        this.timeZone = timeZone;
+        this.solarCalculator = solarCalculator;
+        this.windowMs = windowMs;
+    }
+
+    public long getWindowMs() {
+        return windowMs;
+    }
+
+    public long nextFireTime(AutomationRule rule, long after) {
+        try {
+            return AutomationSchedule.parse(rule.getSchedule())
+                    .nextFireTime(after, timeZone, solarCalculator);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    // Plan the next session after everything up to lastRunUpTo has been handled.
+    // Returns null when no enabled rule will ever fire.
+    public Session planNext(List<AutomationRule> rules, long lastRunUpTo) {
+        long now = timeSource.currentTimeMillis();
+
+        List<DueRule> candidates = new ArrayList<>();
+        long start = Long.MAX_VALUE;
+        for (AutomationRule rule : rules) {
+            if (!rule.isEnabled()) {
+                continue;
+            }
+            long fireTime = nextFireTime(rule, lastRunUpTo);
+            if (fireTime < 0) {
+                continue;
+            }
+            candidates.add(new DueRule(rule, fireTime));
+            start = Math.min(start, fireTime);
+        }
+
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        // A late alarm still picks up everything that has become due since
+        long anchor = Math.max(start, now);
+        long coveredUntil = anchor + windowMs;
+
+        List<DueRule> sessionRules = new ArrayList<>();
+        for (DueRule candidate : candidates) {
+            if (candidate.fireTime <= coveredUntil) {
+                sessionRules.add(candidate);
+            }
+        }
+        sessionRules.sort((a, b) -> Long.compare(a.fireTime, b.fireTime));
+
+        return new Session(start, coveredUntil, start <= now, sessionRules);
+    }
+
+    // Merge the scenes of a session into one scene. Rules later in the session
+    // win, so a switch touched by several rules is only commanded to its final state.
+    public static SceneModel buildSessionScene(Session session, Map<String, SceneModel> scenesById) {
+        Map<Integer, SceneModel.Step> lastStep = new LinkedHashMap<>();
+        for (DueRule dueRule : session.getRules()) {
+            SceneModel scene = scenesById.get(dueRule.getRule().getSceneId());
+            if (scene == null) {
+                continue;
+            }
+            for (SceneModel.Step step : scene.getSteps()) {
+                lastStep.remove(step.getSwitchIndex());
+                lastStep.put(step.getSwitchIndex(), step);
+            }
+        }
+
+        SceneModel merged = new SceneModel("AUTOMATION", "Automation");
+        for (SceneModel.Step step : lastStep.values()) {
+            merged.addStep(step);
+        }
+        return merged;
+    }
+}
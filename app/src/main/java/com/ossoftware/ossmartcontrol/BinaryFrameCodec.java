@@ -0,0 +1,256 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Compact frames for the serial link, translated to and from the text
+// protocol so everything above the link keeps speaking text:
+//
+//   SYNC  TYPE  SWITCH  LEN  PAYLOAD[LEN]  CRC-8
+//
+// The CRC (poly 0x07, init 0, as CRC-8/SMBUS) covers TYPE through PAYLOAD.
+// Everything after SYNC is byte-stuffed so no frame contains a newline,
+// carriage return or SYNC, which keeps frames one per line on the link's
+// line-based reader and lets a text line and a frame be told apart by their
+// first byte. Frames travel in Strings one char per byte (ISO-8859-1).
+// firmware/ossmartcontrol/ossmartcontrol.ino is the board side of this.
+//
+// Not thread safe: encode and decode reuse one frame buffer and matcher set.
+public class BinaryFrameCodec {
+
+    static final int SYNC = 0xA5;
+    static final int ESCAPE = 0x7D;
+    static final int MAX_PAYLOAD = 8;
+
+    // Phone -> board
+    static final int SET_ON = 0x01;
+    static final int SET_OFF = 0x02;
+    static final int TOGGLE = 0x03;
+    static final int SET_LEVEL = 0x04;
+    static final int STATUS_REQUEST = 0x05;
+    // Board -> phone
+    static final int STATE = 0x11;
+    static final int LEVEL = 0x12;
+    static final int STATUS = 0x13;
+
+    private static final Pattern COMMAND = Pattern.compile("^LIGHT(\\d+)_(ON|OFF|TOGGLE|LEVEL_(\\d+))(?:#(\\d+))?$");
+    private static final Pattern REPLY = Pattern.compile("^LIGHT(\\d+):(ON|OFF|LEVEL=(\\d+))(?:#(\\d+))?$");
+
+    private final Matcher commandMatcher = COMMAND.matcher("");
+    private final Matcher replyMatcher = REPLY.matcher("");
+    // TYPE, SWITCH, LEN, PAYLOAD, CRC
+    private final byte[] frame = new byte[4 + MAX_PAYLOAD];
+
+    // Appends the frame for a text command; false when it has no binary form
+    // (HELP, custom commands) and should go as text
+    public boolean encodeCommand(String command, StringBuilder out) {
+        if (command.equals("STATUS")) {
+            return write(STATUS_REQUEST, 0, 0, out);
+        }
+        if (!commandMatcher.reset(command).matches()) {
+            return false;
+        }
+
+        int switchNumber = Integer.parseInt(commandMatcher.group(1));
+        String action = commandMatcher.group(2);
+        int length = 0;
+        int type;
+        if (action.startsWith("LEVEL_")) {
+            int level = Integer.parseInt(commandMatcher.group(3));
+            if (level > 0xFF) {
+                return false;
+            }
+            type = SET_LEVEL;
+            frame[3 + length++] = (byte) level;
+        } else {
+            type = action.equals("ON") ? SET_ON : action.equals("OFF") ? SET_OFF : TOGGLE;
+        }
+        length = appendSeq(commandMatcher.group(4), length);
+        if (length < 0 || switchNumber > 0xFF) {
+            return false;
+        }
+        return write(type, switchNumber, length, out);
+    }
+
+    // Board side: appends the frame for a reply line, false to send it as text
+    public boolean encodeReply(String line, StringBuilder out) {
+        if (line.startsWith("Status:")) {
+            Map<Integer, Boolean> states = DeviceMessageParser.parseStatus(line);
+            int count = 0;
+            for (int switchNumber : states.keySet()) {
+                count = Math.max(count, switchNumber);
+            }
+            int length = (count + 7) / 8;
+            if (count == 0 || count > 0xFF || length > MAX_PAYLOAD) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                frame[3 + i] = 0;
+            }
+            for (Map.Entry<Integer, Boolean> entry : states.entrySet()) {
+                if (entry.getValue()) {
+                    int bit = entry.getKey() - 1;
+                    frame[3 + bit / 8] |= (byte) (1 << (bit % 8));
+                }
+            }
+            return write(STATUS, count, length, out);
+        }
+
+        if (!replyMatcher.reset(line).matches()) {
+            return false;
+        }
+        int switchNumber = Integer.parseInt(replyMatcher.group(1));
+        String state = replyMatcher.group(2);
+        int type;
+        int value;
+        if (state.startsWith("LEVEL=")) {
+            type = LEVEL;
+            value = Integer.parseInt(replyMatcher.group(3));
+        } else {
+            type = STATE;
+            value = state.equals("ON") ? 1 : 0;
+        }
+        frame[3] = (byte) value;
+        int length = appendSeq(replyMatcher.group(4), 1);
+        if (length < 0 || switchNumber > 0xFF || value > 0xFF) {
+            return false;
+        }
+        return write(type, switchNumber, length, out);
+    }
+
+    private int appendSeq(String seq, int length) {
+        if (seq == null) {
+            return length;
+        }
+        int value = Integer.parseInt(seq);
+        if (value > 0xFF) {
+            return -1;
+        }
+        frame[3 + length] = (byte) value;
+        return length + 1;
+    }
+
+    private boolean write(int type, int switchNumber, int length, StringBuilder out) {
+        frame[0] = (byte) type;
+        frame[1] = (byte) switchNumber;
+        frame[2] = (byte) length;
+        frame[3 + length] = (byte) crc8(frame, 3 + length);
+
+        out.append((char) SYNC);
+        for (int i = 0; i < 4 + length; i++) {
+            int b = frame[i] & 0xFF;
+            if (b == '\n' || b == '\r' || b == SYNC || b == ESCAPE) {
+                out.append((char) ESCAPE).append((char) (b ^ 0x20));
+            } else {
+                out.append((char) b);
+            }
+        }
+        return true;
+    }
+
+    static boolean isFrame(CharSequence line) {
+        return line.length() > 0 && line.charAt(0) == SYNC;
+    }
+
+    // Appends the text form of one frame from the link; false, appending
+    // nothing, when it is truncated, fails its CRC or isn't a known type
+    public boolean decode(CharSequence wire, StringBuilder out) {
+        int start = out.length();
+        if (!decodeFrame(wire, out)) {
+            out.setLength(start);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean decodeFrame(CharSequence wire, StringBuilder out) {
+        if (!isFrame(wire)) {
+            return false;
+        }
+
+        int size = 0;
+        for (int i = 1; i < wire.length(); i++) {
+            int b = wire.charAt(i);
+            if (b == ESCAPE && i + 1 < wire.length()) {
+                b = wire.charAt(++i) ^ 0x20;
+            }
+            if (b > 0xFF || size == frame.length) {
+                return false;
+            }
+            frame[size++] = (byte) b;
+        }
+        if (size < 4) {
+            return false;
+        }
+        int length = frame[2] & 0xFF;
+        if (length > MAX_PAYLOAD || size != 4 + length || (frame[3 + length] & 0xFF) != crc8(frame, 3 + length)) {
+            return false;
+        }
+
+        int type = frame[0] & 0xFF;
+        int switchNumber = frame[1] & 0xFF;
+        switch (type) {
+            case SET_ON:
+            case SET_OFF:
+            case TOGGLE:
+                out.append("LIGHT").append(switchNumber)
+                        .append(type == SET_ON ? "_ON" : type == SET_OFF ? "_OFF" : "_TOGGLE");
+                return appendDecodedSeq(0, length, out);
+            case SET_LEVEL:
+                if (length < 1) {
+                    return false;
+                }
+                out.append("LIGHT").append(switchNumber).append("_LEVEL_").append(frame[3] & 0xFF);
+                return appendDecodedSeq(1, length, out);
+            case STATUS_REQUEST:
+                out.append("STATUS");
+                return true;
+            case STATE:
+            case LEVEL:
+                if (length < 1) {
+                    return false;
+                }
+                out.append("LIGHT").append(switchNumber);
+                if (type == STATE) {
+                    out.append(frame[3] != 0 ? ":ON" : ":OFF");
+                } else {
+                    out.append(":LEVEL=").append(frame[3] & 0xFF);
+                }
+                return appendDecodedSeq(1, length, out);
+            case STATUS:
+                if (length != (switchNumber + 7) / 8) {
+                    return false;
+                }
+                out.append("Status:");
+                for (int i = 0; i < switchNumber; i++) {
+                    boolean on = (frame[3 + i / 8] & (1 << (i % 8))) != 0;
+                    out.append(" L").append(i + 1).append(on ? "=ON" : "=OFF");
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean appendDecodedSeq(int at, int length, StringBuilder out) {
+        if (length == at + 1) {
+            out.append('#').append(frame[3 + at] & 0xFF);
+        } else if (length != at) {
+            return false;
+        }
+        return true;
+    }
+
+    // CRC-8, poly 0x07, init 0x00; the sketch computes the same bit by bit
+    static int crc8(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+            }
+        }
+        return crc;
+    }
+}
@@ -2,29 +2,45 @@ package com.ossoftware.ossmartcontrol;
 
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.widget.Toast;
 
 import androidx.core.content.ContextCompat;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import ai.bongotech.bt.BongoBT;
 
-public class BluetoothManager {
+public class BluetoothManager implements ControllerLink {
 
     private Context context;
     private BongoBT bongoBT;
     private Set<String> discoveredDevices;
+    // Signal strength each device was found with; RFCOMM has no way to read it once connected
+    private final Map<String, Integer> scanRssi = new HashMap<>();
+    private boolean rssiReceiverRegistered = false;
     private String connectedMac;
     private String connectedDeviceName;
+    // Bumped for every connectTo so callbacks from a link we closed are ignored
+    private int connectionId = 0;
 
     private BluetoothListener bluetoothListener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final IdleLinkPolicy idlePolicy;
 
-    public interface BluetoothListener {
+    public interface BluetoothListener extends ControllerLink.Listener {
         void onDeviceFound(String name, String mac);
 
         void onScanStarted();
@@ -33,13 +49,11 @@ public class BluetoothManager {
 
         void onScanError(String error);
 
-        void onConnected(String deviceName, String mac);
+        // The radio link was closed for being idle; the connection carries on
+        void onLinkSuspended();
 
-        void onDisconnected();
-
-        void onConnectionError(String error);
-
-        void onMessageReceived(String message);
+        // Open again; waitedMs is how long a held command waited, or -1
+        void onLinkResumed(long waitedMs);
     }
 
     public BluetoothManager(Context context, BluetoothListener listener) {
@@ -49,10 +63,84 @@ public class BluetoothManager {
         this.discoveredDevices = new HashSet<>();
         this.connectedMac = "";
         this.connectedDeviceName = "";
+        this.idlePolicy = new IdleLinkPolicy(new IdleLinkPolicy.Link() {
+            @Override
+            public void write(List<String> commands) {
+                bongoBT.sendCommand(String.join("\n", commands));
+            }
+
+            @Override
+            public void suspend() {
+                connectionId++;
+                bongoBT.disconnect();
+            }
+
+            @Override
+            public void resume() {
+                openLink(connectedDeviceName, connectedMac);
+            }
+        }, SystemClock::elapsedRealtime, new Scheduler() {
+            @Override
+            public void postDelayed(Runnable task, long delayMs) {
+                handler.postDelayed(task, delayMs);
+            }
+
+            @Override
+            public void cancel(Runnable task) {
+                handler.removeCallbacks(task);
+            }
+        }, new IdleLinkPolicy.Listener() {
+            @Override
+            public void onSuspended() {
+                if (bluetoothListener != null) {
+                    bluetoothListener.onLinkSuspended();
+                }
+            }
+
+            @Override
+            public void onResumed(long waitedMs) {
+                if (bluetoothListener != null) {
+                    bluetoothListener.onLinkResumed(waitedMs);
+                }
+            }
+
+            @Override
+            public void onResumeFailed(int droppedCommands) {
+                connectedMac = "";
+                connectedDeviceName = "";
+                if (bluetoothListener != null) {
+                    bluetoothListener.onDisconnected();
+                }
+            }
+        });
+    }
+
+    // BongoBT's discovery callback leaves out the RSSI the system broadcast carries
+    private final BroadcastReceiver rssiReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+            if (device != null && rssi != Short.MIN_VALUE) {
+                scanRssi.put(device.getAddress(), (int) rssi);
+            }
+        }
+    };
+
+    private void stopRssiReceiver() {
+        if (rssiReceiverRegistered) {
+            context.unregisterReceiver(rssiReceiver);
+            rssiReceiverRegistered = false;
+        }
     }
 
     public void startScanning() {
         discoveredDevices.clear();
+        if (!rssiReceiverRegistered) {
+            ContextCompat.registerReceiver(context, rssiReceiver,
+                    new IntentFilter(BluetoothDevice.ACTION_FOUND), ContextCompat.RECEIVER_EXPORTED);
+            rssiReceiverRegistered = true;
+        }
 
         if (bluetoothListener != null) {
             bluetoothListener.onScanStarted();
@@ -76,6 +164,7 @@ public class BluetoothManager {
 
             @Override
             public void onFinished(ArrayList<HashMap<String, String>> arrayList) {
+                stopRssiReceiver();
                 if (bluetoothListener != null) {
                     bluetoothListener.onScanFinished(discoveredDevices.size());
                 }
@@ -83,6 +172,7 @@ public class BluetoothManager {
 
             @Override
             public void onError(String errorReason) {
+                stopRssiReceiver();
                 if (bluetoothListener != null) {
                     bluetoothListener.onScanError(errorReason);
                 }
@@ -90,13 +180,28 @@ public class BluetoothManager {
         });
     }
 
+    @Override
     public void connectToDevice(String name, String mac) {
+        openLink(name, mac);
+    }
+
+    // A new connection, or the same one reopened after an idle suspension
+    private void openLink(String name, String mac) {
+        int id = ++connectionId;
         bongoBT.connectTo(mac, new BongoBT.BtConnectListener() {
             @SuppressLint("MissingPermission")
             @Override
             public void onConnected() {
+                if (id != connectionId) {
+                    return;
+                }
+                if (idlePolicy.isResuming()) {
+                    idlePolicy.onResumed();
+                    return;
+                }
                 connectedMac = mac;
                 connectedDeviceName = name;
+                idlePolicy.onConnected();
 
                 if (bluetoothListener != null) {
                     bluetoothListener.onConnected(name, mac);
@@ -105,6 +210,9 @@ public class BluetoothManager {
 
             @Override
             public void onReceived(String message) {
+                if (id != connectionId) {
+                    return;
+                }
                 if (bluetoothListener != null) {
                     bluetoothListener.onMessageReceived(message);
                 }
@@ -112,8 +220,16 @@ public class BluetoothManager {
 
             @Override
             public void onError(String reason) {
+                if (id != connectionId) {
+                    return;
+                }
+                if (idlePolicy.isResuming()) {
+                    idlePolicy.onResumeFailed();
+                    return;
+                }
                 connectedMac = "";
                 connectedDeviceName = "";
+                idlePolicy.onClosed();
 
                 if (bluetoothListener != null) {
                     bluetoothListener.onConnectionError(reason);
@@ -122,13 +238,46 @@ public class BluetoothManager {
         });
     }
 
+    @Override
     public void sendCommand(String command) {
+        sendCommands(Collections.singletonList(command));
+    }
+
+    // Newline-separated so the firmware reads them as individual commands,
+    // but only one write goes out over the link. Held while an idle link reopens.
+    @Override
+    public void sendCommands(List<String> commands) {
+        if (connectedMac.isEmpty() || commands.isEmpty()) {
+            return;
+        }
+        idlePolicy.send(commands);
+    }
+
+    // User activity; reopens an idle link ahead of the command that will follow
+    @Override
+    public void touch() {
         if (!connectedMac.isEmpty()) {
-            bongoBT.sendCommand(command);
+            idlePolicy.touch();
         }
     }
 
+    // 0 keeps the link open while connected
+    public void setIdleTimeout(long idleTimeoutMs) {
+        idlePolicy.setIdleTimeout(idleTimeoutMs);
+    }
+
+    public boolean isSuspended() {
+        return idlePolicy.isSuspended();
+    }
+
+    public String getIdleSummary() {
+        return idlePolicy.getSummary();
+    }
+
+    @Override
     public void disconnect() {
+        connectionId++;
+        idlePolicy.onClosed();
         if (bongoBT != null) {
             bongoBT.disconnect();
         }
@@ -140,14 +289,22 @@ public class BluetoothManager {
         }
     }
 
+    @Override
     public boolean isConnected() {
         return !connectedMac.isEmpty();
     }
 
+    @Override
     public String getConnectedDeviceName() {
         return connectedDeviceName;
     }
 
+    // dBm from the last scan that found this device, or null
+    public Integer getScanRssi(String mac) {
+        return scanRssi.get(mac);
+    }
+
+    @Override
     public String getConnectedMac() {
         return connectedMac;
     }
@@ -0,0 +1,262 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// What one controller's firmware understands, learned from its answer to CAPS
+// or, on older sketches, from the command list HELP prints. Kept per MAC so a
+// reconnect can skip asking.
+public class BoardCapabilities {
+
+    public static final String QUERY = "CAPS";
+    static final String REPLY_PREFIX = "CAPS:";
+
+    public enum Feature {
+        TOGGLE,  // LIGHTn_TOGGLE
+        SET,     // LIGHTn_ON / LIGHTn_OFF
+        LEVEL,   // LIGHTn_LEVEL_x
+        ALL,     // ALL_ON / ALL_OFF in one command
+        STATUS,
+        SEQ,     // SEQ_ON handshake, ReplySequencer
+        BIN,     // BIN_ON handshake, FramedLink
+        PING,    // Answers the heartbeat with PONG
+        PROG,    // Runs automations from EEPROM, BoardProgramUploader
+        UDP      // LAN boards: takes datagram commands on its TCP port, LanLink
+    }
+
+    public enum Source {
+        CAPS, HELP, ASSUMED
+    }
+
+    // LIGHTx_ON, LIGHT1_TOGGLE, LIGHTn_LEVEL_x, LIGHT[1-8]_OFF
+    private static final Pattern LIGHT_COMMAND =
+            Pattern.compile("LIGHT(X|N|\\d+|\\[(\\d+)\\s*-\\s*(\\d+)\\])_(ON|OFF|TOGGLE|LEVEL)");
+    // (x = 1-6), x: 1..8, n = 1 to 4
+    private static final Pattern SWITCH_RANGE =
+            Pattern.compile("\\b[XN]\\s*[=:]\\s*(\\d+)\\s*(?:-|\\.\\.|TO)\\s*(\\d+)");
+    private static final Pattern CAPS_FIELD = Pattern.compile("(\\w+)=([\\w,]*)");
+
+    private final Set<Feature> features;
+    private int switchCount; // 0 while unknown
+    private final Source source;
+
+    public BoardCapabilities(Set<Feature> features, int switchCount, Source source) {
+        this.features = features.isEmpty() ? EnumSet.noneOf(Feature.class) : EnumSet.copyOf(features);
+        this.switchCount = switchCount;
+        this.source = source;
+    }
+
+    // Nothing learned: behave as the app always has and let the handshakes find out
+    public static BoardCapabilities assumed() {
+        return new BoardCapabilities(EnumSet.of(Feature.TOGGLE, Feature.SET, Feature.LEVEL, Feature.STATUS,
+                Feature.SEQ, Feature.BIN), 0, Source.ASSUMED);
+    }
+
+    public static boolean isCapsReply(String line) {
+        return line.startsWith(REPLY_PREFIX);
+    }
+
+    // CAPS: switches=4 cmds=TOGGLE,SET,LEVEL,ALL,STATUS,SEQ,BIN,PING,PROG
+    public static BoardCapabilities parseCaps(String line) {
+        Set<Feature> features = EnumSet.noneOf(Feature.class);
+        int switchCount = 0;
+        Matcher field = CAPS_FIELD.matcher(line.substring(REPLY_PREFIX.length()));
+        while (field.find()) {
+            String key = field.group(1).toLowerCase(Locale.US);
+            if (key.equals("switches")) {
+                switchCount = parseCount(field.group(2));
+            } else if (key.equals("cmds")) {
+                for (String name : field.group(2).split(",")) {
+                    try {
+                        features.add(Feature.valueOf(name.trim().toUpperCase(Locale.US)));
+                    } catch (IllegalArgumentException ignored) {
+                        // Newer firmware; nothing here uses it
+                    }
+                }
+            }
+        }
+        return new BoardCapabilities(features, switchCount, Source.CAPS);
+    }
+
+    // The lines HELP printed after "Bluetooth Commands:", in any of the
+    // layouts the sketches have used: one command per line with a
+    // description, comma separated with an "x" placeholder, or with ranges
+    public static BoardCapabilities parseHelp(List<String> lines) {
+        String text = String.join("\n", lines).toUpperCase(Locale.US);
+        Set<Feature> features = EnumSet.noneOf(Feature.class);
+        boolean on = false;
+        boolean off = false;
+        int switchCount = 0;
+
+        Matcher command = LIGHT_COMMAND.matcher(text);
+        while (command.find()) {
+            String target = command.group(1);
+            if (command.group(3) != null) {
+                switchCount = Math.max(switchCount, parseCount(command.group(3)));
+            } else if (Character.isDigit(target.charAt(0))) {
+                switchCount = Math.max(switchCount, parseCount(target));
+            }
+            switch (command.group(4)) {
+                case "ON":
+                    on = true;
+                    break;
+                case "OFF":
+                    off = true;
+                    break;
+                case "TOGGLE":
+                    features.add(Feature.TOGGLE);
+                    break;
+                case "LEVEL":
+                    features.add(Feature.LEVEL);
+                    break;
+            }
+        }
+        if (on && off) {
+            features.add(Feature.SET);
+        }
+        Matcher range = SWITCH_RANGE.matcher(text);
+        while (range.find()) {
+            switchCount = Math.max(switchCount, parseCount(range.group(2)));
+        }
+
+        if (text.contains("ALL_ON") && text.contains("ALL_OFF")) {
+            features.add(Feature.ALL);
+        }
+        if (text.contains("STATUS")) {
+            features.add(Feature.STATUS);
+        }
+        if (text.contains(ReplySequencer.HANDSHAKE)) {
+            features.add(Feature.SEQ);
+        }
+        if (text.contains(FramedLink.HANDSHAKE)) {
+            features.add(Feature.BIN);
+        }
+        if (text.contains(LinkMonitor.PING)) {
+            features.add(Feature.PING);
+        }
+        if (text.contains(BoardProgramUploader.INFO)) {
+            features.add(Feature.PROG);
+        }
+        return new BoardCapabilities(features, switchCount, Source.HELP);
+    }
+
+    private static int parseCount(String digits) {
+        try {
+            return Integer.parseInt(digits);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public boolean has(Feature feature) {
+        return features.contains(feature);
+    }
+
+    // The board refused a command these capabilities promised; true when
+    // something was taken away and the cached copy is wrong
+    public boolean onRejected(String command) {
+        Feature feature = featureOf(command);
+        return feature != null && features.remove(feature);
+    }
+
+    static Feature featureOf(String command) {
+        if (command.equals(ReplySequencer.HANDSHAKE)) {
+            return Feature.SEQ;
+        }
+        if (command.startsWith(FramedLink.HANDSHAKE)) {
+            return Feature.BIN;
+        }
+        if (command.equals(LinkMonitor.PING)) {
+            return Feature.PING;
+        }
+        if (command.startsWith("PROG_") || command.startsWith(BoardProgramUploader.TIME_SET)) {
+            return Feature.PROG;
+        }
+        if (command.equals("ALL_ON") || command.equals("ALL_OFF")) {
+            return Feature.ALL;
+        }
+        if (command.startsWith("LIGHT")) {
+            if (command.endsWith("_ON") || command.endsWith("_OFF")) {
+                return Feature.SET;
+            }
+            if (command.contains("_LEVEL_")) {
+                return Feature.LEVEL;
+            }
+        }
+        return null;
+    }
+
+    public int getSwitchCount() {
+        return switchCount;
+    }
+
+    // From the first STATUS reply when neither CAPS nor HELP said
+    public void setSwitchCount(int switchCount) {
+        this.switchCount = switchCount;
+    }
+
+    public Source getSource() {
+        return source;
+    }
+
+    // Learned from the board, so worth keeping for the next connection
+    public boolean isKnown() {
+        return source != Source.ASSUMED;
+    }
+
+    public String toJson() {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("switches", switchCount);
+            json.put("source", source.name());
+            JSONArray names = new JSONArray();
+            for (Feature feature : features) {
+                names.put(feature.name());
+            }
+            json.put("features", names);
+            return json.toString();
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public static BoardCapabilities fromJson(String jsonString) {
+        try {
+            JSONObject json = new JSONObject(jsonString);
+            Set<Feature> features = EnumSet.noneOf(Feature.class);
+            JSONArray names = json.getJSONArray("features");
+            for (int i = 0; i < names.length(); i++) {
+                try {
+                    features.add(Feature.valueOf(names.getString(i)));
+                } catch (IllegalArgumentException ignored) {
+                    // Saved by a newer version
+                }
+            }
+            return new BoardCapabilities(features, json.optInt("switches", 0),
+                    Source.valueOf(json.optString("source", Source.HELP.name())));
+        } catch (JSONException | IllegalArgumentException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public String getSummary() {
+        List<String> names = new ArrayList<>();
+        for (Feature feature : features) {
+            names.add(feature.name().toLowerCase(Locale.US));
+        }
+        return String.format(Locale.US, "%s switches, %s (from %s)",
+                switchCount > 0 ? String.valueOf(switchCount) : "?", String.join(" ", names),
+                source.name().toLowerCase(Locale.US));
+    }
+}
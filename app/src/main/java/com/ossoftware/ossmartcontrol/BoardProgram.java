@@ -0,0 +1,97 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Automations compiled for the controller to run by itself from its RTC.
+// The image is what the sketch keeps in EEPROM, big-endian throughout:
+//
+//   'O' 'S' VERSION RULE_COUNT RULE... SCENE...
+//
+//   RULE  = KIND SCENE_OFFSET(2) TRIGGER
+//     CRON  (1): MINUTES(8) HOURS(3) DAYS(4) MONTHS(2) WEEKDAYS(1) FLAGS(1)
+//                bit n set when the value n matches, as AutomationSchedule
+//                parsed it; FLAGS bit 0: any day of month, bit 1: any weekday
+//     SOLAR (2): WEEKDAYS(1) TIMES(2 x 12)
+//                local minute of the day on the 15th of each month, offset
+//                included, 0xFFFF when the sun doesn't rise or set; days in
+//                between are interpolated
+//
+//   SCENE = OP... END, with OP one of ON n, OFF n, WAIT tenths(2)
+//
+// This must stay in step with the sketch and BoardProgramInterpreter.
+public class BoardProgram {
+
+    static final int VERSION = 1;
+    // EEPROM on an Uno is 1 KB; the sketch keeps 8 bytes for its header
+    static final int MAX_SIZE = 1016;
+
+    static final int KIND_CRON = 1;
+    static final int KIND_SOLAR = 2;
+    static final int CRON_SIZE = 3 + 19;
+    static final int SOLAR_SIZE = 3 + 25;
+    static final int NO_TIME = 0xFFFF;
+
+    static final int OP_END = 0x00;
+    static final int OP_ON = 0x01;
+    static final int OP_OFF = 0x02;
+    static final int OP_WAIT = 0x03;
+    // WAIT counts tenths of a second, so one op covers up to ~109 minutes
+    static final int MAX_WAIT_TENTHS = 0xFFFF;
+
+    private final byte[] image;
+    private final List<String> ruleIds;
+    private final Map<String, String> skipped;
+
+    BoardProgram(byte[] image, List<String> ruleIds, Map<String, String> skipped) {
+        this.image = image;
+        this.ruleIds = Collections.unmodifiableList(ruleIds);
+        this.skipped = Collections.unmodifiableMap(new LinkedHashMap<>(skipped));
+    }
+
+    public byte[] getImage() {
+        return image;
+    }
+
+    public int getSize() {
+        return image.length;
+    }
+
+    public int getCrc() {
+        return crc16(image, 0, image.length);
+    }
+
+    // Automations the board runs, by rule id
+    public List<String> getRuleIds() {
+        return ruleIds;
+    }
+
+    // Rules left to the phone, with the reason
+    public Map<String, String> getSkipped() {
+        return skipped;
+    }
+
+    public boolean isEmpty() {
+        return ruleIds.isEmpty();
+    }
+
+    // CRC-16/CCITT-FALSE: poly 0x1021, init 0xFFFF
+    static int crc16(byte[] data, int offset, int length) {
+        int crc = 0xFFFF;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= (data[i] & 0xFF) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? ((crc << 1) ^ 0x1021) & 0xFFFF : (crc << 1) & 0xFFFF;
+            }
+        }
+        return crc;
+    }
+
+    public String getSummary() {
+        return String.format(Locale.US, "%d rules in %d bytes (crc %04X), %d left on the phone",
+                ruleIds.size(), image.length, getCrc(), skipped.size());
+    }
+}
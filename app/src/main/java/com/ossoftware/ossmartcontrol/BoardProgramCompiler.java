@@ -0,0 +1,215 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Builds a BoardProgram from the user's automations. A rule can go to the
+// board when its schedule can be encoded and every switch its scene touches
+// is one of the board's own relays; anything else (switches driven by custom
+// commands, sunrise without a known location) stays with the phone. Scenes
+// used by several rules are stored once.
+public class BoardProgramCompiler {
+
+    private static final Pattern BOARD_RELAY = Pattern.compile("^LIGHT(\\d+)_TOGGLE$");
+
+    private static class Rule {
+        final AutomationRule rule;
+        final AutomationSchedule schedule;
+        final int[] solarTimes;
+
+        Rule(AutomationRule rule, AutomationSchedule schedule, int[] solarTimes) {
+            this.rule = rule;
+            this.schedule = schedule;
+            this.solarTimes = solarTimes;
+        }
+
+        int size() {
+            return schedule.isSolar() ? BoardProgram.SOLAR_SIZE : BoardProgram.CRON_SIZE;
+        }
+    }
+
+    // The board relay a switch drives, or -1 when it is sent custom commands
+    static int relayOf(DeviceModel device) {
+        if (device.getOffCommand() != null && !device.getOffCommand().isEmpty()) {
+            return -1;
+        }
+        Matcher matcher = BOARD_RELAY.matcher(device.getToggleCommand() == null ? "" : device.getToggleCommand());
+        return matcher.matches() ? Integer.parseInt(matcher.group(1)) : -1;
+    }
+
+    // Solar times are worked out for the given year in the given zone, so the
+    // program wants recompiling once a year and whenever the zone changes
+    public static BoardProgram compile(List<AutomationRule> rules, List<SceneModel> scenes,
+                                       List<DeviceModel> switches, SolarCalculator solarCalculator,
+                                       TimeZone zone, int year) {
+        Map<String, SceneModel> scenesById = new HashMap<>();
+        for (SceneModel scene : scenes) {
+            scenesById.put(scene.getId(), scene);
+        }
+        Map<Integer, DeviceModel> switchesByIndex = new HashMap<>();
+        for (DeviceModel device : switches) {
+            switchesByIndex.put(device.getIndex(), device);
+        }
+
+        List<Rule> accepted = new ArrayList<>();
+        Map<String, byte[]> sceneCode = new LinkedHashMap<>();
+        Map<String, String> skipped = new LinkedHashMap<>();
+        int size = 4;
+
+        for (AutomationRule rule : rules) {
+            if (!rule.isEnabled()) {
+                continue;
+            }
+            AutomationSchedule schedule;
+            try {
+                schedule = AutomationSchedule.parse(rule.getSchedule());
+            } catch (IllegalArgumentException e) {
+                skipped.put(rule.getId(), "bad schedule: " + e.getMessage());
+                continue;
+            }
+            SceneModel scene = scenesById.get(rule.getSceneId());
+            if (scene == null) {
+                skipped.put(rule.getId(), "scene is gone");
+                continue;
+            }
+            if (schedule.isSolar() && solarCalculator == null) {
+                skipped.put(rule.getId(), "location unknown");
+                continue;
+            }
+
+            byte[] code = sceneCode.get(scene.getId());
+            if (code == null) {
+                code = compileScene(scene, switchesByIndex);
+                if (code == null) {
+                    skipped.put(rule.getId(), "scene uses switches the board doesn't drive");
+                    continue;
+                }
+            }
+
+            Rule compiled = new Rule(rule, schedule,
+                    schedule.isSolar() ? solarTimes(schedule, solarCalculator, zone, year) : null);
+            int added = compiled.size() + (sceneCode.containsKey(scene.getId()) ? 0 : code.length);
+            if (accepted.size() == 0xFF || size + added > BoardProgram.MAX_SIZE) {
+                skipped.put(rule.getId(), "doesn't fit in the board's memory");
+                continue;
+            }
+            size += added;
+            accepted.add(compiled);
+            sceneCode.put(scene.getId(), code);
+        }
+
+        return new BoardProgram(layout(accepted, sceneCode), ruleIds(accepted), skipped);
+    }
+
+    // null when a step targets something other than a board relay
+    private static byte[] compileScene(SceneModel scene, Map<Integer, DeviceModel> switchesByIndex) {
+        ByteArrayOutputStream code = new ByteArrayOutputStream();
+        for (SceneModel.Step step : scene.getSteps()) {
+            DeviceModel device = switchesByIndex.get(step.getSwitchIndex());
+            int relay = device != null ? relayOf(device) : -1;
+            if (relay < 1 || relay > 0xFF) {
+                return null;
+            }
+            long tenths = (step.getDelayMs() + 50) / 100;
+            while (tenths > 0) {
+                long wait = Math.min(tenths, BoardProgram.MAX_WAIT_TENTHS);
+                code.write(BoardProgram.OP_WAIT);
+                code.write((int) (wait >> 8));
+                code.write((int) wait & 0xFF);
+                tenths -= wait;
+            }
+            code.write(step.isTurnOn() ? BoardProgram.OP_ON : BoardProgram.OP_OFF);
+            code.write(relay);
+        }
+        code.write(BoardProgram.OP_END);
+        return code.toByteArray();
+    }
+
+    // Local minute of the day on the 15th of each month, as AutomationSchedule
+    // would fire: the event plus the offset, down to the minute
+    private static int[] solarTimes(AutomationSchedule schedule, SolarCalculator calculator,
+                                    TimeZone zone, int year) {
+        int[] times = new int[12];
+        for (int month = 1; month <= 12; month++) {
+            long event = schedule.isSunrise()
+                    ? calculator.sunrise(year, month, 15)
+                    : calculator.sunset(year, month, 15);
+            if (event < 0) {
+                times[month - 1] = BoardProgram.NO_TIME;
+                continue;
+            }
+            long localMinute = Math.floorDiv(event + zone.getOffset(event), 60_000L) + schedule.getOffsetMinutes();
+            times[month - 1] = (int) Math.floorMod(localMinute, 24 * 60L);
+        }
+        return times;
+    }
+
+    private static byte[] layout(List<Rule> rules, Map<String, byte[]> sceneCode) {
+        Map<String, Integer> sceneOffsets = new HashMap<>();
+        int offset = 4;
+        for (Rule rule : rules) {
+            offset += rule.size();
+        }
+        for (Map.Entry<String, byte[]> scene : sceneCode.entrySet()) {
+            sceneOffsets.put(scene.getKey(), offset);
+            offset += scene.getValue().length;
+        }
+
+        ByteArrayOutputStream image = new ByteArrayOutputStream(offset);
+        image.write('O');
+        image.write('S');
+        image.write(BoardProgram.VERSION);
+        image.write(rules.size());
+        for (Rule rule : rules) {
+            AutomationSchedule schedule = rule.schedule;
+            int sceneOffset = sceneOffsets.get(rule.rule.getSceneId());
+            image.write(schedule.isSolar() ? BoardProgram.KIND_SOLAR : BoardProgram.KIND_CRON);
+            image.write(sceneOffset >> 8);
+            image.write(sceneOffset & 0xFF);
+            if (schedule.isSolar()) {
+                writeBits(image, schedule.getDaysOfWeek(), 0, 6, 1);
+                for (int time : rule.solarTimes) {
+                    image.write(time >> 8);
+                    image.write(time & 0xFF);
+                }
+            } else {
+                writeBits(image, schedule.getMinutes(), 0, 59, 8);
+                writeBits(image, schedule.getHours(), 0, 23, 3);
+                writeBits(image, schedule.getDaysOfMonth(), 1, 31, 4);
+                writeBits(image, schedule.getMonths(), 1, 12, 2);
+                writeBits(image, schedule.getDaysOfWeek(), 0, 6, 1);
+                image.write((schedule.isAnyDayOfMonth() ? 1 : 0) | (schedule.isAnyDayOfWeek() ? 2 : 0));
+            }
+        }
+        for (byte[] code : sceneCode.values()) {
+            image.write(code, 0, code.length);
+        }
+        return image.toByteArray();
+    }
+
+    // Bit n of the field (byte n / 8, bit n % 8) is set when value n matches
+    private static void writeBits(ByteArrayOutputStream out, boolean[] values, int from, int to, int bytes) {
+        byte[] bits = new byte[bytes];
+        for (int value = from; value <= to; value++) {
+            if (values[value]) {
+                bits[value / 8] |= (byte) (1 << (value % 8));
+            }
+        }
+        out.write(bits, 0, bytes);
+    }
+
+    private static List<String> ruleIds(List<Rule> rules) {
+        List<String> ids = new ArrayList<>();
+        for (Rule rule : rules) {
+            ids.add(rule.rule.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,248 @@
+package com.ossoftware.ossmartcontrol;
+
+// The sketch's program runner, line for line, so what the board will do can
+// be checked on the JVM. onMinute is called once for every new minute on the
+// board's clock and starts the scene of each rule that matches it; run
+// advances the scenes that are waiting out a delay. A few scenes can be in
+// progress at once; a rule that fires while its scene is still running
+// restarts it.
+public class BoardProgramInterpreter {
+
+    public interface Relays {
+        void set(int relay, boolean on);
+    }
+
+    static final int SLOTS = 4;
+
+    private final Relays relays;
+    private byte[] image;
+    private final int[] slotPc = new int[SLOTS];
+    private final long[] slotResumeAt = new long[SLOTS];
+    private final int[] slotScene = new int[SLOTS];
+
+    private int fired = 0;
+
+    public BoardProgramInterpreter(Relays relays) {
+        this.relays = relays;
+        clear();
+    }
+
+    // False, and nothing loaded, when the image isn't one this version can run
+    public boolean load(byte[] image) {
+        clear();
+        if (!isValid(image)) {
+            return false;
+        }
+        this.image = image;
+        return true;
+    }
+
+    public void clear() {
+        image = null;
+        for (int i = 0; i < SLOTS; i++) {
+            slotPc[i] = -1;
+        }
+    }
+
+    public boolean isLoaded() {
+        return image != null;
+    }
+
+    static boolean isValid(byte[] image) {
+        if (image == null || image.length < 4 || image[0] != 'O' || image[1] != 'S'
+                || (image[2] & 0xFF) != BoardProgram.VERSION) {
+            return false;
+        }
+        int at = 4;
+        for (int rule = 0; rule < (image[3] & 0xFF); rule++) {
+            if (at + 3 > image.length) {
+                return false;
+            }
+            int kind = image[at] & 0xFF;
+            int size = kind == BoardProgram.KIND_CRON ? BoardProgram.CRON_SIZE
+                    : kind == BoardProgram.KIND_SOLAR ? BoardProgram.SOLAR_SIZE : -1;
+            int scene = u16(image, at + 1);
+            if (size < 0 || at + size > image.length || !isValidScene(image, scene)) {
+                return false;
+            }
+            at += size;
+        }
+        return true;
+    }
+
+    private static boolean isValidScene(byte[] image, int pc) {
+        while (pc < image.length) {
+            switch (image[pc] & 0xFF) {
+                case BoardProgram.OP_END:
+                    return true;
+                case BoardProgram.OP_ON:
+                case BoardProgram.OP_OFF:
+                    pc += 2;
+                    break;
+                case BoardProgram.OP_WAIT:
+                    pc += 3;
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    // month 1-12, day 1-31, weekday 0-6 with Sunday 0
+    public void onMinute(int year, int month, int day, int hour, int minute, int weekday, long nowMs) {
+        if (image == null) {
+            return;
+        }
+        int at = 4;
+        for (int rule = 0; rule < (image[3] & 0xFF); rule++) {
+            int kind = image[at] & 0xFF;
+            boolean matches = kind == BoardProgram.KIND_CRON
+                    ? cronMatches(at + 3, month, day, hour, minute, weekday)
+                    : solarMatches(at + 3, year, month, day, hour * 60 + minute, weekday);
+            if (matches) {
+                start(u16(image, at + 1), nowMs);
+            }
+            at += kind == BoardProgram.KIND_CRON ? BoardProgram.CRON_SIZE : BoardProgram.SOLAR_SIZE;
+        }
+        run(nowMs);
+    }
+
+    private boolean bit(int field, int value) {
+        return (image[field + value / 8] & (1 << (value % 8))) != 0;
+    }
+
+    // MINUTES(8) HOURS(3) DAYS(4) MONTHS(2) WEEKDAYS(1) FLAGS(1)
+    private boolean cronMatches(int at, int month, int day, int hour, int minute, int weekday) {
+        if (!bit(at, minute) || !bit(at + 8, hour) || !bit(at + 15, month)) {
+            return false;
+        }
+        boolean dayMatch = bit(at + 11, day);
+        boolean weekdayMatch = bit(at + 17, weekday);
+        int flags = image[at + 18] & 0xFF;
+        // Cron semantics: when both day fields are restricted either one may match
+        if ((flags & 3) == 0) {
+            return dayMatch || weekdayMatch;
+        }
+        return dayMatch && weekdayMatch;
+    }
+
+    private boolean solarMatches(int at, int year, int month, int day, int minuteOfDay, int weekday) {
+        return bit(at, weekday) && solarMinute(at + 1, year, month, day) == minuteOfDay;
+    }
+
+    // Straight line between the mid-month times either side of the day
+    private int solarMinute(int table, int year, int month, int day) {
+        int from;
+        int to;
+        int span;
+        int position;
+        if (day >= 15) {
+            from = month;
+            to = month % 12 + 1;
+            span = daysInMonth(year, month);
+            position = day - 15;
+        } else {
+            from = month == 1 ? 12 : month - 1;
+            to = month;
+            span = daysInMonth(month == 1 ? year - 1 : year, from);
+            position = day - 15 + span;
+        }
+        int a = u16(image, table + 2 * (from - 1));
+        int b = u16(image, table + 2 * (to - 1));
+        if (a == BoardProgram.NO_TIME || b == BoardProgram.NO_TIME) {
+            return -1;
+        }
+        int difference = b - a;
+        // Times either side of midnight are close, not a day apart
+        if (difference > 720) {
+            difference -= 1440;
+        } else if (difference < -720) {
+            difference += 1440;
+        }
+        // Rounded half away from zero, which the sketch's integer division gives as well
+        int step = difference * position;
+        int shift = step >= 0 ? (step + span / 2) / span : -((-step + span / 2) / span);
+        return (a + shift + 1440) % 1440;
+    }
+
+    static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+                return leap ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    private void start(int scene, long nowMs) {
+        fired++;
+        int free = -1;
+        for (int i = 0; i < SLOTS; i++) {
+            if (slotPc[i] >= 0 && slotScene[i] == scene) {
+                free = i;
+                break;
+            }
+            if (slotPc[i] < 0 && free < 0) {
+                free = i;
+            }
+        }
+        if (free < 0) {
+            // All busy: the oldest start gives way
+            free = 0;
+        }
+        slotScene[free] = scene;
+        slotPc[free] = scene;
+        slotResumeAt[free] = nowMs;
+    }
+
+    // Runs every scene whose delay is over
+    public void run(long nowMs) {
+        if (image == null) {
+            return;
+        }
+        for (int i = 0; i < SLOTS; i++) {
+            while (slotPc[i] >= 0 && slotResumeAt[i] <= nowMs) {
+                int pc = slotPc[i];
+                switch (image[pc] & 0xFF) {
+                    case BoardProgram.OP_ON:
+                    case BoardProgram.OP_OFF:
+                        relays.set(image[pc + 1] & 0xFF, (image[pc] & 0xFF) == BoardProgram.OP_ON);
+                        slotPc[i] = pc + 2;
+                        break;
+                    case BoardProgram.OP_WAIT:
+                        // From when the wait was due, so delays don't drift with the loop
+                        slotResumeAt[i] += u16(image, pc + 1) * 100L;
+                        slotPc[i] = pc + 3;
+                        break;
+                    default:
+                        slotPc[i] = -1;
+                        break;
+                }
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        for (int pc : slotPc) {
+            if (pc >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getFired() {
+        return fired;
+    }
+
+    private static int u16(byte[] data, int at) {
+        return ((data[at] & 0xFF) << 8) | (data[at + 1] & 0xFF);
+    }
+}
@@ -0,0 +1,260 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Puts a BoardProgram into the controller's EEPROM over the text link.
+// PROG_INFO comes first: a board already holding the same image (length and
+// CRC-16 match) is left alone. Otherwise PROG_BEGIN announces the size, the
+// image follows as hex chunks with a CRC-8 each, one at a time since the
+// board can't read the link while it writes EEPROM, and PROG_END has the
+// board check the whole image before it starts running it. A chunk the board
+// rejected or that went unanswered is sent again. The board's replies are
+// taken out of the stream before DeviceMessageParser sees them.
+public class BoardProgramUploader {
+
+    public static final String INFO = "PROG_INFO";
+    public static final String BEGIN = "PROG_BEGIN";
+    public static final String DATA = "PROG_DATA";
+    public static final String END = "PROG_END";
+    public static final String CLEAR = "PROG_CLEAR";
+    static final String REPLY_PREFIX = "PROG:";
+    public static final String TIME_SET = "TIME_SET";
+    static final String TIME_REPLY = "TIME:";
+
+    // 16 bytes is 32 hex digits; the whole line stays inside the sketch's 64-byte buffer
+    static final int CHUNK_SIZE = 16;
+    static final long REPLY_TIMEOUT_MS = 1500;
+    static final int MAX_ATTEMPTS = 4;
+
+    private static final Pattern IMAGE_INFO = Pattern.compile("len=(\\d+) crc=([0-9A-Fa-f]{4})");
+
+    public interface Listener {
+        // sent: false when the board already had this image
+        void onProgramLoaded(BoardProgram program, boolean sent);
+
+        void onProgramCleared();
+
+        void onProgramFailed(String reason);
+    }
+
+    private enum Stage {
+        IDLE, INFO, BEGIN, DATA, END, CLEAR
+    }
+
+    private final OutboundScheduler outbound;
+    private final Scheduler scheduler;
+    private final Listener listener;
+    private final Runnable timeout = this::onTimeout;
+    private final StringBuilder remainder = new StringBuilder(256);
+
+    private Stage stage = Stage.IDLE;
+    private BoardProgram program;
+    private String lastCommand;
+    private int offset = 0;
+    private int attempts = 0;
+
+    private int chunksSent = 0;
+    private int retries = 0;
+
+    public BoardProgramUploader(OutboundScheduler outbound, Scheduler scheduler, Listener listener) {
+        this.outbound = outbound;
+        this.scheduler = scheduler;
+        this.listener = listener;
+    }
+
+    public void upload(BoardProgram program) {
+        stop();
+        this.program = program;
+        chunksSent = 0;
+        retries = 0;
+        send(Stage.INFO, INFO);
+    }
+
+    // Nothing left for the board to run
+    public void clear() {
+        stop();
+        program = null;
+        send(Stage.CLEAR, CLEAR);
+    }
+
+    public void stop() {
+        stage = Stage.IDLE;
+        scheduler.cancel(timeout);
+    }
+
+    public boolean isBusy() {
+        return stage != Stage.IDLE;
+    }
+
+    // Sets the board's clock; the RTC keeps it from there
+    public static String timeCommand(Calendar now) {
+        return String.format(Locale.US, "%s %d %d %d %d %d %d %d", TIME_SET,
+                now.get(Calendar.YEAR), now.get(Calendar.MONTH) + 1, now.get(Calendar.DAY_OF_MONTH),
+                now.get(Calendar.HOUR_OF_DAY), now.get(Calendar.MINUTE), now.get(Calendar.SECOND),
+                now.get(Calendar.DAY_OF_WEEK) - 1);
+    }
+
+    private void send(Stage next, String command) {
+        if (next != stage) {
+            attempts = 0;
+        }
+        stage = next;
+        write(command);
+    }
+
+    private void sendChunk(int at) {
+        if (stage != Stage.DATA || at != offset) {
+            attempts = 0;
+        }
+        stage = Stage.DATA;
+        offset = at;
+        byte[] image = program.getImage();
+        int length = Math.min(CHUNK_SIZE, image.length - at);
+        byte[] chunk = new byte[length];
+        System.arraycopy(image, at, chunk, 0, length);
+
+        StringBuilder command = new StringBuilder(DATA.length() + 8 + 2 * length + 3);
+        command.append(DATA).append(' ').append(at).append(' ');
+        for (byte b : chunk) {
+            command.append(String.format(Locale.US, "%02X", b & 0xFF));
+        }
+        command.append(String.format(Locale.US, " %02X", BinaryFrameCodec.crc8(chunk, length)));
+        chunksSent++;
+        write(command.toString());
+    }
+
+    private void write(String command) {
+        lastCommand = command;
+        attempts++;
+        outbound.send(OutboundScheduler.Priority.BACKGROUND, command);
+        scheduler.cancel(timeout);
+        scheduler.postDelayed(timeout, REPLY_TIMEOUT_MS);
+    }
+
+    // One decoded chunk from the link; returns what is left for the parser
+    public String filter(String chunk) {
+        if (stage == Stage.IDLE) {
+            return chunk;
+        }
+        remainder.setLength(0);
+        for (String line : chunk.split("\n")) {
+            String message = line.trim();
+            if (!consume(message)) {
+                remainder.append(line).append('\n');
+            }
+        }
+        return remainder.toString();
+    }
+
+    private boolean consume(String message) {
+        if (message.startsWith("ERROR:") && message.contains(lastCommand.split(" ")[0])) {
+            fail("board doesn't take " + lastCommand.split(" ")[0]);
+            return true;
+        }
+        if (!message.startsWith(REPLY_PREFIX)) {
+            return false;
+        }
+        String reply = message.substring(REPLY_PREFIX.length()).trim();
+        switch (stage) {
+            case INFO:
+                if (matchesProgram(reply)) {
+                    finish(false);
+                } else {
+                    send(Stage.BEGIN, String.format(Locale.US, "%s %d %04X", BEGIN,
+                            program.getSize(), program.getCrc()));
+                }
+                return true;
+            case BEGIN:
+                if (reply.startsWith("READY")) {
+                    sendChunk(0);
+                } else if (reply.startsWith("ERR")) {
+                    fail("board refused the program: " + reply);
+                }
+                // Anything else answers an INFO sent twice
+                return true;
+            case DATA:
+                onChunkReply(reply);
+                return true;
+            case END:
+                if (reply.startsWith("LOADED") && matchesProgram(reply)) {
+                    finish(true);
+                } else if (reply.startsWith("LOADED") || reply.startsWith("ERR")) {
+                    fail("board rejected the image: " + reply);
+                }
+                return true;
+            case CLEAR:
+                stop();
+                listener.onProgramCleared();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // "OK <next offset>" or "ERR <offset to resend>"
+    private void onChunkReply(String reply) {
+        String[] fields = reply.split(" ");
+        int at;
+        try {
+            at = fields.length > 1 ? Integer.parseInt(fields[1]) : offset;
+        } catch (NumberFormatException e) {
+            at = offset;
+        }
+        if (fields[0].equals("ERR")) {
+            retries++;
+            if (attempts >= MAX_ATTEMPTS) {
+                fail("chunk at " + at + " kept failing its checksum");
+                return;
+            }
+            sendChunk(at);
+        } else if (at >= program.getSize()) {
+            send(Stage.END, END);
+        } else if (at > offset) {
+            sendChunk(at);
+        }
+        // An OK for an offset already passed answers a chunk sent twice
+    }
+
+    private boolean matchesProgram(String reply) {
+        Matcher info = IMAGE_INFO.matcher(reply);
+        return info.find() && Integer.parseInt(info.group(1)) == program.getSize()
+                && Integer.parseInt(info.group(2), 16) == program.getCrc();
+    }
+
+    private void onTimeout() {
+        if (stage == Stage.IDLE) {
+            return;
+        }
+        if (attempts >= MAX_ATTEMPTS) {
+            fail("board stopped answering");
+            return;
+        }
+        retries++;
+        if (stage == Stage.DATA) {
+            sendChunk(offset);
+        } else {
+            send(stage, lastCommand);
+        }
+    }
+
+    private void finish(boolean sent) {
+        stop();
+        listener.onProgramLoaded(program, sent);
+    }
+
+    private void fail(String reason) {
+        stop();
+        listener.onProgramFailed(reason);
+    }
+
+    public int getChunksSent() {
+        return chunksSent;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+}
@@ -0,0 +1,165 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Finds out what a freshly connected board understands. With capabilities
+// cached for its MAC nothing is sent at all. Otherwise CAPS is asked first;
+// a board that answers "Unknown command" is asked for HELP instead, and the
+// lines after its "Bluetooth Commands:" header are read until the board goes
+// quiet. A board that answers neither is assumed to speak the protocol the
+// app always used. The lines it consumes never reach DeviceMessageParser.
+public class CapabilityNegotiator {
+
+    static final long REPLY_TIMEOUT_MS = 2000;
+    // HELP has no terminator; the list is over once nothing arrives for this long
+    static final long HELP_QUIET_MS = 300;
+    static final String HELP = "HELP";
+    static final String HELP_HEADER = "Bluetooth Commands";
+
+    public interface Listener {
+        // learned: fresh from the board, worth caching
+        void onCapabilities(BoardCapabilities capabilities, boolean learned);
+    }
+
+    private enum Stage {
+        IDLE, CAPS, HELP, HELP_LINES
+    }
+
+    private final OutboundScheduler outbound;
+    private final Scheduler scheduler;
+    private final Listener listener;
+    private final Runnable timeout = this::onTimeout;
+    private final List<String> helpLines = new ArrayList<>();
+    private final StringBuilder remainder = new StringBuilder(256);
+
+    private Stage stage = Stage.IDLE;
+    private int roundTrips = 0;
+
+    public CapabilityNegotiator(OutboundScheduler outbound, Scheduler scheduler, Listener listener) {
+        this.outbound = outbound;
+        this.scheduler = scheduler;
+        this.listener = listener;
+    }
+
+    // On connect; cached is what this board said last time, or null
+    public void start(BoardCapabilities cached) {
+        stop();
+        roundTrips = 0;
+        if (cached != null) {
+            listener.onCapabilities(cached, false);
+            return;
+        }
+        ask(Stage.CAPS, BoardCapabilities.QUERY);
+    }
+
+    public void stop() {
+        stage = Stage.IDLE;
+        helpLines.clear();
+        scheduler.cancel(timeout);
+    }
+
+    public boolean isNegotiating() {
+        return stage != Stage.IDLE;
+    }
+
+    private void ask(Stage next, String command) {
+        stage = next;
+        roundTrips++;
+        outbound.send(OutboundScheduler.Priority.BACKGROUND, command);
+        scheduler.cancel(timeout);
+        scheduler.postDelayed(timeout, REPLY_TIMEOUT_MS);
+    }
+
+    // One decoded chunk from the link; returns what is left for the parser
+    public String filter(String chunk) {
+        if (stage == Stage.IDLE) {
+            return chunk;
+        }
+
+        remainder.setLength(0);
+        for (String line : chunk.split("\n")) {
+            String message = line.trim();
+            if (!consume(message)) {
+                remainder.append(line).append('\n');
+            }
+        }
+        return remainder.toString();
+    }
+
+    private boolean consume(String message) {
+        if (message.isEmpty()) {
+            return stage == Stage.HELP_LINES;
+        }
+        switch (stage) {
+            case CAPS:
+                if (BoardCapabilities.isCapsReply(message)) {
+                    finish(BoardCapabilities.parseCaps(message), true);
+                    return true;
+                }
+                if (isRejection(message, BoardCapabilities.QUERY)) {
+                    ask(Stage.HELP, HELP);
+                    return true;
+                }
+                return false;
+            case HELP:
+                if (message.contains(HELP_HEADER)) {
+                    stage = Stage.HELP_LINES;
+                    waitForQuiet();
+                    return true;
+                }
+                if (isRejection(message, HELP)) {
+                    finish(BoardCapabilities.assumed(), false);
+                    return true;
+                }
+                return false;
+            case HELP_LINES:
+                // Replies to other commands can arrive mixed in with the list
+                if (isReply(message)) {
+                    return false;
+                }
+                helpLines.add(message);
+                waitForQuiet();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isRejection(String message, String command) {
+        return (message.startsWith("ERROR:") || message.contains("Unknown")) && message.endsWith(command);
+    }
+
+    private static boolean isReply(String message) {
+        return message.startsWith("Status:") || message.matches("^LIGHT\\d+:.*")
+                || message.contains("toggled") || message.contains("Received:")
+                || message.equals(LinkMonitor.PONG) || message.equals(ReplySequencer.HANDSHAKE_REPLY)
+                || message.equals(FramedLink.HANDSHAKE_REPLY);
+    }
+
+    private void waitForQuiet() {
+        scheduler.cancel(timeout);
+        scheduler.postDelayed(timeout, HELP_QUIET_MS);
+    }
+
+    private void onTimeout() {
+        if (stage == Stage.HELP_LINES) {
+            finish(BoardCapabilities.parseHelp(helpLines), true);
+        } else if (stage == Stage.CAPS) {
+            // Lost, or firmware that ignores what it doesn't know
+            ask(Stage.HELP, HELP);
+        } else if (stage == Stage.HELP) {
+            finish(BoardCapabilities.assumed(), false);
+        }
+    }
+
+    private void finish(BoardCapabilities capabilities, boolean learned) {
+        stop();
+        listener.onCapabilities(capabilities, learned);
+    }
+
+    // Queries sent for the current connection
+    public int getRoundTrips() {
+        return roundTrips;
+    }
+}
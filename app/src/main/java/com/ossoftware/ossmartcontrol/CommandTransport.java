@@ -0,0 +1,15 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.List;
+
+// Outbound side of a controller link, kept free of Android types so the
+// command pipeline can be exercised against fakes in unit tests
+public interface CommandTransport {
+
+    boolean isConnected();
+
+    void sendCommand(String command);
+
+    // Send several commands in a single write
+    void sendCommands(List<String> commands);
+}
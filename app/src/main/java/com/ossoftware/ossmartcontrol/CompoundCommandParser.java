@@ -0,0 +1,226 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Parses utterances that address several switches at once:
+//   conjunctions  "turn on light one and two and switch off three"
+//   ranges        "lights one to five on"
+//   exclusions    "turn off everything except the kitchen fan"
+// Switch names and numbers come from the SwitchGrammar.
+public class CompoundCommandParser {
+
+    private static final Set<String> ON_WORDS = new HashSet<>(Arrays.asList("on", "enable", "open", "start"));
+    private static final Set<String> OFF_WORDS = new HashSet<>(Arrays.asList("off", "disable", "close", "stop"));
+    private static final Set<String> TOGGLE_WORDS = new HashSet<>(Arrays.asList("toggle", "flip"));
+    private static final Set<String> CONJUNCTIONS = new HashSet<>(Arrays.asList("and", "also", "plus", "then"));
+    private static final Set<String> EXCLUSIONS = new HashSet<>(Arrays.asList("except", "but", "excluding", "besides"));
+    private static final Set<String> ALL_WORDS = new HashSet<>(Arrays.asList("all", "every", "everything"));
+    private static final Set<String> RANGE_WORDS = new HashSet<>(Arrays.asList("to", "through", "thru", "till", "until"));
+    private static final Set<String> PLURAL_NOUNS = new HashSet<>(Arrays.asList("lights", "lamps", "switches", "devices"));
+
+    private final SwitchGrammar grammar;
+
+    // Targets sharing one action
+    private static class Group {
+        VoiceIntent.Action action;
+        int value = VoiceIntent.NO_VALUE;
+        boolean all;
+        boolean continuation; // Opened by a conjunction, no action of its own yet
+        final Set<Integer> targets = new LinkedHashSet<>();
+        final Set<Integer> excluded = new HashSet<>();
+
+        boolean hasTargets() {
+            return all || !targets.isEmpty();
+        }
+    }
+
+    public CompoundCommandParser(SwitchGrammar grammar) {
+        this.grammar = grammar;
+    }
+
+    // Intents for a compound utterance, or null when it isn't one (single
+    // commands keep going through the regular parser)
+    public List<VoiceIntent> parse(String spokenText) {
+        List<String> words = SwitchGrammar.tokens(SwitchGrammar.normalize(spokenText));
+        List<Group> groups = new ArrayList<>();
+        Group current = new Group();
+
+        boolean compound = false;
+        boolean excluding = false;
+        boolean numberContext = false; // Bare numbers are switches ("light one and two")
+        boolean rangePending = false;
+        int lastNumber = -1;
+
+        for (int i = 0; i < words.size(); i++) {
+            String word = words.get(i);
+
+            VoiceIntent.Action action = actionFor(word);
+            if (action != null) {
+                // A second action starts a new group: "on ... and off ..."
+                if (current.action != null && current.hasTargets()) {
+                    groups.add(current);
+                    current = new Group();
+                    excluding = false;
+                } else if (current.continuation && current.action == null) {
+                    // Verb-final clause: "light one on and light two off"
+                    current.continuation = false;
+                    excluding = false;
+                }
+                if (current.action != VoiceIntent.Action.LEVEL) {
+                    current.action = action;
+                }
+                continue;
+            }
+
+            if (CONJUNCTIONS.contains(word)) {
+                compound = true;
+                // What follows may bring its own action; if not, it joins this group
+                if (current.continuation && current.action == null && current.hasTargets()) {
+                    mergeIntoPrevious(groups, current);
+                    current = new Group();
+                    current.continuation = true;
+                } else if (current.action != null && current.hasTargets()) {
+                    groups.add(current);
+                    current = new Group();
+                    current.continuation = true;
+                }
+                continue;
+            }
+            if (EXCLUSIONS.contains(word)) {
+                excluding = true;
+                compound = true;
+                continue;
+            }
+            if (ALL_WORDS.contains(word)) {
+                current.all = true;
+                numberContext = true;
+                continue;
+            }
+            if (PLURAL_NOUNS.contains(word)) {
+                numberContext = true;
+                continue;
+            }
+            if (RANGE_WORDS.contains(word) && lastNumber > 0) {
+                rangePending = true;
+                continue;
+            }
+
+            int[] target = grammar.matchTargetAt(words, i);
+            int[] number = SwitchGrammar.parseNumberAt(words, i);
+
+            // "50 percent" sets a level for the group
+            if (number != null && i + number[1] < words.size() && words.get(i + number[1]).equals("percent")) {
+                current.action = VoiceIntent.Action.LEVEL;
+                current.value = Math.min(100, number[0]);
+                rangePending = false;
+                i += number[1];
+                continue;
+            }
+
+            if (target != null && (number == null || target[1] >= number[1])) {
+                add(current, target[0], excluding);
+                numberContext = SwitchGrammar.isNumberNoun(word);
+                lastNumber = numberContext ? target[0] : -1;
+                i += target[1] - 1;
+                continue;
+            }
+
+            if (number != null && numberContext) {
+                if (rangePending) {
+                    int from = Math.min(lastNumber, number[0]);
+                    int to = Math.max(lastNumber, number[0]);
+                    for (int n = from; n <= to; n++) {
+                        add(current, n, excluding);
+                    }
+                    compound = true;
+                    rangePending = false;
+                } else {
+                    add(current, number[0], excluding);
+                }
+                lastNumber = number[0];
+                i += number[1] - 1;
+            }
+            // Anything else is filler ("turn", "the", "please")
+        }
+
+        if (current.continuation && current.action == null) {
+            // "turn on light one and two": the clause after "and" had no action
+            mergeIntoPrevious(groups, current);
+        } else if (current.hasTargets()) {
+            groups.add(current);
+        }
+        if (!compound || groups.isEmpty()) {
+            return null;
+        }
+        return resolve(groups);
+    }
+
+    private static void mergeIntoPrevious(List<Group> groups, Group group) {
+        Group previous = groups.get(groups.size() - 1);
+        previous.all |= group.all;
+        previous.targets.addAll(group.targets);
+        previous.excluded.addAll(group.excluded);
+    }
+
+    private void add(Group group, int switchIndex, boolean excluding) {
+        if (!grammar.hasSwitch(switchIndex)) {
+            return;
+        }
+        if (excluding) {
+            group.excluded.add(switchIndex);
+        } else {
+            group.targets.add(switchIndex);
+        }
+    }
+
+    // Expand "all", drop exclusions, and let later groups win for a switch
+    private List<VoiceIntent> resolve(List<Group> groups) {
+        Map<Integer, Group> owner = new LinkedHashMap<>();
+        for (Group group : groups) {
+            if (group.action == null) {
+                return null;
+            }
+            Iterable<Integer> targets = group.all ? grammar.getSwitchIndexes() : group.targets;
+            for (int switchIndex : targets) {
+                if (!group.excluded.contains(switchIndex)) {
+                    owner.remove(switchIndex);
+                    owner.put(switchIndex, group);
+                }
+            }
+        }
+
+        List<VoiceIntent> intents = new ArrayList<>();
+        for (Group group : groups) {
+            List<Integer> targets = new ArrayList<>();
+            for (Map.Entry<Integer, Group> entry : owner.entrySet()) {
+                if (entry.getValue() == group) {
+                    targets.add(entry.getKey());
+                }
+            }
+            if (!targets.isEmpty()) {
+                intents.add(new VoiceIntent(group.action, targets, group.value));
+            }
+        }
+        return intents.isEmpty() ? null : intents;
+    }
+
+    private static VoiceIntent.Action actionFor(String word) {
+        if (ON_WORDS.contains(word)) {
+            return VoiceIntent.Action.ON;
+        }
+        if (OFF_WORDS.contains(word)) {
+            return VoiceIntent.Action.OFF;
+        }
+        if (TOGGLE_WORDS.contains(word)) {
+            return VoiceIntent.Action.TOGGLE;
+        }
+        return null;
+    }
+}
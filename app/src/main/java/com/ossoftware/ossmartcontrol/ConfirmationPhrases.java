@@ -0,0 +1,115 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// The finite set of things the app says after a voice command, and which
+// cached audio files they map to. Only phrases that changed (a switch was
+// renamed, the TTS voice changed) need synthesizing again.
+public final class ConfirmationPhrases {
+
+    public static final String ALL_ON = "All lights on";
+    public static final String ALL_OFF = "All lights off";
+    public static final String DONE = "Done";
+    public static final String NOT_CONNECTED = "Not connected";
+    public static final String NOT_RECOGNIZED = "Sorry, I didn't catch that";
+
+    static final String FILE_PREFIX = "confirm_";
+    static final String FILE_SUFFIX = ".wav";
+
+    private ConfirmationPhrases() {
+    }
+
+    public static String forSwitch(String name, boolean on) {
+        return name + (on ? " on" : " off");
+    }
+
+    public static String forScene(String name) {
+        return name + " activated";
+    }
+
+    public static List<String> build(List<DeviceModel> switches, List<SceneModel> scenes) {
+        Set<String> phrases = new HashSet<>();
+        List<String> ordered = new ArrayList<>();
+        for (String fixed : new String[]{ALL_ON, ALL_OFF, DONE, NOT_CONNECTED, NOT_RECOGNIZED}) {
+            addOnce(fixed, phrases, ordered);
+        }
+        for (DeviceModel device : switches) {
+            addOnce(forSwitch(device.getName(), true), phrases, ordered);
+            addOnce(forSwitch(device.getName(), false), phrases, ordered);
+        }
+        for (SceneModel scene : scenes) {
+            addOnce(forScene(scene.getName()), phrases, ordered);
+        }
+        return ordered;
+    }
+
+    private static void addOnce(String phrase, Set<String> seen, List<String> ordered) {
+        if (seen.add(phrase)) {
+            ordered.add(phrase);
+        }
+    }
+
+    // Same phrase and voice, same file; anything else gets a new name
+    public static String fileName(String phrase, String voice) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((voice + "\n" + phrase).getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(FILE_PREFIX);
+            for (int i = 0; i < 10; i++) {
+                name.append(String.format("%02x", digest[i]));
+            }
+            return name.append(FILE_SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java runtime ships SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static class Plan {
+        private final Map<String, String> fileByPhrase = new LinkedHashMap<>();
+        private final List<String> toSynthesize = new ArrayList<>();
+        private final List<String> staleFiles = new ArrayList<>();
+
+        public Map<String, String> getFileByPhrase() {
+            return fileByPhrase;
+        }
+
+        // Phrases without a cached file yet
+        public List<String> getToSynthesize() {
+            return toSynthesize;
+        }
+
+        // Cached files no phrase needs any more
+        public List<String> getStaleFiles() {
+            return staleFiles;
+        }
+    }
+
+    public static Plan plan(Collection<String> cachedFiles, List<String> phrases, String voice) {
+        Plan plan = new Plan();
+        Set<String> wanted = new HashSet<>();
+        for (String phrase : phrases) {
+            String file = fileName(phrase, voice);
+            plan.fileByPhrase.put(phrase, file);
+            wanted.add(file);
+            if (!cachedFiles.contains(file)) {
+                plan.toSynthesize.add(phrase);
+            }
+        }
+        for (String file : cachedFiles) {
+            if (file.startsWith(FILE_PREFIX) && !wanted.contains(file)) {
+                plan.staleFiles.add(file);
+            }
+        }
+        return plan;
+    }
+}
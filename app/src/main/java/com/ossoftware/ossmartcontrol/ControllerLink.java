@@ -0,0 +1,30 @@
+package com.ossoftware.ossmartcontrol;
+
+// A connection to one board, whatever carries it: BluetoothManager for
+// RFCOMM, LanTransport for TCP. ControllerService talks to the one the
+// device's address calls for; callbacks arrive on the main thread.
+public interface ControllerLink extends CommandTransport {
+
+    interface Listener {
+        void onConnected(String deviceName, String mac);
+
+        void onDisconnected();
+
+        void onConnectionError(String error);
+
+        void onMessageReceived(String message);
+    }
+
+    void connectToDevice(String name, String mac);
+
+    // Tells the listener onDisconnected before returning
+    void disconnect();
+
+    // User activity; a link closed for being idle reopens ahead of the next command
+    void touch();
+
+    String getConnectedDeviceName();
+
+    // The MAC of a Bluetooth board, host:port of a LAN one; "" when not connected
+    String getConnectedMac();
+}
@@ -0,0 +1,1477 @@
+package com.ossoftware.ossmartcontrol;
+
+import android.Manifest;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.ServiceCompat;
+import androidx.core.content.ContextCompat;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+// Owns the controller link, inbound parsing and the switch states so they
+// outlive the Activity. Activities bind to it and render state snapshots;
+// while a link is up the service runs in the foreground.
+public class ControllerService extends Service
+        implements BluetoothManager.BluetoothListener, DeviceMessageParser.Listener {
+
+    public static final String ACTION_DISCONNECT = "com.ossoftware.ossmartcontrol.DISCONNECT";
+    public static final String ACTION_TOGGLE = "com.ossoftware.ossmartcontrol.TOGGLE";
+    public static final String ACTION_RECONNECT = "com.ossoftware.ossmartcontrol.RECONNECT";
+    public static final String ACTION_AUTOMATION = "com.ossoftware.ossmartcontrol.AUTOMATION";
+    public static final String EXTRA_SWITCH_INDEX = "switch_index";
+    public static final String EXTRA_SOURCE = "source";
+    public static final String EXTRA_TAP_TIME = "tap_time";
+
+    private static final String CHANNEL_ID = "connection";
+    private static final int NOTIFICATION_ID = 1;
+    private static final int MAX_REPLAY_LOGS = 100;
+    // How long a reconnect waits for STATUS before flushing offline changes blind
+    private static final long OFFLINE_STATUS_TIMEOUT_MS = 1500;
+    private static final String UNKNOWN_COMMAND = "Unknown command";
+
+    public interface ControllerListener {
+        void onSwitchesChanged(List<DeviceModel> switches);
+
+        void onConnected(String deviceName, String mac);
+
+        void onDisconnected();
+
+        void onConnectionError(String error);
+
+        void onDeviceFound(String name, String mac);
+
+        void onScanFinished(int deviceCount);
+
+        void onScanError(String error);
+
+        void onLog(String message, LogManager.LogType type, String deviceName);
+
+        // The link is open but the board stopped answering (DEGRADED), or answers again
+        void onLinkHealthChanged(LinkMonitor.Health health, String deviceName);
+
+        // Signal indicator, 1-4 bars
+        void onLinkQualityChanged(int bars, LinkQuality.Level level);
+    }
+
+    public class LocalBinder extends Binder {
+        public ControllerService getService() {
+            return ControllerService.this;
+        }
+    }
+
+    private static class LogEvent {
+        final String message;
+        final LogManager.LogType type;
+        final String deviceName;
+
+        LogEvent(String message, LogManager.LogType type, String deviceName) {
+            this.message = message;
+            this.type = type;
+            this.deviceName = deviceName;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Scheduler mainScheduler = new Scheduler() {
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+            handler.postDelayed(task, delayMs);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            handler.removeCallbacks(task);
+        }
+    };
+    private final List<ControllerListener> listeners = new ArrayList<>();
+    private final List<LogEvent> recentLogs = new ArrayList<>();
+
+    private BluetoothManager bluetoothManager;
+    private LanTransport lanTransport;
+    private LanDiscovery lanDiscovery;
+    // The link for the device connected or being connected to, by its address
+    private ControllerLink link;
+    // The bottom of the outbound chain follows whichever link is in use
+    private final CommandTransport activeLink = new CommandTransport() {
+        @Override
+        public boolean isConnected() {
+            return link.isConnected();
+        }
+
+        @Override
+        public void sendCommand(String command) {
+            link.sendCommand(command);
+        }
+
+        @Override
+        public void sendCommands(List<String> commands) {
+            link.sendCommands(commands);
+        }
+    };
+    private PreferencesManager preferencesManager;
+    private DeviceMessageParser messageParser;
+    private QuickSwitchStore quickSwitchStore;
+    private LinkMonitor linkMonitor;
+    private LinkQuality linkQuality;
+    private int linkQualityBars = 0;
+    private FramedLink framedLink;
+    private ReplySequencer replySequencer;
+    private OutboundScheduler outbound;
+    private StatusPoller statusPoller;
+    private CapabilityNegotiator capabilityNegotiator;
+    private BoardProgramUploader programUploader;
+    private BoardCapabilities capabilities = BoardCapabilities.assumed();
+    private LevelStreamer levelStreamer;
+    private ToggleDebouncer toggleDebouncer;
+    private OfflineCommandBuffer offlineBuffer = new OfflineCommandBuffer();
+    private boolean offlineBuffering = false;
+    private boolean flushAfterStatus = false;
+    private final Runnable offlineStatusTimeout = () -> flushOffline(false);
+    private final LatencyTracker latencyTracker = new LatencyTracker();
+    private List<DeviceModel> switchList = new ArrayList<>();
+    private boolean switchesLoaded = false;
+    private final List<Runnable> afterSwitchesLoaded = new ArrayList<>();
+    private boolean connecting = false;
+    private boolean inForeground = false;
+    // Set while a dead link is torn down so the service survives to reconnect
+    private boolean recovering = false;
+    // Set while the link of the other kind is closed ahead of a connect, likewise
+    private boolean switchingLinks = false;
+
+    // Tile/widget toggles waiting for the background link to come up
+    private final List<Integer> pendingQuickToggles = new ArrayList<>();
+    private AutomationRunner automationRunner;
+
+    // Toggle a switch from a tile or widget without bringing up the UI
+    public static void requestToggle(Context context, int switchIndex, String source) {
+        Intent intent = createToggleIntent(context, switchIndex, source);
+        intent.putExtra(EXTRA_TAP_TIME, SystemClock.elapsedRealtime());
+        ContextCompat.startForegroundService(context, intent);
+    }
+
+    public static Intent createToggleIntent(Context context, int switchIndex, String source) {
+        Intent intent = new Intent(context, ControllerService.class);
+        intent.setAction(ACTION_TOGGLE);
+        intent.putExtra(EXTRA_SWITCH_INDEX, switchIndex);
+        intent.putExtra(EXTRA_SOURCE, source);
+        return intent;
+    }
+
+    // Started by the automation alarm; the session runs here in the foreground
+    public static Intent createAutomationIntent(Context context) {
+        Intent intent = new Intent(context, ControllerService.class);
+        intent.setAction(ACTION_AUTOMATION);
+        return intent;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        bluetoothManager = new BluetoothManager(this, this);
+        lanTransport = new LanTransport(LanLink.shared(), handler::post, this);
+        lanDiscovery = new LanDiscovery(this, this::onDeviceFound);
+        link = bluetoothManager;
+        preferencesManager = new PreferencesManager(this);
+        bluetoothManager.setIdleTimeout(preferencesManager.getIdleTimeoutMs());
+        messageParser = new DeviceMessageParser(this);
+        quickSwitchStore = new QuickSwitchStore(this);
+        linkMonitor = new LinkMonitor(activeLink, SystemClock::elapsedRealtime, mainScheduler,
+                this::onLinkHealthChanged);
+        linkMonitor.configure(preferencesManager.getHeartbeatIntervalMs(), preferencesManager.getHeartbeatMisses());
+        linkQuality = new LinkQuality(SystemClock::elapsedRealtime, this::onLinkQualityChanged);
+        linkMonitor.setRoundTripListener(new LinkMonitor.RoundTripListener() {
+            @Override
+            public void onRoundTrip(long rttMs) {
+                linkQuality.onRoundTrip(rttMs);
+                applyLinkQuality();
+            }
+
+            @Override
+            public void onNoReply() {
+                linkQuality.onNoReply();
+                applyLinkQuality();
+            }
+        });
+        framedLink = new FramedLink(linkMonitor, (binary, reason) ->
+                log((binary ? "Binary frames on: " : "Back to text commands: ") + reason,
+                        LogManager.LogType.INFO, link.getConnectedDeviceName()));
+        replySequencer = new ReplySequencer(framedLink, SystemClock::elapsedRealtime);
+        outbound = new OutboundScheduler(replySequencer, SystemClock::elapsedRealtime, mainScheduler);
+        statusPoller = new StatusPoller(outbound, SystemClock::elapsedRealtime, mainScheduler);
+        capabilityNegotiator = new CapabilityNegotiator(outbound, mainScheduler, this::onCapabilities);
+        programUploader = new BoardProgramUploader(outbound, mainScheduler, new BoardProgramUploader.Listener() {
+            @Override
+            public void onProgramLoaded(BoardProgram program, boolean sent) {
+                onBoardProgramLoaded(program, sent);
+            }
+
+            @Override
+            public void onProgramCleared() {
+                setBoardRuleIds(Collections.emptyList());
+                log("Board program cleared, automations run from the phone", LogManager.LogType.INFO,
+                        link.getConnectedDeviceName());
+            }
+
+            @Override
+            public void onProgramFailed(String reason) {
+                setBoardRuleIds(Collections.emptyList());
+                log("Board program not loaded: " + reason + ", automations run from the phone",
+                        LogManager.LogType.ERROR, link.getConnectedDeviceName());
+            }
+        });
+        levelStreamer = new LevelStreamer(outbound, SystemClock::elapsedRealtime, mainScheduler);
+        toggleDebouncer = new ToggleDebouncer(outbound, mainScheduler, (switchIndex, command, retry) ->
+                log("Sending: " + command + (retry ? " (retry)" : ""),
+                        LogManager.LogType.SENT, link.getConnectedDeviceName()));
+
+        // Parse saved switches off the main thread; commands that need them wait
+        StartupTasks.load("Startup.loadSwitches", this::readSwitches, this::onSwitchesLoaded);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_DISCONNECT.equals(intent.getAction())) {
+            disconnect();
+        } else if (intent != null && ACTION_TOGGLE.equals(intent.getAction())) {
+            // Widget intents are prebuilt, so their clock starts on delivery
+            long tapTime = intent.getLongExtra(EXTRA_TAP_TIME, SystemClock.elapsedRealtime());
+            int switchIndex = intent.getIntExtra(EXTRA_SWITCH_INDEX, -1);
+            String source = intent.getStringExtra(EXTRA_SOURCE);
+
+            // Go foreground now as promised, but the toggle needs the saved switches
+            if (!link.isConnected()) {
+                enterForeground("Connecting...");
+            }
+            runWhenSwitchesLoaded(() -> handleQuickToggle(switchIndex, source, tapTime));
+        } else if (intent != null && ACTION_RECONNECT.equals(intent.getAction())) {
+            // Doesn't wait for the switch list; the link comes up in parallel
+            reconnectLastDevice();
+        } else if (intent != null && ACTION_AUTOMATION.equals(intent.getAction())) {
+            if (!link.isConnected()) {
+                enterForeground("Running automations...");
+            }
+            runWhenSwitchesLoaded(this::runAutomations);
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        // Nothing to keep alive for once the UI is gone and there's no link
+        if (!link.isConnected()) {
+            stopSelf();
+        }
+        return false;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        handler.removeCallbacksAndMessages(null);
+        if (link.isConnected()) {
+            link.disconnect();
+        }
+    }
+
+    /* =====================
+       LISTENERS
+       ===================== */
+    public void addListener(ControllerListener listener) {
+        listeners.add(listener);
+
+        // Bring a freshly created UI up to date without touching the link
+        for (LogEvent event : recentLogs) {
+            listener.onLog(event.message, event.type, event.deviceName);
+        }
+        if (link.isConnected()) {
+            listener.onConnected(link.getConnectedDeviceName(), link.getConnectedMac());
+            if (!linkMonitor.isHealthy()) {
+                listener.onLinkHealthChanged(linkMonitor.getHealth(), link.getConnectedDeviceName());
+            }
+            listener.onLinkQualityChanged(linkQuality.getBars(), linkQuality.getLevel());
+        }
+        if (switchesLoaded) {
+            listener.onSwitchesChanged(getSwitches());
+        }
+    }
+
+    public void removeListener(ControllerListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void dispatch(ListenerCall call) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            for (ControllerListener listener : new ArrayList<>(listeners)) {
+                call.invoke(listener);
+            }
+        } else {
+            handler.post(() -> dispatch(call));
+        }
+    }
+
+    private interface ListenerCall {
+        void invoke(ControllerListener listener);
+    }
+
+    private void log(String message, LogManager.LogType type, String deviceName) {
+        recentLogs.add(new LogEvent(message, type, deviceName));
+        if (recentLogs.size() > MAX_REPLAY_LOGS) {
+            recentLogs.remove(0);
+        }
+        dispatch(listener -> listener.onLog(message, type, deviceName));
+    }
+
+    private void notifySwitchesChanged() {
+        List<DeviceModel> snapshot = getSwitches();
+        dispatch(listener -> listener.onSwitchesChanged(snapshot));
+        publishQuickState();
+    }
+
+    // Mirror pinned switches for the tiles and widget, refreshing them only on change
+    private void publishQuickState() {
+        if (!switchesLoaded) {
+            return;
+        }
+        if (quickSwitchStore.update(switchList, link.isConnected())) {
+            SwitchWidgetProvider.updateAll(this);
+            SwitchTileService.requestRefresh(this);
+        }
+    }
+
+    /* =====================
+       CONNECTION
+       ===================== */
+    public boolean isConnected() {
+        return link.isConnected();
+    }
+
+    public String getConnectedDeviceName() {
+        return link.getConnectedDeviceName();
+    }
+
+    public boolean isConnecting() {
+        return connecting;
+    }
+
+    // Connected and the board is still answering. Optimistic updates wait
+    // while it isn't, since their commands may never arrive.
+    private boolean isLinkResponsive() {
+        return link.isConnected() && linkMonitor.isHealthy();
+    }
+
+    // Everything sent through here is queued in the interactive lane
+    public CommandTransport getTransport() {
+        return outbound;
+    }
+
+    public void startScanning() {
+        bluetoothManager.clearDiscoveredDevices();
+        log("Scanning started", LogManager.LogType.INFO, "");
+        bluetoothManager.startScanning();
+        lanDiscovery.start();
+    }
+
+    public void connectToDevice(String name, String mac) {
+        ControllerLink next = LanLink.isAddress(mac) ? lanTransport : bluetoothManager;
+        if (next != link && (link.isConnected() || connecting)) {
+            // Connected or still connecting, the old link must not call back
+            // into the new session; closing it is no reason to stop the service
+            switchingLinks = true;
+            link.disconnect();
+            switchingLinks = false;
+        }
+        log("Connecting to " + name + "...", LogManager.LogType.INFO, "");
+        link = next;
+        connecting = true;
+        link.connectToDevice(name, mac);
+    }
+
+    // Eager reconnect on cold start so the link is often up by the first frame
+    public void reconnectLastDevice() {
+        String mac = preferencesManager.getLastDeviceMac();
+        if (mac.isEmpty() || connecting || link.isConnected() || !canConnectInBackground(mac)) {
+            return;
+        }
+
+        String name = preferencesManager.getLastDeviceName();
+        Trace.beginSection("Startup.reconnect");
+        try {
+            connectToDevice(name.isEmpty() ? mac : name, mac);
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    private boolean canConnectInBackground(String mac) {
+        // A LAN board needs neither the Bluetooth permission nor the adapter
+        if (LanLink.isAddress(mac)) {
+            return true;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S
+                && checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            return false;
+        }
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        return adapter != null && adapter.isEnabled();
+    }
+
+    public void disconnect() {
+        link.disconnect();
+    }
+
+    // Closes a link opened for a background job, unless the UI came up meanwhile
+    public void releaseLink() {
+        if (listeners.isEmpty()) {
+            disconnect();
+        }
+    }
+
+    // The user is about to do something: reopen a link closed for being idle
+    public void prewarm() {
+        link.touch();
+    }
+
+    public long getIdleTimeoutMs() {
+        return preferencesManager.getIdleTimeoutMs();
+    }
+
+    // 0 keeps the link open for as long as it is connected
+    public void setIdleTimeout(long idleTimeoutMs) {
+        preferencesManager.setIdleTimeoutMs(idleTimeoutMs);
+        bluetoothManager.setIdleTimeout(idleTimeoutMs);
+    }
+
+    /* =====================
+       SWITCH STATE
+       ===================== */
+
+    // Detached copies; mutate through the methods below
+    public List<DeviceModel> getSwitches() {
+        List<DeviceModel> snapshot = new ArrayList<>();
+        for (DeviceModel device : switchList) {
+            snapshot.add(device.copy());
+        }
+        return snapshot;
+    }
+
+    // Optimistic toggle; returns false when there is no working link. The tap time is
+    // elapsedRealtime and is used to report tap-to-relay latency per path.
+    public boolean toggleSwitch(int switchIndex, String source, long tapTime) {
+        DeviceModel device = findSwitch(switchIndex);
+        if (device == null) {
+            return false;
+        }
+        if (!isLinkResponsive()) {
+            if (!offlineBuffering) {
+                return false;
+            }
+            offlineBuffer.recordToggle(switchIndex, device.isOn());
+            onOfflineBufferChanged();
+            return true;
+        }
+
+        latencyTracker.start(switchIndex, source, tapTime);
+        return sendToggle(device);
+    }
+
+    // Rapid taps are coalesced into the final wanted state, sent as an
+    // absolute command where the switch has one
+    private boolean sendToggle(DeviceModel device) {
+        link.touch();
+        toggleDebouncer.tap(device);
+        notifySwitchesChanged();
+        return true;
+    }
+
+    // Set a switch and send the command that gets it there on this board
+    public void setSwitchState(int switchIndex, boolean isOn) {
+        DeviceModel device = findSwitch(switchIndex);
+        if (device == null) {
+            return;
+        }
+        if (!isLinkResponsive()) {
+            if (offlineBuffering) {
+                offlineBuffer.recordState(switchIndex, isOn);
+                onOfflineBufferChanged();
+            }
+            return;
+        }
+
+        link.touch();
+        String command = commandFor(device, isOn);
+        device.setOn(isOn);
+        notifySwitchesChanged();
+        if (command != null) {
+            outbound.sendCommand(command);
+        }
+    }
+
+    // The absolute command where the board takes one, else the toggle when the
+    // switch isn't already there; null when nothing needs sending
+    private static String commandFor(DeviceModel device, boolean isOn) {
+        String command = device.getAbsoluteCommand(isOn);
+        if (command == null && device.isOn() != isOn) {
+            command = device.getToggleCommand();
+        }
+        return command;
+    }
+
+    // Called for every slider event while dragging. Only the model and the
+    // streamer are touched so the grid isn't re-rendered under the finger.
+    public void streamLevel(int switchIndex, int level) {
+        DeviceModel device = findSwitch(switchIndex);
+        if (device == null || !device.isDimmable() || !isLinkResponsive()) {
+            return;
+        }
+
+        link.touch();
+        device.setLevel(level);
+        device.setOn(level > 0);
+        levelStreamer.submit(switchIndex, device.getLevelCommand(level));
+    }
+
+    // Final level when the slider is released; the streamer still sends it
+    // after whatever frame is on the link. False when it was neither sent nor queued.
+    public boolean setLevel(int switchIndex, int level) {
+        DeviceModel device = findSwitch(switchIndex);
+        if (device == null || !device.isDimmable()) {
+            return false;
+        }
+        if (!isLinkResponsive()) {
+            if (!offlineBuffering) {
+                return false;
+            }
+            offlineBuffer.recordLevel(switchIndex, level);
+            onOfflineBufferChanged();
+            return true;
+        }
+
+        streamLevel(switchIndex, level);
+        log("Sending: " + device.getLevelCommand(level) + " (" + levelStreamer.getSummary() + ")",
+                LogManager.LogType.SENT, link.getConnectedDeviceName());
+        saveSwitches();
+        notifySwitchesChanged();
+        return true;
+    }
+
+    public void applySceneBatch(SceneCompiler.Batch batch) {
+        if (!isLinkResponsive()) {
+            return;
+        }
+
+        link.touch();
+        for (Map.Entry<Integer, Boolean> entry : batch.getTargetStates().entrySet()) {
+            DeviceModel device = findSwitch(entry.getKey());
+            if (device != null) {
+                device.setOn(entry.getValue());
+            }
+        }
+        notifySwitchesChanged();
+
+        outbound.sendCommands(batch.getCommands());
+        log("Sending: " + String.join(", ", batch.getCommands()),
+                LogManager.LogType.SENT, link.getConnectedDeviceName());
+        saveSwitches();
+    }
+
+    // A scene batch for a LAN board that takes datagrams, with no link open.
+    // Fire and forget, so the switches show what was asked for; the STATUS
+    // polls on the next connection correct any the board missed.
+    public void sendSceneBatchDatagram(String address, SceneCompiler.Batch batch) {
+        for (Map.Entry<Integer, Boolean> entry : batch.getTargetStates().entrySet()) {
+            DeviceModel device = findSwitch(entry.getKey());
+            if (device != null) {
+                device.setOn(entry.getValue());
+            }
+        }
+        notifySwitchesChanged();
+
+        LanLink.shared().sendDatagram(address, batch.getCommands());
+        log("Sending datagram: " + String.join(", ", batch.getCommands()), LogManager.LogType.SENT, address);
+        saveSwitches();
+    }
+
+    // Emergency off: goes out ahead of everything queued, and anything queued
+    // for these switches is dropped so it can't turn them back on. Sent on a
+    // link that has stopped answering too, in case it gets through.
+    public boolean allOff() {
+        if (!link.isConnected()) {
+            return false;
+        }
+
+        link.touch();
+        toggleDebouncer.reset();
+        levelStreamer.reset();
+        // One ALL_OFF covers the board's own relays where it has one
+        boolean bulk = capabilities.has(BoardCapabilities.Feature.ALL);
+        List<String> commands = new ArrayList<>();
+        if (bulk) {
+            commands.add("ALL_OFF");
+        }
+        for (DeviceModel device : switchList) {
+            if (!bulk || !isBoardRelay(device)) {
+                String command = commandFor(device, false);
+                if (command != null) {
+                    commands.add(command);
+                }
+            }
+            device.setOn(false);
+        }
+        notifySwitchesChanged();
+
+        outbound.send(OutboundScheduler.Priority.SAFETY, commands);
+        log("Sending (all off): " + String.join(", ", commands) + " (" + outbound.getSummary() + ")",
+                LogManager.LogType.SENT, link.getConnectedDeviceName());
+        saveSwitches();
+        return true;
+    }
+
+    // False when the command was neither sent nor queued for the next connection
+    public boolean sendCommand(String command) {
+        if (isLinkResponsive()) {
+            link.touch();
+            outbound.sendCommand(command);
+            return true;
+        }
+        if (!offlineBuffering || !offlineBuffer.recordCommand(command)) {
+            return false;
+        }
+        onOfflineBufferChanged();
+        return true;
+    }
+
+    /* =====================
+       LINK FRAMING
+       ===================== */
+    public boolean isBinaryFraming() {
+        return preferencesManager.isBinaryFramingEnabled();
+    }
+
+    // Takes effect on the live link: frames start once the board agrees
+    public void setBinaryFraming(boolean enabled) {
+        preferencesManager.setBinaryFramingEnabled(enabled);
+        if (enabled && link.isConnected() && !framedLink.isBinary()
+                && capabilities.has(BoardCapabilities.Feature.BIN)) {
+            outbound.send(OutboundScheduler.Priority.BACKGROUND, FramedLink.HANDSHAKE);
+        } else if (!enabled) {
+            framedLink.leave();
+        }
+    }
+
+    /* =====================
+       CAPABILITIES
+       ===================== */
+    public BoardCapabilities getCapabilities() {
+        return capabilities;
+    }
+
+    // From the cache or the board; picks the handshakes and command forms to use
+    private void onCapabilities(BoardCapabilities learned, boolean fresh) {
+        capabilities = learned;
+        String deviceName = link.getConnectedDeviceName();
+        if (fresh) {
+            preferencesManager.saveCapabilities(link.getConnectedMac(), learned);
+        }
+        log("Board capabilities: " + learned.getSummary() + (fresh
+                        ? ", " + capabilityNegotiator.getRoundTrips() + " queries"
+                        : learned.isKnown() ? ", cached" : ""),
+                LogManager.LogType.INFO, deviceName);
+        applyCapabilitiesToSwitches();
+
+        // Only handshakes the board will answer; both ride the background lane
+        if (learned.has(BoardCapabilities.Feature.SEQ)) {
+            outbound.send(OutboundScheduler.Priority.BACKGROUND, ReplySequencer.HANDSHAKE);
+        }
+        if (learned.has(BoardCapabilities.Feature.BIN) && preferencesManager.isBinaryFramingEnabled()) {
+            outbound.send(OutboundScheduler.Priority.BACKGROUND, FramedLink.HANDSHAKE);
+        }
+        if (learned.has(BoardCapabilities.Feature.PROG)) {
+            runWhenSwitchesLoaded(this::syncBoardProgram);
+        } else if (learned.isKnown() && !preferencesManager.getBoardRuleIds().isEmpty()) {
+            // A different controller, or reflashed without the program runner
+            setBoardRuleIds(Collections.emptyList());
+        }
+    }
+
+    // Toggle-only firmware answers LIGHTn_ON with an error, so the debouncer,
+    // scenes and the offline buffer fall back to toggles
+    private void applyCapabilitiesToSwitches() {
+        boolean absolute = capabilities.has(BoardCapabilities.Feature.SET);
+        for (DeviceModel device : switchList) {
+            device.setAbsoluteSupported(absolute);
+        }
+    }
+
+    // The board refused something its capabilities promised: correct the
+    // cached copy so the next connection doesn't try it again
+    private void onCommandRejected(String command) {
+        if (!capabilities.onRejected(command)) {
+            return;
+        }
+        if (capabilities.isKnown()) {
+            preferencesManager.saveCapabilities(link.getConnectedMac(), capabilities);
+        }
+        applyCapabilitiesToSwitches();
+        notifySwitchesChanged();
+    }
+
+    // Switch driven by the board's LIGHTn commands, which ALL_ON/ALL_OFF cover
+    private static boolean isBoardRelay(DeviceModel device) {
+        return BoardProgramCompiler.relayOf(device) > 0;
+    }
+
+    /* =====================
+       BOARD PROGRAM
+       ===================== */
+    public boolean isBoardAutomations() {
+        return preferencesManager.isBoardAutomationsEnabled();
+    }
+
+    public void setBoardAutomations(boolean enabled) {
+        preferencesManager.setBoardAutomationsEnabled(enabled);
+        syncBoardProgram();
+    }
+
+    // Sets the board's clock and gives it the automations it can run alone;
+    // called on connect and whenever automations or scenes change. The phone
+    // keeps firing everything until the board confirms the new image
+    public void syncBoardProgram() {
+        if (!link.isConnected() || !switchesLoaded
+                || !capabilities.has(BoardCapabilities.Feature.PROG)) {
+            return;
+        }
+        if (!preferencesManager.isBoardAutomationsEnabled()) {
+            if (!preferencesManager.getBoardRuleIds().isEmpty()) {
+                programUploader.clear();
+            }
+            return;
+        }
+
+        Calendar now = Calendar.getInstance();
+        outbound.send(OutboundScheduler.Priority.BACKGROUND, BoardProgramUploader.timeCommand(now));
+        BoardProgram program = BoardProgramCompiler.compile(preferencesManager.loadAutomations(),
+                preferencesManager.loadScenes(), switchList, preferencesManager.getSolarCalculator(),
+                TimeZone.getDefault(), now.get(Calendar.YEAR));
+        for (Map.Entry<String, String> skipped : program.getSkipped().entrySet()) {
+            log("Automation " + skipped.getKey() + " stays on the phone: " + skipped.getValue(),
+                    LogManager.LogType.INFO, link.getConnectedDeviceName());
+        }
+        if (program.isEmpty()) {
+            programUploader.clear();
+        } else {
+            programUploader.upload(program);
+        }
+    }
+
+    private void onBoardProgramLoaded(BoardProgram program, boolean sent) {
+        setBoardRuleIds(program.getRuleIds());
+        log("Board runs " + program.getSummary() + (sent
+                        ? ", sent in " + programUploader.getChunksSent() + " chunks ("
+                        + programUploader.getRetries() + " retries)"
+                        : ", already loaded"),
+                LogManager.LogType.INFO, link.getConnectedDeviceName());
+    }
+
+    // The phone's alarms skip whatever the board runs
+    private void setBoardRuleIds(List<String> ruleIds) {
+        preferencesManager.setBoardRuleIds(new HashSet<>(ruleIds));
+        AutomationAlarms.schedule(this);
+    }
+
+    /* =====================
+       HEARTBEAT
+       ===================== */
+    public LinkMonitor.Health getLinkHealth() {
+        return linkMonitor.getHealth();
+    }
+
+    public long getHeartbeatIntervalMs() {
+        return linkMonitor.getIntervalMs();
+    }
+
+    public int getHeartbeatMisses() {
+        return linkMonitor.getMissesToDead();
+    }
+
+    public void setHeartbeat(long intervalMs, int missesToDead) {
+        linkMonitor.configure(intervalMs, missesToDead);
+        preferencesManager.setHeartbeat(linkMonitor.getIntervalMs(), linkMonitor.getMissesToDead());
+    }
+
+    private void onLinkHealthChanged(LinkMonitor.Health health, String reason) {
+        String deviceName = link.getConnectedDeviceName();
+        dispatch(listener -> listener.onLinkHealthChanged(health, deviceName));
+
+        switch (health) {
+            case HEALTHY:
+                log("Link recovered: " + reason, LogManager.LogType.INFO, deviceName);
+                // Changes made while it was stalled
+                if (switchesLoaded && !offlineBuffer.isEmpty()) {
+                    requestOfflineFlush();
+                }
+                break;
+            case DEGRADED:
+                log("Link not responding: " + reason + " (" + linkMonitor.getSummary() + ")",
+                        LogManager.LogType.ERROR, deviceName);
+                break;
+            case DEAD:
+                log("Link dead after " + linkMonitor.getLastDetectionMs() + " ms silent: " + reason
+                        + ", reconnecting", LogManager.LogType.ERROR, deviceName);
+                recovering = true;
+                link.disconnect();
+                recovering = false;
+                reconnectLastDevice();
+                break;
+        }
+    }
+
+    /* =====================
+       LINK QUALITY
+       ===================== */
+    public String getLinkQualitySummary() {
+        return linkQuality.getSummary();
+    }
+
+    // What the score was computed from, in the format the tests replay
+    public String getLinkQualityTrace() {
+        return linkQuality.getTrace();
+    }
+
+    // Pacing, frame size and retry timing follow the link's current score.
+    // TCP buffers for itself and carries a 9600 baud frame in microseconds,
+    // so a LAN link goes unpaced and unsplit.
+    private void applyLinkQuality() {
+        if (link == lanTransport) {
+            outbound.setMsPerByte(OutboundScheduler.UNPACED);
+            outbound.setMaxBatch(OutboundScheduler.UNLIMITED_BATCH);
+        } else {
+            outbound.setMsPerByte(linkQuality.getMsPerByte());
+            outbound.setMaxBatch(linkQuality.getMaxBatch());
+        }
+        toggleDebouncer.setConfirmTimeout(linkQuality.getRetryTimeoutMs());
+        linkMonitor.setReplyTimeout(linkQuality.getRetryTimeoutMs());
+
+        int bars = linkQuality.getBars();
+        if (bars != linkQualityBars) {
+            linkQualityBars = bars;
+            LinkQuality.Level level = linkQuality.getLevel();
+            dispatch(listener -> listener.onLinkQualityChanged(bars, level));
+        }
+    }
+
+    private void onLinkQualityChanged(LinkQuality.Level level, int score) {
+        log("Link quality " + level.name().toLowerCase(Locale.US) + " (" + linkQuality.getSummary() + ")",
+                level == LinkQuality.Level.GOOD ? LogManager.LogType.INFO : LogManager.LogType.ERROR,
+                link.getConnectedDeviceName());
+    }
+
+    /* =====================
+       OFFLINE BUFFER
+       ===================== */
+    public boolean isOfflineBuffering() {
+        return offlineBuffering;
+    }
+
+    // Turning it off drops whatever is still waiting
+    public void setOfflineBuffering(boolean enabled) {
+        offlineBuffering = enabled;
+        preferencesManager.setOfflineBufferingEnabled(enabled);
+        if (!enabled && !offlineBuffer.isEmpty()) {
+            offlineBuffer.clear();
+            onOfflineBufferChanged();
+        }
+    }
+
+    private void onOfflineBufferChanged() {
+        offlineBuffer.applyTo(switchList);
+        preferencesManager.saveOfflineBuffer(offlineBuffer);
+        notifySwitchesChanged();
+    }
+
+    // Ask for the real states first so only switches that differ are sent
+    private void requestOfflineFlush() {
+        flushAfterStatus = true;
+        outbound.send(OutboundScheduler.Priority.BACKGROUND, "STATUS");
+        handler.postDelayed(offlineStatusTimeout, OFFLINE_STATUS_TIMEOUT_MS);
+    }
+
+    private void flushOffline(boolean statesKnown) {
+        flushAfterStatus = false;
+        handler.removeCallbacks(offlineStatusTimeout);
+
+        int intents = offlineBuffer.getIntentCount();
+        List<String> sent = offlineBuffer.flush(outbound, switchList, statesKnown);
+        if (sent == null) {
+            // Link dropped again; keep everything for the next connection
+            return;
+        }
+
+        log("Sent " + intents + " offline changes as " + sent.size() + " commands"
+                        + (sent.isEmpty() ? "" : ": " + String.join(", ", sent)),
+                LogManager.LogType.SENT, link.getConnectedDeviceName());
+        preferencesManager.saveOfflineBuffer(offlineBuffer);
+        saveSwitches();
+        notifySwitchesChanged();
+    }
+
+    public void setSwitchCount(int newCount) {
+        int currentCount = switchList.size();
+
+        if (newCount > currentCount) {
+            // Add new switches
+            for (int i = currentCount + 1; i <= newCount; i++) {
+                switchList.add(new DeviceModel(i, "Switch " + i, "LIGHT" + i + "_TOGGLE"));
+            }
+        } else if (newCount >= 1) {
+            // Keep only first 'newCount' switches
+            switchList = new ArrayList<>(switchList.subList(0, newCount));
+        }
+
+        applyCapabilitiesToSwitches();
+        saveSwitches();
+        notifySwitchesChanged();
+    }
+
+    public void updateSwitch(DeviceModel updatedDevice) {
+        for (int i = 0; i < switchList.size(); i++) {
+            if (switchList.get(i).getId().equals(updatedDevice.getId())) {
+                switchList.set(i, updatedDevice.copy());
+                break;
+            }
+        }
+        applyCapabilitiesToSwitches();
+        saveSwitches();
+        notifySwitchesChanged();
+        // A switch moved to or from a custom command changes what the board can run
+        syncBoardProgram();
+    }
+
+    private void handleQuickToggle(int switchIndex, String source, long tapTime) {
+        if (link.isConnected()) {
+            toggleSwitch(switchIndex, source, tapTime);
+            return;
+        }
+
+        // Started as a foreground service, so this must go foreground right away
+        String deviceName = preferencesManager.getLastDeviceName();
+        String mac = preferencesManager.getLastDeviceMac();
+        enterForeground(deviceName.isEmpty() ? "Connecting..." : "Connecting to " + deviceName);
+
+        if (mac.isEmpty() || findSwitch(switchIndex) == null) {
+            log("Quick toggle skipped: no saved device", LogManager.LogType.ERROR, "");
+            stopIfIdle();
+            return;
+        }
+
+        latencyTracker.start(switchIndex, source, tapTime);
+        if (!pendingQuickToggles.contains(switchIndex)) {
+            pendingQuickToggles.add(switchIndex);
+        }
+        if (!connecting) {
+            connectToDevice(deviceName.isEmpty() ? mac : deviceName, mac);
+        }
+    }
+
+    private void flushQuickToggles() {
+        for (Integer switchIndex : pendingQuickToggles) {
+            DeviceModel device = findSwitch(switchIndex);
+            if (device != null) {
+                sendToggle(device);
+            }
+        }
+        pendingQuickToggles.clear();
+    }
+
+    private void stopIfIdle() {
+        if (listeners.isEmpty() && !link.isConnected()) {
+            exitForeground();
+            stopSelf();
+        }
+    }
+
+    private DeviceModel findSwitch(int switchIndex) {
+        for (DeviceModel device : switchList) {
+            if (device.getIndex() == switchIndex) {
+                return device;
+            }
+        }
+        return null;
+    }
+
+    // Runs on a startup thread
+    private List<DeviceModel> readSwitches() {
+        return preferencesManager.loadSwitches();
+    }
+
+    private void onSwitchesLoaded(List<DeviceModel> loaded) {
+        switchList = loaded;
+
+        // If no switches found, create 4 by default (FIRST INSTALL)
+        if (switchList.isEmpty()) {
+            for (int i = 1; i <= 4; i++) {
+                switchList.add(new DeviceModel(i, "Switch " + i, "LIGHT" + i + "_TOGGLE"));
+            }
+            saveSwitches();
+            log("4 default switches created", LogManager.LogType.INFO, "");
+        }
+
+        // Changes made while out of range last time the service ran
+        offlineBuffering = preferencesManager.isOfflineBufferingEnabled();
+        offlineBuffer = preferencesManager.loadOfflineBuffer();
+        offlineBuffer.applyTo(switchList);
+        applyCapabilitiesToSwitches();
+
+        switchesLoaded = true;
+        notifySwitchesChanged();
+        if (link.isConnected() && !offlineBuffer.isEmpty()) {
+            requestOfflineFlush();
+        }
+
+        for (Runnable action : afterSwitchesLoaded) {
+            action.run();
+        }
+        afterSwitchesLoaded.clear();
+    }
+
+    private void runWhenSwitchesLoaded(Runnable action) {
+        if (switchesLoaded) {
+            action.run();
+        } else {
+            afterSwitchesLoaded.add(action);
+        }
+    }
+
+    private void saveSwitches() {
+        // Never overwrite saved switches with the empty list we start with
+        if (!switchesLoaded) {
+            return;
+        }
+
+        Map<String, DeviceModel> allDevices = preferencesManager.loadDevices();
+
+        // Clear existing switches
+        for (String key : allDevices.keySet().toArray(new String[0])) {
+            if (key.startsWith("SWITCH_")) {
+                allDevices.remove(key);
+            }
+        }
+
+        // Add current switches
+        for (DeviceModel device : switchList) {
+            allDevices.put(device.getId(), device);
+        }
+
+        preferencesManager.saveDevices(allDevices);
+    }
+
+    /* =====================
+       AUTOMATIONS
+       ===================== */
+
+    // One session at a time; a second alarm while one runs is covered by it
+    private void runAutomations() {
+        if (automationRunner != null) {
+            return;
+        }
+        automationRunner = new AutomationRunner(this, preferencesManager, () -> {
+            automationRunner = null;
+            AutomationAlarms.schedule(this);
+            stopIfIdle();
+        });
+        automationRunner.run();
+    }
+
+    /* =====================
+       LINK LISTENER
+       ===================== */
+    @Override
+    public void onDeviceFound(String name, String mac) {
+        log("Found device: " + name, LogManager.LogType.INFO, "");
+        dispatch(listener -> listener.onDeviceFound(name, mac));
+    }
+
+    @Override
+    public void onScanStarted() {
+        // UI already updated by dialog manager
+    }
+
+    @Override
+    public void onScanFinished(int deviceCount) {
+        lanDiscovery.stop();
+        int found = deviceCount + lanDiscovery.getFoundCount();
+        log("Scanning finished. Found " + found + " devices", LogManager.LogType.INFO, "");
+        dispatch(listener -> listener.onScanFinished(found));
+    }
+
+    @Override
+    public void onScanError(String error) {
+        lanDiscovery.stop();
+        log("Scan error: " + error, LogManager.LogType.ERROR, "");
+        dispatch(listener -> listener.onScanError(error));
+    }
+
+    @Override
+    public void onConnected(String deviceName, String mac) {
+        // Remembered for background automations
+        connecting = false;
+        preferencesManager.saveLastDevice(deviceName, mac);
+        enterForeground("Connected to " + deviceName);
+        publishQuickState();
+        flushQuickToggles();
+        if (switchesLoaded && !offlineBuffer.isEmpty()) {
+            requestOfflineFlush();
+        }
+
+        log("Connected to: " + deviceName, LogManager.LogType.INFO, "");
+        dispatch(listener -> listener.onConnected(deviceName, mac));
+
+        // What this board understands decides which handshakes follow;
+        // a board seen before is taken from the cache without asking
+        replySequencer.reset();
+        framedLink.reset();
+        capabilityNegotiator.start(preferencesManager.loadCapabilities(mac));
+        // Seeded from the scan for Bluetooth; a LAN board starts from the neutral baseline
+        linkQuality.reset(link == bluetoothManager ? bluetoothManager.getScanRssi(mac) : null);
+        applyLinkQuality();
+
+        // Initial status, then polls that keep up with IR and wall switch changes
+        linkMonitor.start();
+        statusPoller.start();
+        log("Requesting initial status", LogManager.LogType.INFO, deviceName);
+    }
+
+    @Override
+    public void onDisconnected() {
+        connecting = false;
+        exitForeground();
+        pendingQuickToggles.clear();
+        latencyTracker.clearPending();
+        outbound.clear();
+        statusPoller.stop();
+        linkMonitor.stop();
+        capabilityNegotiator.stop();
+        programUploader.stop();
+        capabilities = BoardCapabilities.assumed();
+        applyCapabilitiesToSwitches();
+        replySequencer.reset();
+        framedLink.reset();
+        levelStreamer.reset();
+        toggleDebouncer.reset();
+        flushAfterStatus = false;
+        handler.removeCallbacks(offlineStatusTimeout);
+        log("Disconnected from device", LogManager.LogType.INFO, "");
+
+        // Reset all switches to off when disconnected; queued changes still show
+        for (DeviceModel device : switchList) {
+            device.setOn(false);
+        }
+        offlineBuffer.applyTo(switchList);
+        notifySwitchesChanged();
+        dispatch(ControllerListener::onDisconnected);
+
+        if (listeners.isEmpty() && !recovering && !switchingLinks) {
+            stopSelf();
+        }
+    }
+
+    @Override
+    public void onConnectionError(String error) {
+        connecting = false;
+        exitForeground();
+        pendingQuickToggles.clear();
+        latencyTracker.clearPending();
+        outbound.clear();
+        statusPoller.stop();
+        linkMonitor.stop();
+        capabilityNegotiator.stop();
+        programUploader.stop();
+        log("Connection failed: " + error, LogManager.LogType.ERROR, "");
+        dispatch(listener -> listener.onConnectionError(error));
+        stopIfIdle();
+    }
+
+    @Override
+    public void onLinkSuspended() {
+        // Both would reopen the link; the board keeps its modes meanwhile
+        statusPoller.stop();
+        linkMonitor.stop();
+        enterForeground("Connected to " + link.getConnectedDeviceName() + " (idle)");
+        log("Link idle, radio off until next use", LogManager.LogType.INFO,
+                link.getConnectedDeviceName());
+    }
+
+    @Override
+    public void onLinkResumed(long waitedMs) {
+        enterForeground("Connected to " + link.getConnectedDeviceName());
+        linkMonitor.start();
+        // Catches changes made at the board while the link was closed
+        statusPoller.start();
+        log((waitedMs >= 0 ? "Link reopened, command waited " + waitedMs + " ms" : "Link reopened ahead of use")
+                        + " (" + bluetoothManager.getIdleSummary() + ")",
+                LogManager.LogType.INFO, link.getConnectedDeviceName());
+    }
+
+    @Override
+    public void onMessageReceived(String message) {
+        linkMonitor.onReceived(message);
+        int badFrames = framedLink.getBadFrames();
+        String text = framedLink.decode(message);
+        countReceivedLines(text, framedLink.getBadFrames() - badFrames);
+        messageParser.parse(programUploader.filter(capabilityNegotiator.filter(text)));
+    }
+
+    private void countReceivedLines(String text, int badFrames) {
+        int lines = badFrames;
+        int bad = badFrames;
+        for (String line : text.split("\n")) {
+            if (!line.trim().isEmpty()) {
+                lines++;
+                if (LinkQuality.isGarbled(line.trim())) {
+                    bad++;
+                }
+            }
+        }
+        linkQuality.onLines(lines, bad);
+        applyLinkQuality();
+    }
+
+    /* =====================
+       DEVICE MESSAGES
+       ===================== */
+    @Override
+    public void onSwitchState(int switchNumber, boolean isOn, String message) {
+        // A late reply to an earlier command would flip the switch back
+        if (!replySequencer.accept(switchNumber, isOn, message)) {
+            log("Ignored stale " + message + " (" + replySequencer.getSummary() + ")",
+                    LogManager.LogType.INFO, link.getConnectedDeviceName());
+            return;
+        }
+        toggleDebouncer.onStateReported(switchNumber, isOn);
+        statusPoller.onStateLine();
+        updateSwitchFromDevice(switchNumber, isOn);
+        log("LIGHT" + switchNumber + " is now " + (isOn ? "ON" : "OFF"),
+                LogManager.LogType.RECEIVED, link.getConnectedDeviceName());
+
+        String path = latencyTracker.getPendingPath(switchNumber);
+        long latency = latencyTracker.complete(switchNumber, SystemClock.elapsedRealtime());
+        if (latency >= 0) {
+            log("Tap-to-relay via " + path + ": " + latency + " ms (" + latencyTracker.getSummary() + ")",
+                    LogManager.LogType.INFO, link.getConnectedDeviceName());
+        }
+    }
+
+    @Override
+    public void onLevelReport(int switchNumber, int level, String message) {
+        levelStreamer.onReply();
+
+        // Echoes of levels the slider has already moved past are stale
+        DeviceModel device = findSwitch(switchNumber);
+        if (device != null && !levelStreamer.isStreaming(switchNumber)
+                && (device.getLevel() != level || device.isOn() != level > 0)) {
+            device.setLevel(level);
+            device.setOn(level > 0);
+            saveSwitches();
+            notifySwitchesChanged();
+        }
+    }
+
+    @Override
+    public void onStatusReport(Map<Integer, Boolean> states, String message) {
+        learnSwitchCount(states);
+        boolean drifted = false;
+        for (Map.Entry<Integer, Boolean> entry : states.entrySet()) {
+            // Taken before commands still owed a reply; those will answer for themselves
+            if (replySequencer.isSettled(entry.getKey())) {
+                drifted |= updateSwitchFromDevice(entry.getKey(), entry.getValue());
+            }
+        }
+        // Polls that found nothing new stay out of the log
+        boolean quietPoll = statusPoller.isAwaitingReply() && !drifted;
+        statusPoller.onStatus(drifted);
+        if (!quietPoll) {
+            log("Status updated: " + message + " (" + statusPoller.getSummary() + ")",
+                    LogManager.LogType.INFO, link.getConnectedDeviceName());
+        }
+        if (flushAfterStatus) {
+            flushOffline(true);
+        }
+    }
+
+    // Neither CAPS nor HELP said how many switches there are; STATUS does
+    private void learnSwitchCount(Map<Integer, Boolean> states) {
+        if (!capabilities.isKnown() || capabilities.getSwitchCount() > 0 || states.isEmpty()) {
+            return;
+        }
+        int count = 0;
+        for (int switchNumber : states.keySet()) {
+            count = Math.max(count, switchNumber);
+        }
+        capabilities.setSwitchCount(count);
+        preferencesManager.saveCapabilities(link.getConnectedMac(), capabilities);
+        if (count != switchList.size()) {
+            log("Board reports " + count + " switches, " + switchList.size() + " configured",
+                    LogManager.LogType.INFO, link.getConnectedDeviceName());
+        }
+    }
+
+    @Override
+    public void onToggleAck(int switchNumber, String message) {
+        // Don't update UI here - wait for LIGHTX:ON/OFF message
+        if (message.startsWith("IR")) {
+            statusPoller.onRemoteActivity();
+        }
+        if (switchNumber > 0) {
+            log("Device acknowledged: " + message, LogManager.LogType.INFO,
+                    link.getConnectedDeviceName());
+        }
+    }
+
+    @Override
+    public void onDeviceEvent(String message) {
+        if (message.contains("IR Received:")) {
+            statusPoller.onRemoteActivity();
+        }
+        log(message, LogManager.LogType.INFO, link.getConnectedDeviceName());
+    }
+
+    @Override
+    public void onDeviceError(String message) {
+        // Older firmware answering the heartbeat; the answer is all it needed
+        if (message.endsWith(LinkMonitor.PING)) {
+            return;
+        }
+        // A rejected level still answers the frame
+        levelStreamer.onReply();
+        int unknown = message.indexOf(UNKNOWN_COMMAND);
+        if (unknown >= 0) {
+            onCommandRejected(message.substring(unknown + UNKNOWN_COMMAND.length()).trim());
+        }
+        if (message.contains(FramedLink.HANDSHAKE)) {
+            log("Board doesn't read binary frames, staying on text", LogManager.LogType.INFO,
+                    link.getConnectedDeviceName());
+            return;
+        }
+        if (message.contains(ReplySequencer.HANDSHAKE)) {
+            log("Board doesn't echo sequence numbers, using reply counting", LogManager.LogType.INFO,
+                    link.getConnectedDeviceName());
+            return;
+        }
+        log(message, LogManager.LogType.ERROR, link.getConnectedDeviceName());
+    }
+
+    @Override
+    public void onHelpReceived(String message) {
+        log("HELP received", LogManager.LogType.INFO, link.getConnectedDeviceName());
+    }
+
+    @Override
+    public void onUnhandled(String message) {
+        if (message.equals(LinkMonitor.PONG) || message.startsWith(BoardProgramUploader.TIME_REPLY)) {
+            return;
+        }
+        // Late answers to an upload that has already moved on
+        if (message.startsWith(BoardProgramUploader.REPLY_PREFIX)) {
+            return;
+        }
+        if (message.equals(ReplySequencer.HANDSHAKE_REPLY)) {
+            replySequencer.setSequenced(true);
+            log("Board echoes sequence numbers", LogManager.LogType.INFO,
+                    link.getConnectedDeviceName());
+            return;
+        }
+        log("Received: " + message, LogManager.LogType.INFO, link.getConnectedDeviceName());
+    }
+
+    // True when the grid was showing something else
+    private boolean updateSwitchFromDevice(int switchNumber, boolean isOn) {
+        // Mid-burst echoes would flicker the switch back to an old state
+        if (toggleDebouncer.isBusy(switchNumber)) {
+            return false;
+        }
+        DeviceModel device = findSwitch(switchNumber);
+        if (device == null || device.isOn() == isOn) {
+            return false;
+        }
+        device.setOn(isOn);
+        saveSwitches();
+        notifySwitchesChanged();
+        return true;
+    }
+
+    /* =====================
+       FOREGROUND
+       ===================== */
+    private void enterForeground(String title) {
+        createNotificationChannel();
+
+        Intent openIntent = new Intent(this, MainActivity.class);
+        PendingIntent openPending = PendingIntent.getActivity(this, 0, openIntent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+
+        Intent disconnectIntent = new Intent(this, ControllerService.class);
+        disconnectIntent.setAction(ACTION_DISCONNECT);
+        PendingIntent disconnectPending = PendingIntent.getService(this, 1, disconnectIntent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+
+        Notification notification = new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_bluetooth)
+                .setContentTitle(title)
+                .setContentText("Tap to control your switches")
+                .setContentIntent(openPending)
+                .addAction(0, "Disconnect", disconnectPending)
+                .setOngoing(true)
+                .build();
+
+        // Started so the link keeps running when no Activity is bound
+        startService(new Intent(this, ControllerService.class));
+        ServiceCompat.startForeground(this, NOTIFICATION_ID, notification,
+                ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE);
+        inForeground = true;
+    }
+
+    private void exitForeground() {
+        if (inForeground) {
+            ServiceCompat.stopForeground(this, ServiceCompat.STOP_FOREGROUND_REMOVE);
+            inForeground = false;
+        }
+    }
+
+    private void createNotificationChannel() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID, "Connection",
+                    NotificationManager.IMPORTANCE_LOW);
+            getSystemService(NotificationManager.class).createNotificationChannel(channel);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Parses lines coming back from the Arduino into typed events
+public class DeviceMessageParser {
+
+    public interface Listener {
+        // LIGHT1:ON / LIGHT1:OFF
+        void onSwitchState(int switchNumber, boolean isOn, String message);
+
+        // LIGHT1:LEVEL=128, echoed for dimmer channels
+        void onLevelReport(int switchNumber, int level, String message);
+
+        // Status: L1=ON  L2=OFF  L3=ON
+        void onStatusReport(Map<Integer, Boolean> states, String message);
+
+        // "Light 2 toggled" / "IR: Toggled Light 1"
+        void onToggleAck(int switchNumber, String message);
+
+        // "BT Received: ..." / "IR Received: ..."
+        void onDeviceEvent(String message);
+
+        void onDeviceError(String message);
+
+        // Reply to HELP
+        void onHelpReceived(String message);
+
+        // Anything else
+        void onUnhandled(String message);
+    }
+
+    private final Listener listener;
+
+    public DeviceMessageParser(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Handle each line separately (Arduino might send multiple lines)
+    public void parse(String chunk) {
+        for (String line : chunk.split("\n")) {
+            String message = line.trim();
+            if (!message.isEmpty()) {
+                parseLine(message);
+            }
+        }
+    }
+
+    private void parseLine(String message) {
+        if (message.contains("Status:") || message.matches("^L\\d+=.*")) {
+            listener.onStatusReport(parseStatus(message), message);
+        } else if (message.contains("BT Received:") || message.contains("IR Received:")) {
+            listener.onDeviceEvent(message);
+        } else if (message.startsWith("ERROR:") || message.contains("Unknown")) {
+            listener.onDeviceError(message);
+        } else if (message.contains("Bluetooth Commands")) {
+            listener.onHelpReceived(message);
+        } else if (message.contains("toggled") || message.contains("Toggled")) {
+            listener.onToggleAck(parseToggleAck(message), message);
+        } else if (!parseSwitchState(message)) {
+            listener.onUnhandled(message);
+        }
+    }
+
+    private boolean parseSwitchState(String message) {
+        String[] parts = message.split(":");
+        if (parts.length != 2) {
+            return false;
+        }
+
+        String deviceName = parts[0].trim();
+        // A board that took the sequence handshake tags replies "#n"
+        String state = ReplySequencer.stripSeq(parts[1].trim());
+        boolean isLevel = state.startsWith("LEVEL=");
+        if (!deviceName.startsWith("LIGHT") || !(isLevel || state.equals("ON") || state.equals("OFF"))) {
+            return false;
+        }
+
+        try {
+            int switchNumber = Integer.parseInt(deviceName.substring(5)); // Remove "LIGHT"
+            if (isLevel) {
+                listener.onLevelReport(switchNumber, Integer.parseInt(state.substring(6)), message);
+            } else {
+                listener.onSwitchState(switchNumber, state.equals("ON"), message);
+            }
+            return true;
+        } catch (NumberFormatException e) {
+            listener.onDeviceError("Invalid device name: " + deviceName);
+            return true;
+        }
+    }
+
+    // Format: Status: L1=ON  L2=OFF  L3=ON
+    // OR: L1=ON L2=OFF L3=ON
+    static Map<Integer, Boolean> parseStatus(String statusMessage) {
+        Map<Integer, Boolean> states = new LinkedHashMap<>();
+        String cleanMessage = statusMessage.replace("Status:", "").trim();
+
+        for (String part : cleanMessage.split("\\s+")) {
+            String[] keyValue = part.split("=");
+            if (keyValue.length == 2 && keyValue[0].startsWith("L")) {
+                try {
+                    int switchNumber = Integer.parseInt(keyValue[0].substring(1));
+                    states.put(switchNumber, keyValue[1].trim().equals("ON"));
+                } catch (NumberFormatException e) {
+                    // Not a switch entry
+                }
+            }
+        }
+        return states;
+    }
+
+    // Extract device number from messages like "Light 2 toggled" or "IR: Toggled Light 1"
+    static int parseToggleAck(String message) {
+        String[] words = message.toLowerCase().split("\\s+");
+        for (int i = 0; i < words.length; i++) {
+            String word = words[i];
+            if (word.equals("light") && i + 1 < words.length) {
+                try {
+                    return Integer.parseInt(words[i + 1]);
+                } catch (NumberFormatException e) {
+                    // Keep looking
+                }
+            } else if (word.matches("light\\d+")) {
+                return Integer.parseInt(word.substring(5));
+            }
+        }
+        return -1;
+    }
+}
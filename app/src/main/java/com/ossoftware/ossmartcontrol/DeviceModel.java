@@ -7,8 +7,19 @@ public class DeviceModel {
     private String id;
     private String name;
     private String toggleCommand; // Changed from commandOn/commandOff
+    private String onCommand; // Optional absolute commands for firmware that
+    private String offCommand; // doesn't follow the LIGHTn_TOGGLE naming
     private boolean isOn;
     private int index;
+    private boolean pinned; // Shown in Quick Settings tiles and the home-screen widget
+    private boolean dimmable; // PWM dimmer / fan speed channel driven by level
+    private int level = MAX_LEVEL;
+    private String levelCommand; // Template, {level} is replaced with 0..255
+    private boolean pending; // Changed while offline, not yet sent; never saved
+    private boolean absoluteSupported = true; // Board knows LIGHTn_ON/OFF; from its capabilities, never saved
+
+    public static final int MAX_LEVEL = 255;
+    public static final String LEVEL_PLACEHOLDER = "{level}";
 
     // Default constructor
     public DeviceModel() {
@@ -30,6 +41,22 @@ public class DeviceModel {
         this.index = index;
     }
 
+    // Detached copy, used for state snapshots handed to the UI
+    public DeviceModel copy() {
+        DeviceModel device = new DeviceModel(id, name, toggleCommand);
+        device.setOn(isOn);
+        device.setIndex(index);
+        device.setPinned(pinned);
+        device.setOnCommand(onCommand);
+        device.setOffCommand(offCommand);
+        device.setDimmable(dimmable);
+        device.setLevel(level);
+        device.setLevelCommand(levelCommand);
+        device.setPending(pending);
+        device.setAbsoluteSupported(absoluteSupported);
+        return device;
+    }
+
     // Getters and Setters
     public String getId() {
         return id;
@@ -73,6 +100,22 @@ public class DeviceModel {
         this.toggleCommand = commandOff;
     }
 
+    public String getOnCommand() {
+        return onCommand;
+    }
+
+    public void setOnCommand(String onCommand) {
+        this.onCommand = onCommand;
+    }
+
+    public String getOffCommand() {
+        return offCommand;
+    }
+
+    public void setOffCommand(String offCommand) {
+        this.offCommand = offCommand;
+    }
+
     public boolean isOn() {
         return isOn;
     }
@@ -89,10 +132,84 @@ public class DeviceModel {
         this.index = index;
     }
 
+    public boolean isPinned() {
+        return pinned;
+    }
+
+    public void setPinned(boolean pinned) {
+        this.pinned = pinned;
+    }
+
+    public boolean isPending() {
+        return pending;
+    }
+
+    public void setPending(boolean pending) {
+        this.pending = pending;
+    }
+
+    public boolean isAbsoluteSupported() {
+        return absoluteSupported;
+    }
+
+    public void setAbsoluteSupported(boolean absoluteSupported) {
+        this.absoluteSupported = absoluteSupported;
+    }
+
+    public boolean isDimmable() {
+        return dimmable;
+    }
+
+    public void setDimmable(boolean dimmable) {
+        this.dimmable = dimmable;
+    }
+
+    // 0..255; kept while the switch is off so turning it back on restores it
+    public int getLevel() {
+        return level;
+    }
+
+    public void setLevel(int level) {
+        this.level = Math.max(0, Math.min(MAX_LEVEL, level));
+    }
+
+    // Falls back to LIGHTn_LEVEL_{level} for channels saved before templates existed
+    public String getLevelCommand() {
+        if (levelCommand == null || levelCommand.isEmpty()) {
+            return "LIGHT" + index + "_LEVEL_" + LEVEL_PLACEHOLDER;
+        }
+        return levelCommand;
+    }
+
+    public void setLevelCommand(String levelCommand) {
+        this.levelCommand = levelCommand;
+    }
+
+    // Command that sets this channel to the given level
+    public String getLevelCommand(int level) {
+        int clamped = Math.max(0, Math.min(MAX_LEVEL, level));
+        return getLevelCommand().replace(LEVEL_PLACEHOLDER, String.valueOf(clamped));
+    }
+
     public String getCurrentCommand() {
         return toggleCommand;
     }
 
+    // Absolute command: the configured one, else derived from the toggle command
+    // (LIGHT1_TOGGLE -> LIGHT1_ON / LIGHT1_OFF) when the board takes those,
+    // or null when there is neither
+    public String getAbsoluteCommand(boolean on) {
+        String configured = on ? onCommand : offCommand;
+        if (configured != null && !configured.isEmpty()) {
+            return configured;
+        }
+        if (!absoluteSupported || toggleCommand == null || !toggleCommand.endsWith("_TOGGLE")) {
+            return null;
+        }
+        String prefix = toggleCommand.substring(0, toggleCommand.length() - "_TOGGLE".length());
+        return prefix + (on ? "_ON" : "_OFF");
+    }
+
     // Convert to JSON string
     public String toJson() {
         try {
@@ -102,6 +219,18 @@ public class DeviceModel {
             json.put("toggleCommand", toggleCommand);
             json.put("isOn", isOn);
             json.put("index", index);
+            json.put("pinned", pinned);
+            if (onCommand != null) {
+                json.put("onCommand", onCommand);
+            }
+            if (offCommand != null) {
+                json.put("offCommand", offCommand);
+            }
+            json.put("dimmable", dimmable);
+            json.put("level", level);
+            if (levelCommand != null) {
+                json.put("levelCommand", levelCommand);
+            }
             return json.toString();
         } catch (JSONException e) {
             e.printStackTrace();
@@ -127,6 +256,12 @@ public class DeviceModel {
 
             device.setOn(json.optBoolean("isOn", false));
             device.setIndex(json.optInt("index", 0));
+            device.setPinned(json.optBoolean("pinned", false));
+            device.setOnCommand(json.optString("onCommand", null));
+            device.setOffCommand(json.optString("offCommand", null));
+            device.setDimmable(json.optBoolean("dimmable", false));
+            device.setLevel(json.optInt("level", MAX_LEVEL));
+            device.setLevelCommand(json.optString("levelCommand", null));
             return device;
         } catch (JSONException e) {
             e.printStackTrace();
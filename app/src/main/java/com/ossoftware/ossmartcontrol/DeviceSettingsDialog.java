@@ -3,6 +3,7 @@ package com.ossoftware.ossmartcontrol;
 import android.app.Dialog;
 import android.content.Context;
 import android.os.Bundle;
+import android.view.View;
 import android.widget.Button;
 import android.widget.Toast;
 
@@ -15,8 +16,9 @@ public class DeviceSettingsDialog extends Dialog {
 
     private DeviceModel device;
     private OnDeviceSettingsListener listener;
-    private TextInputEditText etDeviceName, etToggleCommand;
-    private MaterialSwitch switchDeviceState;
+    private TextInputEditText etDeviceName, etToggleCommand, etOnCommand, etOffCommand, etLevelCommand;
+    private MaterialSwitch switchDeviceState, switchPinned, switchDimmable;
+    private View layoutLevelCommand;
 
     public interface OnDeviceSettingsListener {
         void onDeviceSettingsSaved(DeviceModel device);
@@ -41,14 +43,26 @@ public class DeviceSettingsDialog extends Dialog {
     private void initializeViews() {
         etDeviceName = findViewById(R.id.etDeviceName);
         etToggleCommand = findViewById(R.id.etToggleCommand);
+        etOnCommand = findViewById(R.id.etOnCommand);
+        etOffCommand = findViewById(R.id.etOffCommand);
         switchDeviceState = findViewById(R.id.switchDeviceState);
+        switchPinned = findViewById(R.id.switchPinned);
+        switchDimmable = findViewById(R.id.switchDimmable);
+        etLevelCommand = findViewById(R.id.etLevelCommand);
+        layoutLevelCommand = findViewById(R.id.layoutLevelCommand);
     }
 
     private void loadDeviceData() {
         if (device != null) {
             etDeviceName.setText(device.getName());
             etToggleCommand.setText(device.getToggleCommand());
+            etOnCommand.setText(device.getOnCommand());
+            etOffCommand.setText(device.getOffCommand());
             switchDeviceState.setChecked(device.isOn());
+            switchPinned.setChecked(device.isPinned());
+            switchDimmable.setChecked(device.isDimmable());
+            etLevelCommand.setText(device.getLevelCommand());
+            layoutLevelCommand.setVisibility(device.isDimmable() ? View.VISIBLE : View.GONE);
         }
     }
 
@@ -56,6 +70,8 @@ public class DeviceSettingsDialog extends Dialog {
         Button btnCancel = findViewById(R.id.btnCancel);
         Button btnSave = findViewById(R.id.btnSave);
 
+        switchDimmable.setOnCheckedChangeListener((buttonView, isChecked) ->
+                layoutLevelCommand.setVisibility(isChecked ? View.VISIBLE : View.GONE));
         btnCancel.setOnClickListener(v -> dismiss());
         btnSave.setOnClickListener(v -> saveDeviceSettings());
     }
@@ -63,6 +79,9 @@ public class DeviceSettingsDialog extends Dialog {
     private void saveDeviceSettings() {
         String name = etDeviceName.getText().toString().trim();
         String toggleCommand = etToggleCommand.getText().toString().trim();
+        String onCommand = etOnCommand.getText().toString().trim();
+        String offCommand = etOffCommand.getText().toString().trim();
+        String levelCommand = etLevelCommand.getText().toString().trim();
 
         if (name.isEmpty()) {
             Toast.makeText(getContext(), "Please enter device name", Toast.LENGTH_SHORT).show();
@@ -74,10 +93,27 @@ public class DeviceSettingsDialog extends Dialog {
             return;
         }
 
+        // Absolute commands are only used as a pair
+        if (onCommand.isEmpty() != offCommand.isEmpty()) {
+            Toast.makeText(getContext(), "Enter both on and off commands, or neither", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        if (switchDimmable.isChecked() && !levelCommand.contains(DeviceModel.LEVEL_PLACEHOLDER)) {
+            Toast.makeText(getContext(), "Level command must contain " + DeviceModel.LEVEL_PLACEHOLDER,
+                    Toast.LENGTH_SHORT).show();
+            return;
+        }
+
         // Update device
         device.setName(name);
         device.setToggleCommand(toggleCommand);
+        device.setOnCommand(onCommand.isEmpty() ? null : onCommand);
+        device.setOffCommand(offCommand.isEmpty() ? null : offCommand);
         device.setOn(switchDeviceState.isChecked());
+        device.setPinned(switchPinned.isChecked());
+        device.setDimmable(switchDimmable.isChecked());
+        device.setLevelCommand(levelCommand);
 
         if (listener != null) {
             listener.onDeviceSettingsSaved(device);
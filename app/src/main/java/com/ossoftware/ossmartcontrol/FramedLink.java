@@ -0,0 +1,177 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Puts BinaryFrameCodec frames on the link once the board has answered the
+// BIN_ON handshake with BIN:ON, and turns incoming frames back into text
+// lines for DeviceMessageParser. Commands without a binary form still go as
+// text, which the board takes in either mode. The link drops back to text for
+// the rest of the connection when too many frames fail their CRC, or when the
+// board rejects a frame as an unknown text command (it restarted).
+public class FramedLink implements CommandTransport {
+
+    public static final String HANDSHAKE = "BIN_ON";
+    public static final String HANDSHAKE_REPLY = "BIN:ON";
+    public static final String LEAVE = "BIN_OFF";
+
+    // Fall back once this many of the last ERROR_WINDOW frames were bad
+    static final int ERROR_WINDOW = 16;
+    static final int MAX_BAD_FRAMES = 3;
+
+    public interface Listener {
+        void onFramingChanged(boolean binary, String reason);
+    }
+
+    private final CommandTransport link;
+    private final Listener listener;
+    private final BinaryFrameCodec codec = new BinaryFrameCodec();
+    private final StringBuilder encoded = new StringBuilder(16);
+    private final StringBuilder decoded = new StringBuilder(256);
+    private final boolean[] recentBad = new boolean[ERROR_WINDOW];
+
+    private boolean binary = false;
+    private int recentIndex = 0;
+    private int recentBadCount = 0;
+
+    private int framesIn = 0;
+    private int badFrames = 0;
+    private long bytesOut = 0;
+    private long bytesIn = 0;
+
+    public FramedLink(CommandTransport link, Listener listener) {
+        this.link = link;
+        this.listener = listener;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    // New connection: text until the handshake is answered
+    public void reset() {
+        binary = false;
+        clearErrorWindow();
+    }
+
+    // Back to text at the user's request
+    public void leave() {
+        fallBack("turned off");
+    }
+
+    @Override
+    public boolean isConnected() {
+        return link.isConnected();
+    }
+
+    @Override
+    public void sendCommand(String command) {
+        List<String> commands = new ArrayList<>(1);
+        commands.add(command);
+        sendCommands(commands);
+    }
+
+    @Override
+    public void sendCommands(List<String> commands) {
+        if (!binary) {
+            for (String command : commands) {
+                bytesOut += command.length() + 1;
+            }
+            link.sendCommands(commands);
+            return;
+        }
+
+        List<String> wire = new ArrayList<>(commands.size());
+        for (String command : commands) {
+            encoded.setLength(0);
+            String line = codec.encodeCommand(command, encoded) ? encoded.toString() : command;
+            bytesOut += line.length() + 1;
+            wire.add(line);
+        }
+        link.sendCommands(wire);
+    }
+
+    // One chunk from the link; returns it as text lines for the parser
+    public String decode(String chunk) {
+        bytesIn += chunk.length();
+        if (chunk.indexOf(BinaryFrameCodec.SYNC) < 0 && !chunk.contains(HANDSHAKE_REPLY)) {
+            // Plain text: nothing to translate
+            return chunk;
+        }
+
+        decoded.setLength(0);
+        for (String line : chunk.split("\n")) {
+            if (BinaryFrameCodec.isFrame(line)) {
+                framesIn++;
+                boolean good = codec.decode(line, decoded);
+                if (good) {
+                    decoded.append('\n');
+                } else {
+                    badFrames++;
+                }
+                recordFrame(good);
+            } else if (line.trim().equals(HANDSHAKE_REPLY)) {
+                binary = true;
+                clearErrorWindow();
+                notifyChanged(true, "board answered " + HANDSHAKE);
+            } else if (line.indexOf(BinaryFrameCodec.SYNC) >= 0) {
+                // A text board echoing a frame back as an unknown command
+                decoded.append("ERROR: Board rejected a binary frame\n");
+                fallBack("board no longer reads frames");
+            } else {
+                decoded.append(line).append('\n');
+            }
+        }
+        return decoded.toString();
+    }
+
+    private void recordFrame(boolean good) {
+        if (recentBad[recentIndex]) {
+            recentBadCount--;
+        }
+        recentBad[recentIndex] = !good;
+        if (!good) {
+            recentBadCount++;
+        }
+        recentIndex = (recentIndex + 1) % ERROR_WINDOW;
+
+        if (recentBadCount >= MAX_BAD_FRAMES) {
+            fallBack(recentBadCount + " of the last " + ERROR_WINDOW + " frames failed their CRC");
+        }
+    }
+
+    private void fallBack(String reason) {
+        if (!binary) {
+            return;
+        }
+        binary = false;
+        clearErrorWindow();
+        // Sent as text, which the board reads in either mode
+        link.sendCommand(LEAVE);
+        notifyChanged(false, reason);
+    }
+
+    private void clearErrorWindow() {
+        for (int i = 0; i < ERROR_WINDOW; i++) {
+            recentBad[i] = false;
+        }
+        recentIndex = 0;
+        recentBadCount = 0;
+    }
+
+    private void notifyChanged(boolean binary, String reason) {
+        if (listener != null) {
+            listener.onFramingChanged(binary, reason);
+        }
+    }
+
+    public int getBadFrames() {
+        return badFrames;
+    }
+
+    public String getSummary() {
+        return String.format(Locale.US, "%s, %d bytes out, %d bytes in, %d frames, %d bad",
+                binary ? "binary" : "text", bytesOut, bytesIn, framesIn, badFrames);
+    }
+}
@@ -0,0 +1,199 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Word-level index used to correct misrecognized words. Each known word is
+// bucketed by phonetic key and by length; a lookup checks the phonetic bucket
+// and then runs a banded Levenshtein over words of similar length, giving up
+// on a candidate as soon as it can no longer beat the distance bound.
+public class FuzzyIndex {
+
+    // Number homophones the phonetic key can't catch on its own
+    private static final Map<String, String> HOMOPHONES = new HashMap<>();
+
+    static {
+        HOMOPHONES.put("to", "two");
+        HOMOPHONES.put("too", "two");
+        HOMOPHONES.put("won", "one");
+        HOMOPHONES.put("for", "four");
+        HOMOPHONES.put("fore", "four");
+        HOMOPHONES.put("ate", "eight");
+    }
+
+    // Similarity given to corrections found by sound rather than spelling
+    private static final double HOMOPHONE_SIMILARITY = 0.9;
+    private static final double PHONETIC_SIMILARITY = 0.85;
+
+    private static final int MIN_WORD_LENGTH = 2;
+
+    public static class Correction {
+        private final String word;
+        private final double similarity;
+
+        Correction(String word, double similarity) {
+            this.word = word;
+            this.similarity = similarity;
+        }
+
+        public String getWord() {
+            return word;
+        }
+
+        // 0..1, 1 being an exact match
+        public double getSimilarity() {
+            return similarity;
+        }
+    }
+
+    private final Map<String, Integer> wordCounts = new HashMap<>();
+    private final Map<String, List<String>> byPhoneticKey = new HashMap<>();
+    private final Map<Integer, List<String>> byLength = new HashMap<>();
+
+    // Reference counted, so shared words survive one owner going away
+    public void add(String word) {
+        Integer count = wordCounts.get(word);
+        wordCounts.put(word, count == null ? 1 : count + 1);
+        if (count == null) {
+            bucket(byPhoneticKey, PhoneticKey.encode(word)).add(word);
+            bucket(byLength, word.length()).add(word);
+        }
+    }
+
+    public void remove(String word) {
+        Integer count = wordCounts.get(word);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            wordCounts.put(word, count - 1);
+            return;
+        }
+        wordCounts.remove(word);
+        byPhoneticKey.get(PhoneticKey.encode(word)).remove(word);
+        byLength.get(word.length()).remove(word);
+    }
+
+    public boolean contains(String word) {
+        return wordCounts.containsKey(word);
+    }
+
+    public int size() {
+        return wordCounts.size();
+    }
+
+    // Best known word for a token that isn't in the index, or null
+    public Correction correct(String token) {
+        String homophone = HOMOPHONES.get(token);
+        if (homophone != null && contains(homophone)) {
+            return new Correction(homophone, HOMOPHONE_SIMILARITY);
+        }
+        if (token.length() < MIN_WORD_LENGTH) {
+            return null;
+        }
+
+        int bound = maxDistance(token.length());
+        String best = null;
+        double bestSimilarity = 0;
+
+        // Same sound: spelling barely matters, distance only breaks ties
+        List<String> soundAlikes = byPhoneticKey.get(PhoneticKey.encode(token));
+        if (soundAlikes != null) {
+            for (String word : soundAlikes) {
+                int distance = boundedDistance(token, word, Math.max(token.length(), word.length()));
+                double similarity = PHONETIC_SIMILARITY - 0.01 * distance;
+                if (similarity > bestSimilarity) {
+                    best = word;
+                    bestSimilarity = similarity;
+                }
+            }
+        }
+
+        // Close spelling
+        if (bound > 0) {
+            for (int length = token.length() - bound; length <= token.length() + bound; length++) {
+                List<String> candidates = byLength.get(length);
+                if (candidates == null) {
+                    continue;
+                }
+                for (String word : candidates) {
+                    int distance = boundedDistance(token, word, bound);
+                    if (distance > bound) {
+                        continue;
+                    }
+                    double similarity = 1 - (double) distance / Math.max(token.length(), word.length());
+                    if (similarity > bestSimilarity) {
+                        best = word;
+                        bestSimilarity = similarity;
+                    }
+                }
+            }
+        }
+
+        return best != null ? new Correction(best, bestSimilarity) : null;
+    }
+
+    // Edits allowed for a word of this length; short words only match by sound
+    static int maxDistance(int length) {
+        if (length <= 3) {
+            return 0;
+        }
+        return length <= 6 ? 1 : 2;
+    }
+
+    // Levenshtein distance, or bound + 1 once it is certain to exceed the bound.
+    // Only cells within the bound of the diagonal are computed.
+    static int boundedDistance(String a, String b, int bound) {
+        int n = a.length();
+        int m = b.length();
+        if (Math.abs(n - m) > bound) {
+            return bound + 1;
+        }
+
+        int outside = bound + 1;
+        int[] previous = new int[m + 1];
+        int[] current = new int[m + 1];
+        for (int j = 0; j <= m; j++) {
+            previous[j] = j <= bound ? j : outside;
+        }
+
+        for (int i = 1; i <= n; i++) {
+            int from = Math.max(1, i - bound);
+            int to = Math.min(m, i + bound);
+            current[0] = i <= bound ? i : outside;
+            if (from > 1) {
+                current[from - 1] = outside;
+            }
+
+            int rowMin = current[0];
+            for (int j = from; j <= to; j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                int value = Math.min(previous[j - 1] + cost, Math.min(previous[j] + 1, current[j - 1] + 1));
+                current[j] = Math.min(value, outside);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (to < m) {
+                current[to + 1] = outside;
+            }
+            if (rowMin > bound) {
+                return outside;
+            }
+
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return Math.min(previous[m], outside);
+    }
+
+    private static <K> List<String> bucket(Map<K, List<String>> map, K key) {
+        List<String> bucket = map.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            map.put(key, bucket);
+        }
+        return bucket;
+    }
+}
@@ -0,0 +1,188 @@
+package com.ossoftware.ossmartcontrol;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+// Hands-free listening: reads the microphone through the voice activity
+// detector and only asks for a recognizer session when speech starts.
+// The mic is released while the recognizer runs and picked up again by
+// resumeAfter() once it returns.
+public class HandsFreeListener {
+
+    private static final String TAG = "HandsFreeListener";
+
+    // How long start() waits for the previous reader to let go of the mic
+    private static final long READER_EXIT_MS = 500;
+
+    public interface Callback {
+        void onSpeechOnset();
+    }
+
+    private final Context context;
+    private final Callback callback;
+    private final VoiceActivityDetector detector;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // One buffer for the life of the listener: no allocation per frame
+    private final short[] frame;
+
+    // The thread reading the mic; cleared to stop it
+    private volatile Thread thread;
+    // The last reader and its recorder. stop() stops the recorder so a read
+    // blocked on it returns, and start() waits for the reader to release it
+    // before opening another: the mic can only be held once.
+    private Thread reader;
+    private AudioRecord record;
+
+    // CPU spent in the detector per second of audio
+    private volatile long detectorNanos;
+    private volatile long audioFrames;
+
+    public HandsFreeListener(Context context, VoiceActivityDetector.Config config, Callback callback) {
+        this.context = context.getApplicationContext();
+        this.callback = callback;
+        this.detector = new VoiceActivityDetector(config);
+        this.frame = new short[config.getFrameSamples()];
+    }
+
+    public boolean isRunning() {
+        return thread != null;
+    }
+
+    // Returns false when the mic can't be used
+    public boolean start() {
+        awaitPreviousReader();
+        return open();
+    }
+
+    private void awaitPreviousReader() {
+        Thread previous;
+        synchronized (this) {
+            previous = thread == null ? reader : null;
+        }
+        if (previous == null) {
+            return;
+        }
+        try {
+            previous.join(READER_EXIT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized boolean open() {
+        if (thread != null) {
+            return true;
+        }
+        if (reader != null && reader.isAlive()) {
+            Log.w(TAG, "Previous reader still holds the microphone");
+            return false;
+        }
+        if (ContextCompat.checkSelfPermission(context, Manifest.permission.RECORD_AUDIO)
+                != PackageManager.PERMISSION_GRANTED) {
+            return false;
+        }
+
+        VoiceActivityDetector.Config config = detector.getConfig();
+        int minBuffer = AudioRecord.getMinBufferSize(config.sampleRate,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        AudioRecord record;
+        try {
+            record = new AudioRecord(MediaRecorder.AudioSource.VOICE_RECOGNITION, config.sampleRate,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                    Math.max(minBuffer, frame.length * 2 * 4));
+        } catch (SecurityException | IllegalArgumentException e) {
+            Log.e(TAG, "Could not open the microphone", e);
+            return false;
+        }
+        if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+            record.release();
+            return false;
+        }
+
+        detector.reset();
+        this.record = record;
+        thread = new Thread(() -> listen(record), "HandsFreeVad");
+        reader = thread;
+        thread.start();
+        return true;
+    }
+
+    private void listen(AudioRecord record) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        try {
+            record.startRecording();
+            while (thread == Thread.currentThread()) {
+                int read = record.read(frame, 0, frame.length);
+                if (thread != Thread.currentThread()) {
+                    // Stopped while blocked in the read
+                    break;
+                }
+                if (read <= 0) {
+                    Log.w(TAG, "Microphone read failed: " + read);
+                    break;
+                }
+
+                long start = System.nanoTime();
+                VoiceActivityDetector.Event event = detector.processFrame(frame, 0, read);
+                detectorNanos += System.nanoTime() - start;
+                audioFrames++;
+
+                if (event == VoiceActivityDetector.Event.ONSET) {
+                    // Hand the mic to the recognizer
+                    stopReading();
+                    mainHandler.post(callback::onSpeechOnset);
+                }
+            }
+        } finally {
+            stopReading();
+            synchronized (this) {
+                if (this.record == record) {
+                    this.record = null;
+                }
+            }
+            record.stop();
+            record.release();
+        }
+    }
+
+    public synchronized void stop() {
+        mainHandler.removeCallbacksAndMessages(null);
+        thread = null;
+        if (record != null) {
+            record.stop();
+        }
+    }
+
+    private synchronized void stopReading() {
+        if (thread == Thread.currentThread()) {
+            thread = null;
+        }
+    }
+
+    // Listen again after a recognizer session, once its own audio (and any
+    // spoken confirmation) has finished
+    public void resumeAfter(long delayMs) {
+        mainHandler.postDelayed(this::start, delayMs);
+    }
+
+    public String getCpuSummary() {
+        long frames = audioFrames;
+        if (frames == 0) {
+            return "No audio yet";
+        }
+        double audioSeconds = frames * detector.getConfig().frameMs / 1000.0;
+        return String.format(java.util.Locale.US, "VAD %.0f us CPU per second of audio, noise floor %.0f dB",
+                detectorNanos / 1000.0 / audioSeconds, detector.getNoiseFloorDb());
+    }
+}
@@ -0,0 +1,257 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+// Closes the RFCOMM link once nobody has used it for the idle timeout and
+// opens it again for the next command, which waits in a queue meanwhile.
+// The rest of the app keeps seeing one connection throughout: parser,
+// sequencer and framing state carry over because the board keeps its modes
+// while only the radio link is down. touch() marks user activity; when the
+// link is suspended it also starts the reopen early (pre-warm), so a tap that
+// follows the app coming to the foreground or a finger landing on the grid
+// finds it already open or nearly so. Background writes don't count as
+// activity, so polling alone never keeps the radio up.
+public class IdleLinkPolicy {
+
+    static final long DEFAULT_IDLE_TIMEOUT_MS = 120_000;
+    static final int MAX_HELD = 32;
+
+    // What BluetoothManager does for the policy
+    public interface Link {
+        void write(List<String> commands);
+
+        // Drop the radio link without telling the app it disconnected
+        void suspend();
+
+        // Reconnect to the same device; answered by onResumed or onResumeFailed
+        void resume();
+    }
+
+    public interface Listener {
+        void onSuspended();
+
+        // waitedMs: how long the first held command waited, -1 when none did
+        void onResumed(long waitedMs);
+
+        void onResumeFailed(int droppedCommands);
+    }
+
+    private enum State {
+        CLOSED, ACTIVE, SUSPENDED, RESUMING
+    }
+
+    private final Link link;
+    private final TimeSource clock;
+    private final Scheduler scheduler;
+    private final Listener listener;
+    private final Runnable idleCheck = this::onIdleCheck;
+    private final List<String> held = new ArrayList<>();
+
+    private long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+    private State state = State.CLOSED;
+    private long lastActivityAt = 0;
+    private long firstHeldAt = -1;
+    // Reopened ahead of need; the first command after it is timed as not waiting
+    private boolean prewarmed = false;
+
+    private long radioOnSince = 0;
+    private long radioOnMs = 0;
+    private long resumeStartedAt = 0;
+    private int suspensions = 0;
+    private int prewarms = 0;
+    private final List<Long> waits = new ArrayList<>();
+    private final List<Long> resumeTimes = new ArrayList<>();
+
+    public IdleLinkPolicy(Link link, TimeSource clock, Scheduler scheduler, Listener listener) {
+        this.link = link;
+        this.clock = clock;
+        this.scheduler = scheduler;
+        this.listener = listener;
+    }
+
+    // 0 keeps the link open for as long as it is connected
+    public void setIdleTimeout(long idleTimeoutMs) {
+        this.idleTimeoutMs = Math.max(0, idleTimeoutMs);
+        if (state == State.ACTIVE) {
+            scheduleIdleCheck();
+        }
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeoutMs;
+    }
+
+    // The connection the user asked for is up
+    public void onConnected() {
+        state = State.ACTIVE;
+        lastActivityAt = clock.currentTimeMillis();
+        radioOnSince = lastActivityAt;
+        scheduleIdleCheck();
+    }
+
+    // Disconnected for real, by the user or the link
+    public void onClosed() {
+        if (state == State.ACTIVE || state == State.RESUMING) {
+            radioOnMs += clock.currentTimeMillis() - radioOnSince;
+        }
+        state = State.CLOSED;
+        held.clear();
+        firstHeldAt = -1;
+        prewarmed = false;
+        scheduler.cancel(idleCheck);
+    }
+
+    // User activity: a tap, the app coming forward, a touch on the grid
+    public void touch() {
+        lastActivityAt = clock.currentTimeMillis();
+        if (state == State.SUSPENDED) {
+            prewarms++;
+            prewarmed = true;
+            startResume();
+        }
+    }
+
+    public void send(List<String> commands) {
+        switch (state) {
+            case ACTIVE:
+                if (prewarmed) {
+                    // Opened before this was asked for, so it didn't wait
+                    prewarmed = false;
+                    waits.add(0L);
+                }
+                link.write(commands);
+                break;
+            case SUSPENDED:
+            case RESUMING:
+                hold(commands);
+                if (state == State.SUSPENDED) {
+                    startResume();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void hold(List<String> commands) {
+        if (firstHeldAt < 0) {
+            firstHeldAt = clock.currentTimeMillis();
+            prewarmed = false;
+        }
+        held.addAll(commands);
+        // A stuck reopen mustn't grow this without bound; oldest go first
+        while (held.size() > MAX_HELD) {
+            held.remove(0);
+        }
+    }
+
+    private void startResume() {
+        state = State.RESUMING;
+        resumeStartedAt = clock.currentTimeMillis();
+        radioOnSince = resumeStartedAt;
+        link.resume();
+    }
+
+    public void onResumed() {
+        if (state != State.RESUMING) {
+            return;
+        }
+        long now = clock.currentTimeMillis();
+        state = State.ACTIVE;
+        resumeTimes.add(now - resumeStartedAt);
+        long waited = firstHeldAt >= 0 ? now - firstHeldAt : -1;
+        if (waited >= 0) {
+            waits.add(waited);
+        }
+        if (!held.isEmpty()) {
+            link.write(new ArrayList<>(held));
+            held.clear();
+        }
+        firstHeldAt = -1;
+        lastActivityAt = Math.max(lastActivityAt, now);
+        scheduleIdleCheck();
+        listener.onResumed(waited);
+    }
+
+    public void onResumeFailed() {
+        if (state != State.RESUMING) {
+            return;
+        }
+        int dropped = held.size();
+        onClosed();
+        listener.onResumeFailed(dropped);
+    }
+
+    private void scheduleIdleCheck() {
+        scheduler.cancel(idleCheck);
+        if (idleTimeoutMs > 0) {
+            long due = lastActivityAt + idleTimeoutMs - clock.currentTimeMillis();
+            scheduler.postDelayed(idleCheck, Math.max(0, due));
+        }
+    }
+
+    private void onIdleCheck() {
+        if (state != State.ACTIVE || idleTimeoutMs == 0) {
+            return;
+        }
+        long now = clock.currentTimeMillis();
+        if (now - lastActivityAt < idleTimeoutMs) {
+            scheduleIdleCheck();
+            return;
+        }
+        state = State.SUSPENDED;
+        suspensions++;
+        prewarmed = false;
+        radioOnMs += now - radioOnSince;
+        link.suspend();
+        listener.onSuspended();
+    }
+
+    public boolean isSuspended() {
+        return state == State.SUSPENDED || state == State.RESUMING;
+    }
+
+    public boolean isResuming() {
+        return state == State.RESUMING;
+    }
+
+    public int getHeldCount() {
+        return held.size();
+    }
+
+    public int getSuspensions() {
+        return suspensions;
+    }
+
+    public int getPrewarms() {
+        return prewarms;
+    }
+
+    // Time the radio link has been up or coming up
+    public long getRadioOnMs() {
+        long current = state == State.ACTIVE || state == State.RESUMING
+                ? clock.currentTimeMillis() - radioOnSince : 0;
+        return radioOnMs + current;
+    }
+
+    // How long the first command after each suspension waited for the link
+    public List<Long> getWaits() {
+        return Collections.unmodifiableList(waits);
+    }
+
+    public List<Long> getResumeTimes() {
+        return Collections.unmodifiableList(resumeTimes);
+    }
+
+    public String getSummary() {
+        List<Long> sorted = new ArrayList<>(waits);
+        Collections.sort(sorted);
+        long p50 = sorted.isEmpty() ? 0 : sorted.get(sorted.size() / 2);
+        long p95 = sorted.isEmpty() ? 0 : sorted.get(Math.min(sorted.size() - 1, sorted.size() * 95 / 100));
+        return String.format(Locale.US, "%d suspends, %d pre-warmed, resume wait p50 %d ms p95 %d ms",
+                suspensions, prewarms, p50, p95);
+    }
+}
@@ -0,0 +1,103 @@
+package com.ossoftware.ossmartcontrol;
+
+import android.content.Context;
+import android.net.nsd.NsdManager;
+import android.net.nsd.NsdServiceInfo;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashSet;
+import java.util.Set;
+
+// Finds boards on the LAN while a Bluetooth scan runs. They answer the
+// LanLink broadcast probe, or advertise over mDNS; both show up in the
+// device list next to Bluetooth ones, by host:port, on the main thread.
+public class LanDiscovery {
+
+    // mDNS service type LAN boards advertise
+    private static final String LAN_SERVICE_TYPE = "_ossmartcontrol._tcp.";
+
+    public interface Listener {
+        void onDeviceFound(String name, String mac);
+    }
+
+    private final Context context;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Set<String> found = new HashSet<>();
+    private NsdManager.DiscoveryListener nsdListener;
+
+    public LanDiscovery(Context context, Listener listener) {
+        this.context = context;
+        this.listener = listener;
+    }
+
+    public void start() {
+        found.clear();
+        LanLink.shared().discover((name, address) -> handler.post(() -> onBoardFound(name, address)));
+
+        NsdManager nsdManager = (NsdManager) context.getSystemService(Context.NSD_SERVICE);
+        if (nsdManager == null || nsdListener != null) {
+            return;
+        }
+        nsdListener = new NsdManager.DiscoveryListener() {
+            @Override
+            public void onServiceFound(NsdServiceInfo service) {
+                nsdManager.resolveService(service, new NsdManager.ResolveListener() {
+                    @Override
+                    public void onServiceResolved(NsdServiceInfo resolved) {
+                        String address = resolved.getHost().getHostAddress() + ":" + resolved.getPort();
+                        handler.post(() -> onBoardFound(resolved.getServiceName(), address));
+                    }
+
+                    @Override
+                    public void onResolveFailed(NsdServiceInfo serviceInfo, int errorCode) {
+                        // The broadcast probe may still find it
+                    }
+                });
+            }
+
+            @Override
+            public void onServiceLost(NsdServiceInfo service) {
+            }
+
+            @Override
+            public void onDiscoveryStarted(String serviceType) {
+            }
+
+            @Override
+            public void onDiscoveryStopped(String serviceType) {
+            }
+
+            @Override
+            public void onStartDiscoveryFailed(String serviceType, int errorCode) {
+                nsdListener = null;
+            }
+
+            @Override
+            public void onStopDiscoveryFailed(String serviceType, int errorCode) {
+            }
+        };
+        nsdManager.discoverServices(LAN_SERVICE_TYPE, NsdManager.PROTOCOL_DNS_SD, nsdListener);
+    }
+
+    public void stop() {
+        LanLink.shared().stopDiscovery();
+        NsdManager nsdManager = (NsdManager) context.getSystemService(Context.NSD_SERVICE);
+        if (nsdManager != null && nsdListener != null) {
+            nsdManager.stopServiceDiscovery(nsdListener);
+            nsdListener = null;
+        }
+    }
+
+    // Boards found since the last start
+    public int getFoundCount() {
+        return found.size();
+    }
+
+    private void onBoardFound(String name, String address) {
+        if (found.add(address)) {
+            listener.onDeviceFound(name, address);
+        }
+    }
+}
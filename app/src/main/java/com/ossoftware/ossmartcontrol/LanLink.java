@@ -0,0 +1,580 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Controllers on the LAN (ESP8266/ESP32 boards) speaking the same
+// line protocol as the Bluetooth sketch, over TCP. Every board shares one
+// selector thread: sockets are non-blocking and each connection keeps a
+// fixed pair of buffers, so a house full of boards costs one thread and a
+// few KB each. Strings map to bytes one char per byte (ISO-8859-1), as
+// BinaryFrameCodec expects. Callbacks arrive on the selector thread.
+// Host names are looked up off the selector thread, so a slow or missing
+// DNS server holds up only the board being connected to.
+//
+// Boards that list UDP in CAPS also take commands as datagrams on their TCP
+// port number, for sends nothing waits on an answer for. Discovery is a
+// UDP broadcast of DISCOVERY_PROBE on DISCOVERY_PORT; each board answers
+// "OSSC <tcp port> <name>" from its own address.
+public class LanLink {
+
+    public static final int DISCOVERY_PORT = 4210;
+    public static final String DISCOVERY_PROBE = "OSSC?";
+    static final String DISCOVERY_REPLY = "OSSC ";
+    static final long CONNECT_TIMEOUT_MS = 3000;
+    private static final long SELECT_TIMEOUT_MS = 250;
+    private static final int READ_BUFFER = 2048;
+    private static final int WRITE_BUFFER = 4096;
+    private static final int DATAGRAM_BUFFER = 512;
+    // A board that never sends a newline still gets its bytes delivered
+    private static final int MAX_PARTIAL_LINE = 4096;
+
+    // host:port; a Bluetooth MAC has colons throughout and never matches
+    private static final Pattern ADDRESS = Pattern.compile("^([\\w.-]+):(\\d{1,5})$");
+
+    public interface ConnectionListener {
+        void onConnected();
+
+        // Complete lines only; a line split across reads waits for its end
+        void onReceived(String text);
+
+        // The board closed, the network dropped or the connect failed
+        void onClosed(String reason);
+    }
+
+    public interface DiscoveryListener {
+        void onBoardFound(String name, String address);
+    }
+
+    // Answered on the selector thread; target is null when the lookup failed
+    private interface Lookup {
+        void onResolved(InetSocketAddress target, String error);
+    }
+
+    private static class Connection {
+        final String address;
+        final ConnectionListener listener;
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER);
+        // Kept in fill mode between writes
+        final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER);
+        // Lines that didn't fit while the board was slow to read
+        final ArrayDeque<String> backlog = new ArrayDeque<>();
+        final StringBuilder partial = new StringBuilder(256);
+        SocketChannel channel;
+        SelectionKey key;
+        long connectStartedAt;
+        volatile boolean connected = false;
+
+        Connection(String address, ConnectionListener listener) {
+            this.address = address;
+            this.listener = listener;
+        }
+    }
+
+    private static LanLink shared;
+
+    private final TimeSource clock;
+    private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    // Resolved datagram targets, selector thread only
+    private final Map<String, InetSocketAddress> targets = new HashMap<>();
+    private final ByteBuffer datagramBuffer = ByteBuffer.allocateDirect(DATAGRAM_BUFFER);
+    private final StringBuilder datagramText = new StringBuilder(DATAGRAM_BUFFER);
+
+    private Selector selector;
+    private DatagramChannel datagrams;
+    private Thread thread;
+    private ExecutorService lookups;
+    private volatile boolean running = false;
+    private DiscoveryListener discoveryListener;
+
+    private volatile long bytesSent = 0;
+    private volatile long bytesReceived = 0;
+    private volatile int datagramsSent = 0;
+
+    public LanLink(TimeSource clock) {
+        this.clock = clock;
+    }
+
+    // The one selector every part of the app shares
+    public static synchronized LanLink shared() {
+        if (shared == null) {
+            shared = new LanLink(TimeSource.SYSTEM);
+        }
+        return shared;
+    }
+
+    public static boolean isAddress(String address) {
+        Matcher matcher = ADDRESS.matcher(address == null ? "" : address);
+        return matcher.matches() && Integer.parseInt(matcher.group(2)) <= 0xFFFF;
+    }
+
+    private synchronized void ensureStarted() throws IOException {
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        datagrams = DatagramChannel.open();
+        datagrams.configureBlocking(false);
+        datagrams.setOption(StandardSocketOptions.SO_BROADCAST, true);
+        datagrams.bind(null);
+        datagrams.register(selector, SelectionKey.OP_READ);
+        // Threads come and go with the lookups, so one that hangs waits alone
+        lookups = Executors.newCachedThreadPool(task -> {
+            Thread lookup = new Thread(task, "LanLink lookup");
+            lookup.setDaemon(true);
+            return lookup;
+        });
+        running = true;
+        thread = new Thread(this::runLoop, "LanLink");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void post(Runnable task) {
+        pending.add(task);
+        selector.wakeup();
+    }
+
+    public void connect(String address, ConnectionListener listener) {
+        try {
+            ensureStarted();
+        } catch (IOException e) {
+            listener.onClosed("network unavailable: " + e.getMessage());
+            return;
+        }
+        post(() -> open(address, listener));
+    }
+
+    // Newline-separated, in one write when the buffer has room
+    public void send(String address, List<String> commands) {
+        if (running) {
+            post(() -> queue(address, commands));
+        }
+    }
+
+    // Fire and forget: no retry, no ordering with the TCP stream
+    public void sendDatagram(String address, List<String> commands) {
+        try {
+            ensureStarted();
+        } catch (IOException e) {
+            return;
+        }
+        post(() -> writeDatagram(address, commands));
+    }
+
+    // Closed from this side: the listener isn't called
+    public void close(String address) {
+        if (running) {
+            post(() -> {
+                Connection connection = connections.get(address);
+                if (connection != null) {
+                    closeConnection(connection, null);
+                }
+            });
+        }
+    }
+
+    // Probes the local network; answers keep arriving until the next discover
+    public void discover(DiscoveryListener listener) {
+        discover(new InetSocketAddress("255.255.255.255", DISCOVERY_PORT), listener);
+    }
+
+    public void discover(InetSocketAddress target, DiscoveryListener listener) {
+        try {
+            ensureStarted();
+        } catch (IOException e) {
+            return;
+        }
+        post(() -> {
+            discoveryListener = listener;
+            sendDatagram(target, DISCOVERY_PROBE);
+        });
+    }
+
+    public void stopDiscovery() {
+        if (running) {
+            post(() -> discoveryListener = null);
+        }
+    }
+
+    public boolean isConnected(String address) {
+        Connection connection = connections.get(address);
+        return connection != null && connection.connected;
+    }
+
+    public void shutdown() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+        lookups.shutdownNow();
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* ===== Selector thread ===== */
+
+    private void runLoop() {
+        while (running) {
+            try {
+                selector.select(SELECT_TIMEOUT_MS);
+            } catch (IOException e) {
+                break;
+            }
+            Runnable task;
+            while ((task = pending.poll()) != null) {
+                task.run();
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.channel() == datagrams) {
+                    receiveDatagrams();
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                if (key.isConnectable()) {
+                    finishConnect(connection);
+                } else {
+                    if (key.isReadable()) {
+                        read(connection);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(connection);
+                    }
+                }
+            }
+            checkConnectTimeouts();
+        }
+        for (Connection connection : connections.values()) {
+            closeConnection(connection, null);
+        }
+        closeQuietly(datagrams);
+        closeQuietly(selector);
+    }
+
+    private void open(String address, ConnectionListener listener) {
+        Connection previous = connections.get(address);
+        if (previous != null) {
+            closeConnection(previous, null);
+        }
+        // In the map from the start so sends made meanwhile queue up, and
+        // timed from the start so a lookup that hangs counts against the connect
+        Connection connection = new Connection(address, listener);
+        connection.connectStartedAt = clock.currentTimeMillis();
+        connections.put(address, connection);
+        lookUp(address, (target, error) -> {
+            if (connections.get(address) != connection) {
+                return;
+            }
+            if (target == null) {
+                closeConnection(connection, error);
+            } else {
+                startConnect(connection, target);
+            }
+        });
+    }
+
+    private void startConnect(Connection connection, InetSocketAddress target) {
+        try {
+            connection.channel = SocketChannel.open();
+            connection.channel.configureBlocking(false);
+            // Commands are a few bytes each; Nagle would hold them back
+            connection.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            boolean done = connection.channel.connect(target);
+            connection.key = connection.channel.register(selector,
+                    done ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, connection);
+            if (done) {
+                onConnected(connection);
+            }
+        } catch (IOException e) {
+            closeConnection(connection, describe(e));
+        }
+    }
+
+    private void finishConnect(Connection connection) {
+        try {
+            if (connection.channel.finishConnect()) {
+                connection.key.interestOps(SelectionKey.OP_READ);
+                onConnected(connection);
+            }
+        } catch (IOException e) {
+            closeConnection(connection, describe(e));
+        }
+    }
+
+    private void onConnected(Connection connection) {
+        connection.connected = true;
+        connection.listener.onConnected();
+        // Anything sent while the connect was in flight
+        flush(connection);
+    }
+
+    private void checkConnectTimeouts() {
+        long now = clock.currentTimeMillis();
+        for (Connection connection : connections.values()) {
+            if (!connection.connected && now - connection.connectStartedAt > CONNECT_TIMEOUT_MS) {
+                closeConnection(connection, "connection timed out");
+            }
+        }
+    }
+
+    private void queue(String address, List<String> commands) {
+        Connection connection = connections.get(address);
+        if (connection == null) {
+            return;
+        }
+        for (String command : commands) {
+            if (!connection.backlog.isEmpty() || !put(connection.writeBuffer, command)) {
+                connection.backlog.add(command);
+            }
+        }
+        if (connection.connected) {
+            flush(connection);
+        }
+    }
+
+    // The line and its newline, or nothing when it doesn't fit
+    private static boolean put(ByteBuffer buffer, String line) {
+        if (line.length() + 1 > buffer.remaining()) {
+            return false;
+        }
+        for (int i = 0; i < line.length(); i++) {
+            buffer.put((byte) line.charAt(i));
+        }
+        buffer.put((byte) '\n');
+        return true;
+    }
+
+    private void flush(Connection connection) {
+        ByteBuffer buffer = connection.writeBuffer;
+        try {
+            while (true) {
+                buffer.flip();
+                int written = connection.channel.write(buffer);
+                bytesSent += written;
+                buffer.compact();
+                while (!connection.backlog.isEmpty() && put(buffer, connection.backlog.peek())) {
+                    connection.backlog.poll();
+                }
+                if (buffer.position() == 0 || written == 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            closeConnection(connection, describe(e));
+            return;
+        }
+        // Wait for room in the socket only while something is left to write
+        connection.key.interestOps(buffer.position() > 0
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private void read(Connection connection) {
+        ByteBuffer buffer = connection.readBuffer;
+        int count;
+        try {
+            count = connection.channel.read(buffer);
+        } catch (IOException e) {
+            closeConnection(connection, describe(e));
+            return;
+        }
+        if (count < 0) {
+            closeConnection(connection, "board closed the connection");
+            return;
+        }
+        bytesReceived += count;
+        buffer.flip();
+        StringBuilder partial = connection.partial;
+        while (buffer.hasRemaining()) {
+            partial.append((char) (buffer.get() & 0xFF));
+        }
+        buffer.clear();
+
+        int end = partial.lastIndexOf("\n");
+        if (end < 0 && partial.length() < MAX_PARTIAL_LINE) {
+            return;
+        }
+        end = end < 0 ? partial.length() - 1 : end;
+        String text = partial.substring(0, end + 1);
+        partial.delete(0, end + 1);
+        connection.listener.onReceived(text);
+    }
+
+    // reason is null when the close came from this side
+    private void closeConnection(Connection connection, String reason) {
+        if (!connections.remove(connection.address, connection)) {
+            return;
+        }
+        connection.connected = false;
+        closeQuietly(connection.channel);
+        if (reason != null) {
+            connection.listener.onClosed(reason);
+        }
+    }
+
+    private void writeDatagram(String address, List<String> commands) {
+        String text = String.join("\n", commands);
+        InetSocketAddress target = targets.get(address);
+        if (target != null) {
+            sendDatagram(target, text);
+            return;
+        }
+        lookUp(address, (resolved, error) -> {
+            if (resolved != null) {
+                targets.put(address, resolved);
+                sendDatagram(resolved, text);
+            }
+        });
+    }
+
+    private void sendDatagram(SocketAddress target, String text) {
+        ByteBuffer buffer = datagramBuffer;
+        buffer.clear();
+        int length = Math.min(text.length(), buffer.capacity() - 1);
+        for (int i = 0; i < length; i++) {
+            buffer.put((byte) text.charAt(i));
+        }
+        buffer.put((byte) '\n');
+        buffer.flip();
+        try {
+            datagrams.send(buffer, target);
+            datagramsSent++;
+            bytesSent += length + 1;
+        } catch (IOException ignored) {
+            // Fire and forget: a datagram that can't go is a datagram lost
+        }
+    }
+
+    private void receiveDatagrams() {
+        while (true) {
+            ByteBuffer buffer = datagramBuffer;
+            buffer.clear();
+            SocketAddress source;
+            try {
+                source = datagrams.receive(buffer);
+            } catch (IOException e) {
+                return;
+            }
+            if (source == null) {
+                return;
+            }
+            buffer.flip();
+            bytesReceived += buffer.remaining();
+            datagramText.setLength(0);
+            while (buffer.hasRemaining()) {
+                datagramText.append((char) (buffer.get() & 0xFF));
+            }
+            onDatagram(datagramText.toString().trim(), (InetSocketAddress) source);
+        }
+    }
+
+    // "OSSC <tcp port> <name>"
+    private void onDatagram(String text, InetSocketAddress source) {
+        if (discoveryListener == null || !text.startsWith(DISCOVERY_REPLY)) {
+            return;
+        }
+        String[] fields = text.substring(DISCOVERY_REPLY.length()).split(" ", 2);
+        try {
+            int port = Integer.parseInt(fields[0]);
+            String name = fields.length > 1 ? fields[1].trim() : "";
+            String address = source.getAddress().getHostAddress() + ":" + port;
+            discoveryListener.onBoardFound(name.isEmpty() ? address : name, address);
+        } catch (NumberFormatException ignored) {
+            // Something else that answers on the discovery port
+        }
+    }
+
+    // The lookup blocks for as long as DNS takes, so it runs on a lookup
+    // thread; the answer comes back through the selector queue
+    private void lookUp(String address, Lookup callback) {
+        Matcher matcher = ADDRESS.matcher(address);
+        if (!matcher.matches() || !isAddress(address)) {
+            callback.onResolved(null, "not a host:port address: " + address);
+            return;
+        }
+        String host = matcher.group(1);
+        int port = Integer.parseInt(matcher.group(2));
+        try {
+            lookups.execute(() -> {
+                InetSocketAddress target = new InetSocketAddress(host, port);
+                if (running) {
+                    post(() -> callback.onResolved(target.isUnresolved() ? null : target,
+                            target.isUnresolved() ? "unknown host " + host : null));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+
+    private static String describe(Exception e) {
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // Already gone
+        }
+    }
+
+    public int getOpenConnections() {
+        int open = 0;
+        for (Connection connection : connections.values()) {
+            if (connection.connected) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public String getSummary() {
+        return String.format(Locale.US, "%d boards, %d bytes out, %d in, %d datagrams",
+                getOpenConnections(), bytesSent, bytesReceived, datagramsSent);
+    }
+}
@@ -0,0 +1,124 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+// The controller link to a board on the LAN, over a LanLink connection.
+// Wi-Fi stays up whether or not commands flow, so unlike the Bluetooth link
+// there is no idle suspension: touch() has nothing to reopen. LanLink calls
+// back on its selector thread; callbacks are handed to the executor, the
+// main thread in the app.
+public class LanTransport implements ControllerLink {
+
+    private final LanLink lanLink;
+    private final Executor callbacks;
+    private final ControllerLink.Listener listener;
+
+    private volatile String address = "";
+    private volatile String connectedMac = "";
+    private volatile String connectedDeviceName = "";
+    // Bumped for every connect so callbacks from a connection we closed are ignored
+    private volatile int connectionId = 0;
+
+    public LanTransport(LanLink lanLink, Executor callbacks, ControllerLink.Listener listener) {
+        this.lanLink = lanLink;
+        this.callbacks = callbacks;
+        this.listener = listener;
+    }
+
+    @Override
+    public void connectToDevice(String name, String mac) {
+        int id = ++connectionId;
+        if (!address.isEmpty() && !address.equals(mac)) {
+            lanLink.close(address);
+        }
+        address = mac;
+        lanLink.connect(mac, new LanLink.ConnectionListener() {
+            @Override
+            public void onConnected() {
+                callbacks.execute(() -> onLinkConnected(id, name, mac));
+            }
+
+            @Override
+            public void onReceived(String text) {
+                callbacks.execute(() -> onLinkReceived(id, text));
+            }
+
+            @Override
+            public void onClosed(String reason) {
+                callbacks.execute(() -> onLinkClosed(id, reason));
+            }
+        });
+    }
+
+    private void onLinkConnected(int id, String name, String mac) {
+        if (id != connectionId) {
+            return;
+        }
+        connectedMac = mac;
+        connectedDeviceName = name;
+        listener.onConnected(name, mac);
+    }
+
+    private void onLinkReceived(int id, String text) {
+        if (id == connectionId) {
+            listener.onMessageReceived(text);
+        }
+    }
+
+    private void onLinkClosed(int id, String reason) {
+        if (id != connectionId) {
+            return;
+        }
+        connectedMac = "";
+        connectedDeviceName = "";
+        listener.onConnectionError(reason);
+    }
+
+    @Override
+    public void sendCommand(String command) {
+        sendCommands(Collections.singletonList(command));
+    }
+
+    // Newline-separated in one write, as the Bluetooth link sends them
+    @Override
+    public void sendCommands(List<String> commands) {
+        if (connectedMac.isEmpty() || commands.isEmpty()) {
+            return;
+        }
+        lanLink.send(connectedMac, commands);
+    }
+
+    @Override
+    public void touch() {
+        // Never suspended
+    }
+
+    @Override
+    public void disconnect() {
+        connectionId++;
+        if (!address.isEmpty()) {
+            lanLink.close(address);
+        }
+        address = "";
+        connectedMac = "";
+        connectedDeviceName = "";
+        listener.onDisconnected();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return !connectedMac.isEmpty();
+    }
+
+    @Override
+    public String getConnectedDeviceName() {
+        return connectedDeviceName;
+    }
+
+    @Override
+    public String getConnectedMac() {
+        return connectedMac;
+    }
+}
@@ -0,0 +1,98 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Tap-to-relay latency per entry point. A toggle is started with the time of
+// the user's tap and completed when the board confirms the switch state, so
+// the QS tile / widget path can be compared with going through the app.
+public class LatencyTracker {
+
+    public static final String PATH_APP = "app";
+    public static final String PATH_TILE = "tile";
+    public static final String PATH_WIDGET = "widget";
+
+    private static final int MAX_SAMPLES = 50;
+
+    private static class Pending {
+        final String path;
+        final long startMs;
+
+        Pending(String path, long startMs) {
+            this.path = path;
+            this.startMs = startMs;
+        }
+    }
+
+    private final Map<Integer, Pending> pending = new HashMap<>();
+    private final Map<String, List<Long>> samples = new LinkedHashMap<>();
+
+    public void start(int switchIndex, String path, long tapTimeMs) {
+        pending.put(switchIndex, new Pending(path, tapTimeMs));
+    }
+
+    // Returns the tap-to-relay time in ms, or -1 if nothing was waiting on this switch
+    public long complete(int switchIndex, long nowMs) {
+        Pending started = pending.remove(switchIndex);
+        if (started == null) {
+            return -1;
+        }
+
+        long latency = Math.max(0, nowMs - started.startMs);
+        List<Long> pathSamples = samples.get(started.path);
+        if (pathSamples == null) {
+            pathSamples = new ArrayList<>();
+            samples.put(started.path, pathSamples);
+        }
+        pathSamples.add(latency);
+        if (pathSamples.size() > MAX_SAMPLES) {
+            pathSamples.remove(0);
+        }
+        return latency;
+    }
+
+    // Drop toggles that will never be confirmed (link lost)
+    public void clearPending() {
+        pending.clear();
+    }
+
+    public String getPendingPath(int switchIndex) {
+        Pending started = pending.get(switchIndex);
+        return started != null ? started.path : null;
+    }
+
+    public int getCount(String path) {
+        List<Long> pathSamples = samples.get(path);
+        return pathSamples != null ? pathSamples.size() : 0;
+    }
+
+    // Nearest-rank percentile, -1 when there are no samples
+    public long getPercentile(String path, int percentile) {
+        List<Long> pathSamples = samples.get(path);
+        if (pathSamples == null || pathSamples.isEmpty()) {
+            return -1;
+        }
+
+        List<Long> sorted = new ArrayList<>(pathSamples);
+        Collections.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, rank - 1)));
+    }
+
+    // e.g. "tile p50 180 ms (n=4) | app p50 2100 ms (n=2)"
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        for (String path : samples.keySet()) {
+            if (summary.length() > 0) {
+                summary.append(" | ");
+            }
+            summary.append(path).append(" p50 ").append(getPercentile(path, 50))
+                    .append(" ms (n=").append(getCount(path)).append(")");
+        }
+        return summary.toString();
+    }
+}
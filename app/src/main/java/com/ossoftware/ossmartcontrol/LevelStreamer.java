@@ -0,0 +1,183 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// Streams dimmer levels while a slider is dragged. Each event only overwrites
+// the latest command for its channel; a frame with every changed channel goes
+// out once the board has echoed the previous one (or it timed out), so at most
+// one frame is ever on the link and the last level set is the last one sent.
+// The echo round trip is tracked as the link rate and sets the timeout.
+public class LevelStreamer {
+
+    // Floor between frames, even on a link that echoes instantly
+    static final long MIN_INTERVAL_MS = 20;
+    static final long INITIAL_RTT_MS = 100;
+    static final long MAX_TIMEOUT_MS = 500;
+    private static final int TIMEOUT_RTTS = 3;
+    private static final double RTT_GAIN = 0.25;
+
+    private final CommandTransport transport;
+    private final TimeSource clock;
+    private final Scheduler scheduler;
+
+    // Latest unsent command per channel, in first-changed order
+    private final Map<Integer, String> pending = new LinkedHashMap<>();
+    private final Set<Integer> inFlightChannels = new HashSet<>();
+    private final Runnable sendTask = this::sendPending;
+    private final Runnable timeoutTask = this::onTimeout;
+
+    private boolean inFlight = false;
+    private boolean sendScheduled = false;
+    private int awaitingReplies = 0;
+    private long sentAt = 0;
+    private long lastSendAt = Long.MIN_VALUE / 2;
+    private double rttMs = INITIAL_RTT_MS;
+
+    private int framesSent = 0;
+    private int levelsConflated = 0;
+    private int timeouts = 0;
+    private int maxQueueDepth = 0;
+
+    public LevelStreamer(CommandTransport transport, TimeSource clock, Scheduler scheduler) {
+        this.transport = transport;
+        this.clock = clock;
+        this.scheduler = scheduler;
+    }
+
+    // Queue a level command for a channel, replacing any unsent one
+    public void submit(int channel, String command) {
+        if (pending.put(channel, command) != null) {
+            levelsConflated++;
+        }
+        maxQueueDepth = Math.max(maxQueueDepth, pending.size());
+        if (!inFlight) {
+            scheduleSend();
+        }
+    }
+
+    // One reply line from the board for a level command
+    public void onReply() {
+        if (!inFlight) {
+            return;
+        }
+        awaitingReplies--;
+        if (awaitingReplies > 0) {
+            return;
+        }
+
+        long rtt = clock.currentTimeMillis() - sentAt;
+        rttMs += RTT_GAIN * (rtt - rttMs);
+        scheduler.cancel(timeoutTask);
+        finishFrame();
+    }
+
+    // Drop everything unsent, e.g. when the link goes down
+    public void reset() {
+        scheduler.cancel(sendTask);
+        scheduler.cancel(timeoutTask);
+        pending.clear();
+        inFlightChannels.clear();
+        inFlight = false;
+        sendScheduled = false;
+        awaitingReplies = 0;
+    }
+
+    // True while a channel has a level queued or on the link; device echoes
+    // for it are stale until then
+    public boolean isStreaming(int channel) {
+        return pending.containsKey(channel) || inFlightChannels.contains(channel);
+    }
+
+    public boolean isIdle() {
+        return pending.isEmpty() && !inFlight;
+    }
+
+    private void scheduleSend() {
+        if (sendScheduled || pending.isEmpty()) {
+            return;
+        }
+        long wait = lastSendAt + MIN_INTERVAL_MS - clock.currentTimeMillis();
+        if (wait <= 0) {
+            sendPending();
+        } else {
+            sendScheduled = true;
+            scheduler.postDelayed(sendTask, wait);
+        }
+    }
+
+    private void sendPending() {
+        sendScheduled = false;
+        if (inFlight || pending.isEmpty()) {
+            return;
+        }
+        if (!transport.isConnected()) {
+            pending.clear();
+            return;
+        }
+
+        List<String> commands = new ArrayList<>(pending.values());
+        inFlightChannels.addAll(pending.keySet());
+        pending.clear();
+        transport.sendCommands(commands);
+
+        inFlight = true;
+        awaitingReplies = commands.size();
+        sentAt = clock.currentTimeMillis();
+        lastSendAt = sentAt;
+        framesSent++;
+        scheduler.postDelayed(timeoutTask, getTimeoutMs());
+    }
+
+    // Firmware without level echoes ends up paced by the timeout
+    private void onTimeout() {
+        if (!inFlight) {
+            return;
+        }
+        timeouts++;
+        finishFrame();
+    }
+
+    private void finishFrame() {
+        inFlight = false;
+        awaitingReplies = 0;
+        inFlightChannels.clear();
+        scheduleSend();
+    }
+
+    long getTimeoutMs() {
+        long timeout = Math.round(rttMs * TIMEOUT_RTTS);
+        return Math.max(MIN_INTERVAL_MS, Math.min(MAX_TIMEOUT_MS, timeout));
+    }
+
+    public long getRttMs() {
+        return Math.round(rttMs);
+    }
+
+    public int getFramesSent() {
+        return framesSent;
+    }
+
+    public int getLevelsConflated() {
+        return levelsConflated;
+    }
+
+    public int getTimeouts() {
+        return timeouts;
+    }
+
+    // Most channels ever waiting at once; never more than one entry per channel
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public String getSummary() {
+        return String.format(Locale.US, "%d frames, %d conflated, rtt %d ms, %d timeouts",
+                framesSent, levelsConflated, getRttMs(), timeouts);
+    }
+}
@@ -0,0 +1,247 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.List;
+import java.util.Locale;
+
+// Notices a link that has stopped carrying data without closing, long before
+// BongoBT gets around to onError. The board answers every line it reads with
+// at least one line (a state, an ack, or "ERROR: Unknown command"), so any
+// write is a heartbeat: if nothing at all comes back within REPLY_TIMEOUT_MS
+// it counts as a miss. When the link has been quiet for an interval a PING
+// goes out; firmware that doesn't know it still answers with an error, which
+// is just as good. One miss marks the link DEGRADED, the configured number in
+// a row DEAD. Anything received makes it HEALTHY again. The time from a
+// write to the first reply is passed on as the link's round trip.
+public class LinkMonitor implements CommandTransport {
+
+    public static final String PING = "PING";
+    public static final String PONG = "PONG";
+
+    static final long DEFAULT_INTERVAL_MS = 3000;
+    static final int DEFAULT_MISSES_TO_DEAD = 3;
+    static final long MIN_INTERVAL_MS = 1000;
+    static final long REPLY_TIMEOUT_MS = 1000;
+
+    public enum Health {
+        HEALTHY, DEGRADED, DEAD
+    }
+
+    public interface Listener {
+        void onHealthChanged(Health health, String reason);
+    }
+
+    // Every write the monitor timed, answered or not
+    public interface RoundTripListener {
+        void onRoundTrip(long rttMs);
+
+        void onNoReply();
+    }
+
+    private final CommandTransport link;
+    private final TimeSource clock;
+    private final Scheduler scheduler;
+    private final Listener listener;
+    private final Runnable idleTask = this::onIdle;
+    private final Runnable replyTimeout = this::onReplyTimeout;
+
+    private RoundTripListener roundTripListener;
+
+    private long intervalMs = DEFAULT_INTERVAL_MS;
+    private int missesToDead = DEFAULT_MISSES_TO_DEAD;
+    private long replyTimeoutMs = REPLY_TIMEOUT_MS;
+
+    private boolean running = false;
+    private boolean awaitingReply = false;
+    // First write since the board was last heard from
+    private long silentSince = 0;
+    private long writtenAt = 0;
+    private int misses = 0;
+    private Health health = Health.HEALTHY;
+
+    private int pings = 0;
+    private long pingBytes = 0;
+    private long bytesOut = 0;
+    private long bytesIn = 0;
+    private long lastDetectionMs = -1;
+
+    public LinkMonitor(CommandTransport link, TimeSource clock, Scheduler scheduler, Listener listener) {
+        this.link = link;
+        this.clock = clock;
+        this.scheduler = scheduler;
+        this.listener = listener;
+    }
+
+    // Takes effect from the next write or idle check
+    public void configure(long intervalMs, int missesToDead) {
+        this.intervalMs = Math.max(MIN_INTERVAL_MS, intervalMs);
+        this.missesToDead = Math.max(1, missesToDead);
+    }
+
+    public void setRoundTripListener(RoundTripListener roundTripListener) {
+        this.roundTripListener = roundTripListener;
+    }
+
+    // A slow link needs longer before silence counts as a miss; never below the default
+    public void setReplyTimeout(long replyTimeoutMs) {
+        this.replyTimeoutMs = Math.max(REPLY_TIMEOUT_MS, replyTimeoutMs);
+    }
+
+    public long getReplyTimeoutMs() {
+        return replyTimeoutMs;
+    }
+
+    // On connect
+    public void start() {
+        stop();
+        running = true;
+        misses = 0;
+        health = Health.HEALTHY;
+        scheduler.postDelayed(idleTask, intervalMs);
+    }
+
+    public void stop() {
+        running = false;
+        awaitingReply = false;
+        scheduler.cancel(idleTask);
+        scheduler.cancel(replyTimeout);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return link.isConnected();
+    }
+
+    @Override
+    public void sendCommand(String command) {
+        bytesOut += command.length() + 1;
+        link.sendCommand(command);
+        onWrite();
+    }
+
+    @Override
+    public void sendCommands(List<String> commands) {
+        for (String command : commands) {
+            bytesOut += command.length() + 1;
+        }
+        link.sendCommands(commands);
+        onWrite();
+    }
+
+    // Anything at all from the board, before it is decoded
+    public void onReceived(String chunk) {
+        bytesIn += chunk.length();
+        if (!running) {
+            return;
+        }
+        if (awaitingReply && roundTripListener != null) {
+            roundTripListener.onRoundTrip(clock.currentTimeMillis() - writtenAt);
+        }
+        awaitingReply = false;
+        misses = 0;
+        scheduler.cancel(replyTimeout);
+        scheduler.cancel(idleTask);
+        scheduler.postDelayed(idleTask, intervalMs);
+        setHealth(Health.HEALTHY, "board answered");
+    }
+
+    private void onWrite() {
+        if (!running || awaitingReply) {
+            // An earlier write is already waiting; don't push its deadline back
+            return;
+        }
+        awaitingReply = true;
+        writtenAt = clock.currentTimeMillis();
+        if (misses == 0) {
+            silentSince = writtenAt;
+        }
+        scheduler.postDelayed(replyTimeout, replyTimeoutMs);
+    }
+
+    private void onIdle() {
+        if (!running) {
+            return;
+        }
+        if (!awaitingReply) {
+            ping();
+        }
+        scheduler.postDelayed(idleTask, intervalMs);
+    }
+
+    private void ping() {
+        pings++;
+        pingBytes += PING.length() + 1;
+        sendCommand(PING);
+    }
+
+    private void onReplyTimeout() {
+        if (!running) {
+            return;
+        }
+        awaitingReply = false;
+        misses++;
+        if (roundTripListener != null) {
+            roundTripListener.onNoReply();
+        }
+        if (misses >= missesToDead) {
+            lastDetectionMs = clock.currentTimeMillis() - silentSince;
+            stop();
+            setHealth(Health.DEAD, misses + " heartbeats unanswered");
+            return;
+        }
+        setHealth(Health.DEGRADED, "no reply in " + replyTimeoutMs + " ms");
+        // Ask again right away rather than waiting out the interval
+        ping();
+    }
+
+    private void setHealth(Health health, String reason) {
+        if (this.health == health) {
+            return;
+        }
+        this.health = health;
+        if (listener != null) {
+            listener.onHealthChanged(health, reason);
+        }
+    }
+
+    public Health getHealth() {
+        return health;
+    }
+
+    public boolean isHealthy() {
+        return health == Health.HEALTHY;
+    }
+
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    public int getMissesToDead() {
+        return missesToDead;
+    }
+
+    public int getPings() {
+        return pings;
+    }
+
+    public long getPingBytes() {
+        return pingBytes;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    // Time from the first unanswered write to DEAD, or -1
+    public long getLastDetectionMs() {
+        return lastDetectionMs;
+    }
+
+    public String getSummary() {
+        return String.format(Locale.US, "%s, %d misses, %d pings, every %d s, dead after %d",
+                health.name().toLowerCase(Locale.US), misses, pings, intervalMs / 1000, missesToDead);
+    }
+}
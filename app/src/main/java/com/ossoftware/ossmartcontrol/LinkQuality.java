@@ -0,0 +1,267 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+// Scores the link from what it has been doing: round trips and unanswered
+// writes seen by LinkMonitor, lines that arrived garbled or failed their CRC,
+// and the signal strength the scan reported where there was one (a connected
+// RFCOMM socket has no RSSI to read). The score picks a level, with some
+// hysteresis so one slow reply doesn't flip it, and the level sets how fast
+// the outbound queue writes and how many commands go in one frame. The retry
+// timeout follows the smoothed round trip the way TCP's does. Everything is
+// a function of the events fed in, so a recorded trace replays exactly.
+public class LinkQuality {
+
+    public enum Level {
+        GOOD, FAIR, POOR
+    }
+
+    public interface Listener {
+        void onLevelChanged(Level level, int score);
+    }
+
+    // Round trip smoothing as in RFC 6298
+    static final double RTT_ALPHA = 0.125;
+    static final double RTT_BETA = 0.25;
+    // Weight of the newest sample in the loss and error rates
+    static final double RATE_ALPHA = 0.1;
+
+    // HC-05 at arm's length answers in ~40 ms; past this it is struggling
+    static final long GOOD_RTT_MS = 80;
+    static final long BAD_RTT_MS = 600;
+    static final int GOOD_RSSI = -60;
+    static final int BAD_RSSI = -90;
+
+    static final int FAIR_BELOW = 70;
+    static final int POOR_BELOW = 40;
+    // Climbing back a level takes this much more than falling did
+    static final int HYSTERESIS = 10;
+
+    static final long MIN_RETRY_MS = ToggleDebouncer.CONFIRM_TIMEOUT_MS;
+    static final long MAX_RETRY_MS = 3000;
+
+    static final int TRACE_LINES = 500;
+
+    private final TimeSource clock;
+    private final Listener listener;
+    private final ArrayDeque<String> trace = new ArrayDeque<>();
+
+    private double srttMs = -1;
+    private double rttVarMs = 0;
+    private double lossRate = 0;
+    private double errorRate = 0;
+    private Integer rssi = null;
+    private Level level = Level.GOOD;
+
+    private int roundTrips = 0;
+    private int noReplies = 0;
+    private int badLines = 0;
+    private int levelChanges = 0;
+
+    public LinkQuality(TimeSource clock, Listener listener) {
+        this.clock = clock;
+        this.listener = listener;
+    }
+
+    // New connection; rssi from the scan that found the board, or null
+    public void reset(Integer rssi) {
+        srttMs = -1;
+        rttVarMs = 0;
+        lossRate = 0;
+        errorRate = 0;
+        this.rssi = rssi;
+        level = Level.GOOD;
+        trace.clear();
+        record("reset", rssi != null ? String.valueOf(rssi) : "-");
+        update();
+    }
+
+    public void onRoundTrip(long rttMs) {
+        roundTrips++;
+        if (srttMs < 0) {
+            srttMs = rttMs;
+            rttVarMs = rttMs / 2.0;
+        } else {
+            rttVarMs = (1 - RTT_BETA) * rttVarMs + RTT_BETA * Math.abs(srttMs - rttMs);
+            srttMs = (1 - RTT_ALPHA) * srttMs + RTT_ALPHA * rttMs;
+        }
+        lossRate *= 1 - RATE_ALPHA;
+        record("rtt", String.valueOf(rttMs));
+        update();
+    }
+
+    // A write the board never answered
+    public void onNoReply() {
+        noReplies++;
+        lossRate = (1 - RATE_ALPHA) * lossRate + RATE_ALPHA;
+        record("noreply", "");
+        update();
+    }
+
+    // Lines received in one chunk, and how many of them were unreadable
+    public void onLines(int lines, int bad) {
+        if (lines <= 0) {
+            return;
+        }
+        badLines += bad;
+        for (int i = 0; i < lines; i++) {
+            errorRate = (1 - RATE_ALPHA) * errorRate + (i < bad ? RATE_ALPHA : 0);
+        }
+        record("lines", lines + " " + bad);
+        update();
+    }
+
+    public void onRssi(int dbm) {
+        rssi = dbm;
+        record("rssi", String.valueOf(dbm));
+        update();
+    }
+
+    // Noise on the serial line shows up as bytes no sketch prints
+    static boolean isGarbled(String line) {
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if ((c < 0x20 && c != '\t') || c > 0x7E) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 0..100; each signal takes off up to its share
+    public int getScore() {
+        double penalty = 0;
+        if (srttMs >= 0) {
+            penalty += 40 * clamp((srttMs - GOOD_RTT_MS) / (BAD_RTT_MS - GOOD_RTT_MS));
+        }
+        // Half the writes going unanswered is as bad as it gets
+        penalty += 40 * clamp(2 * lossRate);
+        penalty += 20 * clamp(4 * errorRate);
+        if (rssi != null) {
+            penalty += 20 * clamp((GOOD_RSSI - rssi) / (double) (GOOD_RSSI - BAD_RSSI));
+        }
+        return (int) Math.round(100 - Math.min(100, penalty));
+    }
+
+    private static double clamp(double value) {
+        return Math.max(0, Math.min(1, value));
+    }
+
+    private void update() {
+        int score = getScore();
+        Level next = level;
+        switch (level) {
+            case GOOD:
+                if (score < POOR_BELOW) {
+                    next = Level.POOR;
+                } else if (score < FAIR_BELOW) {
+                    next = Level.FAIR;
+                }
+                break;
+            case FAIR:
+                if (score < POOR_BELOW) {
+                    next = Level.POOR;
+                } else if (score >= FAIR_BELOW + HYSTERESIS) {
+                    next = Level.GOOD;
+                }
+                break;
+            case POOR:
+                if (score >= FAIR_BELOW + HYSTERESIS) {
+                    next = Level.GOOD;
+                } else if (score >= POOR_BELOW + HYSTERESIS) {
+                    next = Level.FAIR;
+                }
+                break;
+        }
+        if (next != level) {
+            level = next;
+            levelChanges++;
+            if (listener != null) {
+                listener.onLevelChanged(level, score);
+            }
+        }
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    // For the status bar: 4 bars at full score, 1 at none
+    public int getBars() {
+        return 1 + Math.min(3, getScore() * 4 / 101);
+    }
+
+    // Serial pacing: a struggling radio retransmits at the baseband, which
+    // eats into the rate the outbound queue can assume
+    public double getMsPerByte() {
+        switch (level) {
+            case FAIR:
+                return OutboundScheduler.DEFAULT_MS_PER_BYTE * 1.5;
+            case POOR:
+                return OutboundScheduler.DEFAULT_MS_PER_BYTE * 3;
+            default:
+                return OutboundScheduler.DEFAULT_MS_PER_BYTE;
+        }
+    }
+
+    // Commands per frame; a lost frame then takes less with it
+    public int getMaxBatch() {
+        switch (level) {
+            case FAIR:
+                return 4;
+            case POOR:
+                return 1;
+            default:
+                return OutboundScheduler.UNLIMITED_BATCH;
+        }
+    }
+
+    // How long to wait for an echo before resending
+    public long getRetryTimeoutMs() {
+        if (srttMs < 0) {
+            return MIN_RETRY_MS;
+        }
+        long rto = Math.round(srttMs + 4 * rttVarMs);
+        return Math.max(MIN_RETRY_MS, Math.min(MAX_RETRY_MS, rto));
+    }
+
+    public long getSmoothedRttMs() {
+        return Math.round(Math.max(0, srttMs));
+    }
+
+    public double getLossRate() {
+        return lossRate;
+    }
+
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    public Integer getRssi() {
+        return rssi;
+    }
+
+    public int getLevelChanges() {
+        return levelChanges;
+    }
+
+    // What fed the score, one event per line as "<ms> <event> <values>"; the
+    // format LinkQualityTest replays
+    public String getTrace() {
+        return String.join("\n", trace);
+    }
+
+    private void record(String event, String values) {
+        trace.add((clock.currentTimeMillis() + " " + event + " " + values).trim());
+        if (trace.size() > TRACE_LINES) {
+            trace.removeFirst();
+        }
+    }
+
+    public String getSummary() {
+        return String.format(Locale.US, "%s, score %d, rtt %d ms, loss %.0f%%, errors %.0f%%%s, retry after %d ms",
+                level.name().toLowerCase(Locale.US), getScore(), getSmoothedRttMs(), 100 * lossRate,
+                100 * errorRate, rssi != null ? ", rssi " + rssi + " dBm" : "", getRetryTimeoutMs());
+    }
+}
@@ -1,16 +1,28 @@
 package com.ossoftware.ossmartcontrol;
 
 import android.Manifest;
-import android.bluetooth.BluetoothDevice;
+import android.content.ClipData;
+import android.content.ClipboardManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
+import android.location.Location;
+import android.location.LocationManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.Window;
 import android.widget.Button;
 import android.widget.GridView;
+import android.widget.HorizontalScrollView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -23,28 +35,40 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.core.content.pm.ShortcutInfoCompat;
+import androidx.core.content.pm.ShortcutManagerCompat;
+import androidx.core.graphics.drawable.IconCompat;
 
 import com.google.android.material.card.MaterialCardView;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 public class MainActivity extends AppCompatActivity
-        implements BluetoothManager.BluetoothListener,
+        implements ControllerService.ControllerListener,
         DeviceDialogManager.DeviceDialogListener,
         DeviceSettingsDialog.OnDeviceSettingsListener,
         AddSwitchesDialog.OnSwitchesCreatedListener,
         SwitchGridAdapter.OnSwitchClickListener,
+        SceneDialogManager.SceneDialogListener,
+        AutomationDialogManager.AutomationDialogListener,
         VoiceManager.VoiceResultListener {
 
+    // Home-screen scene shortcuts
+    public static final String ACTION_ACTIVATE_SCENE = "com.ossoftware.ossmartcontrol.ACTIVATE_SCENE";
+    public static final String EXTRA_SCENE_ID = "scene_id";
+
     // UI Components
     private TextView txtStatus;
+    private TextView txtSignal;
     private LinearLayout connectionStatus;
     private GridView switchesGrid;
     private TextView txtListeningStatus;
     private MaterialCardView cardStatus;
+    private HorizontalScrollView sceneBarScroll;
+    private LinearLayout sceneBar;
 
     // Logs UI
     private LinearLayout logsContainer;
@@ -53,17 +77,28 @@ public class MainActivity extends AppCompatActivity
     private Button btnClearLogs;
 
     // Managers
-    private BluetoothManager bluetoothManager;
+    private ControllerService controllerService; // Owns the link and switch states
+    private boolean serviceBound = false;
     public LogManager logManager; // Changed to public for VoiceManager access
     private DeviceDialogManager dialogManager;
     private PreferencesManager preferencesManager;
     private VoiceManager voiceManager;
+    private SpokenConfirmations spokenConfirmations; // Null while turned off
+    private SceneDialogManager sceneDialogManager;
+    private AutomationDialogManager automationDialogManager;
 
-    // Device data
-    private Map<String, DeviceModel> devices;
+    // Device data - latest snapshot from the service
     private List<DeviceModel> switchList;
     private SwitchGridAdapter gridAdapter;
 
+    // Scenes
+    private List<SceneModel> scenes = new ArrayList<>();
+    private String pendingSceneId; // From a shortcut, activated once connected
+    private final Handler sceneHandler = new Handler();
+
+    // Automations
+    private List<AutomationRule> automations = new ArrayList<>();
+
     // Current device being edited
     private String currentEditingDeviceId;
 
@@ -71,10 +106,58 @@ public class MainActivity extends AppCompatActivity
     private static final int REQUEST_BLUETOOTH_PERMISSIONS = 100;
     private ActivityResultLauncher<String> requestPermissionLauncher;
 
+    // Time-to-interactive tracking
+    private long createdAt;
+    private boolean recreated;
+    private boolean interactiveLogged = false;
+    // Time from onCreate to the first usable switch; -1 until the service has delivered them
+    private long readyMs = -1;
+    private boolean firstTapPending;
+
+    // Saved scenes/automations are parsed in the background during startup
+    private boolean uiStateLoaded = false;
+    private boolean launchIntentHandled;
+
+    private static class UiState {
+        List<SceneModel> scenes;
+        List<AutomationRule> automations;
+        List<String> automationReports;
+        Map<String, String> voiceCorrections;
+        boolean spokenConfirmations;
+    }
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            controllerService = ((ControllerService.LocalBinder) binder).getService();
+            controllerService.addListener(MainActivity.this);
+            handleLaunchIntent();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            controllerService = null;
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        createdAt = SystemClock.elapsedRealtime();
+        recreated = savedInstanceState != null;
+        firstTapPending = !recreated;
+        // A recreated Activity must not replay the shortcut that launched it
+        launchIntentHandled = recreated;
+        Trace.beginSection("Startup.onCreate");
+
+        // Kick off everything that doesn't need views before inflating:
+        // the service (and a reconnect to the last controller) plus state loading
+        preferencesManager = new PreferencesManager(this);
+        startControllerService();
+        StartupTasks.load("Startup.loadUiState", this::readUiState, this::onUiStateLoaded);
+
 //        EdgeToEdge.enable(this);
+        Trace.beginSection("Startup.inflate");
         setContentView(R.layout.activity_main);
 
         // Setup ActionBar/Toolbar
@@ -85,22 +168,21 @@ public class MainActivity extends AppCompatActivity
         window.setStatusBarColor(ContextCompat.getColor(this, R.color.success));
 
         initializeViews();
+        Trace.endSection();
 
         // Initialize permission launcher
         initializePermissionLauncher();
 
         // Initialize managers
-        bluetoothManager = new BluetoothManager(this, this);
         logManager = new LogManager(this, logsContainer, txtEmptyLogs, txtLogStats);
         dialogManager = new DeviceDialogManager(this, this);
+        sceneDialogManager = new SceneDialogManager(this, this);
+        automationDialogManager = new AutomationDialogManager(this, this);
 
-        // Initialize voice manager
+        // Initialize voice manager (its command parser is built on first use)
         voiceManager = new VoiceManager(this, txtListeningStatus, cardStatus);
         voiceManager.setVoiceResultListener(this);
 
-        // Initialize preferences manager
-        preferencesManager = new PreferencesManager(this);
-        devices = preferencesManager.loadDevices();
         switchList = new ArrayList<>();
 
         // Initialize grid adapter
@@ -108,10 +190,82 @@ public class MainActivity extends AppCompatActivity
         switchesGrid.setAdapter(gridAdapter);
 
         setupButtonListeners();
-        loadSwitchesFromPreferences();
 
         // Check Bluetooth permissions
         checkBluetoothPermissions();
+        Trace.endSection();
+    }
+
+    private void startControllerService() {
+        // The service keeps the link across rotation and backgrounding. On a
+        // cold start it also reconnects to the last controller straight away.
+        Intent serviceIntent = new Intent(this, ControllerService.class);
+        if (!recreated) {
+            serviceIntent.setAction(ControllerService.ACTION_RECONNECT);
+        }
+        startService(serviceIntent);
+        bindService(new Intent(this, ControllerService.class), serviceConnection, Context.BIND_AUTO_CREATE);
+        serviceBound = true;
+    }
+
+    // Runs on a startup thread
+    private UiState readUiState() {
+        UiState state = new UiState();
+        state.scenes = preferencesManager.loadScenes();
+        state.automations = preferencesManager.loadAutomations();
+        state.automationReports = preferencesManager.takeAutomationReports();
+        state.voiceCorrections = preferencesManager.loadVoiceCorrections();
+        state.spokenConfirmations = preferencesManager.isSpokenConfirmationsEnabled();
+        return state;
+    }
+
+    private void onUiStateLoaded(UiState state) {
+        if (isDestroyed()) {
+            return;
+        }
+
+        scenes = state.scenes;
+        automations = state.automations;
+        uiStateLoaded = true;
+
+        voiceManager.setScenes(scenes);
+        voiceManager.setCorrections(state.voiceCorrections);
+        setSpokenConfirmationsEnabled(state.spokenConfirmations);
+        refreshSceneBar();
+
+        // Show what ran in the background
+        for (String report : state.automationReports) {
+            logManager.addLog(report, LogManager.LogType.INFO, "");
+        }
+        handleLaunchIntent();
+    }
+
+    // Shortcuts need both the service and the saved scenes, whichever arrives last
+    private void handleLaunchIntent() {
+        if (controllerService != null && uiStateLoaded && !launchIntentHandled) {
+            launchIntentHandled = true;
+            handleSceneIntent(getIntent());
+        }
+    }
+
+    @Override
+    protected void onNewIntent(Intent intent) {
+        super.onNewIntent(intent);
+        if (!uiStateLoaded) {
+            // Scenes are still loading; picked up by handleLaunchIntent()
+            setIntent(intent);
+            launchIntentHandled = false;
+            return;
+        }
+        handleSceneIntent(intent);
+    }
+
+    private boolean isConnected() {
+        return controllerService != null && controllerService.isConnected();
+    }
+
+    private String getConnectedDeviceName() {
+        return controllerService != null ? controllerService.getConnectedDeviceName() : "";
     }
 
     private void initializePermissionLauncher() {
@@ -130,7 +284,7 @@ public class MainActivity extends AppCompatActivity
     }
 
     private void startVoiceRecognition() {
-        if (!bluetoothManager.isConnected()) {
+        if (!isConnected()) {
             showSafeToast("Please connect to a Bluetooth device first");
             return;
         }
@@ -146,8 +300,38 @@ public class MainActivity extends AppCompatActivity
 
         MenuItem connectBluetooth = menu.add("Connect Device");
         MenuItem editSwitch = menu.add("Edit Switches");
+        MenuItem scenesItem = menu.add("Scenes");
+        MenuItem automationsItem = menu.add("Automations");
+        automationsItem.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
+        MenuItem boardItem = menu.add("Run Automations on Board");
+        boardItem.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
+        boardItem.setCheckable(true);
+        boardItem.setChecked(preferencesManager.isBoardAutomationsEnabled());
         MenuItem voiceHelp = menu.add("Voice Commands");
         voiceHelp.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
+        MenuItem handsFreeItem = menu.add("Hands-free Listening");
+        handsFreeItem.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
+        handsFreeItem.setCheckable(true);
+        handsFreeItem.setChecked(voiceManager.isHandsFree());
+        MenuItem offlineItem = menu.add("Queue While Offline");
+        offlineItem.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
+        offlineItem.setCheckable(true);
+        offlineItem.setChecked(controllerService != null && controllerService.isOfflineBuffering());
+        MenuItem binaryItem = menu.add("Compact Binary Link");
+        binaryItem.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
+        binaryItem.setCheckable(true);
+        binaryItem.setChecked(controllerService != null && controllerService.isBinaryFraming());
+        MenuItem idleItem = menu.add("Close Idle Link");
+        idleItem.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
+        MenuItem heartbeatItem = menu.add("Link Heartbeat");
+        heartbeatItem.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
+        MenuItem qualityItem = menu.add("Link Quality");
+        qualityItem.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
+        MenuItem spokenItem = menu.add("Spoken Confirmations");
+        spokenItem.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
+        spokenItem.setCheckable(true);
+        spokenItem.setChecked(spokenConfirmations != null);
+        scenesItem.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
         editSwitch.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
         connectBluetooth.setShowAsAction(MenuItem.SHOW_AS_ACTION_NEVER);
 
@@ -159,10 +343,76 @@ public class MainActivity extends AppCompatActivity
             showAddSwitchesDialog();
             return true;
         });
+        scenesItem.setOnMenuItemClickListener(item -> {
+            sceneDialogManager.showScenesDialog(scenes);
+            return true;
+        });
+        automationsItem.setOnMenuItemClickListener(item -> {
+            automationDialogManager.showAutomationsDialog(automations, scenes,
+                    AutomationAlarms.createScheduler(preferencesManager));
+            return true;
+        });
+        boardItem.setOnMenuItemClickListener(item -> {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            if (controllerService != null) {
+                controllerService.setBoardAutomations(enabled);
+            } else {
+                preferencesManager.setBoardAutomationsEnabled(enabled);
+            }
+            showSafeToast(enabled ? "Automations go to the board on the next connection if its firmware can run them"
+                    : "Automations run from the phone");
+            return true;
+        });
         voiceHelp.setOnMenuItemClickListener(item -> {
             showVoiceCommandsHelp();
             return true;
         });
+        handsFreeItem.setOnMenuItemClickListener(item -> {
+            toggleHandsFree(item);
+            return true;
+        });
+        offlineItem.setOnMenuItemClickListener(item -> {
+            if (controllerService == null) {
+                return true;
+            }
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            controllerService.setOfflineBuffering(enabled);
+            showSafeToast(enabled ? "Changes made while disconnected are sent on reconnect"
+                    : "Offline queue off");
+            return true;
+        });
+        binaryItem.setOnMenuItemClickListener(item -> {
+            if (controllerService == null) {
+                return true;
+            }
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            controllerService.setBinaryFraming(enabled);
+            showSafeToast(enabled ? "Binary frames are used if the board supports them"
+                    : "Text commands only");
+            return true;
+        });
+        idleItem.setOnMenuItemClickListener(item -> {
+            showIdleTimeoutDialog();
+            return true;
+        });
+        heartbeatItem.setOnMenuItemClickListener(item -> {
+            showHeartbeatDialog();
+            return true;
+        });
+        qualityItem.setOnMenuItemClickListener(item -> {
+            showLinkQualityDialog();
+            return true;
+        });
+        spokenItem.setOnMenuItemClickListener(item -> {
+            boolean enabled = !item.isChecked();
+            item.setChecked(enabled);
+            preferencesManager.setSpokenConfirmationsEnabled(enabled);
+            setSpokenConfirmationsEnabled(enabled);
+            return true;
+        });
 
         return true;
     }
@@ -182,13 +432,25 @@ public class MainActivity extends AppCompatActivity
     private void initializeViews() {
         // Main controls
         txtStatus = findViewById(R.id.txtStatus);
+        txtSignal = findViewById(R.id.txtSignal);
         connectionStatus = findViewById(R.id.connectionStatus);
         switchesGrid = findViewById(R.id.switchesGrid);
+        // A finger landing on the grid comes ~100 ms before the click
+        switchesGrid.setOnTouchListener((view, event) -> {
+            if (event.getActionMasked() == MotionEvent.ACTION_DOWN && controllerService != null) {
+                controllerService.prewarm();
+            }
+            return false;
+        });
 
         // Voice control views
         cardStatus = findViewById(R.id.cardStatus);
         txtListeningStatus = findViewById(R.id.txtListeningStatus);
 
+        // Scenes bar
+        sceneBarScroll = findViewById(R.id.sceneBarScroll);
+        sceneBar = findViewById(R.id.sceneBar);
+
         // Logs
         logsContainer = findViewById(R.id.logsContainer);
         txtEmptyLogs = findViewById(R.id.txtEmptyLogs);
@@ -208,7 +470,7 @@ public class MainActivity extends AppCompatActivity
 
     // Voice control methods
     private void toggleVoiceControl() {
-        if (!bluetoothManager.isConnected()) {
+        if (!isConnected()) {
             showSafeToast("Please connect to a Bluetooth device first");
             return;
         }
@@ -222,13 +484,57 @@ public class MainActivity extends AppCompatActivity
         startVoiceRecognition();
     }
 
+    // Listen for speech onset instead of waiting for a mic tap
+    private void toggleHandsFree(MenuItem item) {
+        if (item.isChecked()) {
+            voiceManager.setHandsFree(false);
+            item.setChecked(false);
+            logManager.addLog("Hands-free listening off", LogManager.LogType.INFO, "");
+            return;
+        }
+        if (!checkVoicePermissions()) {
+            showSafeToast("Allow microphone access, then turn on hands-free listening");
+            requestVoicePermissions();
+            return;
+        }
+        if (voiceManager.setHandsFree(true)) {
+            item.setChecked(true);
+            showSafeToast("Listening for speech");
+            logManager.addLog("Hands-free listening on", LogManager.LogType.INFO, "");
+        } else {
+            showSafeToast("Microphone unavailable");
+        }
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        voiceManager.resumeHandsFree();
+        // Likely about to tap something; reopen an idle link now
+        if (controllerService != null) {
+            controllerService.prewarm();
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        voiceManager.pauseHandsFree();
+        super.onStop();
+    }
+
     // Handle voice command results
     @Override
     public void onVoiceCommandRecognized(String command) {
         runOnUiThread(() -> {
             if (command.equals("UNKNOWN_COMMAND")) {
-                showSafeToast("Command not recognized. Try 'Turn on light one' or 'All lights off'");
                 logManager.addLog("Voice: Unknown command", LogManager.LogType.INFO, "");
+                confirmAloud(ConfirmationPhrases.NOT_RECOGNIZED);
+                String spokenText = voiceManager.getLastSpokenText();
+                if (spokenText != null) {
+                    showTeachVoiceCommandDialog(spokenText);
+                } else {
+                    showSafeToast("Command not recognized. Try 'Turn on light one' or 'All lights off'");
+                }
                 return;
             }
 
@@ -239,6 +545,44 @@ public class MainActivity extends AppCompatActivity
         });
     }
 
+    @Override
+    public void onVoiceCommandNeedsConfirmation(String spokenText, SwitchGrammar.FuzzyMatch match) {
+        runOnUiThread(() -> {
+            logManager.addLog("Voice: \"" + spokenText + "\" might be \"" + match.getCorrectedText() + "\"",
+                    LogManager.LogType.INFO, "");
+
+            new androidx.appcompat.app.AlertDialog.Builder(this)
+                    .setTitle("Did you mean?")
+                    .setMessage("\"" + match.getCorrectedText() + "\"")
+                    .setPositiveButton("Yes", (dialog, which) -> {
+                        logManager.addLog("Voice command: " + match.getCommand(), LogManager.LogType.SENT, "");
+                        processVoiceCommand(match.getCommand());
+                    })
+                    .setNegativeButton("No", null)
+                    .show();
+        });
+    }
+
+    @Override
+    public void onVoiceIntentsRecognized(List<VoiceIntent> intents) {
+        runOnUiThread(() -> {
+            if (!isConnected()) {
+                showSafeToast("Not connected to Bluetooth device");
+                confirmAloud(ConfirmationPhrases.NOT_CONNECTED);
+                return;
+            }
+
+            // One ad-hoc scene, so all targets go out in a single write
+            int commandCount = runScene(VoiceIntent.toScene(intents, switchList));
+            confirmAloud(ConfirmationPhrases.DONE);
+            logManager.addLog("Voice command: " + intents + " (" + commandCount + " commands)",
+                    LogManager.LogType.SENT, getConnectedDeviceName());
+            if (commandCount == 0) {
+                showSafeToast("Switches are already set");
+            }
+        });
+    }
+
     @Override
     public void onVoiceError(String error) {
         runOnUiThread(() -> {
@@ -247,9 +591,42 @@ public class MainActivity extends AppCompatActivity
         });
     }
 
+    // Let the user say what an utterance meant; it is answered from then on
+    private void showTeachVoiceCommandDialog(String spokenText) {
+        List<String> labels = new ArrayList<>();
+        List<String> commands = new ArrayList<>();
+        for (DeviceModel device : switchList) {
+            labels.add(device.getName() + " on");
+            commands.add("LIGHT" + device.getIndex() + "_ON");
+            labels.add(device.getName() + " off");
+            commands.add("LIGHT" + device.getIndex() + "_OFF");
+        }
+        labels.add("All lights on");
+        commands.add("ALL_LIGHTS_ON");
+        labels.add("All lights off");
+        commands.add("ALL_LIGHTS_OFF");
+        for (SceneModel scene : scenes) {
+            labels.add("Activate " + scene.getName());
+            commands.add("SCENE:" + scene.getId());
+        }
+
+        new androidx.appcompat.app.AlertDialog.Builder(this)
+                .setTitle("What did \"" + spokenText + "\" mean?")
+                .setItems(labels.toArray(new String[0]), (dialog, which) -> {
+                    String command = commands.get(which);
+                    preferencesManager.saveVoiceCorrections(voiceManager.learnCorrection(spokenText, command));
+                    logManager.addLog("Voice: learned \"" + spokenText + "\" = " + labels.get(which),
+                            LogManager.LogType.INFO, "");
+                    processVoiceCommand(command);
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
     private void processVoiceCommand(String command) {
-        if (!bluetoothManager.isConnected()) {
+        if (!isConnected()) {
             showSafeToast("Not connected to Bluetooth device");
+            confirmAloud(ConfirmationPhrases.NOT_CONNECTED);
             return;
         }
 
@@ -264,12 +641,18 @@ public class MainActivity extends AppCompatActivity
             handleAllLightsCommand(true);
         } else if (command.equals("ALL_LIGHTS_OFF")) {
             handleAllLightsCommand(false);
+        } else if (command.startsWith("SCENE:")) {
+            SceneModel scene = findScene(command.substring("SCENE:".length()));
+            if (scene != null) {
+                activateScene(scene);
+                confirmAloud(ConfirmationPhrases.forScene(scene.getName()));
+            }
         } else if (command.equals("STATUS")) {
             sendCommandToDevice("STATUS");
             showSafeToast("Requesting status");
             logManager.addLog("Voice: Request status",
                     LogManager.LogType.SENT,
-                    bluetoothManager.getConnectedDeviceName());
+                    getConnectedDeviceName());
         } else if (command.equals("HELP")) {
             showVoiceCommandsHelp();
         } else if (command.startsWith("SET_TEMP_")) {
@@ -278,14 +661,14 @@ public class MainActivity extends AppCompatActivity
             showSafeToast("Setting temperature to " + temp + "°C");
             logManager.addLog("Voice: Set temperature to " + temp + "°C",
                     LogManager.LogType.SENT,
-                    bluetoothManager.getConnectedDeviceName());
+                    getConnectedDeviceName());
         } else {
             // Send the raw command to Arduino
             sendCommandToDevice(command);
             showSafeToast("Sending command: " + command);
             logManager.addLog("Voice: " + command,
                     LogManager.LogType.SENT,
-                    bluetoothManager.getConnectedDeviceName());
+                    getConnectedDeviceName());
         }
     }
 
@@ -295,15 +678,13 @@ public class MainActivity extends AppCompatActivity
             int lightIndex = Integer.parseInt(lightNumber) - 1;
             if (lightIndex >= 0 && lightIndex < switchList.size()) {
                 DeviceModel device = switchList.get(lightIndex);
-                device.setOn(turnOn);
-                gridAdapter.updateSwitchState(lightIndex, turnOn);
-
-                sendCommandToDevice(command);
+                controllerService.setSwitchState(device.getIndex(), turnOn);
+                confirmAloud(ConfirmationPhrases.forSwitch(device.getName(), turnOn));
                 showSafeToast("Turning " + (turnOn ? "on" : "off") + " light " + lightNumber);
 
                 logManager.addLog("Voice: " + command,
                         LogManager.LogType.SENT,
-                        bluetoothManager.getConnectedDeviceName());
+                        getConnectedDeviceName());
             }
         } catch (NumberFormatException e) {
             showSafeToast("Invalid light number");
@@ -316,16 +697,14 @@ public class MainActivity extends AppCompatActivity
             int lightIndex = Integer.parseInt(lightNumber) - 1;
             if (lightIndex >= 0 && lightIndex < switchList.size()) {
                 DeviceModel device = switchList.get(lightIndex);
-                boolean newState = !device.isOn();
-                device.setOn(newState);
-                gridAdapter.updateSwitchState(lightIndex, newState);
-
-                sendCommandToDevice("LIGHT" + lightNumber + "_TOGGLE");
+                boolean turnOn = !device.isOn();
+                controllerService.setSwitchState(device.getIndex(), turnOn);
+                confirmAloud(ConfirmationPhrases.forSwitch(device.getName(), turnOn));
                 showSafeToast("Toggling light " + lightNumber);
 
                 logManager.addLog("Voice: Toggle light " + lightNumber,
                         LogManager.LogType.SENT,
-                        bluetoothManager.getConnectedDeviceName());
+                        getConnectedDeviceName());
             }
         } catch (NumberFormatException e) {
             showSafeToast("Invalid light number");
@@ -333,425 +712,457 @@ public class MainActivity extends AppCompatActivity
     }
 
     private void handleAllLightsCommand(boolean turnOn) {
-        for (int i = 0; i < switchList.size(); i++) {
-            switchList.get(i).setOn(turnOn);
-            gridAdapter.updateSwitchState(i, turnOn);
-        }
-
-        // Send command for each light
-        for (int i = 1; i <= switchList.size(); i++) {
-            sendCommandToDevice("LIGHT" + i + (turnOn ? "_ON" : "_OFF"));
+        if (!turnOn) {
+            // Safety lane: jumps anything queued instead of waiting behind it
+            if (isConnected()) {
+                controllerService.allOff();
+            }
+        } else {
+            // Same path as a scene: only switches in the wrong state, one write
+            SceneModel allLights = new SceneModel("ALL_LIGHTS", "All lights on");
+            for (DeviceModel device : switchList) {
+                allLights.addStep(new SceneModel.Step(device.getIndex(), true));
+            }
+            runScene(allLights);
         }
+        confirmAloud(turnOn ? ConfirmationPhrases.ALL_ON : ConfirmationPhrases.ALL_OFF);
 
         showSafeToast("Turning " + (turnOn ? "on" : "off") + " all lights");
         logManager.addLog("Voice: " + (turnOn ? "All lights on" : "All lights off"),
                 LogManager.LogType.SENT,
-                bluetoothManager.getConnectedDeviceName());
-    }
-
-    private void showVoiceCommandsHelp() {
-        StringBuilder helpText = new StringBuilder();
-        helpText.append("Available Voice Commands:\n\n");
-
-        helpText.append("• Turn on/off light [1-8]\n");
-        helpText.append("• Toggle light [1-8]\n");
-        helpText.append("• All lights on/off\n");
-        helpText.append("• Get status\n");
-        helpText.append("• Set temperature [number]\n");
-        helpText.append("• Movie mode\n");
-        helpText.append("• Sleep mode\n");
-        helpText.append("• Good night\n");
-
-        // Create a dialog to show help
-        new androidx.appcompat.app.AlertDialog.Builder(this)
-                .setTitle("Voice Commands Help")
-                .setMessage(helpText.toString())
-                .setPositiveButton("OK", null)
-                .show();
+                getConnectedDeviceName());
     }
 
-    // Voice permissions methods
-    private boolean checkVoicePermissions() {
-        return ContextCompat.checkSelfPermission(this,
-                Manifest.permission.RECORD_AUDIO) == PackageManager.PERMISSION_GRANTED;
-    }
-
-    private void requestVoicePermissions() {
-        requestPermissionLauncher.launch(Manifest.permission.RECORD_AUDIO);
+    /* =====================
+       SPOKEN CONFIRMATIONS
+       ===================== */
+    private void setSpokenConfirmationsEnabled(boolean enabled) {
+        if (enabled && spokenConfirmations == null) {
+            spokenConfirmations = new SpokenConfirmations(this);
+            updateConfirmationPhrases();
+        } else if (!enabled && spokenConfirmations != null) {
+            spokenConfirmations.shutdown();
+            spokenConfirmations = null;
+        }
     }
 
-    private void showAddSwitchesDialog() {
-        AddSwitchesDialog dialog = new AddSwitchesDialog(this, this);
-        // Pre-fill with current switch count
-        dialog.setCurrentCount(switchList.size());
-        dialog.show();
+    // Re-synthesizes in the background only phrases whose names changed
+    private void updateConfirmationPhrases() {
+        if (spokenConfirmations != null) {
+            spokenConfirmations.setPhrases(ConfirmationPhrases.build(switchList, scenes));
+        }
     }
 
-    @Override
-    public void onSwitchesCreated(int count) {
-        updateSwitchesCount(count);
+    private void confirmAloud(String phrase) {
+        if (spokenConfirmations != null) {
+            spokenConfirmations.speak(phrase);
+        }
     }
 
-    private void updateSwitchesCount(int newCount) {
-        if (newCount == switchList.size()) {
-            showSafeToast("Number of switches is already " + newCount);
+    /* =====================
+       SCENES
+       ===================== */
+    private void activateScene(SceneModel scene) {
+        if (!isConnected()) {
+            showSafeToast("Please connect to a device first");
             return;
         }
 
-        if (newCount > switchList.size()) {
-            // Add new switches
-            addNewSwitches(newCount);
+        int commandCount = runScene(scene);
+        if (commandCount == 0) {
+            showSafeToast(scene.getName() + " is already active");
         } else {
-            // Remove extra switches (keep first 'newCount' switches)
-            removeExtraSwitches(newCount);
+            showSafeToast("Activating " + scene.getName());
         }
-
-        // Update grid adapter
-        gridAdapter.updateAllSwitches(switchList);
-
-        // Save to preferences
-        saveSwitchesToPreferences();
-
-        // Force refresh the grid
-        switchesGrid.invalidateViews();
-        switchesGrid.requestLayout();
-
-        showSafeToast("Updated to " + newCount + " switches");
+        logManager.addLog("Scene: " + scene.getName() + " (" + commandCount + " commands)",
+                LogManager.LogType.INFO, getConnectedDeviceName());
     }
 
-    private void addNewSwitches(int newCount) {
-        int currentCount = switchList.size();
+    // Compile against the current switch states and send each batch as a single write
+    private int runScene(SceneModel scene) {
+        SceneCompiler.CompiledScene compiled = SceneCompiler.compile(scene, switchList);
 
-        for (int i = currentCount + 1; i <= newCount; i++) {
-            DeviceModel device = new DeviceModel(
-                    i,
-                    "Switch " + i,
-                    "LIGHT" + i + "_TOGGLE"
-            );
+        long delay = 0;
+        for (SceneCompiler.Batch batch : compiled.getBatches()) {
+            delay += batch.getDelayMs();
+            if (delay == 0) {
+                runSceneBatch(batch);
+            } else {
+                sceneHandler.postDelayed(() -> runSceneBatch(batch), delay);
+            }
+        }
+        return compiled.getCommandCount();
+    }
 
-            switchList.add(device);
+    private void runSceneBatch(SceneCompiler.Batch batch) {
+        if (isConnected()) {
+            controllerService.applySceneBatch(batch);
         }
     }
 
-    private void removeExtraSwitches(int newCount) {
-        // Keep only first 'newCount' switches
-        if (newCount >= 1 && newCount <= switchList.size()) {
-            // Create a new list with first 'newCount' switches
-            List<DeviceModel> newList = new ArrayList<>();
-            for (int i = 0; i < newCount; i++) {
-                newList.add(switchList.get(i));
+    private SceneModel findScene(String sceneId) {
+        for (SceneModel scene : scenes) {
+            if (scene.getId().equals(sceneId)) {
+                return scene;
             }
-
-            // Clear and add back the kept switches
-            switchList.clear();
-            switchList.addAll(newList);
         }
+        return null;
     }
 
-    @Override
-    public void onSwitchClick(int position, DeviceModel device) {
-        // Toggle switch state locally first
-        boolean newState = !device.isOn();
-        device.setOn(newState);
-
-        // Update UI immediately for better responsiveness
-        gridAdapter.updateSwitchState(position, newState);
+    private void handleSceneIntent(Intent intent) {
+        if (intent == null || !ACTION_ACTIVATE_SCENE.equals(intent.getAction())) {
+            return;
+        }
 
-        if (bluetoothManager.isConnected()) {
-            // Send the toggle command
-            String command = device.getToggleCommand();
-            sendCommandToDevice(command);
+        SceneModel scene = findScene(intent.getStringExtra(EXTRA_SCENE_ID));
+        if (scene == null) {
+            showSafeToast("Scene no longer exists");
+            return;
+        }
 
-            // Log the command
-            logManager.addLog("Sending: " + command, LogManager.LogType.SENT,
-                    bluetoothManager.getConnectedDeviceName());
+        if (isConnected()) {
+            activateScene(scene);
         } else {
-            showSafeToast("Please connect to a device first");
-            // Revert UI change if not connected
-            device.setOn(!newState);
-            gridAdapter.updateSwitchState(position, !newState);
+            pendingSceneId = scene.getId();
+            showSafeToast(scene.getName() + " will run once connected");
         }
     }
 
-    @Override
-    public void onSwitchLongClick(int position, DeviceModel device) {
-        // Show settings dialog
-        showSwitchSettingsDialog(device);
+    private void refreshSceneBar() {
+        sceneBar.removeAllViews();
+        for (SceneModel scene : scenes) {
+            Button btnScene = new Button(this);
+            btnScene.setText(scene.getName());
+            btnScene.setAllCaps(false);
+            btnScene.setOnClickListener(v -> activateScene(scene));
+            btnScene.setOnLongClickListener(v -> {
+                sceneDialogManager.showSceneOptions(scene);
+                return true;
+            });
+            sceneBar.addView(btnScene);
+        }
+        sceneBarScroll.setVisibility(scenes.isEmpty() ? View.GONE : View.VISIBLE);
     }
 
-    private void showSwitchSettingsDialog(DeviceModel device) {
-        currentEditingDeviceId = device.getId();
-
-        DeviceSettingsDialog dialog = new DeviceSettingsDialog(this, device, this);
-        dialog.show();
+    private void onScenesChanged() {
+        preferencesManager.saveScenes(scenes);
+        voiceManager.setScenes(scenes);
+        updateConfirmationPhrases();
+        refreshSceneBar();
+        // Scenes the board's program plays are compiled into it
+        if (controllerService != null) {
+            controllerService.syncBoardProgram();
+        }
     }
 
     @Override
-    public void onDeviceSettingsSaved(DeviceModel updatedDevice) {
-        if (currentEditingDeviceId != null) {
-            // Update in list
-            for (int i = 0; i < switchList.size(); i++) {
-                if (switchList.get(i).getId().equals(currentEditingDeviceId)) {
-                    switchList.set(i, updatedDevice);
-                    break;
-                }
-            }
+    public void onSceneActivateRequested(SceneModel scene) {
+        activateScene(scene);
+    }
 
-            // Update UI
-            gridAdapter.updateAllSwitches(switchList);
+    @Override
+    public void onSceneSaveRequested(String name) {
+        scenes.add(SceneModel.fromCurrentState(name, switchList));
+        onScenesChanged();
+        showSafeToast("Scene saved: " + name);
+    }
 
-            // Save to preferences
-            saveSwitchesToPreferences();
+    @Override
+    public void onSceneDeleteRequested(SceneModel scene) {
+        scenes.remove(scene);
+        onScenesChanged();
+        ShortcutManagerCompat.removeDynamicShortcuts(this,
+                Collections.singletonList(scene.getId()));
+        showSafeToast("Scene deleted: " + scene.getName());
+    }
 
-            showSafeToast("Switch settings saved");
+    /* =====================
+       AUTOMATIONS
+       ===================== */
+    @Override
+    public void onAutomationCreated(SceneModel scene, String schedule) {
+        AutomationRule rule = new AutomationRule("AUTO_" + System.currentTimeMillis(), scene.getId(), schedule);
+        if (AutomationSchedule.parse(schedule).isSolar()) {
+            updateAutomationLocation();
         }
+        automations.add(rule);
+        onAutomationsChanged();
+        showSafeToast("Automation saved");
     }
 
-    private void saveSwitchesToPreferences() {
-        Map<String, DeviceModel> allDevices = new HashMap<>(devices);
+    @Override
+    public void onAutomationDeleteRequested(AutomationRule rule) {
+        automations.remove(rule);
+        onAutomationsChanged();
+    }
 
-        // Clear existing switches
-        for (String key : allDevices.keySet().toArray(new String[0])) {
-            if (key.startsWith("SWITCH_")) {
-                allDevices.remove(key);
-            }
-        }
+    @Override
+    public void onAutomationEnabledChanged(AutomationRule rule, boolean enabled) {
+        rule.setEnabled(enabled);
+        onAutomationsChanged();
+    }
 
-        // Add current switches
-        for (DeviceModel device : switchList) {
-            allDevices.put(device.getId(), device);
+    private void onAutomationsChanged() {
+        preferencesManager.saveAutomations(automations);
+        AutomationAlarms.schedule(this);
+        if (controllerService != null) {
+            controllerService.syncBoardProgram();
         }
-
-        preferencesManager.saveDevices(allDevices);
-        devices = allDevices;
     }
 
-    private void loadSwitchesFromPreferences() {
-        // Clear existing
-        switchList.clear();
+    // Sunrise/sunset are computed on the phone, so remember roughly where it is
+    private void updateAutomationLocation() {
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION)
+                != PackageManager.PERMISSION_GRANTED) {
+            if (preferencesManager.getSolarCalculator() == null) {
+                showSafeToast("Location permission is needed for sunrise/sunset automations");
+            }
+            return;
+        }
 
-        // Find all switches
-        for (Map.Entry<String, DeviceModel> entry : devices.entrySet()) {
-            if (entry.getKey().startsWith("SWITCH_")) {
-                switchList.add(entry.getValue());
+        LocationManager locationManager = (LocationManager) getSystemService(LOCATION_SERVICE);
+        Location best = null;
+        for (String provider : locationManager.getProviders(true)) {
+            Location location = locationManager.getLastKnownLocation(provider);
+            if (location != null && (best == null || location.getTime() > best.getTime())) {
+                best = location;
             }
         }
 
-        // Sort by index
-        switchList.sort((d1, d2) -> Integer.compare(d1.getIndex(), d2.getIndex()));
+        if (best != null) {
+            preferencesManager.saveLocation(best.getLatitude(), best.getLongitude());
+        } else if (preferencesManager.getSolarCalculator() == null) {
+            showSafeToast("Location unknown - sunrise/sunset automations won't run yet");
+        }
+    }
 
-        // If no switches found, create 4 by default (FIRST INSTALL)
-        if (switchList.isEmpty()) {
-            createDefaultSwitches();
+    @Override
+    public void onSceneShortcutRequested(SceneModel scene) {
+        Intent intent = new Intent(this, MainActivity.class);
+        intent.setAction(ACTION_ACTIVATE_SCENE);
+        intent.putExtra(EXTRA_SCENE_ID, scene.getId());
+
+        ShortcutInfoCompat shortcut = new ShortcutInfoCompat.Builder(this, scene.getId())
+                .setShortLabel(scene.getName())
+                .setIcon(IconCompat.createWithResource(this, R.mipmap.ic_launcher))
+                .setIntent(intent)
+                .build();
+
+        if (ShortcutManagerCompat.isRequestPinShortcutSupported(this)) {
+            ShortcutManagerCompat.requestPinShortcut(this, shortcut, null);
         } else {
-            // Update grid adapter
-            gridAdapter.updateAllSwitches(switchList);
+            ShortcutManagerCompat.pushDynamicShortcut(this, shortcut);
+            showSafeToast("Added to app shortcuts");
         }
     }
 
-    private void createDefaultSwitches() {
-        // Create 4 default switches for first-time users
-        for (int i = 1; i <= 4; i++) {
-            DeviceModel device = new DeviceModel(
-                    i,
-                    "Switch " + i,
-                    "LIGHT" + i + "_TOGGLE"
-            );
+    private void showVoiceCommandsHelp() {
+        StringBuilder helpText = new StringBuilder();
+        helpText.append("Available Voice Commands:\n\n");
 
-            switchList.add(device);
+        helpText.append("• Turn on/off light [1-" + switchList.size() + "]\n");
+        helpText.append("• Toggle light [1-" + switchList.size() + "]\n");
+        helpText.append("• Turn on/off [switch name]\n");
+        for (DeviceModel device : switchList) {
+            helpText.append("    - ").append(device.getName()).append("\n");
+        }
+        helpText.append("• All lights on/off\n");
+        helpText.append("• Get status\n");
+        helpText.append("• Set temperature [number]\n");
+        helpText.append("• Activate [scene name]\n");
+        for (SceneModel scene : scenes) {
+            helpText.append("    - ").append(scene.getName()).append("\n");
         }
 
-        // Update grid adapter
-        gridAdapter.updateAllSwitches(switchList);
+        helpText.append("\nStats: ").append(voiceManager.getStatsSummary()).append("\n");
+        String handsFree = voiceManager.getHandsFreeSummary();
+        if (handsFree != null) {
+            helpText.append("Hands-free: ").append(handsFree).append("\n");
+        }
+        if (spokenConfirmations != null) {
+            helpText.append("Spoken confirmations: ").append(spokenConfirmations.getLatencySummary()).append("\n");
+        }
 
-        // Save to preferences
-        saveSwitchesToPreferences();
+        // Create a dialog to show help
+        androidx.appcompat.app.AlertDialog.Builder builder = new androidx.appcompat.app.AlertDialog.Builder(this)
+                .setTitle("Voice Commands Help")
+                .setMessage(helpText.toString())
+                .setPositiveButton("OK", null);
 
-        // Force refresh the grid
-        switchesGrid.invalidateViews();
-        switchesGrid.requestLayout();
+        // The last command did the wrong thing: teach the right one
+        String lastSpokenText = voiceManager.getLastSpokenText();
+        if (lastSpokenText != null) {
+            builder.setNeutralButton("Fix last command", (dialog, which) ->
+                    showTeachVoiceCommandDialog(lastSpokenText));
+        }
+        builder.show();
+    }
 
-        showSafeToast("4 default switches created");
+    // Voice permissions methods
+    private boolean checkVoicePermissions() {
+        return ContextCompat.checkSelfPermission(this,
+                Manifest.permission.RECORD_AUDIO) == PackageManager.PERMISSION_GRANTED;
     }
 
-    /* =====================
-       SEND COMMAND TO DEVICE
-       ===================== */
-    private void sendCommandToDevice(String command) {
-        if (bluetoothManager.isConnected()) {
-            bluetoothManager.sendCommand(command);
-        } else {
-            showSafeToast("Please connect to a device first");
-        }
+    private void requestVoicePermissions() {
+        requestPermissionLauncher.launch(Manifest.permission.RECORD_AUDIO);
     }
 
-    /* =====================
-       HANDLE DEVICE MESSAGES
-       ===================== */
-    private void handleDeviceMessage(String message) {
-        message = message.trim();
-
-        // Handle status messages from device (LIGHT1:ON, LIGHT1:OFF)
-        if (message.contains(":")) {
-            String[] parts = message.split(":");
-            if (parts.length == 2) {
-                String deviceName = parts[0].trim();
-                String state = parts[1].trim();
-
-                boolean isOn = state.equals("ON");
-
-                runOnUiThread(() -> {
-                    // Update corresponding switch
-                    updateSwitchFromDevice(deviceName, isOn);
-
-                    // Log the state change
-                    logManager.addLog(deviceName + " is now " + state,
-                            LogManager.LogType.RECEIVED,
-                            bluetoothManager.getConnectedDeviceName());
-                });
-            }
-        }
-        // Handle toggle acknowledgement messages
-        else if (message.contains("toggled") || message.contains("Toggled")) {
-            // Extract device number from message
-            parseToggleAckMessage(message);
-        }
-        // Handle status request response
-        else if (message.contains("Status:") || message.contains("L1=") || message.contains("L2=") || message.contains("L3=")) {
-            parseStatusResponse(message);
+    // Radio time saved against the wait for the first tap after the link closed
+    private void showIdleTimeoutDialog() {
+        if (controllerService == null) {
+            return;
         }
-        // Handle BT/IR received messages
-        else if (message.contains("BT Received:") || message.contains("IR Received:")) {
-            // Just log these messages
-            logManager.addLog(message, LogManager.LogType.INFO,
-                    bluetoothManager.getConnectedDeviceName());
+        String[] labels = {"Never", "After 30 seconds", "After 2 minutes", "After 10 minutes"};
+        long[] timeouts = {0, 30_000, 120_000, 600_000};
+
+        int checked = -1;
+        for (int i = 0; i < timeouts.length; i++) {
+            if (timeouts[i] == controllerService.getIdleTimeoutMs()) {
+                checked = i;
+            }
         }
-        // Handle error messages
-        else if (message.startsWith("ERROR:") || message.contains("Unknown")) {
-            logManager.addLog(message, LogManager.LogType.ERROR,
-                    bluetoothManager.getConnectedDeviceName());
+        new androidx.appcompat.app.AlertDialog.Builder(this)
+                .setTitle("Close Idle Link")
+                .setSingleChoiceItems(labels, checked, (dialog, which) -> {
+                    controllerService.setIdleTimeout(timeouts[which]);
+                    dialog.dismiss();
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    // The trace can be pasted into a bug report and replayed by LinkQualityTest
+    private void showLinkQualityDialog() {
+        if (controllerService == null) {
+            return;
         }
-        // Handle HELP command
-        else if (message.contains("Bluetooth Commands")) {
-            logManager.addLog("HELP received", LogManager.LogType.INFO,
-                    bluetoothManager.getConnectedDeviceName());
+        new androidx.appcompat.app.AlertDialog.Builder(this)
+                .setTitle("Link Quality")
+                .setMessage(controllerService.getLinkQualitySummary())
+                .setPositiveButton("OK", null)
+                .setNeutralButton("Copy trace", (dialog, which) -> {
+                    ClipboardManager clipboard = (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
+                    clipboard.setPrimaryClip(ClipData.newPlainText("Link trace",
+                            controllerService.getLinkQualityTrace()));
+                    showSafeToast("Link trace copied");
+                })
+                .show();
+    }
+
+    // How quickly a controller that stopped answering is noticed, against ping traffic
+    private void showHeartbeatDialog() {
+        if (controllerService == null) {
+            return;
         }
-        // For any other messages, just log them
-        else if (!message.isEmpty()) {
-            logManager.addLog("Received: " + message, LogManager.LogType.INFO,
-                    bluetoothManager.getConnectedDeviceName());
+        String[] labels = {"Fast: every 2 s, lost after 2 misses",
+                "Normal: every 3 s, lost after 3 misses",
+                "Quiet: every 10 s, lost after 3 misses"};
+        long[] intervals = {2000, 3000, 10_000};
+        int[] misses = {2, 3, 3};
+
+        int checked = -1;
+        for (int i = 0; i < labels.length; i++) {
+            if (intervals[i] == controllerService.getHeartbeatIntervalMs()
+                    && misses[i] == controllerService.getHeartbeatMisses()) {
+                checked = i;
+            }
         }
+        new androidx.appcompat.app.AlertDialog.Builder(this)
+                .setTitle("Link Heartbeat")
+                .setSingleChoiceItems(labels, checked, (dialog, which) -> {
+                    controllerService.setHeartbeat(intervals[which], misses[which]);
+                    dialog.dismiss();
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
     }
 
-    private void parseToggleAckMessage(String message) {
-        try {
-            // Extract device number from messages like:
-            // "Light 2 toggled"
-            // "IR: Toggled Light 1"
-
-            String lowerMessage = message.toLowerCase();
-            String[] words = lowerMessage.split("\\s+");
-
-            int deviceNumber = -1;
-
-            // Look for patterns like "light 1" or "light 2"
-            for (int i = 0; i < words.length - 1; i++) {
-                if (words[i].equals("light") && i + 1 < words.length) {
-                    try {
-                        deviceNumber = Integer.parseInt(words[i + 1]);
-                        break;
-                    } catch (NumberFormatException e) {
-                        // Try to parse word like "1" from "light1"
-                        String word = words[i + 1];
-                        if (word.matches("light\\d+")) {
-                            deviceNumber = Integer.parseInt(word.replace("light", ""));
-                            break;
-                        }
-                    }
-                }
-            }
+    private void showAddSwitchesDialog() {
+        AddSwitchesDialog dialog = new AddSwitchesDialog(this, this);
+        // Pre-fill with current switch count
+        dialog.setCurrentCount(switchList.size());
+        dialog.show();
+    }
 
-            if (deviceNumber > 0) {
-                // Don't update UI here - wait for LIGHTX:ON/OFF message
-                // Just log it
-                logManager.addLog("Device acknowledged: " + message,
-                        LogManager.LogType.INFO,
-                        bluetoothManager.getConnectedDeviceName());
-            }
-        } catch (Exception e) {
-            logManager.addLog("Error parsing toggle ack: " + e.getMessage(),
-                    LogManager.LogType.ERROR, "");
+    @Override
+    public void onSwitchesCreated(int count) {
+        updateSwitchesCount(count);
+    }
+
+    private void updateSwitchesCount(int newCount) {
+        if (newCount == switchList.size()) {
+            showSafeToast("Number of switches is already " + newCount);
+            return;
         }
+
+        controllerService.setSwitchCount(newCount);
+        showSafeToast("Updated to " + newCount + " switches");
     }
 
-    private void updateSwitchFromDevice(String deviceName, boolean isOn) {
-        // Extract device number from device name (e.g., LIGHT1 -> 1)
-        if (deviceName.startsWith("LIGHT")) {
-            try {
-                String numberStr = deviceName.substring(5); // Remove "LIGHT"
-                int deviceNumber = Integer.parseInt(numberStr);
+    @Override
+    public void onSwitchClick(int position, DeviceModel device) {
+        // The first tap after a cold launch is timed from the launch, so the app
+        // path is comparable with a Quick Settings tile or widget tap
+        long tapTime = firstTapPending ? createdAt : SystemClock.elapsedRealtime();
+
+        // The service flips the state optimistically and sends the toggle command,
+        // or queues the wanted state while offline if that is turned on
+        if (controllerService == null || !controllerService.toggleSwitch(device.getIndex(),
+                LatencyTracker.PATH_APP, tapTime)) {
+            showSafeToast(controllerService != null && controllerService.isConnected()
+                    ? "Controller not responding, try again in a moment"
+                    : "Please connect to a device first");
+            return;
+        }
+        firstTapPending = false;
+    }
 
-                // Find and update the switch
-                for (int i = 0; i < switchList.size(); i++) {
-                    DeviceModel device = switchList.get(i);
-                    if (device.getIndex() == deviceNumber) {
-                        device.setOn(isOn);
-                        gridAdapter.updateSwitchState(i, isOn);
+    @Override
+    public void onSwitchLongClick(int position, DeviceModel device) {
+        // Show settings dialog
+        showSwitchSettingsDialog(device);
+    }
 
-                        // Save state to preferences
-                        saveSwitchesToPreferences();
-                        break;
-                    }
-                }
+    @Override
+    public void onLevelDragged(int position, DeviceModel device, int level) {
+        // Conflated by the service to what the link can carry
+        if (controllerService != null) {
+            controllerService.streamLevel(device.getIndex(), level);
+        }
+    }
 
-            } catch (NumberFormatException e) {
-                // Invalid device number
-                logManager.addLog("Invalid device name: " + deviceName,
-                        LogManager.LogType.ERROR, "");
-            }
+    @Override
+    public void onLevelSet(int position, DeviceModel device, int level) {
+        if (controllerService == null || !controllerService.setLevel(device.getIndex(), level)) {
+            showSafeToast("Please connect to a device first");
+            gridAdapter.notifyDataSetChanged();
         }
     }
 
-    private void parseStatusResponse(String statusMessage) {
-        // Format: Status: L1=ON  L2=OFF  L3=ON
-        // OR: L1=ON L2=OFF L3=ON
-        try {
-            // Remove "Status:" if present
-            String cleanMessage = statusMessage.replace("Status:", "").trim();
-
-            // Split by spaces
-            String[] parts = cleanMessage.split("\\s+");
-
-            for (String part : parts) {
-                if (part.contains("=")) {
-                    String[] keyValue = part.split("=");
-                    if (keyValue.length == 2) {
-                        String key = keyValue[0].trim();
-                        String value = keyValue[1].trim();
-
-                        boolean isOn = value.equals("ON");
-
-                        // Map L1, L2, L3 to device numbers
-                        int deviceNumber = 0;
-                        if (key.equals("L1")) deviceNumber = 1;
-                        else if (key.equals("L2")) deviceNumber = 2;
-                        else if (key.equals("L3")) deviceNumber = 3;
-
-                        if (deviceNumber > 0) {
-                            updateSwitchFromDevice("LIGHT" + deviceNumber, isOn);
-                        }
-                    }
-                }
-            }
+    private void showSwitchSettingsDialog(DeviceModel device) {
+        currentEditingDeviceId = device.getId();
 
-            // Log the status update
-            logManager.addLog("Status updated: " + statusMessage,
-                    LogManager.LogType.INFO,
-                    bluetoothManager.getConnectedDeviceName());
+        DeviceSettingsDialog dialog = new DeviceSettingsDialog(this, device, this);
+        dialog.show();
+    }
 
-        } catch (Exception e) {
-            logManager.addLog("Error parsing status: " + e.getMessage(),
-                    LogManager.LogType.ERROR, "");
+    @Override
+    public void onDeviceSettingsSaved(DeviceModel updatedDevice) {
+        if (currentEditingDeviceId != null && controllerService != null) {
+            controllerService.updateSwitch(updatedDevice);
+            showSafeToast("Switch settings saved");
+        }
+    }
+
+    /* =====================
+       SEND COMMAND TO DEVICE
+       ===================== */
+    private void sendCommandToDevice(String command) {
+        if (controllerService == null || !controllerService.sendCommand(command)) {
+            showSafeToast("Please connect to a device first");
+        } else if (!isConnected()) {
+            showSafeToast("Queued until reconnected");
         }
     }
 
@@ -774,9 +1185,9 @@ public class MainActivity extends AppCompatActivity
        ===================== */
     @Override
     public void onScanRequested() {
-        bluetoothManager.clearDiscoveredDevices();
-        logManager.addLog("Scanning started", LogManager.LogType.INFO, "");
-        bluetoothManager.startScanning();
+        if (controllerService != null) {
+            controllerService.startScanning();
+        }
     }
 
     @Override
@@ -787,35 +1198,54 @@ public class MainActivity extends AppCompatActivity
     @Override
     public void onDeviceConnectRequested(String name, String mac) {
         dialogManager.updateScanStatus("Connecting to " + name + "...", android.R.color.holo_orange_dark);
-        logManager.addLog("Connecting to " + name + "...", LogManager.LogType.INFO, "");
-        bluetoothManager.connectToDevice(name, mac);
+        if (controllerService != null) {
+            controllerService.connectToDevice(name, mac);
+        }
     }
 
     /* =====================
-       BLUETOOTH LISTENER
+       CONTROLLER LISTENER
        ===================== */
     @Override
-    public void onDeviceFound(String name, String mac) {
-        dialogManager.addDevice(name, mac);
-        logManager.addLog("Found device: " + name, LogManager.LogType.INFO, "");
+    public void onSwitchesChanged(List<DeviceModel> switches) {
+        switchList = switches;
+        gridAdapter.updateAllSwitches(switchList);
+        voiceManager.setSwitches(switchList);
+        updateConfirmationPhrases();
+
+        if (!interactiveLogged) {
+            interactiveLogged = true;
+            readyMs = SystemClock.elapsedRealtime() - createdAt;
+            logManager.addLog("Ready in " + readyMs + " ms"
+                            + (recreated ? " after recreation" : "")
+                            + (isConnected() ? ", link kept" : ""),
+                    LogManager.LogType.INFO, "");
+        }
+    }
+
+    long getReadyMs() {
+        return readyMs;
     }
 
     @Override
-    public void onScanStarted() {
-        // UI already updated by dialog manager
+    public void onLog(String message, LogManager.LogType type, String deviceName) {
+        logManager.addLog(message, type, deviceName);
+    }
+
+    @Override
+    public void onDeviceFound(String name, String mac) {
+        dialogManager.addDevice(name, mac);
     }
 
     @Override
     public void onScanFinished(int deviceCount) {
         dialogManager.stopScanning();
-        logManager.addLog("Scanning finished. Found " + deviceCount + " devices", LogManager.LogType.INFO, "");
     }
 
     @Override
     public void onScanError(String error) {
         dialogManager.stopScanning();
         dialogManager.updateScanStatus("Error: " + error, android.R.color.holo_red_dark);
-        logManager.addLog("Scan error: " + error, LogManager.LogType.ERROR, "");
         showSafeToast("Scan error: " + error);
     }
 
@@ -826,43 +1256,61 @@ public class MainActivity extends AppCompatActivity
         txtStatus.setText("Connected to: " + deviceName);
         txtStatus.setTextColor(ContextCompat.getColor(this, android.R.color.holo_green_dark));
 
-        // Get connected device info
-        BluetoothDevice device = bluetoothManager.getConnectedDevice();
-        if (device != null) {
-            String connectedName = device.getName();
-            logManager.addLog("Connected to: " + connectedName, LogManager.LogType.INFO, "");
-            showSafeToast("Connected to: " + connectedName);
-
-            // Request initial status from Arduino
+        // Close dialog after delay
+        if (dialogManager.isDialogShowing()) {
+            showSafeToast("Connected to: " + deviceName);
             new Handler().postDelayed(() -> {
-                if (bluetoothManager.isConnected()) {
-                    sendCommandToDevice("STATUS");
-                    logManager.addLog("Requesting initial status", LogManager.LogType.INFO, connectedName);
+                if (dialogManager.isDialogShowing()) {
+                    dialogManager.dismissDialog();
                 }
-            }, 1000);
+            }, 1500);
         }
 
-        // Close dialog after delay
-        new Handler().postDelayed(() -> {
-            if (dialogManager.isDialogShowing()) {
-                dialogManager.dismissDialog();
+        // Run a scene requested from a shortcut before we were connected
+        if (pendingSceneId != null) {
+            SceneModel scene = findScene(pendingSceneId);
+            pendingSceneId = null;
+            if (scene != null) {
+                sceneHandler.postDelayed(() -> activateScene(scene), 1500);
             }
-        }, 1500);
+        }
+    }
+
+    @Override
+    public void onLinkHealthChanged(LinkMonitor.Health health, String deviceName) {
+        switch (health) {
+            case HEALTHY:
+                txtStatus.setText("Connected to: " + deviceName);
+                txtStatus.setTextColor(ContextCompat.getColor(this, android.R.color.holo_green_dark));
+                break;
+            case DEGRADED:
+                txtStatus.setText("Not responding: " + deviceName);
+                txtStatus.setTextColor(ContextCompat.getColor(this, android.R.color.holo_orange_dark));
+                break;
+            case DEAD:
+                txtStatus.setText("Link lost, reconnecting to " + deviceName + "...");
+                txtStatus.setTextColor(ContextCompat.getColor(this, android.R.color.holo_red_dark));
+                break;
+        }
+    }
+
+    @Override
+    public void onLinkQualityChanged(int bars, LinkQuality.Level level) {
+        StringBuilder signal = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            signal.append(i < bars ? "\u2582\u2584\u2586\u2588".charAt(i) : '\u00B7');
+        }
+        txtSignal.setText(signal);
+        int color = level == LinkQuality.Level.GOOD ? android.R.color.holo_green_dark
+                : level == LinkQuality.Level.FAIR ? android.R.color.holo_orange_dark : android.R.color.holo_red_dark;
+        txtSignal.setTextColor(ContextCompat.getColor(this, color));
+        txtSignal.setContentDescription("Link quality " + bars + " of 4");
     }
 
     @Override
     public void onDisconnected() {
         connectionStatus.setVisibility(View.GONE);
-        logManager.addLog("Disconnected from device", LogManager.LogType.INFO, "");
-
-        // Reset all switches to off when disconnected
-        runOnUiThread(() -> {
-            for (int i = 0; i < switchList.size(); i++) {
-                switchList.get(i).setOn(false);
-            }
-            gridAdapter.updateAllSwitches(switchList);
-            showSafeToast("Disconnected. All switches reset to OFF.");
-        });
+        showSafeToast("Disconnected. All switches reset to OFF.");
     }
 
     @Override
@@ -873,21 +1321,9 @@ public class MainActivity extends AppCompatActivity
             dialogManager.updateScanStatus("Connection failed: " + error, android.R.color.holo_red_dark);
         }
 
-        logManager.addLog("Connection failed: " + error, LogManager.LogType.ERROR, "");
         showSafeToast("Connection failed: " + error);
     }
 
-    @Override
-    public void onMessageReceived(String message) {
-        // Handle each line separately (Arduino might send multiple lines)
-        String[] lines = message.split("\n");
-        for (String line : lines) {
-            if (!line.trim().isEmpty()) {
-                handleDeviceMessage(line);
-            }
-        }
-    }
-
     /* =====================
        PERMISSIONS
        ===================== */
@@ -951,10 +1387,18 @@ public class MainActivity extends AppCompatActivity
     protected void onDestroy() {
         super.onDestroy();
 
-        // Clean up managers
-        if (bluetoothManager != null) {
-            bluetoothManager.disconnect();
+        // Detach from the service; the link only goes away when the user leaves while disconnected
+        if (serviceBound) {
+            if (controllerService != null) {
+                controllerService.removeListener(this);
+            }
+            unbindService(serviceConnection);
+            serviceBound = false;
         }
+        if (isFinishing() && !isChangingConfigurations() && !isConnected()) {
+            stopService(new Intent(this, ControllerService.class));
+        }
+        controllerService = null;
 
         if (dialogManager != null) {
             dialogManager.dismissDialog();
@@ -964,6 +1408,9 @@ public class MainActivity extends AppCompatActivity
         if (voiceManager != null) {
             voiceManager.destroy();
         }
+        setSpokenConfirmationsEnabled(false);
+
+        sceneHandler.removeCallbacksAndMessages(null);
     }
 
     // Safe toast method to prevent SystemUI crashes
@@ -0,0 +1,215 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// What the user asked for while the board was out of range. Switches are
+// recorded as a desired end state rather than a list of commands, so ten
+// toggles of one switch collapse into a single command on reconnect, and all
+// of it goes out as one write.
+public class OfflineCommandBuffer {
+
+    // Raw commands kept at most; older ones are dropped first
+    static final int MAX_COMMANDS = 16;
+
+    // Queries that only make sense on a live link
+    private static final String[] QUERIES = {"STATUS", "HELP"};
+
+    // Switch index -> wanted state / level, in first-touched order
+    private final Map<Integer, Boolean> desiredStates = new LinkedHashMap<>();
+    private final Map<Integer, Integer> desiredLevels = new LinkedHashMap<>();
+    private final List<String> commands = new ArrayList<>();
+    private int intentCount = 0;
+
+    public void recordState(int switchIndex, boolean isOn) {
+        desiredLevels.remove(switchIndex);
+        desiredStates.put(switchIndex, isOn);
+        intentCount++;
+    }
+
+    // Flips the state the user currently sees and returns the new one
+    public boolean recordToggle(int switchIndex, boolean shownState) {
+        boolean isOn = !shownState;
+        recordState(switchIndex, isOn);
+        return isOn;
+    }
+
+    public void recordLevel(int switchIndex, int level) {
+        desiredStates.remove(switchIndex);
+        desiredLevels.put(switchIndex, level);
+        intentCount++;
+    }
+
+    // Repeats keep only their latest position; returns false for commands
+    // that aren't worth replaying
+    public boolean recordCommand(String command) {
+        for (String query : QUERIES) {
+            if (query.equals(command)) {
+                return false;
+            }
+        }
+        commands.remove(command);
+        commands.add(command);
+        if (commands.size() > MAX_COMMANDS) {
+            commands.remove(0);
+        }
+        intentCount++;
+        return true;
+    }
+
+    public boolean isPending(int switchIndex) {
+        return desiredStates.containsKey(switchIndex) || desiredLevels.containsKey(switchIndex);
+    }
+
+    public boolean isEmpty() {
+        return desiredStates.isEmpty() && desiredLevels.isEmpty() && commands.isEmpty();
+    }
+
+    // Everything recorded, before collapsing
+    public int getIntentCount() {
+        return intentCount;
+    }
+
+    public Map<Integer, Boolean> getDesiredStates() {
+        return desiredStates;
+    }
+
+    public Map<Integer, Integer> getDesiredLevels() {
+        return desiredLevels;
+    }
+
+    // Show the wanted states instead of what the board was last known to have
+    public void applyTo(List<DeviceModel> switches) {
+        for (DeviceModel device : switches) {
+            Boolean isOn = desiredStates.get(device.getIndex());
+            Integer level = desiredLevels.get(device.getIndex());
+            if (isOn != null) {
+                device.setOn(isOn);
+            } else if (level != null) {
+                device.setLevel(level);
+                device.setOn(level > 0);
+            }
+            device.setPending(isOn != null || level != null);
+        }
+    }
+
+    // The smallest set of commands that gets the board from the given states
+    // to the wanted ones. Without a fresh STATUS the stored states can't be
+    // trusted, so every switch with an absolute command gets it regardless.
+    public List<String> collapse(List<DeviceModel> switches, boolean statesKnown) {
+        SceneModel wanted = new SceneModel("OFFLINE", "Offline changes");
+        for (Map.Entry<Integer, Boolean> entry : desiredStates.entrySet()) {
+            wanted.addStep(new SceneModel.Step(entry.getKey(), entry.getValue()));
+        }
+        SceneCompiler.CompiledScene compiled = statesKnown
+                ? SceneCompiler.compile(wanted, switches)
+                : SceneCompiler.compileForUnknownState(wanted, switches);
+
+        List<String> collapsed = new ArrayList<>();
+        for (SceneCompiler.Batch batch : compiled.getBatches()) {
+            collapsed.addAll(batch.getCommands());
+        }
+        for (Map.Entry<Integer, Integer> entry : desiredLevels.entrySet()) {
+            for (DeviceModel device : switches) {
+                if (device.getIndex() == entry.getKey() && device.isDimmable()) {
+                    collapsed.add(device.getLevelCommand(entry.getValue()));
+                }
+            }
+        }
+        collapsed.addAll(commands);
+        return collapsed;
+    }
+
+    // Send the collapsed commands as one write and move the switches to their
+    // wanted states. Returns null, keeping everything, if the link is gone
+    // again by the time this runs.
+    public List<String> flush(CommandTransport transport, List<DeviceModel> switches, boolean statesKnown) {
+        if (!transport.isConnected()) {
+            return null;
+        }
+        List<String> collapsed = collapse(switches, statesKnown);
+        if (!collapsed.isEmpty()) {
+            transport.sendCommands(collapsed);
+        }
+        applyTo(switches);
+        for (DeviceModel device : switches) {
+            device.setPending(false);
+        }
+        clear();
+        return collapsed;
+    }
+
+    public void clear() {
+        desiredStates.clear();
+        desiredLevels.clear();
+        commands.clear();
+        intentCount = 0;
+    }
+
+    public String toJson() {
+        try {
+            JSONObject json = new JSONObject();
+            JSONObject states = new JSONObject();
+            for (Map.Entry<Integer, Boolean> entry : desiredStates.entrySet()) {
+                states.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            JSONObject levels = new JSONObject();
+            for (Map.Entry<Integer, Integer> entry : desiredLevels.entrySet()) {
+                levels.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            JSONArray commandsJson = new JSONArray();
+            for (String command : commands) {
+                commandsJson.put(command);
+            }
+            json.put("states", states);
+            json.put("levels", levels);
+            json.put("commands", commandsJson);
+            json.put("intents", intentCount);
+            return json.toString();
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return "{}";
+        }
+    }
+
+    public static OfflineCommandBuffer fromJson(String jsonStr) {
+        OfflineCommandBuffer buffer = new OfflineCommandBuffer();
+        try {
+            JSONObject json = new JSONObject(jsonStr);
+            JSONObject states = json.optJSONObject("states");
+            if (states != null) {
+                Iterator<String> keys = states.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    buffer.desiredStates.put(Integer.parseInt(key), states.getBoolean(key));
+                }
+            }
+            JSONObject levels = json.optJSONObject("levels");
+            if (levels != null) {
+                Iterator<String> keys = levels.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    buffer.desiredLevels.put(Integer.parseInt(key), levels.getInt(key));
+                }
+            }
+            JSONArray commandsJson = json.optJSONArray("commands");
+            if (commandsJson != null) {
+                for (int i = 0; i < commandsJson.length(); i++) {
+                    buffer.commands.add(commandsJson.getString(i));
+                }
+            }
+            buffer.intentCount = json.optInt("intents", 0);
+        } catch (JSONException | NumberFormatException e) {
+            e.printStackTrace();
+            buffer.clear();
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,288 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Outbound queue in front of the link with one lane per priority class.
+// Frames are written one at a time, paced by how long the serial link needs
+// to carry the previous one, so the radio's buffer never holds a backlog
+// that urgent commands would have to wait behind. Each slot goes to the
+// highest non-empty lane, except that a lower lane passed over SHARE_EVERY
+// times in a row gets the next slot, so polling can't be starved. A link
+// that buffers for itself (TCP) runs UNPACED: frames go out as queued.
+public class OutboundScheduler implements CommandTransport {
+
+    public enum Priority {
+        SAFETY,       // Emergency all-off and the like
+        INTERACTIVE,  // Taps, sliders, scenes, voice
+        BACKGROUND    // Polling and telemetry
+    }
+
+    // HC-05 default: 9600 baud, 10 bits per byte on the wire
+    static final double DEFAULT_MS_PER_BYTE = 10 * 1000.0 / 9600;
+    static final double UNPACED = 0;
+    // A waiting lower lane gets at least one slot in SHARE_EVERY + 1
+    static final int SHARE_EVERY = 4;
+    static final int UNLIMITED_BATCH = Integer.MAX_VALUE;
+
+    private static final Pattern SWITCH_COMMAND = Pattern.compile("^LIGHT(\\d+)_");
+    private static final int ALL_SWITCHES = 0;
+    private static final int NO_SWITCH = -1;
+
+    private static class Frame {
+        final List<String> commands;
+        final long queuedAt;
+
+        Frame(List<String> commands, long queuedAt) {
+            this.commands = commands;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private final CommandTransport link;
+    private final TimeSource clock;
+    private final Scheduler scheduler;
+    private final List<ArrayDeque<Frame>> lanes;
+    private final int[] passedOver = new int[Priority.values().length];
+    private final long[] maxWaitMs = new long[Priority.values().length];
+    private final Runnable dispatchTask = this::dispatch;
+
+    private double msPerByte = DEFAULT_MS_PER_BYTE;
+    private int maxBatch = UNLIMITED_BATCH;
+    private long busyUntil = Long.MIN_VALUE / 2;
+    private long lastWriteAt = Long.MIN_VALUE / 2;
+    private boolean dispatchScheduled = false;
+
+    private int framesSent = 0;
+    private int superseded = 0;
+    private int sharedSlots = 0;
+
+    public OutboundScheduler(CommandTransport link, TimeSource clock, Scheduler scheduler) {
+        this.link = link;
+        this.clock = clock;
+        this.scheduler = scheduler;
+        this.lanes = new ArrayList<>();
+        for (int i = 0; i < Priority.values().length; i++) {
+            lanes.add(new ArrayDeque<>());
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return link.isConnected();
+    }
+
+    // Unlabelled traffic is treated as interactive
+    @Override
+    public void sendCommand(String command) {
+        send(Priority.INTERACTIVE, command);
+    }
+
+    @Override
+    public void sendCommands(List<String> commands) {
+        send(Priority.INTERACTIVE, commands);
+    }
+
+    public void send(Priority priority, String command) {
+        List<String> commands = new ArrayList<>();
+        commands.add(command);
+        send(priority, commands);
+    }
+
+    // Queue one frame. Queued commands in this or a lower lane for the same
+    // switches are dropped first when this one sets their final state; a
+    // toggle doesn't, since dropping another toggle would change the outcome.
+    public void send(Priority priority, List<String> commands) {
+        if (commands.isEmpty() || !link.isConnected()) {
+            return;
+        }
+        for (String command : commands) {
+            if (!command.endsWith("_TOGGLE")) {
+                supersede(priority, switchOf(command));
+            }
+        }
+        long now = clock.currentTimeMillis();
+        for (int from = 0; from < commands.size(); from += maxBatch) {
+            int to = (int) Math.min(commands.size(), (long) from + maxBatch);
+            lanes.get(priority.ordinal()).add(new Frame(new ArrayList<>(commands.subList(from, to)), now));
+        }
+        scheduleDispatch();
+    }
+
+    // Drop everything queued, e.g. when the link goes down
+    public void clear() {
+        for (ArrayDeque<Frame> lane : lanes) {
+            lane.clear();
+        }
+        scheduler.cancel(dispatchTask);
+        dispatchScheduled = false;
+        busyUntil = Long.MIN_VALUE / 2;
+    }
+
+    // Link speed, e.g. from a measured rate; the default fits 9600 baud
+    public void setMsPerByte(double msPerByte) {
+        this.msPerByte = Math.max(UNPACED, msPerByte);
+        if (this.msPerByte == UNPACED) {
+            busyUntil = Long.MIN_VALUE / 2;
+        }
+    }
+
+    public double getMsPerByte() {
+        return msPerByte;
+    }
+
+    // Longer lists are split over several frames, e.g. on a lossy link
+    public void setMaxBatch(int maxBatch) {
+        this.maxBatch = Math.max(1, maxBatch);
+    }
+
+    public int getMaxBatch() {
+        return maxBatch;
+    }
+
+    public int getQueuedFrames() {
+        int count = 0;
+        for (ArrayDeque<Frame> lane : lanes) {
+            count += lane.size();
+        }
+        return count;
+    }
+
+    public int getQueuedFrames(Priority priority) {
+        return lanes.get(priority.ordinal()).size();
+    }
+
+    private void supersede(Priority priority, int switchIndex) {
+        if (switchIndex == NO_SWITCH) {
+            return;
+        }
+        for (int lane = priority.ordinal(); lane < lanes.size(); lane++) {
+            Iterator<Frame> frames = lanes.get(lane).iterator();
+            while (frames.hasNext()) {
+                Frame frame = frames.next();
+                Iterator<String> commands = frame.commands.iterator();
+                while (commands.hasNext()) {
+                    int target = switchOf(commands.next());
+                    if (target != NO_SWITCH
+                            && (switchIndex == ALL_SWITCHES || target == ALL_SWITCHES || target == switchIndex)) {
+                        commands.remove();
+                        superseded++;
+                    }
+                }
+                if (frame.commands.isEmpty()) {
+                    frames.remove();
+                }
+            }
+        }
+    }
+
+    // Switch a command sets, ALL_SWITCHES for ALL_* bulk commands, or
+    // NO_SWITCH for queries and anything else
+    static int switchOf(String command) {
+        if (command.startsWith("ALL_")) {
+            return ALL_SWITCHES;
+        }
+        Matcher matcher = SWITCH_COMMAND.matcher(command);
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : NO_SWITCH;
+    }
+
+    private void scheduleDispatch() {
+        if (dispatchScheduled) {
+            return;
+        }
+        long wait = busyUntil - clock.currentTimeMillis();
+        if (wait <= 0) {
+            dispatch();
+        } else {
+            dispatchScheduled = true;
+            scheduler.postDelayed(dispatchTask, wait);
+        }
+    }
+
+    private void dispatch() {
+        dispatchScheduled = false;
+        Frame frame;
+        while ((frame = next()) != null) {
+            if (link.isConnected()) {
+                link.sendCommands(frame.commands);
+                framesSent++;
+                lastWriteAt = clock.currentTimeMillis();
+            }
+            if (msPerByte == UNPACED) {
+                continue;
+            }
+
+            int bytes = 0;
+            for (String command : frame.commands) {
+                bytes += command.length() + 1;
+            }
+            long now = clock.currentTimeMillis();
+            busyUntil = now + Math.max(1, (long) Math.ceil(bytes * msPerByte));
+            if (getQueuedFrames() > 0) {
+                scheduleDispatch();
+            }
+            return;
+        }
+    }
+
+    private Frame next() {
+        // Safety always goes first and doesn't count against the others' share
+        if (!lanes.get(Priority.SAFETY.ordinal()).isEmpty()) {
+            return take(Priority.SAFETY.ordinal());
+        }
+
+        int chosen = -1;
+        for (int lane = Priority.INTERACTIVE.ordinal(); lane < lanes.size(); lane++) {
+            if (lanes.get(lane).isEmpty()) {
+                continue;
+            }
+            if (chosen < 0) {
+                chosen = lane;
+            } else if (++passedOver[lane] > SHARE_EVERY) {
+                passedOver[lane] = 0;
+                sharedSlots++;
+                return take(lane);
+            }
+        }
+        return chosen < 0 ? null : take(chosen);
+    }
+
+    private Frame take(int lane) {
+        Frame frame = lanes.get(lane).poll();
+        passedOver[lane] = 0;
+        maxWaitMs[lane] = Math.max(maxWaitMs[lane], clock.currentTimeMillis() - frame.queuedAt);
+        return frame;
+    }
+
+    public String getSummary() {
+        return String.format(Locale.US, "%d frames, %d superseded, %d shared slots, %d queued",
+                framesSent, superseded, sharedSlots, getQueuedFrames());
+    }
+
+    // When the last frame went out; replies until shortly after are echoes
+    public long getLastWriteAt() {
+        return lastWriteAt;
+    }
+
+    public int getFramesSent() {
+        return framesSent;
+    }
+
+    public int getSuperseded() {
+        return superseded;
+    }
+
+    public int getSharedSlots() {
+        return sharedSlots;
+    }
+
+    // Longest a frame in this lane has waited before being written
+    public long getMaxWaitMs(Priority priority) {
+        return maxWaitMs[priority.ordinal()];
+    }
+}
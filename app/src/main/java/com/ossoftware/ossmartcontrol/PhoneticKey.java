@@ -0,0 +1,159 @@
+package com.ossoftware.ossmartcontrol;
+
+// Simplified Metaphone: words that sound alike get the same key, so
+// "van"/"fan", "lite"/"light" and "of"/"off" land in the same bucket.
+// Vowels only count at the start of a word and are all coded as 'A'.
+// Unlike Metaphone, voiced/unvoiced pairs recognizers confuse (b/p, d/t,
+// g/k, v/f) share a code, so "lamb"/"lamp" and "bump"/"pump" collide.
+public final class PhoneticKey {
+
+    private PhoneticKey() {
+    }
+
+    public static String encode(String word) {
+        String w = word.toLowerCase();
+        StringBuilder key = new StringBuilder();
+        int length = w.length();
+        if (length == 0) {
+            return "";
+        }
+
+        int start = 0;
+        // Silent leading letters
+        if (w.startsWith("kn") || w.startsWith("gn") || w.startsWith("pn") || w.startsWith("wr")) {
+            start = 1;
+        } else if (w.startsWith("x")) {
+            key.append('S');
+            start = 1;
+        } else if (w.startsWith("wh")) {
+            key.append('W');
+            start = 2;
+        }
+
+        for (int i = start; i < length; i++) {
+            char c = w.charAt(i);
+            char prev = i > 0 ? w.charAt(i - 1) : 0;
+            char next = i + 1 < length ? w.charAt(i + 1) : 0;
+
+            // Doubled letters sound once (except "cc" as in "accent")
+            if (c == prev && c != 'c') {
+                continue;
+            }
+
+            switch (c) {
+                case 'a':
+                case 'e':
+                case 'i':
+                case 'o':
+                case 'u':
+                    if (i == start) {
+                        key.append('A');
+                    }
+                    break;
+                case 'b':
+                    key.append('P');
+                    break;
+                case 'c':
+                    if (next == 'i' || next == 'e' || next == 'y') {
+                        key.append('S');
+                    } else if (next == 'h') {
+                        key.append('X');
+                        i++;
+                    } else if (!(prev == 's' && next == 'k')) {
+                        key.append('K');
+                    }
+                    break;
+                case 'd':
+                    if (next == 'g' && i + 2 < length && "eiy".indexOf(w.charAt(i + 2)) >= 0) {
+                        key.append('J');
+                        i++;
+                    } else {
+                        key.append('T');
+                    }
+                    break;
+                case 'g':
+                    if (next == 'h' && (i + 2 >= length || !isVowel(w.charAt(i + 2)))) {
+                        // "light", "eight": silent
+                        i++;
+                    } else if (next == 'n' && (i + 2 == length || (i + 4 == length && w.endsWith("ned")))) {
+                        // "sign", "signed": silent
+                    } else if (next == 'i' || next == 'e' || next == 'y') {
+                        key.append('J');
+                    } else {
+                        key.append('K');
+                    }
+                    break;
+                case 'h':
+                    // Only sounded before a vowel and not after a modifying consonant
+                    if (isVowel(next) && "csptg".indexOf(prev) < 0) {
+                        key.append('H');
+                    }
+                    break;
+                case 'k':
+                    if (prev != 'c') {
+                        key.append('K');
+                    }
+                    break;
+                case 'p':
+                    if (next == 'h') {
+                        key.append('F');
+                        i++;
+                    } else {
+                        key.append('P');
+                    }
+                    break;
+                case 'q':
+                    key.append('K');
+                    break;
+                case 's':
+                    if (next == 'h') {
+                        key.append('X');
+                        i++;
+                    } else if (next == 'i' && i + 2 < length && (w.charAt(i + 2) == 'o' || w.charAt(i + 2) == 'a')) {
+                        key.append('X');
+                    } else {
+                        key.append('S');
+                    }
+                    break;
+                case 't':
+                    if (next == 'h') {
+                        key.append('0');
+                        i++;
+                    } else if (next == 'i' && i + 2 < length && (w.charAt(i + 2) == 'o' || w.charAt(i + 2) == 'a')) {
+                        key.append('X');
+                    } else if (!(next == 'c' && i + 2 < length && w.charAt(i + 2) == 'h')) {
+                        key.append('T');
+                    }
+                    break;
+                case 'v':
+                    key.append('F');
+                    break;
+                case 'w':
+                case 'y':
+                    if (isVowel(next)) {
+                        key.append(Character.toUpperCase(c));
+                    }
+                    break;
+                case 'x':
+                    key.append("KS");
+                    break;
+                case 'z':
+                    key.append('S');
+                    break;
+                default:
+                    if (Character.isLetter(c)) {
+                        // f, j, l, m, n, r
+                        key.append(Character.toUpperCase(c));
+                    } else if (Character.isDigit(c)) {
+                        key.append(c);
+                    }
+                    break;
+            }
+        }
+        return key.toString();
+    }
+
+    private static boolean isVowel(char c) {
+        return c == 'a' || c == 'e' || c == 'i' || c == 'o' || c == 'u';
+    }
+}
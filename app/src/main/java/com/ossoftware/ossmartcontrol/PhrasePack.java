@@ -0,0 +1,184 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Locale phrase pack: rewrites words and phrases of one language ("বাতি",
+// "চালু করো") into the English tokens the parser understands ("light", "on").
+// Words the pack doesn't know pass through unchanged, so mixed-language
+// utterances and switch names keep working.
+//
+// The pack is a word trie compiled by PhrasePackCompiler and read in place
+// from a (memory-mapped) buffer; nothing is deserialized into objects.
+//
+// Layout, big-endian:
+//   header   magic, locale string id, node count, edge count, string count
+//   nodes    output string id (-1: none), first edge, edge count
+//   edges    label hash, label string id, target node; sorted by hash per node
+//   strings  (count + 1) offsets into the UTF-8 data that follows
+public class PhrasePack {
+
+    static final int MAGIC = 0x56504B31; // "VPK1"
+    static final int HEADER_SIZE = 20;
+    static final int NODE_SIZE = 12;
+    static final int EDGE_SIZE = 12;
+    static final int NO_OUTPUT = -1;
+
+    private final ByteBuffer buffer;
+    private final String locale;
+    private final int nodeCount;
+    private final int edgesStart;
+    private final int offsetsStart;
+    private final int stringsStart;
+
+    private PhrasePack(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.nodeCount = buffer.getInt(8);
+        int edgeCount = buffer.getInt(12);
+        int stringCount = buffer.getInt(16);
+        this.edgesStart = HEADER_SIZE + nodeCount * NODE_SIZE;
+        this.offsetsStart = edgesStart + edgeCount * EDGE_SIZE;
+        this.stringsStart = offsetsStart + (stringCount + 1) * 4;
+        this.locale = string(buffer.getInt(4));
+    }
+
+    public static PhrasePack read(ByteBuffer buffer) {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a phrase pack");
+        }
+        return new PhrasePack(buffer);
+    }
+
+    public String getLocale() {
+        return locale;
+    }
+
+    public int getSizeBytes() {
+        return buffer.capacity();
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    // Normalized utterance in, English-token utterance out. Returns the text
+    // itself when the pack has nothing to rewrite.
+    public String translate(String text) {
+        List<String> words = SwitchGrammar.tokens(SwitchGrammar.normalize(Normalizer.normalize(text, Normalizer.Form.NFC)));
+        List<String> translated = new ArrayList<>(words.size());
+        boolean changed = false;
+
+        int i = 0;
+        while (i < words.size()) {
+            // Longest phrase starting here
+            int node = 0;
+            int matchEnd = -1;
+            int matchOutput = NO_OUTPUT;
+            for (int end = i; end < words.size(); end++) {
+                node = child(node, words.get(end));
+                if (node < 0) {
+                    break;
+                }
+                int output = buffer.getInt(HEADER_SIZE + node * NODE_SIZE);
+                if (output != NO_OUTPUT) {
+                    matchEnd = end;
+                    matchOutput = output;
+                }
+            }
+
+            if (matchEnd >= 0) {
+                String replacement = string(matchOutput);
+                if (!replacement.isEmpty()) {
+                    translated.add(replacement);
+                }
+                i = matchEnd + 1;
+                changed = true;
+            } else {
+                String word = asciiDigits(words.get(i));
+                changed |= !word.equals(words.get(i));
+                translated.add(word);
+                i++;
+            }
+        }
+        return changed ? String.join(" ", translated) : text;
+    }
+
+    private int child(int node, String word) {
+        int nodeOffset = HEADER_SIZE + node * NODE_SIZE;
+        int first = buffer.getInt(nodeOffset + 4);
+        int count = buffer.getInt(nodeOffset + 8);
+        int hash = word.hashCode();
+
+        // Binary search for the first edge with this hash
+        int low = first;
+        int high = first + count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (buffer.getInt(edgesStart + mid * EDGE_SIZE) < hash) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        byte[] bytes = null;
+        for (int edge = low; edge < first + count; edge++) {
+            int edgeOffset = edgesStart + edge * EDGE_SIZE;
+            if (buffer.getInt(edgeOffset) != hash) {
+                break;
+            }
+            if (bytes == null) {
+                bytes = word.getBytes(StandardCharsets.UTF_8);
+            }
+            if (stringEquals(buffer.getInt(edgeOffset + 4), bytes)) {
+                return buffer.getInt(edgeOffset + 8);
+            }
+        }
+        return -1;
+    }
+
+    private boolean stringEquals(int id, byte[] bytes) {
+        int start = buffer.getInt(offsetsStart + id * 4);
+        int end = buffer.getInt(offsetsStart + (id + 1) * 4);
+        if (end - start != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(stringsStart + start + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String string(int id) {
+        int start = buffer.getInt(offsetsStart + id * 4);
+        int end = buffer.getInt(offsetsStart + (id + 1) * 4);
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(stringsStart + start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Recognizers may write numbers in the locale's digits ("১২")
+    private static String asciiDigits(String word) {
+        StringBuilder digits = null;
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (!Character.isDigit(c)) {
+                return word;
+            }
+            if (c > '9' && digits == null) {
+                digits = new StringBuilder(word.substring(0, i));
+            }
+            if (digits != null) {
+                digits.append(Character.forDigit(Character.digit(c, 10), 10));
+            }
+        }
+        return digits != null ? digits.toString() : word;
+    }
+}
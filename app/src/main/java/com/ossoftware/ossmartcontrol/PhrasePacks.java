@@ -0,0 +1,85 @@
+package com.ossoftware.ossmartcontrol;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+// Loads the phrase pack for the active locale from assets/voice. Only that
+// pack is ever opened, and only when the voice parser is first built. Packs
+// are stored uncompressed in the APK so they can be memory-mapped: lookups
+// page in the few KB they touch instead of copying the pack onto the heap.
+public final class PhrasePacks {
+
+    private static final String TAG = "PhrasePacks";
+    private static final String ASSET_DIR = "voice/";
+
+    private static String loadedLanguage;
+    private static PhrasePack loadedPack;
+
+    private PhrasePacks() {
+    }
+
+    // Pack for the locale's language, or null if none is shipped
+    public static synchronized PhrasePack forLocale(Context context, Locale locale) {
+        String language = locale.getLanguage();
+        if (language.equals(loadedLanguage)) {
+            return loadedPack;
+        }
+
+        Trace.beginSection("Voice.loadPhrasePack");
+        try {
+            loadedPack = load(context, ASSET_DIR + language + ".pack");
+            loadedLanguage = language;
+            if (loadedPack != null) {
+                Log.d(TAG, "Loaded " + language + " phrase pack (" + loadedPack.getSizeBytes() + " bytes)");
+            }
+            return loadedPack;
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    private static PhrasePack load(Context context, String assetPath) {
+        try (AssetFileDescriptor descriptor = context.getAssets().openFd(assetPath);
+             FileInputStream input = descriptor.createInputStream()) {
+            ByteBuffer mapped = input.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    descriptor.getStartOffset(), descriptor.getLength());
+            return PhrasePack.read(mapped);
+        } catch (FileNotFoundException e) {
+            // Either no pack for this language or it was compressed: try reading it
+            return read(context, assetPath);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Bad phrase pack " + assetPath, e);
+            return null;
+        }
+    }
+
+    private static PhrasePack read(Context context, String assetPath) {
+        try (InputStream input = context.getAssets().open(assetPath)) {
+            byte[] bytes = new byte[input.available()];
+            int read = 0;
+            while (read < bytes.length) {
+                int count = input.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            return PhrasePack.read(ByteBuffer.wrap(bytes, 0, read).slice());
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Bad phrase pack " + assetPath, e);
+            return null;
+        }
+    }
+}
@@ -3,25 +3,55 @@ package com.ossoftware.ossmartcontrol;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class PreferencesManager {
 
     private static final String PREF_NAME = "SmartHomePrefs";
     private static final String KEY_DEVICES = "devices";
     private static final String KEY_FIRST_RUN = "first_run";
+    private static final String KEY_SCENES = "scenes";
+    private static final String KEY_LAST_DEVICE_NAME = "last_device_name";
+    private static final String KEY_LAST_DEVICE_MAC = "last_device_mac";
+    private static final String KEY_AUTOMATIONS = "automations";
+    private static final String KEY_AUTOMATION_LAST_RUN = "automation_last_run";
+    private static final String KEY_AUTOMATION_REPORTS = "automation_reports";
+    private static final String KEY_LOCATION_LAT = "location_lat";
+    private static final String KEY_LOCATION_LON = "location_lon";
+    private static final String KEY_VOICE_CORRECTIONS = "voice_corrections";
+    private static final String KEY_SPOKEN_CONFIRMATIONS = "spoken_confirmations";
+    private static final String KEY_OFFLINE_BUFFERING = "offline_buffering";
+    private static final String KEY_OFFLINE_BUFFER = "offline_buffer";
+    private static final String KEY_BINARY_FRAMING = "binary_framing";
+    private static final String KEY_HEARTBEAT_INTERVAL = "heartbeat_interval";
+    private static final String KEY_HEARTBEAT_MISSES = "heartbeat_misses";
+    private static final String KEY_BOARD_CAPABILITIES = "board_capabilities";
+    private static final String KEY_IDLE_TIMEOUT = "idle_timeout";
+    private static final String KEY_BOARD_AUTOMATIONS = "board_automations";
+    private static final String KEY_BOARD_RULE_IDS = "board_rule_ids";
+
+    private static final int MAX_AUTOMATION_REPORTS = 20;
 
     private SharedPreferences sharedPreferences;
 
     public PreferencesManager(Context context) {
+        // Only starts reading the file; the first get() blocks until it's loaded,
+        // so constructing this on the main thread stays cheap
         sharedPreferences = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+    }
 
-        // Check if first run
+    // Deferred from the constructor so it runs wherever devices are first loaded
+    private synchronized void createDefaultsIfFirstRun() {
         if (sharedPreferences.getBoolean(KEY_FIRST_RUN, true)) {
             // Create default switches for first run
             createDefaultSwitches();
@@ -44,6 +74,7 @@ public class PreferencesManager {
 
     // Load all devices
     public Map<String, DeviceModel> loadDevices() {
+        createDefaultsIfFirstRun();
         String jsonStr = sharedPreferences.getString(KEY_DEVICES, "");
 
         if (jsonStr.isEmpty()) {
@@ -71,6 +102,198 @@ public class PreferencesManager {
         }
     }
 
+    // Save all scenes
+    public void saveScenes(List<SceneModel> scenes) {
+        try {
+            JSONObject scenesJson = new JSONObject();
+            for (SceneModel scene : scenes) {
+                scenesJson.put(scene.getId(), scene.toJson());
+            }
+            sharedPreferences.edit().putString(KEY_SCENES, scenesJson.toString()).apply();
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Load all scenes
+    public List<SceneModel> loadScenes() {
+        String jsonStr = sharedPreferences.getString(KEY_SCENES, "");
+        List<SceneModel> scenes = new ArrayList<>();
+
+        if (jsonStr.isEmpty()) {
+            return scenes;
+        }
+
+        try {
+            JSONObject scenesJson = new JSONObject(jsonStr);
+
+            Iterator<String> keys = scenesJson.keys();
+            while (keys.hasNext()) {
+                SceneModel scene = SceneModel.fromJson(scenesJson.getString(keys.next()));
+                if (scene != null) {
+                    scenes.add(scene);
+                }
+            }
+
+            // Keep a stable order (ids are creation timestamps)
+            scenes.sort((s1, s2) -> s1.getId().compareTo(s2.getId()));
+            return scenes;
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        }
+    }
+
+    // Switches only, sorted by index
+    public List<DeviceModel> loadSwitches() {
+        List<DeviceModel> switches = new ArrayList<>();
+        for (Map.Entry<String, DeviceModel> entry : loadDevices().entrySet()) {
+            if (entry.getKey().startsWith("SWITCH_")) {
+                switches.add(entry.getValue());
+            }
+        }
+        switches.sort((d1, d2) -> Integer.compare(d1.getIndex(), d2.getIndex()));
+        return switches;
+    }
+
+    // Last connected controller
+    public void saveLastDevice(String name, String mac) {
+        sharedPreferences.edit()
+                .putString(KEY_LAST_DEVICE_NAME, name)
+                .putString(KEY_LAST_DEVICE_MAC, mac)
+                .apply();
+    }
+
+    public String getLastDeviceName() {
+        return sharedPreferences.getString(KEY_LAST_DEVICE_NAME, "");
+    }
+
+    public String getLastDeviceMac() {
+        return sharedPreferences.getString(KEY_LAST_DEVICE_MAC, "");
+    }
+
+    // Save all automations
+    public void saveAutomations(List<AutomationRule> rules) {
+        try {
+            JSONObject rulesJson = new JSONObject();
+            for (AutomationRule rule : rules) {
+                rulesJson.put(rule.getId(), rule.toJson());
+            }
+            sharedPreferences.edit().putString(KEY_AUTOMATIONS, rulesJson.toString()).apply();
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Load all automations
+    public List<AutomationRule> loadAutomations() {
+        String jsonStr = sharedPreferences.getString(KEY_AUTOMATIONS, "");
+        List<AutomationRule> rules = new ArrayList<>();
+
+        if (jsonStr.isEmpty()) {
+            return rules;
+        }
+
+        try {
+            JSONObject rulesJson = new JSONObject(jsonStr);
+
+            Iterator<String> keys = rulesJson.keys();
+            while (keys.hasNext()) {
+                AutomationRule rule = AutomationRule.fromJson(rulesJson.getString(keys.next()));
+                if (rule != null) {
+                    rules.add(rule);
+                }
+            }
+
+            rules.sort((r1, r2) -> r1.getId().compareTo(r2.getId()));
+            return rules;
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        }
+    }
+
+    // Automations the phone fires itself; the controller's program runs the rest
+    public List<AutomationRule> loadPhoneAutomations() {
+        List<AutomationRule> rules = loadAutomations();
+        Set<String> onBoard = getBoardRuleIds();
+        rules.removeIf(rule -> onBoard.contains(rule.getId()));
+        return rules;
+    }
+
+    public boolean isBoardAutomationsEnabled() {
+        return sharedPreferences.getBoolean(KEY_BOARD_AUTOMATIONS, false);
+    }
+
+    public void setBoardAutomationsEnabled(boolean enabled) {
+        sharedPreferences.edit().putBoolean(KEY_BOARD_AUTOMATIONS, enabled).apply();
+    }
+
+    // Rules the last controller confirmed it holds in EEPROM
+    public Set<String> getBoardRuleIds() {
+        return new HashSet<>(sharedPreferences.getStringSet(KEY_BOARD_RULE_IDS, new HashSet<>()));
+    }
+
+    public void setBoardRuleIds(Set<String> ruleIds) {
+        sharedPreferences.edit().putStringSet(KEY_BOARD_RULE_IDS, new HashSet<>(ruleIds)).apply();
+    }
+
+    // Everything up to this time has been handled by a previous automation session
+    public long getAutomationLastRun() {
+        return sharedPreferences.getLong(KEY_AUTOMATION_LAST_RUN, 0);
+    }
+
+    public void setAutomationLastRun(long time) {
+        sharedPreferences.edit().putLong(KEY_AUTOMATION_LAST_RUN, time).apply();
+    }
+
+    // Reports from background automation runs, shown in the log on next launch
+    public void addAutomationReport(String report) {
+        try {
+            JSONArray reports = new JSONArray(sharedPreferences.getString(KEY_AUTOMATION_REPORTS, "[]"));
+            JSONArray trimmed = new JSONArray();
+            int start = Math.max(0, reports.length() - (MAX_AUTOMATION_REPORTS - 1));
+            for (int i = start; i < reports.length(); i++) {
+                trimmed.put(reports.getString(i));
+            }
+            trimmed.put(report);
+            sharedPreferences.edit().putString(KEY_AUTOMATION_REPORTS, trimmed.toString()).apply();
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public List<String> takeAutomationReports() {
+        List<String> result = new ArrayList<>();
+        try {
+            JSONArray reports = new JSONArray(sharedPreferences.getString(KEY_AUTOMATION_REPORTS, "[]"));
+            for (int i = 0; i < reports.length(); i++) {
+                result.add(reports.getString(i));
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        sharedPreferences.edit().remove(KEY_AUTOMATION_REPORTS).apply();
+        return result;
+    }
+
+    // Location used for sunrise/sunset automations
+    public void saveLocation(double latitude, double longitude) {
+        sharedPreferences.edit()
+                .putFloat(KEY_LOCATION_LAT, (float) latitude)
+                .putFloat(KEY_LOCATION_LON, (float) longitude)
+                .apply();
+    }
+
+    public SolarCalculator getSolarCalculator() {
+        if (!sharedPreferences.contains(KEY_LOCATION_LAT)) {
+            return null;
+        }
+        return new SolarCalculator(
+                sharedPreferences.getFloat(KEY_LOCATION_LAT, 0),
+                sharedPreferences.getFloat(KEY_LOCATION_LON, 0));
+    }
+
     // Create default switches
     private void createDefaultSwitches() {
         Map<String, DeviceModel> devices = new HashMap<>();
@@ -115,4 +338,118 @@ public class PreferencesManager {
 
         saveDevices(devices);
     }
-}
\ No newline at end of file
+
+    public boolean isSpokenConfirmationsEnabled() {
+        return sharedPreferences.getBoolean(KEY_SPOKEN_CONFIRMATIONS, true);
+    }
+
+    public void setSpokenConfirmationsEnabled(boolean enabled) {
+        sharedPreferences.edit().putBoolean(KEY_SPOKEN_CONFIRMATIONS, enabled).apply();
+    }
+
+    public boolean isOfflineBufferingEnabled() {
+        return sharedPreferences.getBoolean(KEY_OFFLINE_BUFFERING, false);
+    }
+
+    public void setOfflineBufferingEnabled(boolean enabled) {
+        sharedPreferences.edit().putBoolean(KEY_OFFLINE_BUFFERING, enabled).apply();
+    }
+
+    public boolean isBinaryFramingEnabled() {
+        return sharedPreferences.getBoolean(KEY_BINARY_FRAMING, false);
+    }
+
+    public void setBinaryFramingEnabled(boolean enabled) {
+        sharedPreferences.edit().putBoolean(KEY_BINARY_FRAMING, enabled).apply();
+    }
+
+    public long getHeartbeatIntervalMs() {
+        return sharedPreferences.getLong(KEY_HEARTBEAT_INTERVAL, LinkMonitor.DEFAULT_INTERVAL_MS);
+    }
+
+    public int getHeartbeatMisses() {
+        return sharedPreferences.getInt(KEY_HEARTBEAT_MISSES, LinkMonitor.DEFAULT_MISSES_TO_DEAD);
+    }
+
+    public void setHeartbeat(long intervalMs, int misses) {
+        sharedPreferences.edit()
+                .putLong(KEY_HEARTBEAT_INTERVAL, intervalMs)
+                .putInt(KEY_HEARTBEAT_MISSES, misses)
+                .apply();
+    }
+
+    public long getIdleTimeoutMs() {
+        return sharedPreferences.getLong(KEY_IDLE_TIMEOUT, IdleLinkPolicy.DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    public void setIdleTimeoutMs(long idleTimeoutMs) {
+        sharedPreferences.edit().putLong(KEY_IDLE_TIMEOUT, idleTimeoutMs).apply();
+    }
+
+    // What each controller's firmware said it understands, by MAC
+    public void saveCapabilities(String mac, BoardCapabilities capabilities) {
+        try {
+            JSONObject all = new JSONObject(sharedPreferences.getString(KEY_BOARD_CAPABILITIES, "{}"));
+            all.put(mac, capabilities.toJson());
+            sharedPreferences.edit().putString(KEY_BOARD_CAPABILITIES, all.toString()).apply();
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Null when this controller hasn't been asked yet
+    public BoardCapabilities loadCapabilities(String mac) {
+        try {
+            JSONObject all = new JSONObject(sharedPreferences.getString(KEY_BOARD_CAPABILITIES, "{}"));
+            String jsonStr = all.optString(mac, "");
+            return jsonStr.isEmpty() ? null : BoardCapabilities.fromJson(jsonStr);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Changes made while out of range, kept across service restarts
+    public void saveOfflineBuffer(OfflineCommandBuffer buffer) {
+        if (buffer.isEmpty()) {
+            sharedPreferences.edit().remove(KEY_OFFLINE_BUFFER).apply();
+        } else {
+            sharedPreferences.edit().putString(KEY_OFFLINE_BUFFER, buffer.toJson()).apply();
+        }
+    }
+
+    public OfflineCommandBuffer loadOfflineBuffer() {
+        String jsonStr = sharedPreferences.getString(KEY_OFFLINE_BUFFER, "");
+        if (jsonStr.isEmpty()) {
+            return new OfflineCommandBuffer();
+        }
+        return OfflineCommandBuffer.fromJson(jsonStr);
+    }
+
+    // Utterance -> command the user taught after a misparse
+    public void saveVoiceCorrections(Map<String, String> corrections) {
+        sharedPreferences.edit()
+                .putString(KEY_VOICE_CORRECTIONS, new JSONObject(corrections).toString())
+                .apply();
+    }
+
+    public Map<String, String> loadVoiceCorrections() {
+        Map<String, String> corrections = new HashMap<>();
+        String jsonStr = sharedPreferences.getString(KEY_VOICE_CORRECTIONS, "");
+        if (jsonStr.isEmpty()) {
+            return corrections;
+        }
+
+        try {
+            JSONObject json = new JSONObject(jsonStr);
+            Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                String utterance = keys.next();
+                corrections.put(utterance, json.getString(utterance));
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return corrections;
+    }
+}
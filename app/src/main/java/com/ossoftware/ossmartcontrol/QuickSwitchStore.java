@@ -0,0 +1,83 @@
+package com.ossoftware.ossmartcontrol;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Small flat store for pinned switches, written by ControllerService and read
+// by the Quick Settings tiles and the widget. Kept separate from the device
+// JSON so a tile can render without parsing every saved switch.
+public class QuickSwitchStore {
+
+    private static final String PREFS_NAME = "QuickSwitches";
+    private static final String KEY_PINNED = "pinned";
+    private static final String KEY_CONNECTED = "connected";
+
+    private final SharedPreferences prefs;
+
+    public QuickSwitchStore(Context context) {
+        prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    // Returns true when anything a tile or widget shows has changed
+    public boolean update(List<DeviceModel> switches, boolean connected) {
+        StringBuilder pinned = new StringBuilder();
+        for (DeviceModel device : switches) {
+            if (device.isPinned()) {
+                if (pinned.length() > 0) {
+                    pinned.append(",");
+                }
+                pinned.append(device.getIndex());
+            }
+        }
+
+        boolean changed = !pinned.toString().equals(prefs.getString(KEY_PINNED, ""))
+                || prefs.getBoolean(KEY_CONNECTED, false) != connected;
+
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putString(KEY_PINNED, pinned.toString());
+        editor.putBoolean(KEY_CONNECTED, connected);
+        for (DeviceModel device : switches) {
+            if (!device.isPinned()) {
+                continue;
+            }
+            int index = device.getIndex();
+            if (!device.getName().equals(getName(index)) || device.isOn() != isOn(index)) {
+                changed = true;
+            }
+            editor.putString("name_" + index, device.getName());
+            editor.putBoolean("on_" + index, device.isOn());
+        }
+        editor.apply();
+        return changed;
+    }
+
+    public List<Integer> getPinnedIndexes() {
+        List<Integer> indexes = new ArrayList<>();
+        String pinned = prefs.getString(KEY_PINNED, "");
+        if (pinned.isEmpty()) {
+            return indexes;
+        }
+        for (String part : pinned.split(",")) {
+            try {
+                indexes.add(Integer.parseInt(part));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return indexes;
+    }
+
+    public String getName(int switchIndex) {
+        return prefs.getString("name_" + switchIndex, "Switch " + switchIndex);
+    }
+
+    public boolean isOn(int switchIndex) {
+        return prefs.getBoolean("on_" + switchIndex, false);
+    }
+
+    public boolean isConnected() {
+        return prefs.getBoolean(KEY_CONNECTED, false);
+    }
+}
@@ -0,0 +1,199 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Sits between the outbound queue and the link and decides which state
+// replies are still current. Firmware that answers the SEQ_ON handshake gets
+// LIGHTn_ON/OFF/TOGGLE commands tagged "#seq" and echoes the tag back, so a
+// reply to anything but the newest command for a switch is dropped. Plain
+// firmware is handled by counting replies still owed per switch and the state
+// the board should end up in: while replies are owed, only one matching that
+// state is taken. Either way a switch with nothing owed accepts anything,
+// which is how IR and wall switch changes get through.
+public class ReplySequencer implements CommandTransport {
+
+    public static final String HANDSHAKE = "SEQ_ON";
+    public static final String HANDSHAKE_REPLY = "SEQ:ON";
+
+    // Replies lost or never sent stop holding the switch after this long
+    static final long SETTLE_TIMEOUT_MS = 1500;
+    private static final int SEQ_MODULO = 256;
+
+    private static final Pattern STATE_COMMAND = Pattern.compile("^LIGHT(\\d+)_(ON|OFF|TOGGLE)$");
+    private static final Pattern SEQ_SUFFIX = Pattern.compile("#(\\d+)$");
+
+    private static class SwitchClock {
+        int lastSeq = -1;
+        int owed = 0;
+        long lastSentAt = 0;
+        Boolean expected = null; // Where the board ends up once owed replies are in
+    }
+
+    private final CommandTransport link;
+    private final TimeSource clock;
+    private final Map<Integer, SwitchClock> switches = new HashMap<>();
+
+    private boolean sequenced = false;
+    private int nextSeq = 1;
+    private int accepted = 0;
+    private int dropped = 0;
+
+    public ReplySequencer(CommandTransport link, TimeSource clock) {
+        this.link = link;
+        this.clock = clock;
+    }
+
+    // After the board answered the handshake
+    public void setSequenced(boolean sequenced) {
+        this.sequenced = sequenced;
+    }
+
+    public boolean isSequenced() {
+        return sequenced;
+    }
+
+    // New connection: back to plain text until the handshake says otherwise
+    public void reset() {
+        sequenced = false;
+        switches.clear();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return link.isConnected();
+    }
+
+    @Override
+    public void sendCommand(String command) {
+        List<String> commands = new ArrayList<>();
+        commands.add(command);
+        sendCommands(commands);
+    }
+
+    @Override
+    public void sendCommands(List<String> commands) {
+        List<String> tagged = new ArrayList<>(commands.size());
+        for (String command : commands) {
+            tagged.add(track(command));
+        }
+        link.sendCommands(tagged);
+    }
+
+    private String track(String command) {
+        Matcher matcher = STATE_COMMAND.matcher(command);
+        if (!matcher.matches()) {
+            return command;
+        }
+
+        SwitchClock state = clockFor(Integer.parseInt(matcher.group(1)));
+        String action = matcher.group(2);
+        if (action.equals("TOGGLE")) {
+            state.expected = state.expected == null ? null : !state.expected;
+        } else {
+            state.expected = action.equals("ON");
+        }
+        state.owed++;
+        state.lastSentAt = clock.currentTimeMillis();
+
+        if (!sequenced) {
+            return command;
+        }
+        state.lastSeq = nextSeq;
+        nextSeq = nextSeq % (SEQ_MODULO - 1) + 1;
+        return command + "#" + state.lastSeq;
+    }
+
+    // LIGHTn:ON / LIGHTn:OFF, possibly tagged; false when it is stale
+    public boolean accept(int switchIndex, boolean isOn, String message) {
+        SwitchClock state = clockFor(switchIndex);
+        int seq = seqOf(message);
+        boolean settled = isSettled(state);
+        boolean take;
+
+        if (sequenced && seq >= 0) {
+            // Anything older than the newest command for the switch is superseded
+            take = state.lastSeq < 0 || !isBefore(seq, state.lastSeq);
+            if (seq == state.lastSeq) {
+                state.owed = 0;
+            }
+        } else {
+            // Untagged lines from a sequenced board are its own changes, not replies
+            if (!sequenced && state.owed > 0) {
+                state.owed--;
+            }
+            if (state.expected != null) {
+                take = settled || state.expected == isOn;
+            } else {
+                // Toggles from an unknown state: only the last reply owed counts
+                take = isSettled(state);
+            }
+        }
+
+        if (take) {
+            accepted++;
+            if (isSettled(state)) {
+                state.expected = isOn;
+            }
+        } else {
+            dropped++;
+        }
+        return take;
+    }
+
+    // A STATUS snapshot may predate commands still owed a reply
+    public boolean isSettled(int switchIndex) {
+        SwitchClock state = switches.get(switchIndex);
+        return state == null || isSettled(state);
+    }
+
+    private boolean isSettled(SwitchClock state) {
+        if (state.owed > 0 && clock.currentTimeMillis() - state.lastSentAt > SETTLE_TIMEOUT_MS) {
+            state.owed = 0;
+        }
+        return state.owed == 0;
+    }
+
+    private SwitchClock clockFor(int switchIndex) {
+        SwitchClock state = switches.get(switchIndex);
+        if (state == null) {
+            state = new SwitchClock();
+            switches.put(switchIndex, state);
+        }
+        return state;
+    }
+
+    // Serial number order, so the 8-bit counter can wrap
+    static boolean isBefore(int a, int b) {
+        int distance = (b - a + SEQ_MODULO) % SEQ_MODULO;
+        return distance != 0 && distance < SEQ_MODULO / 2;
+    }
+
+    // The "#n" a sequenced board appends to a reply, or -1
+    static int seqOf(String message) {
+        Matcher matcher = SEQ_SUFFIX.matcher(message.trim());
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : -1;
+    }
+
+    static String stripSeq(String text) {
+        return SEQ_SUFFIX.matcher(text).replaceFirst("");
+    }
+
+    public int getAccepted() {
+        return accepted;
+    }
+
+    public int getDropped() {
+        return dropped;
+    }
+
+    public String getSummary() {
+        return String.format(Locale.US, "%s, %d replies, %d stale dropped",
+                sequenced ? "sequenced" : "heuristic", accepted + dropped, dropped);
+    }
+}
@@ -0,0 +1,122 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Turns a scene into the smallest set of commands needed to reach it from
+// the current switch states. Steps are grouped into batches split at delays,
+// so each batch can go out as one write.
+public class SceneCompiler {
+
+    public static class Batch {
+        private final long delayMs;
+        private final List<String> commands = new ArrayList<>();
+        private final Map<Integer, Boolean> targetStates = new LinkedHashMap<>();
+
+        Batch(long delayMs) {
+            this.delayMs = delayMs;
+        }
+
+        // Delay relative to the previous batch
+        public long getDelayMs() {
+            return delayMs;
+        }
+
+        public List<String> getCommands() {
+            return commands;
+        }
+
+        // Switch index -> state after this batch has been sent
+        public Map<Integer, Boolean> getTargetStates() {
+            return targetStates;
+        }
+    }
+
+    public static class CompiledScene {
+        private final List<Batch> batches = new ArrayList<>();
+
+        public List<Batch> getBatches() {
+            return batches;
+        }
+
+        public int getCommandCount() {
+            int count = 0;
+            for (Batch batch : batches) {
+                count += batch.commands.size();
+            }
+            return count;
+        }
+
+        public boolean isEmpty() {
+            return batches.isEmpty();
+        }
+    }
+
+    public static CompiledScene compile(SceneModel scene, List<DeviceModel> switches) {
+        return compile(scene, switches, false);
+    }
+
+    // For a fresh link where the stored states may be stale: every step with an
+    // absolute command is sent. Toggle-only switches still rely on the stored state.
+    public static CompiledScene compileForUnknownState(SceneModel scene, List<DeviceModel> switches) {
+        return compile(scene, switches, true);
+    }
+
+    private static CompiledScene compile(SceneModel scene, List<DeviceModel> switches, boolean stateUnknown) {
+        Map<Integer, DeviceModel> byIndex = new HashMap<>();
+        Map<Integer, Boolean> projected = new HashMap<>();
+        for (DeviceModel device : switches) {
+            byIndex.put(device.getIndex(), device);
+            projected.put(device.getIndex(), device.isOn());
+        }
+
+        // Switches commanded by this scene have a known state even on a fresh link
+        Set<Integer> commanded = new HashSet<>();
+
+        CompiledScene compiled = new CompiledScene();
+        Batch current = null;
+        long pendingDelay = 0;
+
+        for (SceneModel.Step step : scene.getSteps()) {
+            pendingDelay += step.getDelayMs();
+
+            DeviceModel device = byIndex.get(step.getSwitchIndex());
+            if (device == null) {
+                continue;
+            }
+
+            String command = device.getAbsoluteCommand(step.isTurnOn());
+
+            // Already in the wanted state - nothing to send
+            Boolean state = projected.get(step.getSwitchIndex());
+            boolean trusted = !stateUnknown || command == null || commanded.contains(step.getSwitchIndex());
+            if (state != null && state == step.isTurnOn() && trusted) {
+                continue;
+            }
+            if (command == null) {
+                // Firmware only knows the toggle; safe because we know the state differs
+                command = device.getToggleCommand();
+            }
+
+            if (current == null || pendingDelay > 0) {
+                // A leading delay is kept: a scene may start with a wait (a sleep
+                // timer), and steps elided before it still count towards it
+                current = new Batch(pendingDelay);
+                compiled.batches.add(current);
+                pendingDelay = 0;
+            }
+
+            current.commands.add(command);
+            current.targetStates.put(step.getSwitchIndex(), step.isTurnOn());
+            projected.put(step.getSwitchIndex(), step.isTurnOn());
+            commanded.add(step.getSwitchIndex());
+        }
+
+        return compiled;
+    }
+}
@@ -0,0 +1,96 @@
+package com.ossoftware.ossmartcontrol;
+
+import android.content.Context;
+import android.text.InputType;
+import android.widget.EditText;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AlertDialog;
+
+import java.util.List;
+
+public class SceneDialogManager {
+
+    private Context context;
+    private SceneDialogListener dialogListener;
+
+    public interface SceneDialogListener {
+        void onSceneActivateRequested(SceneModel scene);
+
+        void onSceneSaveRequested(String name);
+
+        void onSceneDeleteRequested(SceneModel scene);
+
+        void onSceneShortcutRequested(SceneModel scene);
+    }
+
+    public SceneDialogManager(Context context, SceneDialogListener listener) {
+        this.context = context;
+        this.dialogListener = listener;
+    }
+
+    public void showScenesDialog(List<SceneModel> scenes) {
+        String[] items = new String[scenes.size() + 1];
+        for (int i = 0; i < scenes.size(); i++) {
+            items[i] = scenes.get(i).getName();
+        }
+        items[scenes.size()] = "+ Save current switches as scene";
+
+        new AlertDialog.Builder(context)
+                .setTitle("Scenes")
+                .setItems(items, (dialog, which) -> {
+                    if (which == scenes.size()) {
+                        showSaveSceneDialog();
+                    } else {
+                        showSceneOptions(scenes.get(which));
+                    }
+                })
+                .setNegativeButton("Close", null)
+                .show();
+    }
+
+    public void showSceneOptions(SceneModel scene) {
+        new AlertDialog.Builder(context)
+                .setTitle(scene.getName())
+                .setMessage(scene.getSteps().size() + " switch(es) in this scene")
+                .setPositiveButton("Activate", (dialog, which) -> {
+                    if (dialogListener != null) {
+                        dialogListener.onSceneActivateRequested(scene);
+                    }
+                })
+                .setNeutralButton("Add to Home", (dialog, which) -> {
+                    if (dialogListener != null) {
+                        dialogListener.onSceneShortcutRequested(scene);
+                    }
+                })
+                .setNegativeButton("Delete", (dialog, which) -> {
+                    if (dialogListener != null) {
+                        dialogListener.onSceneDeleteRequested(scene);
+                    }
+                })
+                .show();
+    }
+
+    public void showSaveSceneDialog() {
+        EditText etSceneName = new EditText(context);
+        etSceneName.setHint("e.g. Movie mode");
+        etSceneName.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_CAP_SENTENCES);
+
+        new AlertDialog.Builder(context)
+                .setTitle("Save Scene")
+                .setMessage("The current state of every switch will be saved")
+                .setView(etSceneName)
+                .setPositiveButton("Save", (dialog, which) -> {
+                    String name = etSceneName.getText().toString().trim();
+                    if (name.isEmpty()) {
+                        Toast.makeText(context, "Please enter scene name", Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    if (dialogListener != null) {
+                        dialogListener.onSceneSaveRequested(name);
+                    }
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+}
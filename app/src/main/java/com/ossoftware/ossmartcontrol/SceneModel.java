@@ -0,0 +1,137 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SceneModel {
+    private String id;
+    private String name;
+    private List<Step> steps;
+
+    // One target state in a scene, applied after an optional delay
+    public static class Step {
+        private int switchIndex;
+        private boolean turnOn;
+        private long delayMs;
+
+        public Step(int switchIndex, boolean turnOn) {
+            this(switchIndex, turnOn, 0);
+        }
+
+        public Step(int switchIndex, boolean turnOn, long delayMs) {
+            this.switchIndex = switchIndex;
+            this.turnOn = turnOn;
+            this.delayMs = delayMs;
+        }
+
+        public int getSwitchIndex() {
+            return switchIndex;
+        }
+
+        public boolean isTurnOn() {
+            return turnOn;
+        }
+
+        public long getDelayMs() {
+            return delayMs;
+        }
+    }
+
+    // Default constructor
+    public SceneModel() {
+        this.steps = new ArrayList<>();
+    }
+
+    public SceneModel(String id, String name) {
+        this.id = id;
+        this.name = name;
+        this.steps = new ArrayList<>();
+    }
+
+    // Build a scene that captures the current state of every switch
+    public static SceneModel fromCurrentState(String name, List<DeviceModel> switches) {
+        SceneModel scene = new SceneModel("SCENE_" + System.currentTimeMillis(), name);
+        for (DeviceModel device : switches) {
+            scene.addStep(new Step(device.getIndex(), device.isOn()));
+        }
+        return scene;
+    }
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    // Steps are kept in execution order
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    public void addStep(Step step) {
+        steps.add(step);
+    }
+
+    // Convert to JSON string
+    public String toJson() {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("name", name);
+
+            JSONArray stepsJson = new JSONArray();
+            for (Step step : steps) {
+                JSONObject stepJson = new JSONObject();
+                stepJson.put("switchIndex", step.switchIndex);
+                stepJson.put("turnOn", step.turnOn);
+                stepJson.put("delayMs", step.delayMs);
+                stepsJson.put(stepJson);
+            }
+            json.put("steps", stepsJson);
+            return json.toString();
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return "{}";
+        }
+    }
+
+    // Create from JSON string
+    public static SceneModel fromJson(String jsonStr) {
+        try {
+            JSONObject json = new JSONObject(jsonStr);
+            SceneModel scene = new SceneModel();
+            scene.setId(json.optString("id", ""));
+            scene.setName(json.optString("name", ""));
+
+            JSONArray stepsJson = json.optJSONArray("steps");
+            if (stepsJson != null) {
+                for (int i = 0; i < stepsJson.length(); i++) {
+                    JSONObject stepJson = stepsJson.getJSONObject(i);
+                    scene.addStep(new Step(
+                            stepJson.optInt("switchIndex", 0),
+                            stepJson.optBoolean("turnOn", false),
+                            stepJson.optLong("delayMs", 0)));
+                }
+            }
+            return scene;
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
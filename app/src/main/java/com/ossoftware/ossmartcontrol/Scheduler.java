@@ -0,0 +1,10 @@
+package com.ossoftware.ossmartcontrol;
+
+// Delayed tasks on the caller's thread, a main-looper Handler in the app,
+// so timing logic can run on a virtual clock in unit tests
+public interface Scheduler {
+
+    void postDelayed(Runnable task, long delayMs);
+
+    void cancel(Runnable task);
+}
@@ -0,0 +1,80 @@
+package com.ossoftware.ossmartcontrol;
+
+// Local sunrise/sunset using the standard sunrise equation (accurate to a couple of minutes)
+public class SolarCalculator {
+
+    private static final double J2000 = 2451545.0;
+    private static final double UNIX_EPOCH_JD = 2440587.5;
+    private static final long DAY_MS = 86400000L;
+
+    private final double latitude;
+    private final double longitude; // East positive
+
+    public SolarCalculator(double latitude, double longitude) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    // UTC millis of sunrise for the given calendar date, or -1 during polar day/night
+    public long sunrise(int year, int month, int day) {
+        return eventTime(year, month, day, true);
+    }
+
+    // UTC millis of sunset for the given calendar date, or -1 during polar day/night
+    public long sunset(int year, int month, int day) {
+        return eventTime(year, month, day, false);
+    }
+
+    private long eventTime(int year, int month, int day, boolean rising) {
+        // Days since J2000 for noon UTC on that date
+        long noonUtcMs = daysFromCivil(year, month, day) * DAY_MS + DAY_MS / 2;
+        double n = Math.round(noonUtcMs / (double) DAY_MS + UNIX_EPOCH_JD - J2000);
+
+        // Mean solar noon
+        double jStar = n - longitude / 360.0;
+
+        double meanAnomaly = normalizeDegrees(357.5291 + 0.98560028 * jStar);
+        double m = Math.toRadians(meanAnomaly);
+        double center = 1.9148 * Math.sin(m) + 0.0200 * Math.sin(2 * m) + 0.0003 * Math.sin(3 * m);
+        double eclipticLongitude = Math.toRadians(normalizeDegrees(meanAnomaly + center + 180 + 102.9372));
+
+        double transit = J2000 + jStar + 0.0053 * Math.sin(m) - 0.0069 * Math.sin(2 * eclipticLongitude);
+
+        double sinDeclination = Math.sin(eclipticLongitude) * Math.sin(Math.toRadians(23.44));
+        double cosDeclination = Math.cos(Math.asin(sinDeclination));
+        double lat = Math.toRadians(latitude);
+
+        double cosHourAngle = (Math.sin(Math.toRadians(-0.833)) - Math.sin(lat) * sinDeclination)
+                / (Math.cos(lat) * cosDeclination);
+        if (cosHourAngle < -1 || cosHourAngle > 1) {
+            return -1;
+        }
+
+        double hourAngle = Math.toDegrees(Math.acos(cosHourAngle));
+        double julian = rising ? transit - hourAngle / 360.0 : transit + hourAngle / 360.0;
+        return Math.round((julian - UNIX_EPOCH_JD) * DAY_MS);
+    }
+
+    private static double normalizeDegrees(double degrees) {
+        double result = degrees % 360.0;
+        return result < 0 ? result + 360.0 : result;
+    }
+
+    // Days since 1970-01-01 for a proleptic Gregorian date
+    static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+}
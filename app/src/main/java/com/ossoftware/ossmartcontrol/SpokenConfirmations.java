@@ -0,0 +1,225 @@
+package com.ossoftware.ossmartcontrol;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.SoundPool;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
+import android.speech.tts.Voice;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+// Audible confirmation of voice commands. Live TextToSpeech takes hundreds
+// of ms before the first sample, so every phrase the app can say is
+// synthesized to a WAV in the background whenever switch or scene names
+// change, and played through a SoundPool. Phrases not cached yet fall back
+// to live synthesis.
+public class SpokenConfirmations implements TextToSpeech.OnInitListener {
+
+    private static final String TAG = "SpokenConfirmations";
+    private static final String CACHE_DIR = "confirmations";
+    private static final String SYNTH_PREFIX = "synth:";
+    private static final String LIVE_PREFIX = "live:";
+
+    public static final String PATH_CACHED = "cached";
+    public static final String PATH_LIVE = "live";
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final File cacheDir;
+    private final TextToSpeech tts;
+    private final SoundPool soundPool;
+    private boolean ttsReady;
+    private String voice = "";
+
+    private List<String> phrases = new ArrayList<>();
+    private Map<String, String> fileByPhrase = new HashMap<>();
+    private final Map<String, Integer> soundByFile = new HashMap<>();
+    private final Set<Integer> loadedSounds = new HashSet<>();
+
+    private final Queue<String> synthesisQueue = new ArrayDeque<>();
+    private String synthesizing; // Phrase being written, or null
+
+    // Dispatch-to-audio time, cached vs live
+    private final LatencyTracker latencyTracker = new LatencyTracker();
+    private int nextUtterance;
+
+    public SpokenConfirmations(Context context) {
+        cacheDir = new File(context.getCacheDir(), CACHE_DIR);
+        cacheDir.mkdirs();
+
+        soundPool = new SoundPool.Builder()
+                .setMaxStreams(2)
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_ASSISTANT)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                        .build())
+                .build();
+        soundPool.setOnLoadCompleteListener((pool, soundId, status) -> {
+            if (status == 0) {
+                loadedSounds.add(soundId);
+            }
+        });
+
+        tts = new TextToSpeech(context.getApplicationContext(), this);
+    }
+
+    @Override
+    public void onInit(int status) {
+        if (status != TextToSpeech.SUCCESS) {
+            Log.w(TAG, "TextToSpeech unavailable: " + status);
+            return;
+        }
+        tts.setOnUtteranceProgressListener(new UtteranceProgressListener() {
+            @Override
+            public void onStart(String utteranceId) {
+                long now = SystemClock.elapsedRealtime();
+                if (utteranceId.startsWith(LIVE_PREFIX)) {
+                    int id = Integer.parseInt(utteranceId.substring(LIVE_PREFIX.length()));
+                    mainHandler.post(() -> logLatency(PATH_LIVE, latencyTracker.complete(id, now)));
+                }
+            }
+
+            @Override
+            public void onDone(String utteranceId) {
+                if (utteranceId.startsWith(SYNTH_PREFIX)) {
+                    mainHandler.post(() -> onSynthesized(true));
+                }
+            }
+
+            @Override
+            public void onError(String utteranceId) {
+                if (utteranceId.startsWith(SYNTH_PREFIX)) {
+                    mainHandler.post(() -> onSynthesized(false));
+                }
+            }
+        });
+
+        // Cached audio is only valid for the voice that recorded it
+        Voice current = tts.getVoice();
+        voice = current != null ? current.getName() : String.valueOf(tts.getLanguage());
+        ttsReady = true;
+        refresh();
+    }
+
+    // Called whenever switches or scenes change; cheap when no name changed
+    public void setPhrases(List<String> phrases) {
+        if (phrases.equals(this.phrases)) {
+            return;
+        }
+        this.phrases = new ArrayList<>(phrases);
+        refresh();
+    }
+
+    private void refresh() {
+        if (!ttsReady) {
+            return;
+        }
+
+        String[] cached = cacheDir.list();
+        ConfirmationPhrases.Plan plan = ConfirmationPhrases.plan(
+                cached != null ? Arrays.asList(cached) : new ArrayList<>(), phrases, voice);
+        fileByPhrase = plan.getFileByPhrase();
+
+        for (String stale : plan.getStaleFiles()) {
+            Integer soundId = soundByFile.remove(stale);
+            if (soundId != null) {
+                soundPool.unload(soundId);
+                loadedSounds.remove(soundId);
+            }
+            new File(cacheDir, stale).delete();
+        }
+
+        // Files from an earlier run only need loading
+        for (String file : fileByPhrase.values()) {
+            if (!soundByFile.containsKey(file) && new File(cacheDir, file).exists()) {
+                soundByFile.put(file, soundPool.load(new File(cacheDir, file).getPath(), 1));
+            }
+        }
+
+        synthesisQueue.clear();
+        synthesisQueue.addAll(plan.getToSynthesize());
+        synthesisQueue.remove(synthesizing);
+        if (synthesizing == null) {
+            synthesizeNext();
+        }
+    }
+
+    private void synthesizeNext() {
+        synthesizing = synthesisQueue.poll();
+        if (synthesizing == null) {
+            return;
+        }
+        // Written under a temporary name so a half-written file is never played
+        File partial = new File(cacheDir, fileByPhrase.get(synthesizing) + ".part");
+        int result = tts.synthesizeToFile(synthesizing, null, partial, SYNTH_PREFIX + synthesizing);
+        if (result != TextToSpeech.SUCCESS) {
+            Log.w(TAG, "Could not synthesize \"" + synthesizing + "\"");
+            synthesizeNext();
+        }
+    }
+
+    private void onSynthesized(boolean success) {
+        String phrase = synthesizing;
+        String file = phrase != null ? fileByPhrase.get(phrase) : null;
+        if (file != null) {
+            File partial = new File(cacheDir, file + ".part");
+            File done = new File(cacheDir, file);
+            if (success && partial.renameTo(done)) {
+                soundByFile.put(file, soundPool.load(done.getPath(), 1));
+            } else {
+                partial.delete();
+            }
+        }
+        synthesizeNext();
+    }
+
+    public void speak(String phrase) {
+        long dispatchedAt = SystemClock.elapsedRealtime();
+        int id = nextUtterance++;
+
+        String file = fileByPhrase.get(phrase);
+        Integer soundId = file != null ? soundByFile.get(file) : null;
+        if (soundId != null && loadedSounds.contains(soundId)) {
+            latencyTracker.start(id, PATH_CACHED, dispatchedAt);
+            soundPool.play(soundId, 1f, 1f, 1, 0, 1f);
+            logLatency(PATH_CACHED, latencyTracker.complete(id, SystemClock.elapsedRealtime()));
+            return;
+        }
+
+        if (ttsReady) {
+            latencyTracker.start(id, PATH_LIVE, dispatchedAt);
+            tts.speak(phrase, TextToSpeech.QUEUE_FLUSH, null, LIVE_PREFIX + id);
+        }
+    }
+
+    private void logLatency(String path, long latency) {
+        if (latency >= 0) {
+            Log.d(TAG, "Confirmation via " + path + ": " + latency + " ms (" + latencyTracker.getSummary() + ")");
+        }
+    }
+
+    // e.g. "cached p50 4 ms (n=12) | live p50 310 ms (n=3)"
+    public String getLatencySummary() {
+        String summary = latencyTracker.getSummary();
+        return summary.isEmpty() ? "No confirmations yet" : summary;
+    }
+
+    public void shutdown() {
+        mainHandler.removeCallbacksAndMessages(null);
+        tts.shutdown();
+        soundPool.release();
+    }
+}
@@ -0,0 +1,46 @@
+package com.ossoftware.ossmartcontrol;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Trace;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Runs cold-start loads (preferences JSON parsing) off the main thread while
+// the layout inflates, and hands the results back on the main thread. Each
+// load is wrapped in a Trace section so it shows up in a system trace.
+public final class StartupTasks {
+
+    public interface Loader<T> {
+        T load();
+    }
+
+    public interface Callback<T> {
+        void onLoaded(T result);
+    }
+
+    // Two threads so the UI state and the switch list load side by side
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "startup");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
+
+    private StartupTasks() {
+    }
+
+    public static <T> void load(String traceSection, Loader<T> loader, Callback<T> callback) {
+        EXECUTOR.execute(() -> {
+            T result;
+            Trace.beginSection(traceSection);
+            try {
+                result = loader.load();
+            } finally {
+                Trace.endSection();
+            }
+            MAIN_HANDLER.post(() -> callback.onLoaded(result));
+        });
+    }
+}
@@ -0,0 +1,159 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.Locale;
+
+// Keeps the grid in step with changes made at the board itself (IR remote,
+// wall switch) by polling STATUS on the background lane. The interval doubles
+// each time a reply matches the grid, up to MAX_INTERVAL_MS; a reply that had
+// to correct the grid, or IR activity reported by the board, brings it back
+// to the shortest. Firmware that prints LIGHTn:STATE for changes nobody asked
+// for keeps the grid current by itself, so polling stops once that is seen.
+public class StatusPoller {
+
+    static final long INITIAL_DELAY_MS = 1000;
+    static final long MIN_INTERVAL_MS = 5000;
+    static final long MAX_INTERVAL_MS = 120_000;
+    // Give the board a moment to act on the remote before asking
+    static final long ACTIVITY_SETTLE_MS = 300;
+    static final long REPLY_TIMEOUT_MS = 3000;
+    // A state line this long after our last write wasn't an echo of it
+    static final long ECHO_WINDOW_MS = 1000;
+    static final int PUSHES_TO_SUSPEND = 2;
+
+    private final OutboundScheduler outbound;
+    private final TimeSource clock;
+    private final Scheduler scheduler;
+    private final Runnable pollTask = this::poll;
+    private final Runnable replyTimeout = this::onReplyTimeout;
+
+    private boolean running = false;
+    private boolean awaitingReply = false;
+    private boolean suspended = false;
+    private long intervalMs = MIN_INTERVAL_MS;
+    private int unsolicitedLines = 0;
+
+    private int polls = 0;
+    private int driftsFound = 0;
+    private int replyTimeouts = 0;
+
+    public StatusPoller(OutboundScheduler outbound, TimeSource clock, Scheduler scheduler) {
+        this.outbound = outbound;
+        this.clock = clock;
+        this.scheduler = scheduler;
+    }
+
+    // On connect; the first poll doubles as the initial status request.
+    // Whether the firmware pushes is learned again for every connection.
+    public void start() {
+        stop();
+        running = true;
+        suspended = false;
+        unsolicitedLines = 0;
+        intervalMs = MIN_INTERVAL_MS;
+        schedule(INITIAL_DELAY_MS);
+    }
+
+    public void stop() {
+        running = false;
+        awaitingReply = false;
+        scheduler.cancel(pollTask);
+        scheduler.cancel(replyTimeout);
+    }
+
+    // Any STATUS reply, ours or not; drifted when it changed the grid
+    public void onStatus(boolean drifted) {
+        if (drifted) {
+            driftsFound++;
+        }
+        if (!running || suspended) {
+            return;
+        }
+
+        scheduler.cancel(replyTimeout);
+        awaitingReply = false;
+        intervalMs = drifted ? MIN_INTERVAL_MS : Math.min(intervalMs * 2, MAX_INTERVAL_MS);
+        schedule(intervalMs);
+    }
+
+    // "IR Received:" and the like: the board's state is probably changing
+    public void onRemoteActivity() {
+        if (!running || suspended) {
+            return;
+        }
+        intervalMs = MIN_INTERVAL_MS;
+        if (!awaitingReply) {
+            // A burst of presses pushes this back until the last one
+            schedule(ACTIVITY_SETTLE_MS);
+        }
+    }
+
+    // LIGHTn:ON / LIGHTn:OFF from the board
+    public void onStateLine() {
+        if (!running || suspended) {
+            return;
+        }
+        if (clock.currentTimeMillis() - outbound.getLastWriteAt() > ECHO_WINDOW_MS
+                && ++unsolicitedLines >= PUSHES_TO_SUSPEND) {
+            suspended = true;
+            awaitingReply = false;
+            scheduler.cancel(pollTask);
+            scheduler.cancel(replyTimeout);
+        }
+    }
+
+    private void schedule(long delayMs) {
+        scheduler.cancel(pollTask);
+        scheduler.postDelayed(pollTask, delayMs);
+    }
+
+    private void poll() {
+        if (!running || suspended || !outbound.isConnected()) {
+            return;
+        }
+        outbound.send(OutboundScheduler.Priority.BACKGROUND, "STATUS");
+        polls++;
+        awaitingReply = true;
+        scheduler.cancel(replyTimeout);
+        scheduler.postDelayed(replyTimeout, REPLY_TIMEOUT_MS);
+    }
+
+    // Lost poll or reply; try again without changing the interval
+    private void onReplyTimeout() {
+        awaitingReply = false;
+        replyTimeouts++;
+        schedule(intervalMs);
+    }
+
+    // A poll is out and its reply hasn't come back
+    public boolean isAwaitingReply() {
+        return awaitingReply;
+    }
+
+    public boolean isSuspended() {
+        return suspended;
+    }
+
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    public int getPolls() {
+        return polls;
+    }
+
+    public int getDriftsFound() {
+        return driftsFound;
+    }
+
+    public int getReplyTimeouts() {
+        return replyTimeouts;
+    }
+
+    public String getSummary() {
+        if (suspended) {
+            return String.format(Locale.US, "%d polls, board pushes state, polling off", polls);
+        }
+        return String.format(Locale.US, "%d polls, %d drifts, next in %d s",
+                polls, driftsFound, intervalMs / 1000);
+    }
+}
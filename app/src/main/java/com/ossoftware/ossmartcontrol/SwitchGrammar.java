@@ -0,0 +1,502 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// Voice grammar generated from the live switch list. Every switch can be
+// addressed by its user-given name or by number ("light three", "switch 12").
+// Phrases are owned per switch, so adding, renaming or removing one switch
+// only touches that switch's phrases instead of rebuilding the table.
+public class SwitchGrammar {
+
+    private static final String[] ON_TEMPLATES = {
+            "turn on %s", "switch on %s", "%s on", "on %s", "enable %s", "power on %s", "turn %s on"
+    };
+    private static final String[] OFF_TEMPLATES = {
+            "turn off %s", "switch off %s", "%s off", "off %s", "disable %s", "power off %s", "turn %s off"
+    };
+    private static final String[] TOGGLE_TEMPLATES = {"toggle %s", "switch %s"};
+
+    // Nouns accepted in front of a switch number ("lamp 3", "device four")
+    private static final String[] NUMBER_NOUNS = {"light", "lamp", "switch", "device"};
+
+    private static final String[] ON_WORDS = {"on", "open", "start", "enable"};
+    private static final String[] OFF_WORDS = {"off", "close", "stop", "disable"};
+    private static final String[] TOGGLE_WORDS = {"toggle", "flip"};
+    private static final String[] VERB_WORDS = {"turn", "switch", "power"};
+
+    // Fuzzy matches below this confidence are only run after the user confirms
+    public static final double CONFIRM_THRESHOLD = 0.8;
+    // And below this they are not offered at all
+    public static final double MIN_CONFIDENCE = 0.5;
+    private static final double SPLIT_WORD_SIMILARITY = 0.95;
+
+    private static final String[] ONES = {
+            "", "one", "two", "three", "four", "five", "six", "seven", "eight", "nine", "ten",
+            "eleven", "twelve", "thirteen", "fourteen", "fifteen", "sixteen", "seventeen",
+            "eighteen", "nineteen"
+    };
+    private static final String[] TENS = {
+            "", "", "twenty", "thirty", "forty", "fifty", "sixty", "seventy", "eighty", "ninety"
+    };
+
+    public static class FuzzyMatch {
+        private final String command;
+        private final String correctedText;
+        private final double confidence;
+
+        FuzzyMatch(String command, String correctedText, double confidence) {
+            this.command = command;
+            this.correctedText = correctedText;
+            this.confidence = confidence;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        // What we think was said, e.g. "turn on kitchen fan" for "turn on kitchen van"
+        public String getCorrectedText() {
+            return correctedText;
+        }
+
+        public double getConfidence() {
+            return confidence;
+        }
+
+        public boolean needsConfirmation() {
+            return confidence < CONFIRM_THRESHOLD;
+        }
+    }
+
+    // Token trie over switch targets, for phrasings the templates don't cover
+    private static class TargetNode {
+        final Map<String, TargetNode> children = new HashMap<>();
+        final TreeSet<Integer> owners = new TreeSet<>();
+    }
+
+    // phrase -> (switch index -> command); the lowest index wins a shared phrase
+    private final Map<String, TreeMap<Integer, String>> phrases = new HashMap<>();
+    private final Map<Integer, List<String>> phrasesBySwitch = new HashMap<>();
+    private final Map<Integer, List<List<String>>> targetsBySwitch = new HashMap<>();
+    private final Map<Integer, String> namesBySwitch = new HashMap<>();
+    private final TargetNode targetRoot = new TargetNode();
+
+    // Every word the grammar knows, for correcting misheard ones
+    private final FuzzyIndex fuzzyIndex = new FuzzyIndex();
+
+    private int lastCompiledPhrases = 0;
+
+    public SwitchGrammar() {
+        for (String[] words : new String[][]{ON_WORDS, OFF_WORDS, TOGGLE_WORDS, VERB_WORDS}) {
+            for (String word : words) {
+                fuzzyIndex.add(word);
+            }
+        }
+    }
+
+    // Bring the grammar in line with the switch list, recompiling only what changed
+    public void setSwitches(List<DeviceModel> switches) {
+        lastCompiledPhrases = 0;
+        Map<Integer, String> wanted = new HashMap<>();
+        for (DeviceModel device : switches) {
+            wanted.put(device.getIndex(), device.getName());
+        }
+
+        for (Integer index : new ArrayList<>(namesBySwitch.keySet())) {
+            if (!wanted.containsKey(index)) {
+                removeSwitch(index);
+            }
+        }
+        for (Map.Entry<Integer, String> entry : wanted.entrySet()) {
+            String current = namesBySwitch.get(entry.getKey());
+            if (current == null || !current.equals(entry.getValue())) {
+                putSwitch(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    // Add a switch or replace its name
+    public void putSwitch(int index, String name) {
+        removeSwitch(index);
+        namesBySwitch.put(index, name);
+
+        List<String> owned = new ArrayList<>();
+        List<List<String>> targets = new ArrayList<>();
+
+        String spokenName = normalize(name);
+        if (!spokenName.isEmpty()) {
+            addTemplates(index, spokenName, owned);
+            targets.add(tokens(spokenName));
+        }
+
+        // Templates only for "light N"; the trie covers the other nouns
+        for (String noun : NUMBER_NOUNS) {
+            for (String number : new String[]{String.valueOf(index), numberToWords(index)}) {
+                String spoken = noun + " " + number;
+                if (noun.equals("light")) {
+                    addTemplates(index, spoken, owned);
+                }
+                targets.add(tokens(spoken));
+            }
+        }
+
+        for (List<String> target : targets) {
+            addTarget(index, target);
+            for (String word : target) {
+                fuzzyIndex.add(word);
+            }
+        }
+
+        phrasesBySwitch.put(index, owned);
+        targetsBySwitch.put(index, targets);
+        lastCompiledPhrases += owned.size();
+    }
+
+    public void removeSwitch(int index) {
+        namesBySwitch.remove(index);
+
+        List<String> owned = phrasesBySwitch.remove(index);
+        if (owned != null) {
+            for (String phrase : owned) {
+                TreeMap<Integer, String> owners = phrases.get(phrase);
+                if (owners != null) {
+                    owners.remove(index);
+                    if (owners.isEmpty()) {
+                        phrases.remove(phrase);
+                    }
+                }
+            }
+        }
+
+        List<List<String>> targets = targetsBySwitch.remove(index);
+        if (targets != null) {
+            for (List<String> target : targets) {
+                TargetNode node = findTarget(target);
+                if (node != null) {
+                    node.owners.remove(index);
+                }
+                for (String word : target) {
+                    fuzzyIndex.remove(word);
+                }
+            }
+        }
+    }
+
+    // Returns LIGHTn_ON/_OFF/_TOGGLE, or null when no switch is addressed
+    public String match(String spokenText) {
+        String command = matchPhrase(spokenText);
+        return command != null ? command : matchTarget(tokens(normalize(spokenText)));
+    }
+
+    // Generated phrases only ("turn on kitchen fan"), a single hash lookup
+    public String matchPhrase(String spokenText) {
+        TreeMap<Integer, String> owners = phrases.get(normalize(spokenText));
+        return owners != null ? owners.firstEntry().getValue() : null;
+    }
+
+    // Only for when match() found nothing: replace unknown words with the
+    // closest known ones and try again. Null if that still addresses no switch
+    // or the corrections are too uncertain to offer.
+    public FuzzyMatch fuzzyMatch(String spokenText) {
+        List<String> words = tokens(normalize(spokenText));
+        List<String> corrected = new ArrayList<>(words.size());
+        double confidence = 1;
+        boolean changed = false;
+
+        for (int i = 0; i < words.size(); i++) {
+            String word = words.get(i);
+            if (fuzzyIndex.contains(word) || isNumber(word)) {
+                corrected.add(word);
+                continue;
+            }
+
+            // A name split in two ("bed room")
+            if (i + 1 < words.size() && fuzzyIndex.contains(word + words.get(i + 1))) {
+                corrected.add(word + words.get(i + 1));
+                confidence *= SPLIT_WORD_SIMILARITY;
+                changed = true;
+                i++;
+                continue;
+            }
+
+            FuzzyIndex.Correction correction = fuzzyIndex.correct(word);
+            if (correction != null) {
+                corrected.add(correction.getWord());
+                confidence *= correction.getSimilarity();
+                changed = true;
+            } else {
+                corrected.add(word);
+            }
+        }
+
+        if (!changed || confidence < MIN_CONFIDENCE) {
+            return null;
+        }
+
+        String correctedText = String.join(" ", corrected);
+        String command = match(correctedText);
+        return command != null ? new FuzzyMatch(command, correctedText, confidence) : null;
+    }
+
+    private static boolean isNumber(String word) {
+        for (int i = 0; i < word.length(); i++) {
+            if (!Character.isDigit(word.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getVocabularySize() {
+        return fuzzyIndex.size();
+    }
+
+    // Longest switch target anywhere in the utterance plus an action word outside it
+    private String matchTarget(List<String> words) {
+        int bestStart = -1;
+        int bestEnd = -1;
+        int bestIndex = -1;
+        int bestLength = 0;
+
+        for (int start = 0; start < words.size(); start++) {
+            int[] target = matchTargetAt(words, start);
+            if (target != null && target[1] > bestLength) {
+                bestStart = start;
+                bestEnd = start + target[1] - 1;
+                bestLength = target[1];
+                bestIndex = target[0];
+            }
+        }
+
+        if (bestIndex < 0) {
+            return null;
+        }
+
+        String action = null;
+        for (int i = 0; i < words.size() && action == null; i++) {
+            if (i < bestStart || i > bestEnd) {
+                action = actionFor(words.get(i));
+            }
+        }
+        return action != null ? "LIGHT" + bestIndex + action : null;
+    }
+
+    // Longest switch target starting at a word: {switch index, words used}, or null
+    int[] matchTargetAt(List<String> words, int start) {
+        TargetNode node = targetRoot;
+        int[] best = null;
+        for (int end = start; end < words.size(); end++) {
+            node = node.children.get(words.get(end));
+            if (node == null) {
+                break;
+            }
+            if (!node.owners.isEmpty()) {
+                best = new int[]{node.owners.first(), end - start + 1};
+            }
+        }
+        return best;
+    }
+
+    boolean hasSwitch(int index) {
+        return namesBySwitch.containsKey(index);
+    }
+
+    List<Integer> getSwitchIndexes() {
+        List<Integer> indexes = new ArrayList<>(namesBySwitch.keySet());
+        Collections.sort(indexes);
+        return indexes;
+    }
+
+    static boolean isNumberNoun(String word) {
+        for (String noun : NUMBER_NOUNS) {
+            if (noun.equals(word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String actionFor(String word) {
+        for (String on : ON_WORDS) {
+            if (on.equals(word)) {
+                return "_ON";
+            }
+        }
+        for (String off : OFF_WORDS) {
+            if (off.equals(word)) {
+                return "_OFF";
+            }
+        }
+        for (String toggle : TOGGLE_WORDS) {
+            if (toggle.equals(word)) {
+                return "_TOGGLE";
+            }
+        }
+        return null;
+    }
+
+    private void addTemplates(int index, String target, List<String> owned) {
+        addTemplates(index, target, ON_TEMPLATES, "LIGHT" + index + "_ON", owned);
+        addTemplates(index, target, OFF_TEMPLATES, "LIGHT" + index + "_OFF", owned);
+        addTemplates(index, target, TOGGLE_TEMPLATES, "LIGHT" + index + "_TOGGLE", owned);
+    }
+
+    private void addTemplates(int index, String target, String[] templates, String command, List<String> owned) {
+        for (String template : templates) {
+            String phrase = String.format(template, target);
+            TreeMap<Integer, String> owners = phrases.get(phrase);
+            if (owners == null) {
+                owners = new TreeMap<>();
+                phrases.put(phrase, owners);
+            }
+            owners.put(index, command);
+            owned.add(phrase);
+        }
+    }
+
+    private void addTarget(int index, List<String> target) {
+        TargetNode node = targetRoot;
+        for (String word : target) {
+            TargetNode child = node.children.get(word);
+            if (child == null) {
+                child = new TargetNode();
+                node.children.put(word, child);
+            }
+            node = child;
+        }
+        node.owners.add(index);
+    }
+
+    private TargetNode findTarget(List<String> target) {
+        TargetNode node = targetRoot;
+        for (String word : target) {
+            node = node.children.get(word);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    public int getPhraseCount() {
+        return phrases.size();
+    }
+
+    // Phrases generated by the last setSwitches() call
+    public int getLastCompiledPhrases() {
+        return lastCompiledPhrases;
+    }
+
+    // Lowercase, punctuation and hyphens to spaces, single spaces
+    public static String normalize(String text) {
+        StringBuilder normalized = new StringBuilder(text.length());
+        boolean space = true;
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            if (Character.isLetterOrDigit(c) || isMark(c)) {
+                normalized.append(c);
+                space = false;
+            } else if (!space) {
+                normalized.append(' ');
+                space = true;
+            }
+        }
+        int length = normalized.length();
+        if (length > 0 && normalized.charAt(length - 1) == ' ') {
+            normalized.setLength(length - 1);
+        }
+        return normalized.toString();
+    }
+
+    // Vowel signs and viramas are part of a word in Indic scripts ("জ্বালাও")
+    private static boolean isMark(char c) {
+        int type = Character.getType(c);
+        return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK;
+    }
+
+    // 1..999 as spoken words ("twenty one"); larger numbers stay as digits
+    public static String numberToWords(int number) {
+        if (number <= 0 || number > 999) {
+            return String.valueOf(number);
+        }
+
+        StringBuilder words = new StringBuilder();
+        if (number >= 100) {
+            words.append(ONES[number / 100]).append(" hundred");
+            number %= 100;
+            if (number > 0) {
+                words.append(" ");
+            }
+        }
+        if (number >= 20) {
+            words.append(TENS[number / 10]);
+            if (number % 10 > 0) {
+                words.append(" ").append(ONES[number % 10]);
+            }
+        } else if (number > 0) {
+            words.append(ONES[number]);
+        }
+        return words.toString();
+    }
+
+    // Spoken number at a word ("12", "twenty one", "one hundred five"):
+    // {value, words used}, or null
+    static int[] parseNumberAt(List<String> words, int start) {
+        String first = words.get(start);
+        if (isNumber(first)) {
+            try {
+                return new int[]{Integer.parseInt(first), 1};
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        int value = 0;
+        int used = 0;
+        int i = start;
+        int ones = indexOf(ONES, i < words.size() ? words.get(i) : "");
+        if (ones > 0 && i + 1 < words.size() && words.get(i + 1).equals("hundred")) {
+            value = ones * 100;
+            i += 2;
+            used = 2;
+        }
+        int tens = i < words.size() ? indexOf(TENS, words.get(i)) : -1;
+        if (tens >= 2) {
+            value += tens * 10;
+            i++;
+            used++;
+        }
+        ones = i < words.size() ? indexOf(ONES, words.get(i)) : -1;
+        if (ones > 0 && (tens < 2 || ones < 10)) {
+            value += ones;
+            used++;
+        }
+        return used > 0 ? new int[]{value, used} : null;
+    }
+
+    private static int indexOf(String[] words, String word) {
+        for (int i = 1; i < words.length; i++) {
+            if (words[i].equals(word)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static List<String> tokens(String normalized) {
+        List<String> words = new ArrayList<>();
+        if (normalized.isEmpty()) {
+            return words;
+        }
+        for (String word : normalized.split(" ")) {
+            words.add(word);
+        }
+        return words;
+    }
+}
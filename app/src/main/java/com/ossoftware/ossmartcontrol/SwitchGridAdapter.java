@@ -6,6 +6,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 import android.widget.RelativeLayout;
+import android.widget.SeekBar;
 import android.widget.TextView;
 
 import java.util.ArrayList;
@@ -21,6 +22,12 @@ public class SwitchGridAdapter extends BaseAdapter {
         void onSwitchClick(int position, DeviceModel device);
 
         void onSwitchLongClick(int position, DeviceModel device);
+
+        // Every slider event of a dimmer while it is dragged
+        void onLevelDragged(int position, DeviceModel device, int level);
+
+        // Slider released
+        void onLevelSet(int position, DeviceModel device, int level);
     }
 
     public SwitchGridAdapter(Context context, List<DeviceModel> switchList, OnSwitchClickListener listener) {
@@ -54,6 +61,7 @@ public class SwitchGridAdapter extends BaseAdapter {
             holder.btnSwitchToggle = convertView.findViewById(R.id.btnSwitchToggle);
             holder.txtSwitchState = convertView.findViewById(R.id.txtSwitchState);
             holder.txtSwitchName = convertView.findViewById(R.id.txtSwitchName);
+            holder.seekLevel = convertView.findViewById(R.id.seekLevel);
             convertView.setTag(holder);
         } else {
             holder = (ViewHolder) convertView.getTag();
@@ -63,11 +71,15 @@ public class SwitchGridAdapter extends BaseAdapter {
 
         holder.txtSwitchName.setText(device.getName());
         updateSwitchUI(holder.btnSwitchToggle, holder.txtSwitchState, device.isOn());
+        // Queued while offline: shown faded until it has been sent
+        holder.btnSwitchToggle.setAlpha(device.isPending() ? 0.5f : 1f);
 
         // Set click listeners
         final int pos = position;
         final DeviceModel currentDevice = device;
 
+        bindLevel(holder, pos, currentDevice);
+
         holder.btnSwitchToggle.setOnClickListener(v -> {
             if (listener != null) {
                 listener.onSwitchClick(pos, currentDevice);
@@ -95,6 +107,55 @@ public class SwitchGridAdapter extends BaseAdapter {
         }
     }
 
+    private void bindLevel(ViewHolder holder, int position, DeviceModel device) {
+        holder.seekLevel.setOnSeekBarChangeListener(null);
+        if (!device.isDimmable()) {
+            holder.seekLevel.setVisibility(View.GONE);
+            return;
+        }
+
+        holder.seekLevel.setVisibility(View.VISIBLE);
+        holder.seekLevel.setMax(DeviceModel.MAX_LEVEL);
+        // Don't yank the thumb from under a finger when an echo refreshes the grid
+        if (!holder.seekLevel.isPressed()) {
+            holder.seekLevel.setProgress(device.isOn() ? device.getLevel() : 0);
+        }
+        if (device.isOn()) {
+            holder.txtSwitchState.setText(levelPercent(device.getLevel()));
+        }
+
+        holder.seekLevel.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                if (!fromUser) {
+                    return;
+                }
+                updateSwitchUI(holder.btnSwitchToggle, holder.txtSwitchState, progress > 0);
+                if (progress > 0) {
+                    holder.txtSwitchState.setText(levelPercent(progress));
+                }
+                if (listener != null) {
+                    listener.onLevelDragged(position, device, progress);
+                }
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+                if (listener != null) {
+                    listener.onLevelSet(position, device, seekBar.getProgress());
+                }
+            }
+        });
+    }
+
+    private static String levelPercent(int level) {
+        return Math.round(level * 100f / DeviceModel.MAX_LEVEL) + "%";
+    }
+
     public void updateSwitchState(int position, boolean isOn) {
         if (position >= 0 && position < switchList.size()) {
             DeviceModel device = switchList.get(position);
@@ -113,5 +174,6 @@ public class SwitchGridAdapter extends BaseAdapter {
         RelativeLayout btnSwitchToggle;
         TextView txtSwitchState;
         TextView txtSwitchName;
+        SeekBar seekLevel;
     }
 }
\ No newline at end of file
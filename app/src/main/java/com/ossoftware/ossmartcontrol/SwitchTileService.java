@@ -0,0 +1,92 @@
+package com.ossoftware.ossmartcontrol;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.service.quicksettings.Tile;
+import android.service.quicksettings.TileService;
+
+import java.util.List;
+
+// Quick Settings tile for a pinned switch. Each slot is its own declared
+// service (the system needs one component per tile); slot N controls the
+// Nth pinned switch. Taps go straight to ControllerService, no Activity.
+public abstract class SwitchTileService extends TileService {
+
+    public static class Slot1 extends SwitchTileService {
+        @Override
+        protected int getSlot() {
+            return 0;
+        }
+    }
+
+    public static class Slot2 extends SwitchTileService {
+        @Override
+        protected int getSlot() {
+            return 1;
+        }
+    }
+
+    public static class Slot3 extends SwitchTileService {
+        @Override
+        protected int getSlot() {
+            return 2;
+        }
+    }
+
+    private static final Class<?>[] SLOTS = {Slot1.class, Slot2.class, Slot3.class};
+
+    protected abstract int getSlot();
+
+    public static void requestRefresh(Context context) {
+        for (Class<?> slot : SLOTS) {
+            TileService.requestListeningState(context, new ComponentName(context, slot));
+        }
+    }
+
+    @Override
+    public void onStartListening() {
+        super.onStartListening();
+        refreshTile();
+    }
+
+    @Override
+    public void onClick() {
+        super.onClick();
+        int switchIndex = getSwitchIndex(new QuickSwitchStore(this));
+        if (switchIndex < 0) {
+            return;
+        }
+
+        ControllerService.requestToggle(this, switchIndex, LatencyTracker.PATH_TILE);
+
+        // Flip right away; the service corrects it once the board replies
+        Tile tile = getQsTile();
+        if (tile != null) {
+            tile.setState(tile.getState() == Tile.STATE_ACTIVE ? Tile.STATE_INACTIVE : Tile.STATE_ACTIVE);
+            tile.updateTile();
+        }
+    }
+
+    private int getSwitchIndex(QuickSwitchStore store) {
+        List<Integer> pinned = store.getPinnedIndexes();
+        return getSlot() < pinned.size() ? pinned.get(getSlot()) : -1;
+    }
+
+    private void refreshTile() {
+        Tile tile = getQsTile();
+        if (tile == null) {
+            return;
+        }
+
+        QuickSwitchStore store = new QuickSwitchStore(this);
+        int switchIndex = getSwitchIndex(store);
+        if (switchIndex < 0) {
+            tile.setLabel("Pin a switch");
+            tile.setState(Tile.STATE_UNAVAILABLE);
+        } else {
+            tile.setLabel(store.getName(switchIndex));
+            tile.setState(store.isOn(switchIndex) ? Tile.STATE_ACTIVE : Tile.STATE_INACTIVE);
+        }
+        tile.updateTile();
+    }
+}
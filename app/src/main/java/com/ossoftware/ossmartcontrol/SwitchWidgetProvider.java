@@ -0,0 +1,68 @@
+package com.ossoftware.ossmartcontrol;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.view.View;
+import android.widget.RemoteViews;
+
+import java.util.List;
+
+// Home-screen widget with up to four pinned switches. Buttons fire
+// ControllerService directly so a tap never launches the Activity.
+public class SwitchWidgetProvider extends AppWidgetProvider {
+
+    private static final int[] BUTTON_IDS = {
+            R.id.widgetSwitch1, R.id.widgetSwitch2, R.id.widgetSwitch3, R.id.widgetSwitch4
+    };
+
+    public static void updateAll(Context context) {
+        AppWidgetManager manager = AppWidgetManager.getInstance(context);
+        int[] widgetIds = manager.getAppWidgetIds(new ComponentName(context, SwitchWidgetProvider.class));
+        if (widgetIds.length > 0) {
+            manager.updateAppWidget(widgetIds, buildViews(context));
+        }
+    }
+
+    @Override
+    public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+        appWidgetManager.updateAppWidget(appWidgetIds, buildViews(context));
+    }
+
+    private static RemoteViews buildViews(Context context) {
+        QuickSwitchStore store = new QuickSwitchStore(context);
+        List<Integer> pinned = store.getPinnedIndexes();
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget_switches);
+
+        views.setViewVisibility(R.id.widgetEmpty, pinned.isEmpty() ? View.VISIBLE : View.GONE);
+        for (int slot = 0; slot < BUTTON_IDS.length; slot++) {
+            int buttonId = BUTTON_IDS[slot];
+            if (slot >= pinned.size()) {
+                views.setViewVisibility(buttonId, View.GONE);
+                continue;
+            }
+
+            int switchIndex = pinned.get(slot);
+            boolean isOn = store.isOn(switchIndex);
+            views.setViewVisibility(buttonId, View.VISIBLE);
+            views.setTextViewText(buttonId, store.getName(switchIndex) + "\n" + (isOn ? "ON" : "OFF"));
+            views.setInt(buttonId, "setBackgroundResource", isOn ? R.drawable.bg_switch_on : R.drawable.bg_switch_off);
+            views.setOnClickPendingIntent(buttonId, createTogglePendingIntent(context, switchIndex));
+        }
+        return views;
+    }
+
+    private static PendingIntent createTogglePendingIntent(Context context, int switchIndex) {
+        Intent intent = ControllerService.createToggleIntent(context, switchIndex, LatencyTracker.PATH_WIDGET);
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            return PendingIntent.getForegroundService(context, switchIndex, intent, flags);
+        }
+        return PendingIntent.getService(context, switchIndex, intent, flags);
+    }
+}
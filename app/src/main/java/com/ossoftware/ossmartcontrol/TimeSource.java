@@ -0,0 +1,9 @@
+package com.ossoftware.ossmartcontrol;
+
+// Injectable wall clock so time-based decisions can be tested deterministically
+public interface TimeSource {
+
+    TimeSource SYSTEM = System::currentTimeMillis;
+
+    long currentTimeMillis();
+}
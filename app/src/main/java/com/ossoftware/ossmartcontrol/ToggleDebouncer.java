@@ -0,0 +1,191 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Turns taps into the state the user wants rather than a stream of toggles.
+// The first tap on an idle switch goes out at once; taps that follow within
+// the window only flip the wanted state, and when the window closes the final
+// state is sent if it differs from what was last sent. Where the switch has
+// absolute commands they are used, which makes them safe to resend until the
+// board echoes the state back. Toggle-only firmware gets a toggle only when
+// the wanted state differs from the board's, and is never retried.
+public class ToggleDebouncer {
+
+    public interface Listener {
+        void onCommandSent(int switchIndex, String command, boolean retry);
+    }
+
+    static final long WINDOW_MS = 250;
+    static final long CONFIRM_TIMEOUT_MS = 400;
+    static final int MAX_RETRIES = 3;
+
+    private final CommandTransport transport;
+    private final Scheduler scheduler;
+    private final Listener listener;
+    private final Map<Integer, Channel> channels = new HashMap<>();
+    private long confirmTimeoutMs = CONFIRM_TIMEOUT_MS;
+
+    private int taps = 0;
+    private int commandsSent = 0;
+    private int retries = 0;
+
+    private class Channel {
+        final DeviceModel device;
+        boolean wanted;
+        boolean lastSent;
+        boolean board; // What the board has, as far as toggles go
+        boolean windowOpen = false;
+        boolean awaitingEcho = false;
+        int attempts = 0;
+        final Runnable windowEnd = this::closeWindow;
+        final Runnable confirmTimeout = this::onConfirmTimeout;
+
+        Channel(DeviceModel device) {
+            this.device = device;
+        }
+
+        void closeWindow() {
+            windowOpen = false;
+            if (wanted != lastSent) {
+                send(false);
+            }
+            if (!awaitingEcho) {
+                channels.remove(device.getIndex());
+            }
+        }
+
+        void send(boolean retry) {
+            if (!transport.isConnected()) {
+                return;
+            }
+
+            String command = device.getAbsoluteCommand(wanted);
+            if (command == null) {
+                // Relative only: a toggle fixes the state only if it is wrong
+                if (wanted == board) {
+                    lastSent = wanted;
+                    return;
+                }
+                command = device.getToggleCommand();
+                board = !board;
+            } else {
+                awaitingEcho = true;
+                attempts = retry ? attempts + 1 : 0;
+                scheduler.cancel(confirmTimeout);
+                scheduler.postDelayed(confirmTimeout, confirmTimeoutMs);
+            }
+
+            lastSent = wanted;
+            transport.sendCommand(command);
+            commandsSent++;
+            if (retry) {
+                retries++;
+            }
+            if (listener != null) {
+                listener.onCommandSent(device.getIndex(), command, retry);
+            }
+        }
+
+        // The command or its echo was lost; setting a state twice is harmless
+        void onConfirmTimeout() {
+            if (attempts < MAX_RETRIES) {
+                send(true);
+            } else {
+                finish();
+            }
+        }
+
+        void finish() {
+            awaitingEcho = false;
+            scheduler.cancel(confirmTimeout);
+            if (!windowOpen) {
+                channels.remove(device.getIndex());
+            }
+        }
+    }
+
+    public ToggleDebouncer(CommandTransport transport, Scheduler scheduler, Listener listener) {
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.listener = listener;
+    }
+
+    // From the link's round trip; applies to the next send
+    public void setConfirmTimeout(long confirmTimeoutMs) {
+        this.confirmTimeoutMs = confirmTimeoutMs;
+    }
+
+    public long getConfirmTimeoutMs() {
+        return confirmTimeoutMs;
+    }
+
+    // Flips the switch's wanted state and updates the model to it
+    public boolean tap(DeviceModel device) {
+        taps++;
+        Channel channel = channels.get(device.getIndex());
+        if (channel == null) {
+            channel = new Channel(device);
+            channel.lastSent = device.isOn();
+            channel.board = device.isOn();
+            channel.wanted = device.isOn();
+            channels.put(device.getIndex(), channel);
+        }
+
+        channel.wanted = !channel.wanted;
+        device.setOn(channel.wanted);
+
+        if (!channel.windowOpen) {
+            // Leading edge: an idle switch reacts without waiting for the window
+            channel.windowOpen = true;
+            channel.send(false);
+        }
+        scheduler.cancel(channel.windowEnd);
+        scheduler.postDelayed(channel.windowEnd, WINDOW_MS);
+        return channel.wanted;
+    }
+
+    // LIGHTn:ON / LIGHTn:OFF from the board
+    public void onStateReported(int switchIndex, boolean isOn) {
+        Channel channel = channels.get(switchIndex);
+        if (channel == null) {
+            return;
+        }
+        channel.board = isOn;
+        // Echoes of earlier sends are stale; only the last one confirms
+        if (channel.awaitingEcho && isOn == channel.lastSent) {
+            channel.finish();
+        }
+    }
+
+    // True while taps are being collected or a send is unconfirmed; board
+    // reports for the switch shouldn't override the wanted state until then
+    public boolean isBusy(int switchIndex) {
+        return channels.containsKey(switchIndex);
+    }
+
+    public void reset() {
+        for (Channel channel : channels.values()) {
+            scheduler.cancel(channel.windowEnd);
+            scheduler.cancel(channel.confirmTimeout);
+        }
+        channels.clear();
+    }
+
+    public int getTaps() {
+        return taps;
+    }
+
+    public int getCommandsSent() {
+        return commandsSent;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public String getSummary() {
+        return String.format(Locale.US, "%d taps, %d commands, %d retries", taps, commandsSent, retries);
+    }
+}
@@ -0,0 +1,149 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+// Remembers what utterances resolved to, compound and fuzzy results
+// included. A household says the same dozen phrases all day, so a small LRU
+// map skips the whole voice pipeline for most of them. Corrections the user
+// taught are kept separately, are never evicted and win over both the cache
+// and the parser.
+public class UtteranceCache {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final int capacity;
+    private final LinkedHashMap<String, VoiceResolution> recent;
+    private final Map<String, String> corrections = new HashMap<>();
+
+    // Stats
+    private int correctionHits;
+    private int cacheHits;
+    private int misses;
+    private long hitNanos;
+    private long missNanos;
+
+    public UtteranceCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public UtteranceCache(int capacity) {
+        this.capacity = capacity;
+        // Access order, so the eldest entry is the least recently used
+        this.recent = new LinkedHashMap<String, VoiceResolution>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, VoiceResolution> eldest) {
+                return size() > UtteranceCache.this.capacity;
+            }
+        };
+    }
+
+    public static String normalize(String spokenText) {
+        return WHITESPACE.matcher(spokenText.toLowerCase(Locale.ROOT).trim()).replaceAll(" ");
+    }
+
+    /* ===== LOOKUP ===== */
+
+    public String getCorrection(String normalized) {
+        return corrections.get(normalized);
+    }
+
+    // Correction first, then a recently resolved utterance; null on a miss
+    public VoiceResolution get(String normalized) {
+        String command = corrections.get(normalized);
+        if (command != null) {
+            correctionHits++;
+            return VoiceResolution.command(command);
+        }
+        VoiceResolution resolution = recent.get(normalized);
+        if (resolution != null) {
+            cacheHits++;
+        }
+        return resolution;
+    }
+
+    public void put(String normalized, VoiceResolution resolution) {
+        recent.put(normalized, resolution);
+    }
+
+    // Commands depend on switch and scene names, so renames drop the cache
+    // (corrections are kept: the user stated them explicitly)
+    public void invalidate() {
+        recent.clear();
+    }
+
+    public int size() {
+        return recent.size();
+    }
+
+    /* ===== CORRECTIONS ===== */
+
+    public void learn(String normalized, String command) {
+        corrections.put(normalized, command);
+        recent.remove(normalized);
+    }
+
+    public void forget(String normalized) {
+        corrections.remove(normalized);
+    }
+
+    public Map<String, String> getCorrections() {
+        return new HashMap<>(corrections);
+    }
+
+    public void setCorrections(Map<String, String> learned) {
+        corrections.clear();
+        for (Map.Entry<String, String> entry : learned.entrySet()) {
+            corrections.put(normalize(entry.getKey()), entry.getValue());
+        }
+        recent.clear();
+    }
+
+    /* ===== STATS ===== */
+
+    public void recordHit(long nanos) {
+        hitNanos += nanos;
+    }
+
+    public void recordMiss(long nanos) {
+        misses++;
+        missNanos += nanos;
+    }
+
+    public int getLookupCount() {
+        return correctionHits + cacheHits + misses;
+    }
+
+    public int getHitCount() {
+        return correctionHits + cacheHits;
+    }
+
+    public int getCorrectionHitCount() {
+        return correctionHits;
+    }
+
+    public double getHitRate() {
+        int lookups = getLookupCount();
+        return lookups == 0 ? 0 : (double) getHitCount() / lookups;
+    }
+
+    // Average time per utterance in microseconds
+    public double getAverageHitMicros() {
+        int hits = getHitCount();
+        return hits == 0 ? 0 : hitNanos / 1000.0 / hits;
+    }
+
+    public double getAverageMissMicros() {
+        return misses == 0 ? 0 : missNanos / 1000.0 / misses;
+    }
+
+    public String getSummary() {
+        return String.format(Locale.US, "%d utterances | %.0f%% cached (%d learned) | hit %.1f us | parse %.1f us",
+                getLookupCount(), getHitRate() * 100, correctionHits, getAverageHitMicros(), getAverageMissMicros());
+    }
+}
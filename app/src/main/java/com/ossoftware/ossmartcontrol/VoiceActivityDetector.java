@@ -0,0 +1,140 @@
+package com.ossoftware.ossmartcontrol;
+
+// Energy / zero-crossing voice activity detector for 16-bit mono PCM.
+// A frame counts as speech when its energy is well above the tracked noise
+// floor and its zero-crossing rate is in the range of voiced sound (low
+// hum and hiss are rejected). Speech starts after a few speech frames in a
+// row and ends after a hangover of quiet frames, so short pauses between
+// words don't split an utterance.
+public class VoiceActivityDetector {
+
+    public enum Event {
+        NONE, ONSET, OFFSET
+    }
+
+    public static class Config {
+        public int sampleRate = 16000;
+        public int frameMs = 20;
+        // Energy above the noise floor for a speech frame
+        public double thresholdDb = 12;
+        // Frames quieter than this are never speech, however quiet the room
+        public double minEnergyDb = -55;
+        // Fraction of adjacent samples changing sign
+        public double minZeroCrossingRate = 0.01;
+        public double maxZeroCrossingRate = 0.35;
+        // Consecutive speech frames before an onset
+        public int onsetFrames = 4;
+        // Quiet frames after speech before an offset
+        public int hangoverFrames = 20;
+        // How fast the noise floor follows a rising level (it drops at once)
+        public double noiseAdaptation = 0.02;
+
+        public int getFrameSamples() {
+            return sampleRate * frameMs / 1000;
+        }
+    }
+
+    private static final double SILENCE_DB = -96;
+    private static final double SPEECH_ADAPTATION = 0.1;
+
+    private final Config config;
+    private double noiseFloorDb = Double.NaN;
+    private boolean speaking;
+    private int speechRun;
+    private int quietRun;
+    private double lastEnergyDb = SILENCE_DB;
+    private double lastZeroCrossingRate;
+    private long framesProcessed;
+
+    public VoiceActivityDetector(Config config) {
+        this.config = config;
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public Event processFrame(short[] samples, int offset, int length) {
+        framesProcessed++;
+        if (length <= 0) {
+            return Event.NONE;
+        }
+
+        long sumSquares = 0;
+        int crossings = 0;
+        short previous = samples[offset];
+        for (int i = offset; i < offset + length; i++) {
+            short sample = samples[i];
+            sumSquares += sample * sample;
+            if ((sample >= 0) != (previous >= 0)) {
+                crossings++;
+            }
+            previous = sample;
+        }
+
+        double meanSquare = (double) sumSquares / length;
+        lastEnergyDb = meanSquare > 0 ? 10 * Math.log10(meanSquare / (32768.0 * 32768.0)) : SILENCE_DB;
+        lastZeroCrossingRate = (double) crossings / length;
+
+        if (Double.isNaN(noiseFloorDb)) {
+            noiseFloorDb = lastEnergyDb;
+        }
+
+        boolean speechFrame = lastEnergyDb >= Math.max(noiseFloorDb + config.thresholdDb, config.minEnergyDb)
+                && lastZeroCrossingRate >= config.minZeroCrossingRate
+                && lastZeroCrossingRate <= config.maxZeroCrossingRate;
+
+        // Follow the background: drop at once, rise slowly. Speech frames
+        // still nudge it up so a fan switched on isn't speech forever.
+        if (lastEnergyDb < noiseFloorDb) {
+            noiseFloorDb = lastEnergyDb;
+        } else {
+            double rate = speechFrame ? config.noiseAdaptation * SPEECH_ADAPTATION : config.noiseAdaptation;
+            noiseFloorDb += rate * (lastEnergyDb - noiseFloorDb);
+        }
+
+        if (speechFrame) {
+            speechRun++;
+            quietRun = 0;
+            if (!speaking && speechRun >= config.onsetFrames) {
+                speaking = true;
+                return Event.ONSET;
+            }
+        } else {
+            speechRun = 0;
+            quietRun++;
+            if (speaking && quietRun >= config.hangoverFrames) {
+                speaking = false;
+                return Event.OFFSET;
+            }
+        }
+        return Event.NONE;
+    }
+
+    // Keeps the learned noise floor; a new session starts from silence
+    public void reset() {
+        speaking = false;
+        speechRun = 0;
+        quietRun = 0;
+    }
+
+    public boolean isSpeaking() {
+        return speaking;
+    }
+
+    public double getNoiseFloorDb() {
+        return noiseFloorDb;
+    }
+
+    public double getLastEnergyDb() {
+        return lastEnergyDb;
+    }
+
+    public double getLastZeroCrossingRate() {
+        return lastZeroCrossingRate;
+    }
+
+    public long getFramesProcessed() {
+        return framesProcessed;
+    }
+}
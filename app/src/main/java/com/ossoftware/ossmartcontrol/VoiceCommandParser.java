@@ -1,56 +1,51 @@
 package com.ossoftware.ossmartcontrol;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class VoiceCommandParser {
 
     // Command mapping
     private Map<String, String> commandMap;
 
+    // Scene name (lowercase) -> scene id, longest names first
+    private List<String[]> sceneNames = new ArrayList<>();
+
+    private static final String[] SCENE_VERBS = {"activate", "start", "run", "enable", "set", "turn on"};
+
+    // Switch names and numbers, kept in step with the switch list
+    private final SwitchGrammar switchGrammar = new SwitchGrammar();
+    private final CompoundCommandParser compoundParser = new CompoundCommandParser(switchGrammar);
+
+    // Recently resolved utterances and user-taught corrections
+    private final UtteranceCache cache = new UtteranceCache();
+
+    // Rewrites the active locale's words into English tokens, if there is one
+    private PhrasePack phrasePack;
+
+    private static final int DEFAULT_SWITCH_COUNT = 8;
+
     public VoiceCommandParser() {
         initializeCommandMap();
+
+        // Until the real switch list arrives, answer to "light one".."light eight"
+        for (int i = 1; i <= DEFAULT_SWITCH_COUNT; i++) {
+            switchGrammar.putSwitch(i, "Switch " + i);
+        }
+    }
+
+    // Only switches that were added, renamed or removed are recompiled
+    public void setSwitches(List<DeviceModel> switches) {
+        switchGrammar.setSwitches(switches);
+        cache.invalidate();
     }
 
     private void initializeCommandMap() {
         commandMap = new HashMap<>();
 
-        // Light control commands (for up to 8 switches)
-        for (int i = 1; i <= 8; i++) {
-            String num = String.valueOf(i);
-            String word = getNumberWord(i);
-
-            // Turn on commands - multiple variations
-            commandMap.put("turn on light " + word, "LIGHT" + num + "_ON");
-            commandMap.put("turn on light " + num, "LIGHT" + num + "_ON");
-            commandMap.put("switch on light " + word, "LIGHT" + num + "_ON");
-            commandMap.put("light " + word + " on", "LIGHT" + num + "_ON");
-            commandMap.put("light " + num + " on", "LIGHT" + num + "_ON");
-            commandMap.put("on light " + word, "LIGHT" + num + "_ON");
-            commandMap.put("on light " + num, "LIGHT" + num + "_ON");
-            commandMap.put("enable light " + word, "LIGHT" + num + "_ON");
-            commandMap.put("power on light " + word, "LIGHT" + num + "_ON");
-
-            // Turn off commands - multiple variations
-            commandMap.put("turn off light " + word, "LIGHT" + num + "_OFF");
-            commandMap.put("turn off light " + num, "LIGHT" + num + "_OFF");
-            commandMap.put("switch off light " + word, "LIGHT" + num + "_OFF");
-            commandMap.put("light " + word + " off", "LIGHT" + num + "_OFF");
-            commandMap.put("light " + num + " off", "LIGHT" + num + "_OFF");
-            commandMap.put("off light " + word, "LIGHT" + num + "_OFF");
-            commandMap.put("off light " + num, "LIGHT" + num + "_OFF");
-            commandMap.put("disable light " + word, "LIGHT" + num + "_OFF");
-            commandMap.put("power off light " + word, "LIGHT" + num + "_OFF");
-
-            // Toggle commands
-            commandMap.put("toggle light " + word, "LIGHT" + num + "_TOGGLE");
-            commandMap.put("toggle light " + num, "LIGHT" + num + "_TOGGLE");
-            commandMap.put("switch light " + word, "LIGHT" + num + "_TOGGLE");
-            commandMap.put("switch light " + num, "LIGHT" + num + "_TOGGLE");
-        }
-
         // Group commands
         commandMap.put("turn on all lights", "ALL_LIGHTS_ON");
         commandMap.put("all lights on", "ALL_LIGHTS_ON");
@@ -85,38 +80,83 @@ public class VoiceCommandParser {
         commandMap.put("check connection", "TEST");
     }
 
-    private String getNumberWord(int number) {
-        switch (number) {
-            case 1:
-                return "one";
-            case 2:
-                return "two";
-            case 3:
-                return "three";
-            case 4:
-                return "four";
-            case 5:
-                return "five";
-            case 6:
-                return "six";
-            case 7:
-                return "seven";
-            case 8:
-                return "eight";
-            default:
-                return String.valueOf(number);
+    // The whole pipeline for what the recognizer heard: a correction the user
+    // taught, then a compound parse of the best guess, then an exact parse of
+    // it and of the alternatives, and only then fuzzy matching of the best
+    // guess. Cached by the normalized best guess, so a repeat skips all of it.
+    public VoiceResolution resolve(String spokenText, List<String> alternatives) {
+        long start = System.nanoTime();
+        String normalized = UtteranceCache.normalize(spokenText);
+
+        VoiceResolution resolution = cache.get(normalized);
+        if (resolution != null) {
+            cache.recordHit(System.nanoTime() - start);
+            return resolution;
+        }
+
+        resolution = resolveTranslated(translate(normalized), alternatives);
+        cache.put(normalized, resolution);
+        cache.recordMiss(System.nanoTime() - start);
+        return resolution;
+    }
+
+    public VoiceResolution resolve(String spokenText) {
+        return resolve(spokenText, Collections.singletonList(spokenText));
+    }
+
+    private VoiceResolution resolveTranslated(String spokenText, List<String> alternatives) {
+        List<VoiceIntent> intents = compoundParser.parse(spokenText);
+        if (intents != null) {
+            return VoiceResolution.intents(intents);
         }
+
+        // The first alternative is the best guess itself
+        String command = parseNormalized(spokenText);
+        for (int i = 1; i < alternatives.size() && command.equals("UNKNOWN_COMMAND"); i++) {
+            command = parseCommand(alternatives.get(i));
+        }
+
+        if (command.equals("UNKNOWN_COMMAND")) {
+            SwitchGrammar.FuzzyMatch match = switchGrammar.fuzzyMatch(spokenText);
+            if (match != null && match.needsConfirmation()) {
+                return VoiceResolution.confirm(match);
+            }
+            if (match != null) {
+                return VoiceResolution.command(match.getCommand());
+            }
+        }
+        return VoiceResolution.command(command);
     }
 
+    // A single command, without corrections or the cache
     public String parseCommand(String spokenText) {
-        // Convert to lowercase and remove extra spaces
-        spokenText = spokenText.toLowerCase().trim().replaceAll("\\s+", " ");
+        return parseNormalized(translate(UtteranceCache.normalize(spokenText)));
+    }
 
+    private String parseNormalized(String spokenText) {
         // First, try exact match
         if (commandMap.containsKey(spokenText)) {
             return commandMap.get(spokenText);
         }
 
+        // Switch phrases generated from the switch names ("turn on kitchen fan")
+        String switchCommand = switchGrammar.matchPhrase(spokenText);
+        if (switchCommand != null) {
+            return switchCommand;
+        }
+
+        // Then user scenes ("movie mode", "activate movie mode")
+        String sceneCommand = matchScene(spokenText);
+        if (sceneCommand != null) {
+            return sceneCommand;
+        }
+
+        // Any other phrasing naming a switch plus an action ("kitchen fan please on")
+        switchCommand = switchGrammar.match(spokenText);
+        if (switchCommand != null) {
+            return switchCommand;
+        }
+
         // Try partial matches
         for (Map.Entry<String, String> entry : commandMap.entrySet()) {
             String key = entry.getKey();
@@ -125,29 +165,6 @@ public class VoiceCommandParser {
             }
         }
 
-        // Try to extract light number from phrases using regex
-        Pattern pattern = Pattern.compile("(light|lamp|switch|device)\\s*(\\d+|one|two|three|four|five|six|seven|eight)");
-        Matcher matcher = pattern.matcher(spokenText);
-
-        if (matcher.find()) {
-            String numberWord = matcher.group(2);
-            int lightNumber = wordToNumber(numberWord);
-
-            if (lightNumber > 0 && lightNumber <= 8) {
-                if (spokenText.contains("on") || spokenText.contains("open") ||
-                        spokenText.contains("start") || spokenText.contains("enable") ||
-                        spokenText.contains("power on")) {
-                    return "LIGHT" + lightNumber + "_ON";
-                } else if (spokenText.contains("off") || spokenText.contains("close") ||
-                        spokenText.contains("stop") || spokenText.contains("disable") ||
-                        spokenText.contains("power off")) {
-                    return "LIGHT" + lightNumber + "_OFF";
-                } else if (spokenText.contains("toggle") || spokenText.contains("switch")) {
-                    return "LIGHT" + lightNumber + "_TOGGLE";
-                }
-            }
-        }
-
         // Check for "all lights" commands
         if (spokenText.contains("all light") || spokenText.contains("every light") ||
                 spokenText.contains("all the light")) {
@@ -161,39 +178,78 @@ public class VoiceCommandParser {
         return "UNKNOWN_COMMAND";
     }
 
-    private int wordToNumber(String word) {
-        switch (word.toLowerCase()) {
-            case "1":
-            case "one":
-                return 1;
-            case "2":
-            case "two":
-                return 2;
-            case "3":
-            case "three":
-                return 3;
-            case "4":
-            case "four":
-                return 4;
-            case "5":
-            case "five":
-                return 5;
-            case "6":
-            case "six":
-                return 6;
-            case "7":
-            case "seven":
-                return 7;
-            case "8":
-            case "eight":
-                return 8;
-            default:
-                try {
-                    return Integer.parseInt(word);
-                } catch (NumberFormatException e) {
-                    return -1;
+    public void setPhrasePack(PhrasePack phrasePack) {
+        this.phrasePack = phrasePack;
+        cache.invalidate();
+    }
+
+    private String translate(String normalized) {
+        return phrasePack != null ? phrasePack.translate(normalized) : normalized;
+    }
+
+    public void setScenes(List<SceneModel> scenes) {
+        List<String[]> names = new ArrayList<>();
+        for (SceneModel scene : scenes) {
+            String name = UtteranceCache.normalize(scene.getName());
+            if (!name.isEmpty()) {
+                names.add(new String[]{name, scene.getId()});
+            }
+        }
+        // Longest first so "movie mode late" wins over "movie mode"
+        names.sort((a, b) -> Integer.compare(b[0].length(), a[0].length()));
+        sceneNames = names;
+        cache.invalidate();
+    }
+
+    private String matchScene(String spokenText) {
+        for (String[] scene : sceneNames) {
+            String name = scene[0];
+            if (spokenText.equals(name)) {
+                return "SCENE:" + scene[1];
+            }
+            if (spokenText.contains(name)) {
+                for (String verb : SCENE_VERBS) {
+                    if (spokenText.contains(verb)) {
+                        return "SCENE:" + scene[1];
+                    }
                 }
+            }
         }
+        return null;
+    }
+
+    // Second chance for an UNKNOWN_COMMAND: correct misheard switch names and
+    // verbs ("kitchen van", "light to"). Null when nothing plausible is found.
+    public SwitchGrammar.FuzzyMatch fuzzyMatch(String spokenText) {
+        return switchGrammar.fuzzyMatch(translate(UtteranceCache.normalize(spokenText)));
+    }
+
+    // Utterances naming several switches or actions ("lights one to three on
+    // and four off"). Null when the text is a plain single command.
+    public List<VoiceIntent> parseCompound(String spokenText) {
+        return compoundParser.parse(translate(UtteranceCache.normalize(spokenText)));
+    }
+
+    // Command the user taught for this utterance, or null
+    public String getCorrection(String spokenText) {
+        return cache.getCorrection(UtteranceCache.normalize(spokenText));
+    }
+
+    // The user picked the right command after a miss or a wrong action
+    public void learnCorrection(String spokenText, String command) {
+        cache.learn(UtteranceCache.normalize(spokenText), command);
+    }
+
+    public Map<String, String> getCorrections() {
+        return cache.getCorrections();
+    }
+
+    public void setCorrections(Map<String, String> corrections) {
+        cache.setCorrections(corrections);
+    }
+
+    public UtteranceCache getCache() {
+        return cache;
     }
 
     public Map<String, String> getAvailableCommands() {
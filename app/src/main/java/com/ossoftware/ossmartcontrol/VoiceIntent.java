@@ -0,0 +1,76 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// One action applied to one or more switches, as parsed from an utterance
+// like "turn on lights one to three and switch off four"
+public class VoiceIntent {
+
+    public enum Action {
+        ON, OFF, TOGGLE, LEVEL
+    }
+
+    public static final int NO_VALUE = -1;
+
+    private final Action action;
+    private final List<Integer> targets;
+    private final int value; // Percent for LEVEL, otherwise NO_VALUE
+
+    public VoiceIntent(Action action, List<Integer> targets, int value) {
+        this.action = action;
+        this.targets = new ArrayList<>(targets);
+        this.value = value;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public List<Integer> getTargets() {
+        return targets;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    // Everything in one ad-hoc scene, so the compiler turns it into a single
+    // minimal diff sent as one write
+    public static SceneModel toScene(List<VoiceIntent> intents, List<DeviceModel> switches) {
+        SceneModel scene = new SceneModel("VOICE", "Voice command");
+        for (VoiceIntent intent : intents) {
+            for (int switchIndex : intent.getTargets()) {
+                boolean turnOn;
+                switch (intent.getAction()) {
+                    case TOGGLE:
+                        turnOn = !isOn(switches, switchIndex);
+                        break;
+                    case LEVEL:
+                        // Switches are on/off only: any level above zero means on
+                        turnOn = intent.getValue() > 0;
+                        break;
+                    default:
+                        turnOn = intent.getAction() == Action.ON;
+                        break;
+                }
+                scene.addStep(new SceneModel.Step(switchIndex, turnOn));
+            }
+        }
+        return scene;
+    }
+
+    private static boolean isOn(List<DeviceModel> switches, int switchIndex) {
+        for (DeviceModel device : switches) {
+            if (device.getIndex() == switchIndex) {
+                return device.isOn();
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return action + (value != NO_VALUE ? "(" + value + ")" : "") + targets;
+    }
+}
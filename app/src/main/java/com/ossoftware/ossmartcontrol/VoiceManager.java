@@ -3,6 +3,7 @@ package com.ossoftware.ossmartcontrol;
 import static android.view.View.GONE;
 
 import android.content.Intent;
+import android.os.Trace;
 import android.speech.RecognizerIntent;
 import android.util.Log;
 import android.widget.TextView;
@@ -15,7 +16,10 @@ import androidx.appcompat.app.AppCompatActivity;
 import com.google.android.material.card.MaterialCardView;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 public class VoiceManager {
 
@@ -24,7 +28,17 @@ public class VoiceManager {
     private MainActivity activity;
     private TextView txtListeningStatus;
     private MaterialCardView cardStatus;
-    private VoiceCommandParser commandParser;
+    private VoiceCommandParser commandParser; // Built on first use, it isn't needed at startup
+    private List<SceneModel> scenes = new ArrayList<>();
+    private List<DeviceModel> switches;
+    private Map<String, String> corrections = new HashMap<>();
+    private String lastSpokenText; // Best guess of the last utterance, for teaching corrections
+
+    // Hands-free: the VAD opens a recognizer session when speech starts
+    private static final long HANDS_FREE_RESUME_MS = 1500;
+    private HandsFreeListener handsFreeListener;
+    private boolean recognizerActive;
+    private boolean handsFreeSession;
 
     // Activity result launcher for speech recognition
     private ActivityResultLauncher<Intent> speechRecognitionLauncher;
@@ -33,6 +47,12 @@ public class VoiceManager {
         void onVoiceCommandRecognized(String command);
 
         void onVoiceError(String error);
+
+        // A fuzzy match that is plausible but not certain enough to act on
+        void onVoiceCommandNeedsConfirmation(String spokenText, SwitchGrammar.FuzzyMatch match);
+
+        // Several switches or actions in one utterance, applied together
+        void onVoiceIntentsRecognized(List<VoiceIntent> intents);
     }
 
     private VoiceResultListener voiceResultListener;
@@ -41,9 +61,8 @@ public class VoiceManager {
         this.activity = activity;
         this.cardStatus = cardView;
         this.txtListeningStatus = statusTextView;
-        this.commandParser = new VoiceCommandParser();
 
-        // Initialize the activity result launcher
+        // Must be registered before the Activity starts; the parser is deferred instead
         initializeSpeechRecognitionLauncher();
     }
 
@@ -53,6 +72,7 @@ public class VoiceManager {
                 result -> {
                     int resultCode = result.getResultCode();
                     Intent data = result.getData();
+                    recognizerActive = false;
 
                     if (resultCode == AppCompatActivity.RESULT_OK && data != null) {
                         ArrayList<String> results = data.getStringArrayListExtra(
@@ -73,12 +93,7 @@ public class VoiceManager {
                             });
 
                             // Process the recognized text
-                            String command = commandParser.parseCommand(spokenText);
-                            Log.d(TAG, "🔧 Parsed command: " + command);
-
-                            if (voiceResultListener != null) {
-                                voiceResultListener.onVoiceCommandRecognized(command);
-                            }
+                            resolveCommand(spokenText, results);
 
                             // Hide status after 2 seconds
                             activity.runOnUiThread(() -> {
@@ -98,14 +113,106 @@ public class VoiceManager {
                         Log.w(TAG, "❌ Speech recognition cancelled or failed (result code: " + resultCode + ")");
                         handleNoResults();
                     }
+
+                    handsFreeSession = false;
+                    if (handsFreeListener != null) {
+                        handsFreeListener.resumeAfter(HANDS_FREE_RESUME_MS);
+                    }
                 }
         );
     }
 
+    // The parser runs the whole pipeline, or answers from its cache
+    private void resolveCommand(String spokenText, List<String> alternatives) {
+        VoiceCommandParser parser = getCommandParser();
+        lastSpokenText = spokenText;
+
+        VoiceResolution resolution = parser.resolve(spokenText, alternatives);
+        Log.d(TAG, "🔧 Resolved: " + resolution);
+        if (voiceResultListener == null) {
+            return;
+        }
+
+        switch (resolution.getKind()) {
+            case INTENTS:
+                voiceResultListener.onVoiceIntentsRecognized(resolution.getIntents());
+                break;
+            case CONFIRM:
+                voiceResultListener.onVoiceCommandNeedsConfirmation(spokenText, resolution.getMatch());
+                break;
+            default:
+                voiceResultListener.onVoiceCommandRecognized(resolution.getCommand());
+                break;
+        }
+    }
+
     public void setVoiceResultListener(VoiceResultListener listener) {
         this.voiceResultListener = listener;
     }
 
+    // Let the parser recognise user scene names
+    public void setScenes(List<SceneModel> scenes) {
+        this.scenes = new ArrayList<>(scenes);
+        if (commandParser != null) {
+            commandParser.setScenes(this.scenes);
+        }
+    }
+
+    // Let the parser recognise switch names; cheap when nothing was renamed
+    public void setSwitches(List<DeviceModel> switches) {
+        this.switches = switches;
+        if (commandParser != null) {
+            commandParser.setSwitches(switches);
+        }
+    }
+
+    // Saved corrections, loaded with the rest of the UI state
+    public void setCorrections(Map<String, String> corrections) {
+        this.corrections = new HashMap<>(corrections);
+        if (commandParser != null) {
+            commandParser.setCorrections(this.corrections);
+        }
+    }
+
+    // Remember that an utterance meant this command; returns the table to persist
+    public Map<String, String> learnCorrection(String spokenText, String command) {
+        corrections.put(UtteranceCache.normalize(spokenText), command);
+        if (commandParser != null) {
+            commandParser.learnCorrection(spokenText, command);
+        }
+        return new HashMap<>(corrections);
+    }
+
+    public String getLastSpokenText() {
+        return lastSpokenText;
+    }
+
+    public String getStatsSummary() {
+        if (commandParser == null) {
+            return "No voice commands yet";
+        }
+        return commandParser.getCache().getSummary();
+    }
+
+    private VoiceCommandParser getCommandParser() {
+        if (commandParser == null) {
+            Trace.beginSection("Voice.buildParser");
+            try {
+                commandParser = new VoiceCommandParser();
+                // Same locale the recognizer is asked to transcribe in
+                commandParser.setPhrasePack(PhrasePacks.forLocale(activity, Locale.getDefault()));
+                commandParser.setCorrections(corrections);
+                commandParser.setScenes(scenes);
+                if (switches != null) {
+                    commandParser.setSwitches(switches);
+                }
+            } finally {
+                Trace.endSection();
+            }
+        }
+        return commandParser;
+    }
+
     public void startListening() {
         // Check if speech recognition is available
         if (!isSpeechRecognitionAvailable()) {
@@ -126,6 +233,7 @@ public class VoiceManager {
 
             // Start speech recognition using the launcher
             speechRecognitionLauncher.launch(intent);
+            recognizerActive = true;
             Log.d(TAG, "🎤 Started speech recognition activity");
 
             updateStatus("🎤 Listening...", android.R.color.holo_green_dark);
@@ -158,7 +266,8 @@ public class VoiceManager {
             }
         });
 
-        if (voiceResultListener != null) {
+        // The VAD fires on noise now and then; don't nag about those sessions
+        if (voiceResultListener != null && !handsFreeSession) {
             voiceResultListener.onVoiceError("No speech recognized");
         }
 
@@ -188,7 +297,53 @@ public class VoiceManager {
                 Toast.makeText(activity, message, Toast.LENGTH_SHORT).show());
     }
 
+    /* ===== HANDS-FREE ===== */
+
+    // Returns false if the microphone couldn't be opened
+    public boolean setHandsFree(boolean enabled) {
+        if (!enabled) {
+            if (handsFreeListener != null) {
+                handsFreeListener.stop();
+                handsFreeListener = null;
+            }
+            return true;
+        }
+        if (handsFreeListener == null) {
+            handsFreeListener = new HandsFreeListener(activity, new VoiceActivityDetector.Config(), () -> {
+                Log.d(TAG, "🎤 Speech onset, opening recognizer");
+                handsFreeSession = true;
+                startListening();
+            });
+        }
+        if (recognizerActive || handsFreeListener.start()) {
+            return true;
+        }
+        handsFreeListener = null;
+        return false;
+    }
+
+    public boolean isHandsFree() {
+        return handsFreeListener != null;
+    }
+
+    // Only listen while the app is in front
+    public void pauseHandsFree() {
+        if (handsFreeListener != null) {
+            handsFreeListener.stop();
+        }
+    }
+
+    public void resumeHandsFree() {
+        if (handsFreeListener != null && !recognizerActive) {
+            handsFreeListener.start();
+        }
+    }
+
+    public String getHandsFreeSummary() {
+        return handsFreeListener != null ? handsFreeListener.getCpuSummary() : null;
+    }
+
     public void destroy() {
-        // Nothing to destroy in this implementation
+        setHandsFree(false);
     }
 }
\ No newline at end of file
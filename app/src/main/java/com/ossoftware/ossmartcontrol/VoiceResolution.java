@@ -0,0 +1,69 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// What an utterance resolved to after the whole voice pipeline: a single
+// command, several intents applied together, or a fuzzy guess the user has
+// to confirm. Immutable, so the utterance cache can hand out the same one.
+public class VoiceResolution {
+
+    public enum Kind {
+        COMMAND, INTENTS, CONFIRM
+    }
+
+    private final Kind kind;
+    private final String command;
+    private final List<VoiceIntent> intents;
+    private final SwitchGrammar.FuzzyMatch match;
+
+    private VoiceResolution(Kind kind, String command, List<VoiceIntent> intents, SwitchGrammar.FuzzyMatch match) {
+        this.kind = kind;
+        this.command = command;
+        this.intents = intents;
+        this.match = match;
+    }
+
+    public static VoiceResolution command(String command) {
+        return new VoiceResolution(Kind.COMMAND, command, Collections.emptyList(), null);
+    }
+
+    public static VoiceResolution intents(List<VoiceIntent> intents) {
+        return new VoiceResolution(Kind.INTENTS, null,
+                Collections.unmodifiableList(new ArrayList<>(intents)), null);
+    }
+
+    public static VoiceResolution confirm(SwitchGrammar.FuzzyMatch match) {
+        return new VoiceResolution(Kind.CONFIRM, match.getCommand(), Collections.emptyList(), match);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    // The command to send, or the guessed one for CONFIRM; null for INTENTS
+    public String getCommand() {
+        return command;
+    }
+
+    public List<VoiceIntent> getIntents() {
+        return intents;
+    }
+
+    public SwitchGrammar.FuzzyMatch getMatch() {
+        return match;
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case INTENTS:
+                return intents.toString();
+            case CONFIRM:
+                return command + "? (" + match.getCorrectedText() + ")";
+            default:
+                return command;
+        }
+    }
+}
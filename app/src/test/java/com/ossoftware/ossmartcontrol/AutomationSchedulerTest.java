@@ -0,0 +1,161 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class AutomationSchedulerTest {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final long MINUTE = 60000L;
+
+    private long utc(int year, int month, int day, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance(UTC);
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    private AutomationScheduler schedulerAt(long now) {
+        return new AutomationScheduler(() -> now, UTC, null, 5 * MINUTE);
+    }
+
+    @Test
+    public void cronFiresAtNextMatchingMinute() {
+        // Monday 2026-10-19 10:00
+        long now = utc(2026, 10, 19, 10, 0);
+        AutomationSchedule weekdayEvening = AutomationSchedule.parse("30 18 * * 1-5");
+
+        assertEquals(utc(2026, 10, 19, 18, 30), weekdayEvening.nextFireTime(now, UTC, null));
+        // Friday evening -> next is Monday
+        assertEquals(utc(2026, 10, 26, 18, 30),
+                weekdayEvening.nextFireTime(utc(2026, 10, 23, 18, 30), UTC, null));
+    }
+
+    @Test
+    public void cronListsAndSteps() {
+        AutomationSchedule schedule = AutomationSchedule.parse("*/15 7,19 * * *");
+        long after = utc(2026, 10, 19, 7, 20);
+        assertEquals(utc(2026, 10, 19, 7, 30), schedule.nextFireTime(after, UTC, null));
+        assertEquals(utc(2026, 10, 19, 19, 0), schedule.nextFireTime(utc(2026, 10, 19, 7, 45), UTC, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidSpecIsRejected() {
+        AutomationSchedule.parse("61 * * * *");
+    }
+
+    @Test
+    public void sunriseAndSunsetMatchKnownValues() {
+        // London, summer solstice 2024: sunrise ~03:43 UTC, sunset ~20:21 UTC
+        SolarCalculator london = new SolarCalculator(51.5074, -0.1278);
+        assertEquals(utc(2024, 6, 21, 3, 43), london.sunrise(2024, 6, 21), 5 * MINUTE);
+        assertEquals(utc(2024, 6, 21, 20, 21), london.sunset(2024, 6, 21), 5 * MINUTE);
+
+        // Dhaka, 2024-01-01: sunrise ~06:41 local (00:41 UTC), sunset ~17:20 local (11:20 UTC)
+        SolarCalculator dhaka = new SolarCalculator(23.8103, 90.4125);
+        assertEquals(utc(2024, 1, 1, 0, 41), dhaka.sunrise(2024, 1, 1), 5 * MINUTE);
+        assertEquals(utc(2024, 1, 1, 11, 20), dhaka.sunset(2024, 1, 1), 5 * MINUTE);
+    }
+
+    @Test
+    public void solarOffsetIsApplied() {
+        SolarCalculator london = new SolarCalculator(51.5074, -0.1278);
+        long sunset = london.sunset(2024, 6, 21);
+        long fire = AutomationSchedule.parse("sunset-30").nextFireTime(utc(2024, 6, 21, 12, 0), UTC, london);
+        assertEquals(sunset - 30 * MINUTE, fire, MINUTE);
+    }
+
+    @Test
+    public void solarWithoutLocationNeverFires() {
+        assertEquals(-1, AutomationSchedule.parse("sunrise").nextFireTime(0, UTC, null));
+    }
+
+    @Test
+    public void rulesWithinWindowShareOneSession() {
+        long lastRun = utc(2026, 10, 19, 17, 0);
+        List<AutomationRule> rules = Arrays.asList(
+                new AutomationRule("A", "S1", "0 18 * * *"),
+                new AutomationRule("B", "S2", "4 18 * * *"),
+                new AutomationRule("C", "S3", "30 18 * * *"));
+
+        // Planned ahead of time: not due yet, alarm at 18:00
+        AutomationScheduler.Session planned = schedulerAt(lastRun).planNext(rules, lastRun);
+        assertFalse(planned.isDue());
+        assertEquals(utc(2026, 10, 19, 18, 0), planned.getStartTime());
+        assertEquals(2, planned.getRules().size());
+
+        // Alarm delivered at 18:01: A and B run together, C waits
+        AutomationScheduler.Session session = schedulerAt(utc(2026, 10, 19, 18, 1)).planNext(rules, lastRun);
+        assertTrue(session.isDue());
+        assertEquals("A", session.getRules().get(0).getRule().getId());
+        assertEquals("B", session.getRules().get(1).getRule().getId());
+
+        AutomationScheduler.Session next = schedulerAt(utc(2026, 10, 19, 18, 2))
+                .planNext(rules, session.getCoveredUntil());
+        assertEquals(1, next.getRules().size());
+        assertEquals("C", next.getRules().get(0).getRule().getId());
+        assertEquals(utc(2026, 10, 19, 18, 30), next.getStartTime());
+    }
+
+    @Test
+    public void planningIsDeterministic() {
+        long now = utc(2026, 10, 19, 9, 0);
+        List<AutomationRule> rules = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            rules.add(new AutomationRule("R" + i, "S", (i * 7 % 60) + " 9 * * *"));
+        }
+        AutomationScheduler.Session first = schedulerAt(now).planNext(rules, now);
+        AutomationScheduler.Session second = schedulerAt(now).planNext(rules, now);
+        assertEquals(first.getStartTime(), second.getStartTime());
+        assertEquals(first.getRules().size(), second.getRules().size());
+        for (int i = 0; i < first.getRules().size(); i++) {
+            assertSame(first.getRules().get(i).getRule(), second.getRules().get(i).getRule());
+        }
+    }
+
+    @Test
+    public void disabledRulesAreIgnored() {
+        long now = utc(2026, 10, 19, 9, 0);
+        AutomationRule rule = new AutomationRule("A", "S1", "0 10 * * *");
+        rule.setEnabled(false);
+        assertNull(schedulerAt(now).planNext(Arrays.asList(rule), now));
+    }
+
+    @Test
+    public void sessionScenesMergeIntoOneDiff() {
+        long lastRun = utc(2026, 10, 19, 17, 0);
+        SceneModel lightsOn = new SceneModel("S1", "Lights on");
+        lightsOn.addStep(new SceneModel.Step(1, true));
+        lightsOn.addStep(new SceneModel.Step(2, true));
+        SceneModel fanOff = new SceneModel("S2", "Light two off");
+        fanOff.addStep(new SceneModel.Step(2, false));
+
+        Map<String, SceneModel> scenes = new HashMap<>();
+        scenes.put("S1", lightsOn);
+        scenes.put("S2", fanOff);
+
+        List<AutomationRule> rules = Arrays.asList(
+                new AutomationRule("A", "S1", "0 18 * * *"),
+                new AutomationRule("B", "S2", "2 18 * * *"));
+        AutomationScheduler.Session session = schedulerAt(utc(2026, 10, 19, 18, 0)).planNext(rules, lastRun);
+
+        List<DeviceModel> switches = new ArrayList<>();
+        switches.add(new DeviceModel(1, "Switch 1", "LIGHT1_TOGGLE"));
+        switches.add(new DeviceModel(2, "Switch 2", "LIGHT2_TOGGLE"));
+
+        SceneCompiler.CompiledScene compiled = SceneCompiler.compileForUnknownState(
+                AutomationScheduler.buildSessionScene(session, scenes), switches);
+        assertEquals(1, compiled.getBatches().size());
+        assertEquals(Arrays.asList("LIGHT1_ON", "LIGHT2_OFF"),
+                compiled.getBatches().get(0).getCommands());
+    }
+}
@@ -0,0 +1,237 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class BinaryFrameCodecTest {
+
+    private BinaryFrameCodec codec;
+
+    @Before
+    public void setUp() {
+        codec = new BinaryFrameCodec();
+    }
+
+    @Test
+    public void crcMatchesTheStandardCheckValue() {
+        byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0xF4, BinaryFrameCodec.crc8(check, check.length));
+    }
+
+    @Test
+    public void commandsRoundTrip() {
+        for (String command : Arrays.asList("LIGHT1_ON", "LIGHT2_OFF", "LIGHT20_TOGGLE", "LIGHT3_LEVEL_128",
+                "LIGHT4_ON#17", "LIGHT5_LEVEL_0#255", "STATUS")) {
+            StringBuilder frame = new StringBuilder();
+            assertTrue(command, codec.encodeCommand(command, frame));
+            assertEquals(command, decode(frame));
+        }
+    }
+
+    @Test
+    public void repliesRoundTrip() {
+        for (String reply : Arrays.asList("LIGHT1:ON", "LIGHT2:OFF#9", "LIGHT3:LEVEL=40", "LIGHT3:LEVEL=255#200",
+                "Status: L1=ON L2=OFF L3=ON", status(20, 0xA5A5A))) {
+            StringBuilder frame = new StringBuilder();
+            assertTrue(reply, codec.encodeReply(reply, frame));
+            assertEquals(reply, decode(frame));
+        }
+    }
+
+    @Test
+    public void commandsWithoutABinaryFormStayText() {
+        for (String command : Arrays.asList("HELP", "A1", "SET_TEMP_21", "LIGHT300_ON", "LIGHT1_LEVEL_300",
+                ReplySequencer.HANDSHAKE, FramedLink.HANDSHAKE)) {
+            assertFalse(command, codec.encodeCommand(command, new StringBuilder()));
+        }
+        assertFalse(codec.encodeReply("Light 2 toggled", new StringBuilder()));
+        assertFalse(codec.encodeReply("ERROR: Unknown command X", new StringBuilder()));
+    }
+
+    @Test
+    public void framesNeverContainLineBreaksOrASecondSync() {
+        for (int switchNumber = 1; switchNumber <= 255; switchNumber++) {
+            for (int value = 0; value <= 255; value += 5) {
+                StringBuilder command = new StringBuilder();
+                StringBuilder reply = new StringBuilder();
+                codec.encodeCommand("LIGHT" + switchNumber + "_LEVEL_" + value + "#" + (255 - value), command);
+                codec.encodeReply("LIGHT" + switchNumber + ":ON#" + value, reply);
+                for (StringBuilder frame : Arrays.asList(command, reply)) {
+                    for (int i = 1; i < frame.length(); i++) {
+                        char c = frame.charAt(i);
+                        assertTrue(c != '\n' && c != '\r' && c != BinaryFrameCodec.SYNC && c <= 0xFF);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void truncatedAndCorruptFramesAreRejected() {
+        StringBuilder frame = new StringBuilder();
+        codec.encodeReply(status(20, 0x12345), frame);
+
+        StringBuilder out = new StringBuilder("kept");
+        assertFalse(codec.decode(frame.subSequence(0, frame.length() - 1), out));
+        assertEquals("kept", out.toString());
+
+        frame.setCharAt(4, (char) (frame.charAt(4) ^ 0x01));
+        assertFalse(codec.decode(frame, out));
+        assertFalse(codec.decode("LIGHT1:ON", out));
+    }
+
+    // Every byte of a 20-switch status reply replaced by every other value.
+    // Text lines get through with the wrong states; frames never do.
+    @Test
+    public void singleByteCorruption() {
+        String text = status(20, 0x5A5A5);
+        Map<Integer, Boolean> truth = DeviceMessageParser.parseStatus(text);
+        StringBuilder frame = new StringBuilder();
+        codec.encodeReply(text, frame);
+
+        int textTrials = 0;
+        int textWrong = 0;
+        for (int i = 0; i < text.length(); i++) {
+            for (int value = 0x20; value < 0x7F; value++) {
+                if (value == text.charAt(i)) {
+                    continue;
+                }
+                textTrials++;
+                String corrupt = text.substring(0, i) + (char) value + text.substring(i + 1);
+                Map<Integer, Boolean> parsed = DeviceMessageParser.parseStatus(corrupt);
+                for (Map.Entry<Integer, Boolean> entry : parsed.entrySet()) {
+                    if (!entry.getValue().equals(truth.get(entry.getKey()))) {
+                        textWrong++;
+                        break;
+                    }
+                }
+            }
+        }
+
+        int frameTrials = 0;
+        int frameWrong = 0;
+        for (int i = 1; i < frame.length(); i++) {
+            for (int value = 0; value <= 0xFF; value++) {
+                if (value == frame.charAt(i) || value == '\n' || value == '\r') {
+                    continue;
+                }
+                frameTrials++;
+                StringBuilder corrupt = new StringBuilder(frame);
+                corrupt.setCharAt(i, (char) value);
+                StringBuilder out = new StringBuilder();
+                if (codec.decode(corrupt, out) && !out.toString().equals(text)) {
+                    frameWrong++;
+                }
+            }
+        }
+
+        // Text has no check at all; a CRC-8 frame catches every single-byte error
+        assertTrue(textWrong + "/" + textTrials, textWrong > 0);
+        assertEquals(0, frameWrong);
+    }
+
+    // A 20-switch STATUS exchange over a 9600 baud HC-05 in both modes,
+    // against the simulated board
+    @Test
+    public void statusExchangeBenchmark() {
+        Exchange text = exchange(false);
+        Exchange binary = exchange(true);
+
+        long start = System.nanoTime();
+        int rounds = 20_000;
+        StringBuilder out = new StringBuilder(256);
+        for (int i = 0; i < rounds; i++) {
+            out.setLength(0);
+            codec.decode(binary.reply, out);
+        }
+        double decodeUs = (System.nanoTime() - start) / 1000.0 / rounds;
+
+        // Both paths parse the status text; decoding the frame is the extra
+        String status = out.toString().trim();
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            DeviceMessageParser.parseStatus(status);
+        }
+        double parseUs = (System.nanoTime() - start) / 1000.0 / rounds;
+
+        assertTrue(binary.bytes * 5 < text.bytes);
+        assertTrue(binary.latencyMs < text.latencyMs / 2);
+        assertTrue(String.format(Locale.US, "Frame decode %.2f us, status parse %.2f us", decodeUs, parseUs),
+                decodeUs < parseUs);
+    }
+
+    private static class Exchange {
+        String reply;
+        int bytes;
+        double latencyMs;
+    }
+
+    private Exchange exchange(boolean binary) {
+        FirmwareSimulator board = new FirmwareSimulator(20, 15, 2);
+        board.setKnowsBinary(true);
+        for (int i = 1; i <= 20; i += 3) {
+            board.receive("LIGHT" + i + "_ON");
+        }
+
+        List<String> sent = new ArrayList<>();
+        FramedLink link = new FramedLink(new CommandTransport() {
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+
+            @Override
+            public void sendCommand(String command) {
+                sent.add(command);
+            }
+
+            @Override
+            public void sendCommands(List<String> commands) {
+                sent.add(String.join("\n", commands));
+            }
+        }, null);
+        if (binary) {
+            link.decode(String.join("\n", board.receive(FramedLink.HANDSHAKE)));
+            assertTrue(link.isBinary());
+        }
+
+        link.sendCommand("STATUS");
+        String request = sent.get(sent.size() - 1);
+        List<String> replies = board.receive(request);
+        Exchange exchange = new Exchange();
+        exchange.reply = replies.get(0);
+        exchange.bytes = request.length() + 1 + exchange.reply.length() + 1;
+        exchange.latencyMs = exchange.bytes * OutboundScheduler.DEFAULT_MS_PER_BYTE + board.roundTripMs(request);
+
+        // The parser sees the same status either way
+        Map<Integer, Boolean> parsed = DeviceMessageParser.parseStatus(link.decode(exchange.reply).trim());
+        assertEquals(20, parsed.size());
+        for (int i = 1; i <= 20; i++) {
+            assertEquals(board.isOn(i), parsed.get(i));
+        }
+        return exchange;
+    }
+
+    private String decode(CharSequence frame) {
+        StringBuilder out = new StringBuilder();
+        assertTrue(codec.decode(frame, out));
+        return out.toString();
+    }
+
+    private static String status(int count, int bits) {
+        StringBuilder status = new StringBuilder("Status:");
+        for (int i = 0; i < count; i++) {
+            status.append(" L").append(i + 1).append((bits & (1 << i)) != 0 ? "=ON" : "=OFF");
+        }
+        return status.toString();
+    }
+}
@@ -0,0 +1,105 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class BoardCapabilitiesTest {
+
+    // The reference sketch before any extensions
+    @Test
+    public void commaSeparatedPlaceholderList() {
+        BoardCapabilities caps = BoardCapabilities.parseHelp(Arrays.asList(
+                "LIGHTx_ON, LIGHTx_OFF, LIGHTx_TOGGLE, LIGHTx_LEVEL_n, STATUS, HELP"));
+        assertTrue(caps.has(BoardCapabilities.Feature.SET));
+        assertTrue(caps.has(BoardCapabilities.Feature.TOGGLE));
+        assertTrue(caps.has(BoardCapabilities.Feature.LEVEL));
+        assertTrue(caps.has(BoardCapabilities.Feature.STATUS));
+        assertFalse(caps.has(BoardCapabilities.Feature.SEQ));
+        assertFalse(caps.has(BoardCapabilities.Feature.ALL));
+        assertEquals(0, caps.getSwitchCount());
+        assertEquals(BoardCapabilities.Source.HELP, caps.getSource());
+    }
+
+    // The original three-relay sketch: one toggle per line with a description
+    @Test
+    public void oneCommandPerLineWithDescriptions() {
+        BoardCapabilities caps = BoardCapabilities.parseHelp(Arrays.asList(
+                "LIGHT1_TOGGLE - Toggle Light 1",
+                "LIGHT2_TOGGLE - Toggle Light 2",
+                "LIGHT3_TOGGLE - Toggle Light 3",
+                "STATUS - Show all light status",
+                "HELP - Show this help"));
+        assertTrue(caps.has(BoardCapabilities.Feature.TOGGLE));
+        assertFalse(caps.has(BoardCapabilities.Feature.SET));
+        assertFalse(caps.has(BoardCapabilities.Feature.LEVEL));
+        assertEquals(3, caps.getSwitchCount());
+    }
+
+    @Test
+    public void bracketRangesAndBulkCommands() {
+        BoardCapabilities caps = BoardCapabilities.parseHelp(Arrays.asList(
+                "LIGHT[1-8]_ON / LIGHT[1-8]_OFF / LIGHT[1-8]_TOGGLE",
+                "ALL_ON, ALL_OFF",
+                "STATUS"));
+        assertTrue(caps.has(BoardCapabilities.Feature.SET));
+        assertTrue(caps.has(BoardCapabilities.Feature.ALL));
+        assertEquals(8, caps.getSwitchCount());
+    }
+
+    @Test
+    public void placeholderRangeAndExtensions() {
+        BoardCapabilities caps = BoardCapabilities.parseHelp(Arrays.asList(
+                "lightx_on, lightx_off, lightx_toggle (x = 1-6)",
+                "Status, Help, SEQ_ON, BIN_ON, BIN_OFF, PING"));
+        assertTrue(caps.has(BoardCapabilities.Feature.SET));
+        assertTrue(caps.has(BoardCapabilities.Feature.SEQ));
+        assertTrue(caps.has(BoardCapabilities.Feature.BIN));
+        assertTrue(caps.has(BoardCapabilities.Feature.PING));
+        assertEquals(6, caps.getSwitchCount());
+    }
+
+    // ON without OFF can't be used to set a state either way
+    @Test
+    public void halfOfAnAbsolutePairIsNotEnough() {
+        BoardCapabilities caps = BoardCapabilities.parseHelp(Arrays.asList("LIGHTx_ON, LIGHTx_TOGGLE"));
+        assertFalse(caps.has(BoardCapabilities.Feature.SET));
+    }
+
+    @Test
+    public void capsReply() {
+        String line = "CAPS: switches=12 cmds=TOGGLE,SET,STATUS,SEQ,FADE";
+        assertTrue(BoardCapabilities.isCapsReply(line));
+        BoardCapabilities caps = BoardCapabilities.parseCaps(line);
+        assertEquals(12, caps.getSwitchCount());
+        assertTrue(caps.has(BoardCapabilities.Feature.SEQ));
+        assertFalse(caps.has(BoardCapabilities.Feature.BIN));
+        assertEquals(BoardCapabilities.Source.CAPS, caps.getSource());
+    }
+
+    @Test
+    public void rejectedCommandsTakeTheirFeatureAway() {
+        BoardCapabilities caps = BoardCapabilities.assumed();
+        assertTrue(caps.onRejected("LIGHT2_ON"));
+        assertFalse(caps.has(BoardCapabilities.Feature.SET));
+        assertFalse(caps.onRejected("LIGHT2_OFF"));
+        assertTrue(caps.onRejected(ReplySequencer.HANDSHAKE));
+        assertFalse(caps.onRejected("SET_TEMP_21"));
+        assertTrue(caps.has(BoardCapabilities.Feature.TOGGLE));
+    }
+
+    @Test
+    public void derivedSetCommandsFollowTheBoard() {
+        DeviceModel device = new DeviceModel(2, "Lamp", "LIGHT2_TOGGLE");
+        assertEquals("LIGHT2_ON", device.getAbsoluteCommand(true));
+        device.setAbsoluteSupported(false);
+        assertNull(device.getAbsoluteCommand(true));
+        assertFalse(device.copy().isAbsoluteSupported());
+
+        // Commands the user configured are always used
+        device.setOnCommand("LAMP_ON");
+        assertEquals("LAMP_ON", device.getAbsoluteCommand(true));
+    }
+}
@@ -0,0 +1,182 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class BoardProgramTest {
+
+    // No DST, so the board's clock and the phone's agree all year
+    private static final TimeZone DHAKA = TimeZone.getTimeZone("Asia/Dhaka");
+    private static final SolarCalculator DHAKA_SUN = new SolarCalculator(23.81, 90.41);
+
+    private final List<DeviceModel> switches = new ArrayList<>();
+    private final List<SceneModel> scenes = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        for (int i = 1; i <= 4; i++) {
+            switches.add(new DeviceModel(i, "Light " + i, "LIGHT" + i + "_TOGGLE"));
+        }
+        SceneModel evening = new SceneModel("evening", "Evening");
+        evening.addStep(new SceneModel.Step(1, true));
+        evening.addStep(new SceneModel.Step(2, true, 30_000));
+        scenes.add(evening);
+        SceneModel off = new SceneModel("off", "All off");
+        for (int i = 1; i <= 4; i++) {
+            off.addStep(new SceneModel.Step(i, false));
+        }
+        scenes.add(off);
+    }
+
+    private BoardProgram compile(AutomationRule... rules) {
+        return BoardProgramCompiler.compile(Arrays.asList(rules), scenes, switches, DHAKA_SUN, DHAKA, 2026);
+    }
+
+    @Test
+    public void sharedScenesAreStoredOnce() {
+        BoardProgram one = compile(new AutomationRule("a", "off", "0 23 * * *"));
+        BoardProgram two = compile(new AutomationRule("a", "off", "0 23 * * *"),
+                new AutomationRule("b", "off", "0 1 * * 6,0"));
+        assertEquals(BoardProgram.CRON_SIZE, two.getSize() - one.getSize());
+        assertEquals(Arrays.asList("a", "b"), two.getRuleIds());
+        assertTrue(BoardProgramInterpreter.isValid(two.getImage()));
+    }
+
+    @Test
+    public void rulesTheBoardCannotRunStayOnThePhone() {
+        DeviceModel tv = new DeviceModel(5, "TV", "TV_POWER");
+        switches.add(tv);
+        SceneModel movie = new SceneModel("movie", "Movie");
+        movie.addStep(new SceneModel.Step(1, false));
+        movie.addStep(new SceneModel.Step(5, true));
+        scenes.add(movie);
+
+        AutomationRule disabled = new AutomationRule("off", "off", "0 8 * * *");
+        disabled.setEnabled(false);
+        BoardProgram program = BoardProgramCompiler.compile(Arrays.asList(
+                new AutomationRule("movie", "movie", "0 20 * * 5"),
+                new AutomationRule("dusk", "evening", "sunset"),
+                new AutomationRule("bad", "off", "61 * * * *"),
+                new AutomationRule("gone", "deleted", "0 8 * * *"),
+                new AutomationRule("night", "off", "0 23 * * *"),
+                disabled), scenes, switches, null, DHAKA, 2026);
+
+        assertEquals(Collections.singletonList("night"), program.getRuleIds());
+        assertEquals(Arrays.asList("movie", "dusk", "bad", "gone"), new ArrayList<>(program.getSkipped().keySet()));
+        assertEquals("location unknown", program.getSkipped().get("dusk"));
+    }
+
+    @Test
+    public void programStopsAtTheBoardsMemory() {
+        List<AutomationRule> rules = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            rules.add(new AutomationRule("r" + i, "off", i + " 23 * * *"));
+        }
+        BoardProgram program = BoardProgramCompiler.compile(rules, scenes, switches, null, DHAKA, 2026);
+        assertTrue(program.getSize() <= BoardProgram.MAX_SIZE);
+        assertEquals(60, program.getRuleIds().size() + program.getSkipped().size());
+        assertFalse(program.getSkipped().isEmpty());
+    }
+
+    @Test
+    public void interpreterRefusesDamagedImages() {
+        byte[] image = compile(new AutomationRule("a", "evening", "0 18 * * *")).getImage();
+        BoardProgramInterpreter interpreter = new BoardProgramInterpreter((relay, on) -> { });
+        assertTrue(interpreter.load(image));
+        assertFalse(interpreter.load(Arrays.copyOf(image, image.length - 1)));
+        byte[] newer = image.clone();
+        newer[2] = BoardProgram.VERSION + 1;
+        assertFalse(interpreter.load(newer));
+        assertFalse(interpreter.isLoaded());
+    }
+
+    @Test
+    public void sceneDelaysRunOnTheBoard() {
+        byte[] image = compile(new AutomationRule("a", "evening", "0 18 * * *")).getImage();
+        List<String> switched = new ArrayList<>();
+        BoardProgramInterpreter interpreter = new BoardProgramInterpreter(
+                (relay, on) -> switched.add(relay + (on ? ":ON" : ":OFF")));
+        interpreter.load(image);
+
+        interpreter.onMinute(2026, 10, 19, 18, 0, 1, 0);
+        assertEquals(Collections.singletonList("1:ON"), switched);
+        interpreter.run(29_999);
+        assertEquals(1, switched.size());
+        interpreter.run(30_000);
+        assertEquals(Arrays.asList("1:ON", "2:ON"), switched);
+        assertFalse(interpreter.isRunning());
+    }
+
+    // Every minute of 2026 in Dhaka: the board fires exactly when the phone's
+    // scheduler would for cron rules, and within a few minutes of it for solar
+    // rules, whose times it interpolates from one per month
+    @Test
+    public void boardFollowsThePhonesScheduleForAYear() {
+        String[] specs = {"30 18 * * 1-5", "*/15 6-8 * * *", "0 7 1,15 * 0", "0 22 * 12 *", "5 0 29 2 *",
+                "sunset-15 *", "sunrise+10 1-5"};
+        AutomationRule[] rules = new AutomationRule[specs.length];
+        for (int i = 0; i < specs.length; i++) {
+            SceneModel scene = new SceneModel("s" + i, "Scene " + i);
+            scene.addStep(new SceneModel.Step(1, i % 2 == 0));
+            scenes.add(scene);
+            rules[i] = new AutomationRule("r" + i, "s" + i, specs[i]);
+        }
+        BoardProgram program = compile(rules);
+        assertEquals(specs.length, program.getRuleIds().size());
+
+        Calendar calendar = Calendar.getInstance(DHAKA, Locale.US);
+        calendar.clear();
+        calendar.set(2026, Calendar.JANUARY, 1, 0, 0, 0);
+        long start = calendar.getTimeInMillis();
+        calendar.add(Calendar.YEAR, 1);
+        long end = calendar.getTimeInMillis();
+
+        for (int i = 0; i < specs.length; i++) {
+            AutomationSchedule schedule = AutomationSchedule.parse(specs[i]);
+            List<Long> phone = new ArrayList<>();
+            for (long t = schedule.nextFireTime(start - 1, DHAKA, DHAKA_SUN); t >= 0 && t < end;
+                 t = schedule.nextFireTime(t, DHAKA, DHAKA_SUN)) {
+                phone.add(t);
+            }
+
+            List<Long> board = new ArrayList<>();
+            BoardProgramInterpreter interpreter = new BoardProgramInterpreter((relay, on) -> { });
+            interpreter.load(compile(rules[i]).getImage());
+            for (long t = start; t < end; t += 60_000) {
+                calendar.setTimeInMillis(t);
+                int before = interpreter.getFired();
+                interpreter.onMinute(calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1,
+                        calendar.get(Calendar.DAY_OF_MONTH), calendar.get(Calendar.HOUR_OF_DAY),
+                        calendar.get(Calendar.MINUTE), calendar.get(Calendar.DAY_OF_WEEK) - 1, t);
+                if (interpreter.getFired() > before) {
+                    board.add(t);
+                }
+            }
+
+            if (!schedule.isSolar()) {
+                assertEquals(specs[i], phone, board);
+                continue;
+            }
+            assertEquals(specs[i], phone.size(), board.size());
+            long worst = 0;
+            long total = 0;
+            for (int k = 0; k < phone.size(); k++) {
+                long error = Math.abs(board.get(k) - phone.get(k)) / 60_000;
+                worst = Math.max(worst, error);
+                total += error;
+            }
+            assertTrue(specs[i] + " off by " + worst, worst <= 3);
+            assertTrue(specs[i] + " off by " + total + " min in total", total <= phone.size());
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class BoardProgramUploaderTest {
+
+    private static final TimeZone DHAKA = TimeZone.getTimeZone("Asia/Dhaka");
+    // An ATmega328's EEPROM takes about 3.3 ms a byte
+    private static final long EEPROM_MS_PER_BYTE = 4;
+
+    private VirtualClock clock;
+    private FirmwareSimulator board;
+    private OutboundScheduler outbound;
+    private BoardProgramUploader uploader;
+    private final List<String> sent = new ArrayList<>();
+    private final List<String> passedOn = new ArrayList<>();
+    private final List<String> events = new ArrayList<>();
+    private final Random random = new Random(49);
+    private double corruptRate = 0;
+    private double dropRate = 0;
+    private boolean boardSilent = false;
+
+    private final List<DeviceModel> switches = new ArrayList<>();
+    private final List<SceneModel> scenes = new ArrayList<>();
+    private final List<AutomationRule> rules = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock();
+        board = new FirmwareSimulator(4, 15, 2);
+        board.setKnowsProgram(true);
+        outbound = new OutboundScheduler(new CommandTransport() {
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+
+            @Override
+            public void sendCommand(String command) {
+                sendCommands(Arrays.asList(command));
+            }
+
+            @Override
+            public void sendCommands(List<String> commands) {
+                sent.addAll(commands);
+                if (boardSilent) {
+                    return;
+                }
+                List<String> received = new ArrayList<>();
+                long eepromMs = 0;
+                for (String command : commands) {
+                    if (command.startsWith(BoardProgramUploader.DATA)) {
+                        eepromMs += EEPROM_MS_PER_BYTE * BoardProgramUploader.CHUNK_SIZE;
+                        if (random.nextDouble() < corruptRate) {
+                            // One hex digit garbled on the way
+                            int at = BoardProgramUploader.DATA.length() + 3 + random.nextInt(8);
+                            char digit = command.charAt(at) == '0' ? '1' : '0';
+                            command = command.substring(0, at) + digit + command.substring(at + 1);
+                        }
+                    }
+                    received.add(command);
+                }
+                String frame = String.join("\n", received);
+                List<String> replies = board.receive(frame);
+                if (random.nextDouble() < dropRate) {
+                    return;
+                }
+                String chunk = String.join("\n", replies) + "\n";
+                clock.postDelayed(() -> onChunk(chunk), board.roundTripMs(frame) + eepromMs);
+            }
+        }, clock, clock);
+        uploader = new BoardProgramUploader(outbound, clock, new BoardProgramUploader.Listener() {
+            @Override
+            public void onProgramLoaded(BoardProgram program, boolean sent) {
+                events.add("loaded " + (sent ? "sent" : "kept"));
+            }
+
+            @Override
+            public void onProgramCleared() {
+                events.add("cleared");
+            }
+
+            @Override
+            public void onProgramFailed(String reason) {
+                events.add("failed: " + reason);
+            }
+        });
+
+        for (int i = 1; i <= 4; i++) {
+            switches.add(new DeviceModel(i, "Light " + i, "LIGHT" + i + "_TOGGLE"));
+        }
+        SceneModel evening = new SceneModel("evening", "Evening");
+        evening.addStep(new SceneModel.Step(1, true));
+        evening.addStep(new SceneModel.Step(3, true, 60_000));
+        scenes.add(evening);
+        SceneModel off = new SceneModel("off", "All off");
+        for (int i = 1; i <= 4; i++) {
+            off.addStep(new SceneModel.Step(i, false));
+        }
+        scenes.add(off);
+        rules.add(new AutomationRule("evening", "evening", "30 18 * * *"));
+        rules.add(new AutomationRule("night", "off", "0 23 * * *"));
+        rules.add(new AutomationRule("dusk", "evening", "sunset+5 1-5"));
+    }
+
+    private void onChunk(String chunk) {
+        for (String line : uploader.filter(chunk).split("\n")) {
+            if (!line.trim().isEmpty()) {
+                passedOn.add(line.trim());
+            }
+        }
+    }
+
+    private BoardProgram compile() {
+        return BoardProgramCompiler.compile(rules, scenes, switches,
+                new SolarCalculator(23.81, 90.41), DHAKA, 2026);
+    }
+
+    // A year's worth of a busy household: forty rules, a dozen scenes
+    private BoardProgram compileLarge() {
+        for (int i = 0; i < 12; i++) {
+            SceneModel scene = new SceneModel("scene" + i, "Scene " + i);
+            for (int step = 0; step < 4; step++) {
+                scene.addStep(new SceneModel.Step(1 + (i + step) % 4, step % 2 == 0, step * 5_000L));
+            }
+            scenes.add(scene);
+        }
+        for (int i = 0; i < 37; i++) {
+            rules.add(new AutomationRule("r" + i, "scene" + i % 12, (i % 60) + " " + (i % 24) + " * * *"));
+        }
+        return compile();
+    }
+
+    private long upload(BoardProgram program) {
+        events.clear();
+        sent.clear();
+        long start = clock.currentTimeMillis();
+        uploader.upload(program);
+        while (uploader.isBusy() && clock.currentTimeMillis() - start < 600_000) {
+            clock.advance(10);
+        }
+        return clock.currentTimeMillis() - start;
+    }
+
+    @Test
+    public void uploadLoadsTheBoard() {
+        BoardProgram program = compileLarge();
+        long took = upload(program);
+
+        assertEquals(Arrays.asList("loaded sent"), events);
+        assertTrue(board.isProgramLoaded());
+        int chunks = (program.getSize() + BoardProgramUploader.CHUNK_SIZE - 1) / BoardProgramUploader.CHUNK_SIZE;
+        assertEquals(chunks, uploader.getChunksSent());
+        assertEquals(0, uploader.getRetries());
+        assertEquals(program.getSize(), board.getEepromWrites());
+        assertTrue(passedOn.isEmpty());
+        // EEPROM writes bound it; the link adds little on top
+        assertTrue("Upload took " + took + " ms", took < 2 * program.getSize() * EEPROM_MS_PER_BYTE);
+    }
+
+    @Test
+    public void sameProgramIsNotSentTwice() {
+        BoardProgram program = compile();
+        long full = upload(program);
+        int writes = board.getEepromWrites();
+
+        long took = upload(compile());
+        assertEquals(Arrays.asList("loaded kept"), events);
+        assertEquals(Arrays.asList(BoardProgramUploader.INFO), sent);
+        assertEquals(writes, board.getEepromWrites());
+        // One INFO exchange against a chunk-by-chunk upload of the same program
+        assertTrue("Check took " + took + " ms, upload " + full + " ms", took * 10 < full);
+    }
+
+    @Test
+    public void damagedAndLostChunksAreSentAgain() {
+        corruptRate = 0.15;
+        dropRate = 0.1;
+        BoardProgram program = compileLarge();
+        long took = upload(program);
+
+        assertEquals(Arrays.asList("loaded sent"), events);
+        assertTrue(uploader.getRetries() > 0);
+        byte[] image = program.getImage();
+        BoardProgramInterpreter check = new BoardProgramInterpreter((relay, on) -> { });
+        assertTrue(check.load(image));
+        assertTrue("Upload took " + took + " ms", took < 4 * program.getSize() * EEPROM_MS_PER_BYTE);
+    }
+
+    @Test
+    public void interruptedUploadLeavesNothingRunning() {
+        upload(compile());
+        assertTrue(board.isProgramLoaded());
+
+        rules.add(new AutomationRule("late", "off", "45 23 * * *"));
+        BoardProgram changed = compileLarge();
+        uploader.upload(changed);
+        clock.advance(800);
+        // Connection lost partway through
+        uploader.stop();
+        boardSilent = true;
+        clock.advance(10_000);
+        assertFalse(board.isProgramLoaded());
+
+        board.powerCycle();
+        assertFalse(board.isProgramLoaded());
+
+        boardSilent = false;
+        upload(changed);
+        assertEquals(Arrays.asList("loaded sent"), events);
+        board.powerCycle();
+        assertTrue(board.isProgramLoaded());
+    }
+
+    @Test
+    public void silentBoardFailsTheUpload() {
+        boardSilent = true;
+        upload(compile());
+        assertEquals(Arrays.asList("failed: board stopped answering"), events);
+        assertEquals(BoardProgramUploader.MAX_ATTEMPTS, sent.size());
+    }
+
+    @Test
+    public void olderFirmwareIsReported() {
+        board.setKnowsProgram(false);
+        upload(compile());
+        assertEquals(Arrays.asList("failed: board doesn't take PROG_INFO"), events);
+        assertTrue(passedOn.isEmpty());
+    }
+
+    @Test
+    public void clearStopsTheBoardsProgram() {
+        upload(compile());
+        events.clear();
+        uploader.clear();
+        clock.advance(1_000);
+        assertEquals(Arrays.asList("cleared"), events);
+        assertFalse(board.isProgramLoaded());
+        board.powerCycle();
+        assertFalse(board.isProgramLoaded());
+    }
+
+    @Test
+    public void otherRepliesPassThrough() {
+        uploader.upload(compile());
+        onChunk("LIGHT2:ON\nPROG:READY\nStatus: L1=OFF\n");
+        assertEquals(Arrays.asList("LIGHT2:ON", "Status: L1=OFF"), passedOn);
+    }
+
+    @Test
+    public void uploadedRulesFireWithoutThePhone() {
+        Calendar now = Calendar.getInstance(DHAKA, Locale.US);
+        now.clear();
+        now.set(2026, Calendar.OCTOBER, 19, 17, 0, 0);
+        upload(compile());
+        board.receive(BoardProgramUploader.timeCommand(now));
+        assertEquals("2026 10 19 17 0 0 1", board.getTimeSet());
+        board.powerCycle();
+
+        // The phone is gone from here; the board's RTC ticks on
+        long start = clock.currentTimeMillis();
+        for (int minute = 0; minute < 7 * 60; minute++) {
+            long t = start + minute * 60_000L;
+            board.onMinute(now, t);
+            for (long ms = 0; ms < 60_000; ms += 1_000) {
+                board.runScenes(t + ms);
+            }
+            if (now.get(Calendar.HOUR_OF_DAY) == 18 && now.get(Calendar.MINUTE) == 0) {
+                // Still on from sunset; someone switches both off at the wall
+                assertTrue(board.isOn(1));
+                assertTrue(board.isOn(3));
+                board.pressWallSwitch(1);
+                board.pressWallSwitch(3);
+            }
+            if (now.get(Calendar.HOUR_OF_DAY) == 18 && now.get(Calendar.MINUTE) == 30) {
+                assertTrue(board.isOn(1));
+                assertFalse(board.isOn(3));
+            }
+            if (now.get(Calendar.HOUR_OF_DAY) == 18 && now.get(Calendar.MINUTE) == 31) {
+                assertTrue(board.isOn(3));
+            }
+            now.add(Calendar.MINUTE, 1);
+        }
+        // 18:30 evening, sunset+5 on a Monday, 23:00 all off
+        assertEquals(3, board.getProgramFired());
+        for (int i = 1; i <= 4; i++) {
+            assertFalse(board.isOn(i));
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CapabilityNegotiatorTest {
+
+    private static final String MAC = "98:D3:31:F5:2A:01";
+
+    private VirtualClock clock;
+    private FirmwareSimulator board;
+    private OutboundScheduler outbound;
+    private CapabilityNegotiator negotiator;
+    private final Map<String, BoardCapabilities> cache = new HashMap<>();
+    private final List<String> passedOn = new ArrayList<>();
+    private final List<String> sent = new ArrayList<>();
+    private BoardCapabilities result;
+    private boolean boardSilent = false;
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock();
+        board = new FirmwareSimulator(4, 15, 2);
+        outbound = new OutboundScheduler(new CommandTransport() {
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+
+            @Override
+            public void sendCommand(String command) {
+                sendCommands(Arrays.asList(command));
+            }
+
+            @Override
+            public void sendCommands(List<String> commands) {
+                String frame = String.join("\n", commands);
+                sent.addAll(commands);
+                if (boardSilent) {
+                    return;
+                }
+                String chunk = String.join("\n", board.receive(frame)) + "\n";
+                clock.postDelayed(() -> onChunk(chunk), board.roundTripMs(frame));
+            }
+        }, clock, clock);
+        negotiator = new CapabilityNegotiator(outbound, clock, (capabilities, learned) -> {
+            result = capabilities;
+            if (learned) {
+                cache.put(MAC, capabilities);
+            }
+        });
+    }
+
+    private void onChunk(String chunk) {
+        for (String line : negotiator.filter(chunk).split("\n")) {
+            if (!line.trim().isEmpty()) {
+                passedOn.add(line.trim());
+            }
+        }
+    }
+
+    private void connect() {
+        sent.clear();
+        passedOn.clear();
+        result = null;
+        negotiator.start(cache.get(MAC));
+        clock.advance(10_000);
+    }
+
+    @Test
+    public void capsAwareBoardTakesOneQuery() {
+        board.setKnowsCaps(true);
+        board.setKnowsSequence(true);
+        connect();
+        assertEquals(1, negotiator.getRoundTrips());
+        assertEquals(BoardCapabilities.Source.CAPS, result.getSource());
+        assertEquals(4, result.getSwitchCount());
+        assertTrue(result.has(BoardCapabilities.Feature.SEQ));
+        assertTrue(passedOn.isEmpty());
+    }
+
+    @Test
+    public void olderBoardIsAskedForHelpInstead() {
+        board.setKnowsPing(true);
+        connect();
+        assertEquals(Arrays.asList(BoardCapabilities.QUERY, CapabilityNegotiator.HELP), sent);
+        assertEquals(2, negotiator.getRoundTrips());
+        assertEquals(BoardCapabilities.Source.HELP, result.getSource());
+        assertTrue(result.has(BoardCapabilities.Feature.SET));
+        assertTrue(result.has(BoardCapabilities.Feature.PING));
+        assertFalse(result.has(BoardCapabilities.Feature.SEQ));
+        // Neither the rejected CAPS nor the command list reach the parser
+        assertTrue(passedOn.isEmpty());
+    }
+
+    @Test
+    public void toggleOnlyBoardIsRecognised() {
+        board.setToggleOnly(true);
+        board.setHelpLines(Arrays.asList(
+                "LIGHT1_TOGGLE - Toggle Light 1",
+                "LIGHT2_TOGGLE - Toggle Light 2",
+                "LIGHT3_TOGGLE - Toggle Light 3",
+                "LIGHT4_TOGGLE - Toggle Light 4",
+                "STATUS - Show all light status"));
+        connect();
+        assertFalse(result.has(BoardCapabilities.Feature.SET));
+        assertEquals(4, result.getSwitchCount());
+    }
+
+    @Test
+    public void repliesMixedIntoTheHelpListArePassedOn() {
+        negotiator.start(null);
+        clock.advance(100);
+        onChunk("ERROR: Unknown command CAPS\n");
+        onChunk("Bluetooth Commands:\nLIGHTx_ON, LIGHTx_OFF\nLIGHT2:ON\n");
+        onChunk("LIGHTx_TOGGLE, STATUS\n");
+        clock.advance(CapabilityNegotiator.HELP_QUIET_MS);
+        assertEquals(Arrays.asList("LIGHT2:ON"), passedOn);
+        assertTrue(result.has(BoardCapabilities.Feature.SET));
+        assertTrue(result.has(BoardCapabilities.Feature.TOGGLE));
+    }
+
+    // Firmware that ignores unknown commands entirely
+    @Test
+    public void silentBoardFallsBackToTheAssumedProtocol() {
+        boardSilent = true;
+        negotiator.start(null);
+        clock.advance(2 * CapabilityNegotiator.REPLY_TIMEOUT_MS);
+        assertEquals(Arrays.asList(BoardCapabilities.QUERY, CapabilityNegotiator.HELP), sent);
+        assertEquals(BoardCapabilities.Source.ASSUMED, result.getSource());
+        assertFalse(negotiator.isNegotiating());
+        assertFalse(cache.containsKey(MAC));
+    }
+
+    @Test
+    public void reconnectWithCachedCapabilitiesSendsNothing() {
+        board.setKnowsCaps(true);
+        board.setKnowsBulk(true);
+        connect();
+        assertEquals(1, negotiator.getRoundTrips());
+        BoardCapabilities first = result;
+
+        for (int i = 0; i < 5; i++) {
+            connect();
+            assertSame(first, result);
+            assertEquals(0, negotiator.getRoundTrips());
+            assertTrue(sent.isEmpty());
+            assertFalse(negotiator.isNegotiating());
+        }
+        assertTrue(result.has(BoardCapabilities.Feature.ALL));
+    }
+
+    @Test
+    public void cachedHelpBoardAlsoReconnectsWithoutQueries() {
+        connect();
+        assertEquals(2, negotiator.getRoundTrips());
+        connect();
+        assertEquals(0, negotiator.getRoundTrips());
+        assertTrue(sent.isEmpty());
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CompoundCommandParserTest {
+
+    private static final String[] NAMES = {
+            "Kitchen Fan", "Porch Light", "Bedroom Lamp", "Water Pump", "Garage Door", "Ceiling Fan"
+    };
+
+    private List<DeviceModel> switches;
+    private VoiceCommandParser parser;
+
+    @Before
+    public void setUp() {
+        switches = new ArrayList<>();
+        for (int i = 1; i <= 8; i++) {
+            String name = i <= NAMES.length ? NAMES[i - 1] : "Switch " + i;
+            switches.add(new DeviceModel(i, name, "LIGHT" + i + "_TOGGLE"));
+        }
+        parser = new VoiceCommandParser();
+        parser.setSwitches(switches);
+    }
+
+    private String describe(List<VoiceIntent> intents) {
+        if (intents == null) {
+            return "none";
+        }
+        StringBuilder text = new StringBuilder();
+        for (VoiceIntent intent : intents) {
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            text.append(intent);
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void corpus() throws Exception {
+        InputStream stream = getClass().getClassLoader().getResourceAsStream("voice_compound_corpus.txt");
+        assertNotNull("voice_compound_corpus.txt missing", stream);
+
+        List<String> misses = new ArrayList<>();
+        int total = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\|");
+                String expected = parts[1].trim();
+                String actual = describe(parser.parseCompound(parts[0].trim()));
+                total++;
+                if (!expected.equals(actual)) {
+                    misses.add(parts[0].trim() + " -> " + actual + " (expected " + expected + ")");
+                }
+            }
+        }
+
+        assertTrue("Misses " + misses.size() + "/" + total + ": " + misses, misses.isEmpty());
+    }
+
+    @Test
+    public void singleCommandsStillParseNormally() {
+        assertEquals("LIGHT1_ON", parser.parseCommand("turn on kitchen fan"));
+        assertEquals("ALL_LIGHTS_ON", parser.parseCommand("turn on all lights"));
+    }
+
+    @Test
+    public void fiveTargetsGoOutAsOneWrite() {
+        List<VoiceIntent> intents = parser.parseCompound(
+                "turn on kitchen fan and porch light and bedroom lamp and water pump and garage door");
+        assertEquals(1, intents.size());
+        assertEquals(5, intents.get(0).getTargets().size());
+
+        SceneCompiler.CompiledScene compiled = SceneCompiler.compile(VoiceIntent.toScene(intents, switches), switches);
+        FakeTransport transport = new FakeTransport();
+        for (SceneCompiler.Batch batch : compiled.getBatches()) {
+            transport.sendCommands(batch.getCommands());
+        }
+
+        assertEquals(1, transport.writes.size());
+        assertEquals(5, transport.writes.get(0).size());
+    }
+
+    @Test
+    public void alreadySetSwitchesAreSkipped() {
+        switches.get(0).setOn(true);
+        List<VoiceIntent> intents = parser.parseCompound("turn on light one and two");
+
+        SceneCompiler.CompiledScene compiled = SceneCompiler.compile(VoiceIntent.toScene(intents, switches), switches);
+        assertEquals(1, compiled.getCommandCount());
+    }
+
+    @Test
+    public void toggleUsesCurrentState() {
+        switches.get(1).setOn(true);
+        SceneModel scene = VoiceIntent.toScene(parser.parseCompound("toggle light one and light two"), switches);
+
+        assertTrue(scene.getSteps().get(0).isTurnOn());
+        assertFalse(scene.getSteps().get(1).isTurnOn());
+    }
+}
@@ -0,0 +1,93 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConfirmationPhrasesTest {
+
+    private static final String VOICE = "en-us-x-sfg-local";
+
+    private List<DeviceModel> switches;
+    private List<SceneModel> scenes;
+
+    @Before
+    public void setUp() {
+        switches = new ArrayList<>();
+        switches.add(new DeviceModel(1, "Kitchen Light", "LIGHT1_TOGGLE"));
+        switches.add(new DeviceModel(2, "Porch Light", "LIGHT2_TOGGLE"));
+        scenes = new ArrayList<>();
+        scenes.add(new SceneModel("1", "Movie Night"));
+    }
+
+    private static List<String> filesFor(List<String> phrases, String voice) {
+        List<String> files = new ArrayList<>();
+        for (String phrase : phrases) {
+            files.add(ConfirmationPhrases.fileName(phrase, voice));
+        }
+        return files;
+    }
+
+    @Test
+    public void buildsEveryPhraseOnce() {
+        switches.add(new DeviceModel(3, "Kitchen Light", "LIGHT3_TOGGLE"));
+        List<String> phrases = ConfirmationPhrases.build(switches, scenes);
+
+        assertTrue(phrases.contains("Kitchen Light on"));
+        assertTrue(phrases.contains("Porch Light off"));
+        assertTrue(phrases.contains(ConfirmationPhrases.ALL_OFF));
+        assertTrue(phrases.contains("Movie Night activated"));
+        assertEquals(1, Collections.frequency(phrases, "Kitchen Light on"));
+        assertEquals(5 + 2 * 2 + 1, phrases.size());
+    }
+
+    @Test
+    public void fileNamesDependOnPhraseAndVoice() {
+        String file = ConfirmationPhrases.fileName("Kitchen Light on", VOICE);
+        assertEquals(file, ConfirmationPhrases.fileName("Kitchen Light on", VOICE));
+        assertNotEquals(file, ConfirmationPhrases.fileName("Kitchen Light off", VOICE));
+        assertNotEquals(file, ConfirmationPhrases.fileName("Kitchen Light on", "bn-bd-x-ban-local"));
+        assertTrue(file.startsWith("confirm_") && file.endsWith(".wav"));
+    }
+
+    @Test
+    public void coldCacheSynthesizesEverything() {
+        List<String> phrases = ConfirmationPhrases.build(switches, scenes);
+        ConfirmationPhrases.Plan plan = ConfirmationPhrases.plan(new ArrayList<>(), phrases, VOICE);
+
+        assertEquals(phrases, plan.getToSynthesize());
+        assertTrue(plan.getStaleFiles().isEmpty());
+    }
+
+    @Test
+    public void renameOnlySynthesizesTheRenamedSwitch() {
+        List<String> cached = filesFor(ConfirmationPhrases.build(switches, scenes), VOICE);
+        cached.add("unrelated.txt");
+
+        switches.set(1, new DeviceModel(2, "Garden Light", "LIGHT2_TOGGLE"));
+        ConfirmationPhrases.Plan plan = ConfirmationPhrases.plan(cached,
+                ConfirmationPhrases.build(switches, scenes), VOICE);
+
+        assertEquals(2, plan.getToSynthesize().size());
+        assertTrue(plan.getToSynthesize().contains("Garden Light on"));
+        assertTrue(plan.getToSynthesize().contains("Garden Light off"));
+        assertEquals(2, plan.getStaleFiles().size());
+        assertTrue(plan.getStaleFiles().contains(ConfirmationPhrases.fileName("Porch Light on", VOICE)));
+        assertFalse(plan.getStaleFiles().contains("unrelated.txt"));
+    }
+
+    @Test
+    public void voiceChangeReplacesTheWholeCache() {
+        List<String> phrases = ConfirmationPhrases.build(switches, scenes);
+        List<String> cached = filesFor(phrases, VOICE);
+
+        ConfirmationPhrases.Plan plan = ConfirmationPhrases.plan(cached, phrases, "en-gb-x-rjs-local");
+        assertEquals(phrases.size(), plan.getToSynthesize().size());
+        assertEquals(cached.size(), plan.getStaleFiles().size());
+    }
+}
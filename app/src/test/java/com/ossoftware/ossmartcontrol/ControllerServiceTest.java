@@ -0,0 +1,165 @@
+package com.ossoftware.ossmartcontrol;
+
+import android.Manifest;
+import android.app.Application;
+import android.bluetooth.BluetoothAdapter;
+import android.content.Intent;
+import android.os.Looper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+// The service as tiles, widgets and alarms start it, with no Activity bound
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class ControllerServiceTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    private Application application;
+    private ControllerService service;
+
+    @Before
+    public void setUp() {
+        application = RuntimeEnvironment.getApplication();
+        PreferencesManager preferencesManager = new PreferencesManager(application);
+
+        Map<String, DeviceModel> devices = new HashMap<>();
+        for (int i = 1; i <= 4; i++) {
+            DeviceModel device = new DeviceModel(i, "Switch " + i, "LIGHT" + i + "_TOGGLE");
+            devices.put(device.getId(), device);
+        }
+        preferencesManager.saveDevices(devices);
+
+        service = Robolectric.setupService(ControllerService.class);
+    }
+
+    // Everything the service logged so far, replayed to a late listener
+    private List<String> logs() {
+        List<String> logs = new ArrayList<>();
+        ControllerService.ControllerListener listener = new ControllerService.ControllerListener() {
+            @Override
+            public void onSwitchesChanged(List<DeviceModel> switches) {
+            }
+
+            @Override
+            public void onConnected(String deviceName, String mac) {
+            }
+
+            @Override
+            public void onDisconnected() {
+            }
+
+            @Override
+            public void onConnectionError(String error) {
+            }
+
+            @Override
+            public void onDeviceFound(String name, String mac) {
+            }
+
+            @Override
+            public void onScanFinished(int deviceCount) {
+            }
+
+            @Override
+            public void onScanError(String error) {
+            }
+
+            @Override
+            public void onLog(String message, LogManager.LogType type, String deviceName) {
+                logs.add(message);
+            }
+
+            @Override
+            public void onLinkHealthChanged(LinkMonitor.Health health, String deviceName) {
+            }
+
+            @Override
+            public void onLinkQualityChanged(int bars, LinkQuality.Level level) {
+            }
+        };
+        service.addListener(listener);
+        service.removeListener(listener);
+        return logs;
+    }
+
+    // Saved switches load on a startup thread and LAN callbacks arrive from
+    // the selector one; both come back through the main looper. Its clock
+    // stays put, so nothing posted with a delay runs meanwhile.
+    private void idleUntil(String what, BooleanSupplier condition) throws InterruptedException {
+        long start = System.nanoTime();
+        while (!condition.getAsBoolean()) {
+            assertTrue(what, (System.nanoTime() - start) / 1_000_000 < TIMEOUT_MS);
+            Thread.sleep(1);
+            shadowOf(Looper.getMainLooper()).idle();
+        }
+    }
+
+    private void idleUntilStopped() throws InterruptedException {
+        idleUntil("Service did not stop", () -> shadowOf(service).isStoppedBySelf());
+    }
+
+    @Test
+    public void tileTapWithoutSavedDeviceDoesNotConnect() throws InterruptedException {
+        service.onStartCommand(ControllerService.createToggleIntent(application, 1, "tile"), 0, 1);
+        idleUntilStopped();
+
+        List<String> logs = logs();
+        assertTrue(logs.contains("Quick toggle skipped: no saved device"));
+        for (String message : logs) {
+            assertFalse(message, message.startsWith("Connecting to"));
+        }
+        assertFalse(service.isConnecting());
+        assertFalse(service.isConnected());
+    }
+
+    @Test
+    public void coldStartWithoutSavedDeviceDoesNotConnect() {
+        // Nothing else stands in the way of a reconnect
+        shadowOf(application).grantPermissions(Manifest.permission.BLUETOOTH_CONNECT);
+        shadowOf(BluetoothAdapter.getDefaultAdapter()).setEnabled(true);
+
+        Intent intent = new Intent(application, ControllerService.class);
+        intent.setAction(ControllerService.ACTION_RECONNECT);
+        service.onStartCommand(intent, 0, 1);
+        shadowOf(Looper.getMainLooper()).idle();
+
+        for (String message : logs()) {
+            assertFalse(message, message.startsWith("Connecting to"));
+        }
+        assertFalse(service.isConnecting());
+    }
+
+    @Test
+    public void lanBoardIsNotPacedForBluetooth() throws Exception {
+        try (LanBoardServer server = new LanBoardServer(1)) {
+            LanBoardServer.Board board = server.getBoard(0);
+            idleUntil("Switches not loaded", () -> !service.getSwitches().isEmpty());
+            service.connectToDevice("Board 1", board.getAddress());
+            idleUntil("Not connected", service::isConnected);
+
+            // Behind the handshake; at 9600 baud each would wait its turn on the clock
+            for (int i = 1; i <= 4; i++) {
+                service.setSwitchState(i, true);
+            }
+            idleUntil("Commands held back", () ->
+                    board.isOn(1) && board.isOn(2) && board.isOn(3) && board.isOn(4));
+            service.disconnect();
+        }
+    }
+}
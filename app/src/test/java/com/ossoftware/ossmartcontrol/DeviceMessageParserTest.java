@@ -0,0 +1,112 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class DeviceMessageParserTest {
+
+    private final List<String> events = new ArrayList<>();
+    private DeviceMessageParser parser;
+
+    @Before
+    public void setUp() {
+        parser = new DeviceMessageParser(new DeviceMessageParser.Listener() {
+            @Override
+            public void onSwitchState(int switchNumber, boolean isOn, String message) {
+                events.add("state " + switchNumber + " " + isOn);
+            }
+
+            @Override
+            public void onLevelReport(int switchNumber, int level, String message) {
+                events.add("level " + switchNumber + " " + level);
+            }
+
+            @Override
+            public void onStatusReport(Map<Integer, Boolean> states, String message) {
+                events.add("status " + states);
+            }
+
+            @Override
+            public void onToggleAck(int switchNumber, String message) {
+                events.add("ack " + switchNumber);
+            }
+
+            @Override
+            public void onDeviceEvent(String message) {
+                events.add("event");
+            }
+
+            @Override
+            public void onDeviceError(String message) {
+                events.add("error");
+            }
+
+            @Override
+            public void onHelpReceived(String message) {
+                events.add("help");
+            }
+
+            @Override
+            public void onUnhandled(String message) {
+                events.add("other " + message);
+            }
+        });
+    }
+
+    @Test
+    public void parsesEachLineOfAChunk() {
+        parser.parse("LIGHT1:ON\r\nLIGHT2:OFF\n\n");
+        assertEquals("state 1 true", events.get(0));
+        assertEquals("state 2 false", events.get(1));
+        assertEquals(2, events.size());
+    }
+
+    @Test
+    public void statusLineWithColonIsAStatusReport() {
+        parser.parse("Status: L1=ON  L2=OFF  L3=ON");
+        assertEquals("status {1=true, 2=false, 3=true}", events.get(0));
+    }
+
+    @Test
+    public void prefixedLinesAreNotSwitchStates() {
+        parser.parse("IR Received: 0xFF30CF\nBT Received: LIGHT1_TOGGLE\nERROR: bad command\nBluetooth Commands:");
+        assertEquals("event", events.get(0));
+        assertEquals("event", events.get(1));
+        assertEquals("error", events.get(2));
+        assertEquals("help", events.get(3));
+    }
+
+    @Test
+    public void levelEchoesAreLevelReports() {
+        parser.parse("LIGHT3:LEVEL=128\nLIGHT3:LEVEL=0");
+        assertEquals("level 3 128", events.get(0));
+        assertEquals("level 3 0", events.get(1));
+    }
+
+    @Test
+    public void sequenceTagsAreStripped() {
+        parser.parse("LIGHT2:ON#17\nLIGHT3:LEVEL=40#18\nSEQ:ON");
+        assertEquals("state 2 true", events.get(0));
+        assertEquals("level 3 40", events.get(1));
+        assertEquals("other SEQ:ON", events.get(2));
+    }
+
+    @Test
+    public void toggleAcksCarryTheSwitchNumber() {
+        parser.parse("Light 2 toggled\nIR: Toggled Light 1");
+        assertEquals("ack 2", events.get(0));
+        assertEquals("ack 1", events.get(1));
+    }
+
+    @Test
+    public void unknownLinesFallThrough() {
+        parser.parse("Ready");
+        assertEquals("other Ready", events.get(0));
+    }
+}
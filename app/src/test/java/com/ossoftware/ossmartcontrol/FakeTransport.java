@@ -0,0 +1,39 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// In-memory CommandTransport that records every write
+public class FakeTransport implements CommandTransport {
+
+    public boolean connected = true;
+    public final List<List<String>> writes = new ArrayList<>();
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void sendCommand(String command) {
+        if (connected) {
+            writes.add(Arrays.asList(command));
+        }
+    }
+
+    @Override
+    public void sendCommands(List<String> commands) {
+        if (connected && !commands.isEmpty()) {
+            writes.add(new ArrayList<>(commands));
+        }
+    }
+
+    public List<String> allCommands() {
+        List<String> all = new ArrayList<>();
+        for (List<String> write : writes) {
+            all.addAll(write);
+        }
+        return all;
+    }
+}
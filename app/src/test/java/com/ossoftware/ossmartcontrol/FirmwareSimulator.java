@@ -0,0 +1,453 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+
+// Stand-in for the Arduino sketch: applies the text protocol to its relays and
+// returns the lines the board would print. Timing is modelled on a virtual
+// clock so latency tests are deterministic.
+public class FirmwareSimulator {
+
+    private final boolean[] relays;
+    private final int[] levels;
+    private final long linkDelayMs;
+    private final long perCommandMs;
+
+    private boolean pushesState = false;
+    private boolean knowsSequence = false;
+    private boolean echoesSequence = false;
+    private boolean knowsBinary = false;
+    private boolean sendsFrames = false;
+    private boolean knowsPing = false;
+    private boolean knowsCaps = false;
+    private boolean knowsBulk = false;
+    private boolean toggleOnly = false;
+    private boolean knowsProgram = false;
+    private List<String> helpLines = null;
+    // EEPROM as the sketch lays it out: 'P' LEN(2) CRC(2), the image from byte 8
+    private final byte[] eeprom = new byte[1024];
+    private final BoardProgramInterpreter interpreter;
+    private int uploadLength = -1;
+    private int uploadCrc = 0;
+    private int uploadNext = 0;
+    private String timeSet = null;
+    private final BinaryFrameCodec codec = new BinaryFrameCodec();
+    private int frameCount = 0;
+    private int commandCount = 0;
+    private int eepromWrites = 0;
+
+    public FirmwareSimulator(int switchCount) {
+        this(switchCount, 0, 0);
+    }
+
+    // linkDelayMs: one-way radio latency per frame; perCommandMs: parse + relay time
+    public FirmwareSimulator(int switchCount, long linkDelayMs, long perCommandMs) {
+        this.relays = new boolean[switchCount + 1];
+        this.levels = new int[switchCount + 1];
+        this.linkDelayMs = linkDelayMs;
+        this.perCommandMs = perCommandMs;
+        this.interpreter = new BoardProgramInterpreter((relay, on) -> {
+            if (relay >= 1 && relay < relays.length) {
+                relays[relay] = on;
+            }
+        });
+    }
+
+    // One write from the phone; commands are newline separated
+    public List<String> receive(String frame) {
+        frameCount++;
+        List<String> replies = new ArrayList<>();
+        for (String line : frame.split("\n")) {
+            // Frames can end in whitespace bytes, so only text lines are trimmed
+            String command = BinaryFrameCodec.isFrame(line) ? line : line.trim();
+            if (command.isEmpty()) {
+                continue;
+            }
+            commandCount++;
+            if (BinaryFrameCodec.isFrame(command)) {
+                StringBuilder text = new StringBuilder();
+                if (!knowsBinary || !codec.decode(command, text)) {
+                    // Stock firmware sees a garbage line; a bad CRC is dropped silently
+                    if (!knowsBinary) {
+                        replies.add("ERROR: Unknown command " + command);
+                    }
+                    continue;
+                }
+                command = text.toString();
+            }
+            for (String reply : handle(command)) {
+                replies.add(sendsFrames ? encode(reply) : reply);
+            }
+        }
+        if (sendsFrames) {
+            // Acks only cost bytes in binary mode; the state frame says it all
+            replies.removeIf(reply -> reply.endsWith(" toggled"));
+        }
+        return replies;
+    }
+
+    private String encode(String reply) {
+        StringBuilder frame = new StringBuilder();
+        return codec.encodeReply(reply, frame) ? frame.toString() : reply;
+    }
+
+    // Time from the start of a write until the board's reply is back on the phone
+    public long roundTripMs(String frame) {
+        int commands = frame.split("\n").length;
+        return 2 * linkDelayMs + commands * perCommandMs;
+    }
+
+    private List<String> handle(String command) {
+        List<String> replies = new ArrayList<>();
+
+        if (knowsBinary && (command.equals(FramedLink.HANDSHAKE) || command.equals(FramedLink.LEAVE))) {
+            // Neither answer has a binary form, so both go as text
+            sendsFrames = command.equals(FramedLink.HANDSHAKE);
+            replies.add(sendsFrames ? FramedLink.HANDSHAKE_REPLY : "BIN:OFF");
+            return replies;
+        }
+        if (knowsSequence && command.equals(ReplySequencer.HANDSHAKE)) {
+            echoesSequence = true;
+            replies.add(ReplySequencer.HANDSHAKE_REPLY);
+            return replies;
+        }
+        String tag = "";
+        if (echoesSequence && command.contains("#")) {
+            tag = command.substring(command.indexOf('#'));
+            command = command.substring(0, command.indexOf('#'));
+        }
+
+        if (command.equals("STATUS")) {
+            StringBuilder status = new StringBuilder("Status:");
+            for (int i = 1; i < relays.length; i++) {
+                status.append(" L").append(i).append("=").append(relays[i] ? "ON" : "OFF");
+            }
+            replies.add(status.toString());
+            return replies;
+        }
+
+        if (knowsPing && command.equals(LinkMonitor.PING)) {
+            replies.add(LinkMonitor.PONG);
+            return replies;
+        }
+
+        if (command.equals("HELP")) {
+            replies.add("Bluetooth Commands:");
+            if (helpLines != null) {
+                replies.addAll(helpLines);
+                return replies;
+            }
+            replies.add("LIGHTx_ON, LIGHTx_OFF, LIGHTx_TOGGLE, LIGHTx_LEVEL_n, STATUS, HELP");
+            List<String> extensions = extensions();
+            if (!extensions.isEmpty()) {
+                replies.add(String.join(", ", extensions));
+            }
+            return replies;
+        }
+
+        if (knowsProgram && (command.startsWith("PROG_") || command.startsWith(BoardProgramUploader.TIME_SET))) {
+            replies.add(handleProgram(command));
+            return replies;
+        }
+
+        if (knowsCaps && command.equals(BoardCapabilities.QUERY)) {
+            StringBuilder caps = new StringBuilder("CAPS: switches=").append(relays.length - 1)
+                    .append(" cmds=TOGGLE,SET,LEVEL,STATUS");
+            if (knowsSequence) {
+                caps.append(",SEQ");
+            }
+            if (knowsBinary) {
+                caps.append(",BIN");
+            }
+            if (knowsPing) {
+                caps.append(",PING");
+            }
+            if (knowsBulk) {
+                caps.append(",ALL");
+            }
+            if (knowsProgram) {
+                caps.append(",PROG");
+            }
+            replies.add(caps.toString());
+            return replies;
+        }
+
+        if (knowsBulk && (command.equals("ALL_ON") || command.equals("ALL_OFF"))) {
+            StringBuilder status = new StringBuilder("Status:");
+            for (int i = 1; i < relays.length; i++) {
+                relays[i] = command.equals("ALL_ON");
+                status.append(" L").append(i).append("=").append(relays[i] ? "ON" : "OFF");
+            }
+            replies.add(status.toString());
+            return replies;
+        }
+
+        if (command.startsWith("LIGHT")) {
+            int underscore = command.indexOf('_');
+            try {
+                int switchNumber = Integer.parseInt(command.substring(5, underscore));
+                String action = command.substring(underscore + 1);
+                if (switchNumber >= 1 && switchNumber < relays.length) {
+                    if (action.equals("TOGGLE")) {
+                        relays[switchNumber] = !relays[switchNumber];
+                        replies.add("Light " + switchNumber + " toggled");
+                    } else if (!toggleOnly && (action.equals("ON") || action.equals("OFF"))) {
+                        relays[switchNumber] = action.equals("ON");
+                    } else if (action.startsWith("LEVEL_")) {
+                        // PWM output; 0 also switches the channel off
+                        int level = Integer.parseInt(action.substring(6));
+                        if (level < 0 || level > 255) {
+                            replies.add("ERROR: Level out of range " + command);
+                            return replies;
+                        }
+                        levels[switchNumber] = level;
+                        relays[switchNumber] = level > 0;
+                        replies.add("LIGHT" + switchNumber + ":LEVEL=" + level);
+                        return replies;
+                    } else {
+                        replies.add("ERROR: Unknown command " + command);
+                        return replies;
+                    }
+                    replies.add("LIGHT" + switchNumber + ":" + (relays[switchNumber] ? "ON" : "OFF") + tag);
+                    return replies;
+                }
+            } catch (NumberFormatException | StringIndexOutOfBoundsException ignored) {
+            }
+        }
+
+        replies.add("ERROR: Unknown command " + command);
+        return replies;
+    }
+
+    // PROG_* and TIME_SET, as the sketch answers them
+    private String handleProgram(String command) {
+        String[] fields = command.split(" ");
+        switch (fields[0]) {
+            case BoardProgramUploader.INFO:
+                return eeprom[0] == 'P' ? "PROG: len=" + u16(1) + " crc=" + hex4(u16(3)) : "PROG: none";
+            case BoardProgramUploader.CLEAR:
+                eeprom[0] = 0;
+                interpreter.clear();
+                return "PROG: none";
+            case BoardProgramUploader.BEGIN:
+                int length = Integer.parseInt(fields[1]);
+                if (length > BoardProgram.MAX_SIZE) {
+                    return "PROG:ERR size";
+                }
+                // The old program stops now; a half-written one never runs
+                eeprom[0] = 0;
+                interpreter.clear();
+                uploadLength = length;
+                uploadCrc = Integer.parseInt(fields[2], 16);
+                uploadNext = 0;
+                return "PROG:READY";
+            case BoardProgramUploader.DATA:
+                return onChunk(fields);
+            case BoardProgramUploader.END:
+                if (uploadLength < 0 || uploadNext != uploadLength) {
+                    return "PROG:ERR short";
+                }
+                byte[] image = new byte[uploadLength];
+                System.arraycopy(eeprom, 8, image, 0, uploadLength);
+                if (BoardProgram.crc16(image, 0, image.length) != uploadCrc) {
+                    return "PROG:ERR crc";
+                }
+                if (!interpreter.load(image)) {
+                    return "PROG:ERR format";
+                }
+                eeprom[0] = 'P';
+                eeprom[1] = (byte) (uploadLength >> 8);
+                eeprom[2] = (byte) uploadLength;
+                eeprom[3] = (byte) (uploadCrc >> 8);
+                eeprom[4] = (byte) uploadCrc;
+                uploadLength = -1;
+                return "PROG:LOADED len=" + image.length + " crc=" + hex4(uploadCrc);
+            default:
+                timeSet = command.substring(BoardProgramUploader.TIME_SET.length()).trim();
+                return "TIME:OK";
+        }
+    }
+
+    private String onChunk(String[] fields) {
+        if (uploadLength < 0 || fields.length != 4) {
+            return "PROG:ERR " + uploadNext;
+        }
+        int offset = Integer.parseInt(fields[1]);
+        if (offset < uploadNext) {
+            // A chunk sent again after its OK went missing
+            return "PROG:OK " + uploadNext;
+        }
+        String hex = fields[2];
+        if (offset > uploadNext || hex.length() % 2 != 0 || offset + hex.length() / 2 > uploadLength) {
+            return "PROG:ERR " + uploadNext;
+        }
+        byte[] chunk = new byte[hex.length() / 2];
+        try {
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+            }
+            if (BinaryFrameCodec.crc8(chunk, chunk.length) != Integer.parseInt(fields[3], 16)) {
+                return "PROG:ERR " + offset;
+            }
+        } catch (NumberFormatException e) {
+            return "PROG:ERR " + offset;
+        }
+        System.arraycopy(chunk, 0, eeprom, 8 + offset, chunk.length);
+        eepromWrites += chunk.length;
+        uploadNext += chunk.length;
+        return "PROG:OK " + uploadNext;
+    }
+
+    private int u16(int at) {
+        return ((eeprom[at] & 0xFF) << 8) | (eeprom[at + 1] & 0xFF);
+    }
+
+    private static String hex4(int value) {
+        return String.format(Locale.US, "%04X", value);
+    }
+
+    // A new minute on the board's RTC
+    public void onMinute(Calendar time, long nowMs) {
+        interpreter.onMinute(time.get(Calendar.YEAR), time.get(Calendar.MONTH) + 1,
+                time.get(Calendar.DAY_OF_MONTH), time.get(Calendar.HOUR_OF_DAY), time.get(Calendar.MINUTE),
+                time.get(Calendar.DAY_OF_WEEK) - 1, nowMs);
+    }
+
+    // Scene delays running out between minutes
+    public void runScenes(long nowMs) {
+        interpreter.run(nowMs);
+    }
+
+    // Relays drop; the program comes back from EEPROM if it was complete
+    public void powerCycle() {
+        for (int i = 0; i < relays.length; i++) {
+            relays[i] = false;
+        }
+        interpreter.clear();
+        uploadLength = -1;
+        if (eeprom[0] == 'P') {
+            byte[] image = new byte[u16(1)];
+            System.arraycopy(eeprom, 8, image, 0, image.length);
+            interpreter.load(image);
+        }
+    }
+
+    public boolean isProgramLoaded() {
+        return interpreter.isLoaded();
+    }
+
+    public int getProgramFired() {
+        return interpreter.getFired();
+    }
+
+    public int getEepromWrites() {
+        return eepromWrites;
+    }
+
+    // What the last TIME_SET carried
+    public String getTimeSet() {
+        return timeSet;
+    }
+
+    // Firmware with the EEPROM program runner
+    public void setKnowsProgram(boolean knowsProgram) {
+        this.knowsProgram = knowsProgram;
+    }
+
+    // Firmware that also prints LIGHTn:STATE for changes made at the board
+    public void setPushesState(boolean pushesState) {
+        this.pushesState = pushesState;
+    }
+
+    // Firmware that answers the sequence handshake and echoes "#n" tags
+    public void setKnowsSequence(boolean knowsSequence) {
+        this.knowsSequence = knowsSequence;
+    }
+
+    // Firmware that answers BIN_ON and then replies in frames
+    public void setKnowsBinary(boolean knowsBinary) {
+        this.knowsBinary = knowsBinary;
+    }
+
+    // Firmware that answers the heartbeat with PONG instead of an error
+    public void setKnowsPing(boolean knowsPing) {
+        this.knowsPing = knowsPing;
+    }
+
+    // Firmware that answers CAPS with its switch count and command set
+    public void setKnowsCaps(boolean knowsCaps) {
+        this.knowsCaps = knowsCaps;
+    }
+
+    // Firmware with ALL_ON / ALL_OFF, answered with the new status
+    public void setKnowsBulk(boolean knowsBulk) {
+        this.knowsBulk = knowsBulk;
+    }
+
+    // The original sketch: LIGHTn_ON / LIGHTn_OFF are unknown commands
+    public void setToggleOnly(boolean toggleOnly) {
+        this.toggleOnly = toggleOnly;
+    }
+
+    // What HELP prints after its header, for older sketches' layouts
+    public void setHelpLines(List<String> helpLines) {
+        this.helpLines = helpLines;
+    }
+
+    private List<String> extensions() {
+        List<String> extensions = new ArrayList<>();
+        if (knowsSequence) {
+            extensions.add(ReplySequencer.HANDSHAKE);
+        }
+        if (knowsBinary) {
+            extensions.add(FramedLink.HANDSHAKE + ", " + FramedLink.LEAVE);
+        }
+        if (knowsPing) {
+            extensions.add(LinkMonitor.PING);
+        }
+        if (knowsBulk) {
+            extensions.add("ALL_ON, ALL_OFF");
+        }
+        return extensions;
+    }
+
+    // A button on the IR remote; returns what the board prints
+    public List<String> pressRemote(int switchNumber) {
+        relays[switchNumber] = !relays[switchNumber];
+        List<String> lines = new ArrayList<>();
+        lines.add("IR Received: 0xFF" + (30 + switchNumber) + "CF");
+        lines.add("IR: Toggled Light " + switchNumber);
+        if (pushesState) {
+            lines.add("LIGHT" + switchNumber + ":" + (relays[switchNumber] ? "ON" : "OFF"));
+        }
+        return lines;
+    }
+
+    // A wall switch wired to the board; stock firmware prints nothing
+    public List<String> pressWallSwitch(int switchNumber) {
+        relays[switchNumber] = !relays[switchNumber];
+        List<String> lines = new ArrayList<>();
+        if (pushesState) {
+            lines.add("LIGHT" + switchNumber + ":" + (relays[switchNumber] ? "ON" : "OFF"));
+        }
+        return lines;
+    }
+
+    public boolean isOn(int switchNumber) {
+        return relays[switchNumber];
+    }
+
+    public int getLevel(int switchNumber) {
+        return levels[switchNumber];
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public int getCommandCount() {
+        return commandCount;
+    }
+}
@@ -0,0 +1,99 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FramedLinkTest {
+
+    private FakeTransport transport;
+    private FirmwareSimulator board;
+    private FramedLink link;
+    private final List<String> changes = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        transport = new FakeTransport();
+        board = new FirmwareSimulator(4);
+        link = new FramedLink(transport, (binary, reason) -> changes.add(binary ? "binary" : "text"));
+    }
+
+    @Test
+    public void staysTextUntilTheBoardAnswers() {
+        link.sendCommand("LIGHT1_ON");
+        assertEquals("LIGHT1_ON", last());
+
+        assertEquals("", link.decode(FramedLink.HANDSHAKE_REPLY).trim());
+        assertTrue(link.isBinary());
+        link.sendCommands(Arrays.asList("LIGHT1_OFF", "HELP"));
+        assertTrue(BinaryFrameCodec.isFrame(transport.writes.get(1).get(0)));
+        assertEquals("HELP", transport.writes.get(1).get(1));
+        assertEquals(Arrays.asList("binary"), changes);
+    }
+
+    @Test
+    public void framesFromTheBoardReachTheParserAsText() {
+        board.setKnowsBinary(true);
+        link.decode(String.join("\n", board.receive(FramedLink.HANDSHAKE)));
+
+        link.sendCommand("LIGHT2_TOGGLE");
+        String replies = link.decode(String.join("\n", board.receive(last())));
+        assertEquals("LIGHT2:ON", replies.trim());
+
+        // Text lines in between pass straight through
+        String status = board.receive("STATUS").get(0);
+        assertEquals("IR Received: 0xFF30CF\nStatus: L1=OFF L2=ON L3=OFF L4=OFF",
+                link.decode("IR Received: 0xFF30CF\n" + status).trim());
+    }
+
+    @Test
+    public void repeatedCrcFailuresFallBackToText() {
+        link.decode(FramedLink.HANDSHAKE_REPLY);
+        StringBuilder frame = new StringBuilder();
+        new BinaryFrameCodec().encodeReply("LIGHT1:ON", frame);
+        String good = frame.toString();
+        String bad = good.substring(0, good.length() - 1) + (char) (good.charAt(good.length() - 1) ^ 0x40);
+
+        for (int i = 0; i < FramedLink.MAX_BAD_FRAMES - 1; i++) {
+            assertEquals("", link.decode(bad).trim());
+            link.decode(good);
+        }
+        assertTrue(link.isBinary());
+        link.decode(bad);
+
+        assertFalse(link.isBinary());
+        assertEquals(FramedLink.LEAVE, last());
+        link.sendCommand("LIGHT1_ON");
+        assertEquals("LIGHT1_ON", last());
+        assertEquals(Arrays.asList("binary", "text"), changes);
+    }
+
+    @Test
+    public void boardThatRestartedIntoTextIsDetected() {
+        link.decode(FramedLink.HANDSHAKE_REPLY);
+        link.sendCommand("LIGHT1_ON");
+
+        // Stock firmware echoes the frame back as an unknown command
+        String reply = link.decode(String.join("\n", board.receive(last())));
+        assertTrue(reply.startsWith("ERROR:"));
+        assertFalse(link.isBinary());
+        assertEquals(FramedLink.LEAVE, last());
+    }
+
+    @Test
+    public void stockFirmwareRejectsTheHandshake() {
+        List<String> replies = board.receive(FramedLink.HANDSHAKE);
+        assertEquals("ERROR: Unknown command BIN_ON", link.decode(String.join("\n", replies)));
+        assertFalse(link.isBinary());
+    }
+
+    private String last() {
+        List<String> commands = transport.allCommands();
+        return commands.get(commands.size() - 1);
+    }
+}
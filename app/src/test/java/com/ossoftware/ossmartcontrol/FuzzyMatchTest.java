@@ -0,0 +1,156 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FuzzyMatchTest {
+
+    private static final String[] NAMES = {
+            "Kitchen Fan", "Porch Light", "Bedroom Lamp", "Water Pump", "Garage Door", "Ceiling Fan"
+    };
+
+    private VoiceCommandParser parser;
+
+    @Before
+    public void setUp() {
+        parser = new VoiceCommandParser();
+        parser.setSwitches(buildSwitches(20));
+    }
+
+    private static List<DeviceModel> buildSwitches(int count) {
+        List<DeviceModel> switches = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            String name = i <= NAMES.length ? NAMES[i - 1] : "Switch " + i;
+            switches.add(new DeviceModel(i, name, "LIGHT" + i + "_TOGGLE"));
+        }
+        return switches;
+    }
+
+    // What the app does with an utterance: command, "confirm <command>" or "none"
+    private String resolve(String spokenText) {
+        String command = parser.parseCommand(spokenText);
+        if (!command.equals("UNKNOWN_COMMAND")) {
+            return command;
+        }
+        SwitchGrammar.FuzzyMatch match = parser.fuzzyMatch(spokenText);
+        if (match == null) {
+            return "none";
+        }
+        return match.needsConfirmation() ? "confirm " + match.getCommand() : match.getCommand();
+    }
+
+    @Test
+    public void phoneticKeysGroupSoundAlikes() {
+        assertEquals(PhoneticKey.encode("fan"), PhoneticKey.encode("van"));
+        assertEquals(PhoneticKey.encode("light"), PhoneticKey.encode("lite"));
+        assertEquals(PhoneticKey.encode("off"), PhoneticKey.encode("of"));
+        assertEquals(PhoneticKey.encode("ceiling"), PhoneticKey.encode("sealing"));
+        assertNotEquals(PhoneticKey.encode("fan"), PhoneticKey.encode("pump"));
+    }
+
+    @Test
+    public void boundedDistanceStopsAtTheBound() {
+        assertEquals(0, FuzzyIndex.boundedDistance("kitchen", "kitchen", 2));
+        assertEquals(1, FuzzyIndex.boundedDistance("kichen", "kitchen", 2));
+        assertEquals(2, FuzzyIndex.boundedDistance("kitten", "kitchen", 2));
+        assertEquals(3, FuzzyIndex.boundedDistance("garage", "kitchen", 2));
+        assertEquals(2, FuzzyIndex.boundedDistance("abc", "abcdefgh", 1));
+    }
+
+    @Test
+    public void exactCommandsNeverGoFuzzy() {
+        assertEquals("LIGHT1_ON", resolve("turn on kitchen fan"));
+        assertNull(parser.fuzzyMatch("turn on kitchen fan"));
+    }
+
+    @Test
+    public void corpusAccuracy() throws Exception {
+        int total = 0;
+        int correct = 0;
+        List<String> misses = new ArrayList<>();
+
+        InputStream stream = getClass().getClassLoader().getResourceAsStream("voice_fuzzy_corpus.txt");
+        assertNotNull("voice_fuzzy_corpus.txt missing", stream);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\|");
+                String expected = parts[1].trim();
+                String actual = resolve(parts[0].trim());
+
+                total++;
+                if (expected.equals(actual)) {
+                    correct++;
+                } else {
+                    misses.add(parts[0].trim() + " -> " + actual + " (expected " + expected + ")");
+                }
+            }
+        }
+
+        double accuracy = (double) correct / total;
+        assertTrue("Accuracy " + accuracy + ", misses: " + misses, accuracy >= 0.9);
+    }
+
+    @Test
+    public void benchmarkFuzzyMatchWithHundredsOfNames() {
+        String[] rooms = {"kitchen", "bedroom", "garage", "porch", "attic", "office", "hallway", "bathroom",
+                "garden", "balcony", "basement", "study", "nursery", "pantry", "laundry", "lobby"};
+        String[] things = {"fan", "lamp", "light", "heater", "pump", "socket", "cooler", "speaker",
+                "curtain", "sprinkler", "kettle", "charger", "router", "printer", "fountain", "projector",
+                "freezer", "dryer", "mixer", "aquarium"};
+
+        List<DeviceModel> switches = new ArrayList<>();
+        int index = 1;
+        for (String room : rooms) {
+            for (String thing : things) {
+                switches.add(new DeviceModel(index, room + " " + thing, "LIGHT" + index + "_TOGGLE"));
+                index++;
+            }
+        }
+        long start = System.nanoTime();
+        parser.setSwitches(switches);
+        long indexUs = (System.nanoTime() - start) / 1000;
+
+        String[] utterances = {
+                "turn on kitchen van",
+                "turn off bedrom heater",
+                "switch of garden sprinkeler",
+                "turn on lite to hundred",
+                "turn on the microwave please"
+        };
+
+        // Warm up, then time
+        for (int i = 0; i < 200; i++) {
+            for (String utterance : utterances) {
+                parser.fuzzyMatch(utterance);
+            }
+        }
+        int rounds = 1000;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            for (String utterance : utterances) {
+                parser.fuzzyMatch(utterance);
+            }
+        }
+        double perMatchUs = (System.nanoTime() - start) / 1000.0 / (rounds * utterances.length);
+
+        assertEquals("LIGHT1_ON", parser.fuzzyMatch("turn on kitchen van").getCommand());
+        // Against indexing the same names on the same machine, not a fixed budget
+        assertTrue("Fuzzy match should be a small fraction of indexing: match "
+                        + String.format("%.1f", perMatchUs) + " us, index " + indexUs + " us",
+                perMatchUs * 100 < indexUs);
+    }
+}
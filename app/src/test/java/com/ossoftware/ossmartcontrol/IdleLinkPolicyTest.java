@@ -0,0 +1,198 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class IdleLinkPolicyTest {
+
+    private VirtualClock clock;
+    private IdleLinkPolicy policy;
+    private final List<String> written = new ArrayList<>();
+    private Random random;
+    private int suspendCount = 0;
+    private int dropped = -1;
+    private boolean resumeFails = false;
+    private boolean resumeManually = false;
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock();
+        random = new Random(47);
+        policy = new IdleLinkPolicy(new IdleLinkPolicy.Link() {
+            @Override
+            public void write(List<String> commands) {
+                written.addAll(commands);
+            }
+
+            @Override
+            public void suspend() {
+                suspendCount++;
+            }
+
+            @Override
+            public void resume() {
+                if (resumeManually) {
+                    return;
+                }
+                // RFCOMM reconnects to a bonded HC-05 take 0.4-1.2 s
+                clock.postDelayed(() -> {
+                    if (resumeFails) {
+                        policy.onResumeFailed();
+                    } else {
+                        policy.onResumed();
+                    }
+                }, 400 + random.nextInt(800));
+            }
+        }, clock, clock, new IdleLinkPolicy.Listener() {
+            @Override
+            public void onSuspended() {
+            }
+
+            @Override
+            public void onResumed(long waitedMs) {
+            }
+
+            @Override
+            public void onResumeFailed(int droppedCommands) {
+                dropped = droppedCommands;
+            }
+        });
+        policy.onConnected();
+    }
+
+    private void send(String... commands) {
+        policy.send(Arrays.asList(commands));
+    }
+
+    @Test
+    public void closesAfterTheIdleTimeout() {
+        clock.advance(IdleLinkPolicy.DEFAULT_IDLE_TIMEOUT_MS - 1);
+        assertFalse(policy.isSuspended());
+        clock.advance(1);
+        assertTrue(policy.isSuspended());
+        assertEquals(1, suspendCount);
+    }
+
+    @Test
+    public void heldCommandsAreFlushedInOrder() {
+        clock.advance(IdleLinkPolicy.DEFAULT_IDLE_TIMEOUT_MS);
+        resumeManually = true;
+        send("LIGHT1_TOGGLE");
+        send("LIGHT2_ON", "LIGHT3_OFF");
+        assertTrue(policy.isResuming());
+        assertEquals(3, policy.getHeldCount());
+        assertTrue(written.isEmpty());
+
+        clock.advance(700);
+        policy.onResumed();
+        assertEquals(Arrays.asList("LIGHT1_TOGGLE", "LIGHT2_ON", "LIGHT3_OFF"), written);
+        assertEquals(Collections.singletonList(700L), policy.getWaits());
+        assertFalse(policy.isSuspended());
+    }
+
+    @Test
+    public void backgroundSendsDoNotKeepTheLinkOpen() {
+        for (int i = 0; i < 20; i++) {
+            clock.advance(10_000);
+            if (!policy.isSuspended()) {
+                send("STATUS");
+            }
+        }
+        assertTrue(policy.isSuspended());
+        assertEquals(1, suspendCount);
+    }
+
+    @Test
+    public void activityPushesTheTimeoutBack() {
+        clock.advance(100_000);
+        policy.touch();
+        clock.advance(100_000);
+        assertFalse(policy.isSuspended());
+        clock.advance(20_000);
+        assertTrue(policy.isSuspended());
+    }
+
+    @Test
+    public void zeroTimeoutNeverCloses() {
+        policy.setIdleTimeout(0);
+        clock.advance(24 * 3_600_000L);
+        assertFalse(policy.isSuspended());
+        assertEquals(0, clock.pendingTasks());
+    }
+
+    @Test
+    public void failedResumeDropsHeldCommands() {
+        clock.advance(IdleLinkPolicy.DEFAULT_IDLE_TIMEOUT_MS);
+        resumeFails = true;
+        send("LIGHT1_ON", "LIGHT2_ON");
+        clock.advance(2000);
+        assertEquals(2, dropped);
+        assertEquals(0, policy.getHeldCount());
+        assertTrue(written.isEmpty());
+        // Closed for real: nothing more is held or reopened
+        send("LIGHT3_ON");
+        assertEquals(0, policy.getHeldCount());
+    }
+
+    @Test
+    public void prewarmedTapDoesNotWait() {
+        clock.advance(IdleLinkPolicy.DEFAULT_IDLE_TIMEOUT_MS);
+        policy.touch();
+        clock.advance(1500);
+        send("LIGHT1_TOGGLE");
+        assertEquals(Collections.singletonList("LIGHT1_TOGGLE"), written);
+        assertEquals(Collections.singletonList(0L), policy.getWaits());
+        assertEquals(1, policy.getPrewarms());
+    }
+
+    // A day of use: the app is opened now and then and a few tiles tapped,
+    // with STATUS polled every 10 s while it is open. Sessions either come
+    // through onStart/grid touch (pre-warm) or straight from a widget tap.
+    @Test
+    public void simulatedDay() {
+        long[] plain = runDay(false);
+        long[] warmed = runDay(true);
+        long dayMs = 16 * 3_600_000L;
+        assertTrue(warmed[3] < dayMs / 2);
+        assertTrue(warmed[1] < plain[1]);
+        assertTrue(plain[2] <= 1200);
+    }
+
+    // p50, p95, p99 of the first-tap wait, then radio-on time
+    private long[] runDay(boolean prewarm) {
+        setUp();
+        Random day = new Random(2026);
+        long end = 16 * 3_600_000L;
+        while (clock.currentTimeMillis() < end) {
+            clock.advance(60_000 + day.nextInt(40 * 60_000));
+            if (prewarm) {
+                // onStart, then a finger finds the tile 0.6-3 s later
+                policy.touch();
+                clock.advance(600 + day.nextInt(2400));
+            }
+            int taps = 1 + day.nextInt(4);
+            for (int i = 0; i < taps; i++) {
+                policy.touch();
+                send("LIGHT" + (1 + day.nextInt(4)) + "_TOGGLE");
+                clock.advance(2000 + day.nextInt(8000));
+                send("STATUS");
+            }
+        }
+        List<Long> waits = new ArrayList<>(policy.getWaits());
+        Collections.sort(waits);
+        return new long[]{percentile(waits, 50), percentile(waits, 95), percentile(waits, 99),
+                policy.getRadioOnMs()};
+    }
+
+    private static long percentile(List<Long> sorted, int p) {
+        return sorted.isEmpty() ? 0 : sorted.get(Math.min(sorted.size() - 1, sorted.size() * p / 100));
+    }
+}
@@ -0,0 +1,192 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Stand-in for a LAN full of ESP boards: each FirmwareSimulator listens on
+// its own loopback TCP port and takes datagrams on the same port number, and
+// one responder answers the discovery probe for all of them.
+public class LanBoardServer implements AutoCloseable {
+
+    public class Board {
+        final FirmwareSimulator simulator = new FirmwareSimulator(4);
+        final ServerSocket server;
+        final DatagramSocket datagrams;
+        final List<Socket> clients = new CopyOnWriteArrayList<>();
+        final String name;
+
+        Board(String name) throws IOException {
+            this.name = name;
+            server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            datagrams = new DatagramSocket(server.getLocalPort(), InetAddress.getLoopbackAddress());
+            start("accept " + name, this::accept);
+            start("udp " + name, this::receiveDatagrams);
+        }
+
+        public String getAddress() {
+            return "127.0.0.1:" + server.getLocalPort();
+        }
+
+        public boolean isOn(int switchNumber) {
+            synchronized (simulator) {
+                return simulator.isOn(switchNumber);
+            }
+        }
+
+        // Until the accept thread has taken up the phone's connections
+        public void awaitClients(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (clients.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+        }
+
+        // The board resets: every open connection drops
+        public void dropConnections() throws IOException {
+            for (Socket client : clients) {
+                client.close();
+            }
+        }
+
+        private void accept() {
+            try {
+                while (true) {
+                    Socket client = server.accept();
+                    client.setTcpNoDelay(true);
+                    clients.add(client);
+                    start("tcp " + name, () -> serve(client));
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        private void serve(Socket client) {
+            try (BufferedReader in = new BufferedReader(
+                    new InputStreamReader(client.getInputStream(), StandardCharsets.ISO_8859_1))) {
+                OutputStream out = client.getOutputStream();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    List<String> replies;
+                    synchronized (simulator) {
+                        replies = simulator.receive(line);
+                    }
+                    for (String reply : replies) {
+                        byte[] bytes = (reply + "\n").getBytes(StandardCharsets.ISO_8859_1);
+                        if (splitReplies && bytes.length > 2) {
+                            // Arrives in two reads on the phone
+                            out.write(bytes, 0, bytes.length / 2);
+                            out.flush();
+                            Thread.sleep(20);
+                            out.write(bytes, bytes.length / 2, bytes.length - bytes.length / 2);
+                        } else {
+                            out.write(bytes);
+                        }
+                    }
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // Client gone
+            }
+        }
+
+        private void receiveDatagrams() {
+            byte[] buffer = new byte[512];
+            try {
+                while (true) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    datagrams.receive(packet);
+                    String text = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.ISO_8859_1);
+                    synchronized (simulator) {
+                        simulator.receive(text.trim());
+                    }
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        void close() throws IOException {
+            server.close();
+            datagrams.close();
+            dropConnections();
+        }
+    }
+
+    private final List<Board> boards = new ArrayList<>();
+    private final DatagramSocket discovery;
+    private volatile boolean splitReplies = false;
+
+    public LanBoardServer(int count) throws IOException {
+        for (int i = 1; i <= count; i++) {
+            boards.add(new Board("Board " + i));
+        }
+        discovery = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        start("discovery", this::answerProbes);
+    }
+
+    private static void start(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void answerProbes() {
+        byte[] buffer = new byte[64];
+        try {
+            while (true) {
+                DatagramPacket probe = new DatagramPacket(buffer, buffer.length);
+                discovery.receive(probe);
+                String text = new String(probe.getData(), 0, probe.getLength(), StandardCharsets.ISO_8859_1);
+                if (!text.trim().equals(LanLink.DISCOVERY_PROBE)) {
+                    continue;
+                }
+                for (Board board : boards) {
+                    byte[] reply = (LanLink.DISCOVERY_REPLY + board.server.getLocalPort() + " " + board.name)
+                            .getBytes(StandardCharsets.ISO_8859_1);
+                    discovery.send(new DatagramPacket(reply, reply.length, probe.getSocketAddress()));
+                }
+            }
+        } catch (SocketException e) {
+            // Closed
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Board getBoard(int index) {
+        return boards.get(index);
+    }
+
+    public List<Board> getBoards() {
+        return boards;
+    }
+
+    public int getDiscoveryPort() {
+        return discovery.getLocalPort();
+    }
+
+    public void setSplitReplies(boolean splitReplies) {
+        this.splitReplies = splitReplies;
+    }
+
+    @Override
+    public void close() throws IOException {
+        discovery.close();
+        for (Board board : boards) {
+            board.close();
+        }
+    }
+}
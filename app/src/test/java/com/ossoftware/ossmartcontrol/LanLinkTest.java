@@ -0,0 +1,311 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LanLinkTest {
+
+    private static final int BOARDS = 10;
+
+    private LanBoardServer server;
+    private LanLink link;
+
+    // What one connection has seen, as the selector thread delivered it
+    private static class Board implements LanLink.ConnectionListener {
+        final CountDownLatch connected = new CountDownLatch(1);
+        final LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        final LinkedBlockingQueue<String> closed = new LinkedBlockingQueue<>();
+        final AtomicInteger statusLines = new AtomicInteger();
+        volatile long lastArrivalNs;
+
+        @Override
+        public void onConnected() {
+            connected.countDown();
+        }
+
+        @Override
+        public void onReceived(String text) {
+            assertTrue("partial line delivered: " + text, text.endsWith("\n"));
+            lastArrivalNs = System.nanoTime();
+            for (String line : text.split("\n")) {
+                if (line.startsWith("Status:")) {
+                    statusLines.incrementAndGet();
+                } else if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        }
+
+        @Override
+        public void onClosed(String reason) {
+            closed.add(reason);
+        }
+
+        String awaitLine(String prefix) throws InterruptedException {
+            while (true) {
+                String line = lines.poll(5, TimeUnit.SECONDS);
+                assertNotNull("no reply starting " + prefix, line);
+                if (line.startsWith(prefix)) {
+                    return line;
+                }
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LanBoardServer(BOARDS);
+        link = new LanLink(TimeSource.SYSTEM);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        link.shutdown();
+        server.close();
+    }
+
+    private List<Board> connectAll() throws InterruptedException {
+        List<Board> boards = new ArrayList<>();
+        for (LanBoardServer.Board board : server.getBoards()) {
+            Board listener = new Board();
+            link.connect(board.getAddress(), listener);
+            boards.add(listener);
+        }
+        for (Board board : boards) {
+            assertTrue(board.connected.await(5, TimeUnit.SECONDS));
+        }
+        return boards;
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        return sorted.get(Math.min(sorted.size() - 1, (int) (sorted.size() * p)));
+    }
+
+    @Test
+    public void addressesAreToldApartFromMacs() {
+        assertTrue(LanLink.isAddress("192.168.1.40:4210"));
+        assertTrue(LanLink.isAddress("ossc-kitchen.local:23"));
+        assertFalse(LanLink.isAddress("98:D3:31:F5:2A:17"));
+        assertFalse(LanLink.isAddress("192.168.1.40"));
+        assertFalse(LanLink.isAddress(null));
+    }
+
+    @Test
+    public void tenBoardsShareOneThread() throws Exception {
+        List<Board> boards = connectAll();
+        assertEquals(BOARDS, link.getOpenConnections());
+
+        int threads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("LanLink")) {
+                threads++;
+            }
+        }
+        assertEquals(1, threads);
+
+        // One board on its own first, the baseline for sharing the thread
+        List<Long> alone = new ArrayList<>();
+        String first = server.getBoard(0).getAddress();
+        int rounds = 200;
+        for (int round = 0; round < rounds; round++) {
+            long sentAt = System.nanoTime();
+            link.send(first, Arrays.asList("LIGHT2_TOGGLE"));
+            assertEquals(round % 2 == 0 ? "LIGHT2:ON" : "LIGHT2:OFF", boards.get(0).awaitLine("LIGHT2:"));
+            alone.add((boards.get(0).lastArrivalNs - sentAt) / 1_000);
+        }
+
+        // All ten toggled at once, each round waiting for every reply
+        List<Long> shared = new ArrayList<>();
+        for (int round = 0; round < rounds; round++) {
+            long[] sentAt = new long[BOARDS];
+            for (int i = 0; i < BOARDS; i++) {
+                sentAt[i] = System.nanoTime();
+                link.send(server.getBoard(i).getAddress(), Arrays.asList("LIGHT1_TOGGLE"));
+            }
+            String expected = round % 2 == 0 ? "LIGHT1:ON" : "LIGHT1:OFF";
+            for (int i = 0; i < BOARDS; i++) {
+                assertEquals(expected, boards.get(i).awaitLine("LIGHT1:"));
+                shared.add((boards.get(i).lastArrivalNs - sentAt[i]) / 1_000);
+            }
+        }
+        for (int i = 0; i < BOARDS; i++) {
+            assertFalse(server.getBoard(i).isOn(1));
+        }
+        Collections.sort(alone);
+        Collections.sort(shared);
+        // Served one after another, the median board would wait for half the
+        // others' round trips; on one selector they overlap
+        String timings = "p50 " + percentile(shared, 0.5) + " us, p95 " + percentile(shared, 0.95)
+                + " us shared; p50 " + percentile(alone, 0.5) + " us alone";
+        assertTrue(timings, percentile(shared, 0.5) < BOARDS / 2 * percentile(alone, 0.5));
+    }
+
+    @Test
+    public void pipelinedCommandsKeepUp() throws Exception {
+        List<Board> boards = connectAll();
+
+        // Lockstep: one command, then wait for its reply
+        Board first = boards.get(0);
+        String address = server.getBoard(0).getAddress();
+        int lockstep = 500;
+        long start = System.nanoTime();
+        long deadline = System.currentTimeMillis() + 30_000;
+        for (int i = 1; i <= lockstep; i++) {
+            link.send(address, Arrays.asList("STATUS"));
+            while (first.statusLines.get() < i) {
+                assertTrue("no status reply", System.currentTimeMillis() < deadline);
+                Thread.yield();
+            }
+        }
+        double lockstepUs = (System.nanoTime() - start) / 1000.0 / lockstep;
+        first.statusLines.set(0);
+
+        int perBoard = 5_000;
+        int batch = 50;
+        start = System.nanoTime();
+        for (int sent = 0; sent < perBoard; sent += batch) {
+            for (int i = 0; i < BOARDS; i++) {
+                link.send(server.getBoard(i).getAddress(), Collections.nCopies(batch, "STATUS"));
+            }
+        }
+        deadline = System.currentTimeMillis() + 30_000;
+        for (Board board : boards) {
+            while (board.statusLines.get() < perBoard && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(perBoard, board.statusLines.get());
+        }
+        double pipelinedUs = (System.nanoTime() - start) / 1000.0 / (BOARDS * perBoard);
+        // Batched and spread over the boards, a command costs a fraction of a round trip
+        String timings = String.format(Locale.US, "%.1f us per command pipelined, %.1f us in lockstep",
+                pipelinedUs, lockstepUs);
+        assertTrue(timings, pipelinedUs * 5 < lockstepUs);
+        assertEquals((lockstep + BOARDS * perBoard) * "STATUS\n".length(), link.getBytesSent());
+    }
+
+    @Test
+    public void commandsSentBeforeConnectAreKept() throws Exception {
+        Board board = new Board();
+        String address = server.getBoard(0).getAddress();
+        link.connect(address, board);
+        link.send(address, Arrays.asList("LIGHT2_TOGGLE", "LIGHT3_TOGGLE"));
+        assertEquals("LIGHT2:ON", board.awaitLine("LIGHT2:"));
+        assertEquals("LIGHT3:ON", board.awaitLine("LIGHT3:"));
+    }
+
+    @Test
+    public void splitLinesArriveWhole() throws Exception {
+        server.setSplitReplies(true);
+        Board board = connectAll().get(0);
+        link.send(server.getBoard(0).getAddress(), Arrays.asList("LIGHT4_TOGGLE"));
+        assertEquals("Light 4 toggled", board.awaitLine("Light 4"));
+        assertEquals("LIGHT4:ON", board.awaitLine("LIGHT4:"));
+    }
+
+    @Test
+    public void droppedBoardIsReported() throws Exception {
+        List<Board> boards = connectAll();
+        // Connected on the phone's side can come before the board's accept
+        server.getBoard(3).awaitClients(1);
+        server.getBoard(3).dropConnections();
+        assertNotNull(boards.get(3).closed.poll(5, TimeUnit.SECONDS));
+        assertFalse(link.isConnected(server.getBoard(3).getAddress()));
+        assertEquals(BOARDS - 1, link.getOpenConnections());
+
+        // The rest carry on
+        link.send(server.getBoard(4).getAddress(), Arrays.asList("LIGHT1_TOGGLE"));
+        assertEquals("LIGHT1:ON", boards.get(4).awaitLine("LIGHT1:"));
+    }
+
+    @Test
+    public void refusedConnectIsReported() throws Exception {
+        int port;
+        try (ServerSocket unused = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = unused.getLocalPort();
+        }
+        Board board = new Board();
+        link.connect("127.0.0.1:" + port, board);
+        assertNotNull(board.closed.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, board.connected.getCount());
+    }
+
+    @Test
+    public void hostNamesAreLookedUp() throws Exception {
+        Board board = new Board();
+        String address = "localhost:" + server.getBoard(0).getAddress().split(":")[1];
+        link.connect(address, board);
+        assertTrue(board.connected.await(5, TimeUnit.SECONDS));
+        link.send(address, Arrays.asList("LIGHT1_TOGGLE"));
+        assertEquals("LIGHT1:ON", board.awaitLine("LIGHT1:"));
+    }
+
+    @Test
+    public void lookupThatFailsHoldsUpOnlyItsBoard() throws Exception {
+        Board unknown = new Board();
+        link.connect("no-such-board.invalid:23", unknown);
+        List<Board> boards = connectAll();
+        link.send(server.getBoard(0).getAddress(), Arrays.asList("LIGHT1_TOGGLE"));
+        assertEquals("LIGHT1:ON", boards.get(0).awaitLine("LIGHT1:"));
+
+        // Unknown host, or the connect timeout if DNS never answers
+        assertNotNull(unknown.closed.poll(LanLink.CONNECT_TIMEOUT_MS + 2_000, TimeUnit.MILLISECONDS));
+        assertEquals(1, unknown.connected.getCount());
+        assertEquals(BOARDS, link.getOpenConnections());
+    }
+
+    @Test
+    public void closeIsQuiet() throws Exception {
+        Board board = connectAll().get(0);
+        link.close(server.getBoard(0).getAddress());
+        assertNull(board.closed.poll(300, TimeUnit.MILLISECONDS));
+        assertEquals(BOARDS - 1, link.getOpenConnections());
+    }
+
+    @Test
+    public void datagramsReachTheBoard() throws Exception {
+        LanBoardServer.Board target = server.getBoard(5);
+        link.sendDatagram(target.getAddress(), Arrays.asList("LIGHT2_ON", "LIGHT3_ON"));
+        long deadline = System.currentTimeMillis() + 2_000;
+        while (!(target.isOn(2) && target.isOn(3)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(target.isOn(2));
+        assertTrue(target.isOn(3));
+        assertEquals(0, link.getOpenConnections());
+    }
+
+    @Test
+    public void discoveryFindsEveryBoard() throws Exception {
+        Map<String, String> found = new ConcurrentHashMap<>();
+        CountDownLatch all = new CountDownLatch(BOARDS);
+        link.discover(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getDiscoveryPort()),
+                (name, address) -> {
+                    if (found.put(address, name) == null) {
+                        all.countDown();
+                    }
+                });
+        assertTrue(all.await(5, TimeUnit.SECONDS));
+        link.stopDiscovery();
+        for (int i = 0; i < BOARDS; i++) {
+            assertEquals("Board " + (i + 1), found.get(server.getBoard(i).getAddress()));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LanTransportTest {
+
+    private LanBoardServer server;
+    private LanLink lanLink;
+    private final LinkedBlockingQueue<String> events = new LinkedBlockingQueue<>();
+    private LanTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LanBoardServer(2);
+        lanLink = new LanLink(TimeSource.SYSTEM);
+        // Callbacks straight off the selector thread; the app posts them to the main one
+        transport = new LanTransport(lanLink, Runnable::run, new ControllerLink.Listener() {
+            @Override
+            public void onConnected(String deviceName, String mac) {
+                events.add("connected " + deviceName + " " + mac);
+            }
+
+            @Override
+            public void onDisconnected() {
+                events.add("disconnected");
+            }
+
+            @Override
+            public void onConnectionError(String error) {
+                events.add("error");
+            }
+
+            @Override
+            public void onMessageReceived(String message) {
+                for (String line : message.split("\n")) {
+                    if (line.startsWith("LIGHT")) {
+                        events.add(line);
+                    }
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        lanLink.shutdown();
+        server.close();
+    }
+
+    private String nextEvent() throws InterruptedException {
+        String event = events.poll(5, TimeUnit.SECONDS);
+        assertNotNull("no event", event);
+        return event;
+    }
+
+    private LanBoardServer.Board connect() throws InterruptedException {
+        LanBoardServer.Board board = server.getBoard(0);
+        transport.connectToDevice("Kitchen", board.getAddress());
+        assertEquals("connected Kitchen " + board.getAddress(), nextEvent());
+        return board;
+    }
+
+    @Test
+    public void commandsReachTheBoard() throws Exception {
+        LanBoardServer.Board board = connect();
+        assertTrue(transport.isConnected());
+        assertEquals("Kitchen", transport.getConnectedDeviceName());
+        assertEquals(board.getAddress(), transport.getConnectedMac());
+
+        transport.sendCommands(Arrays.asList("LIGHT1_ON", "LIGHT2_ON"));
+        assertEquals("LIGHT1:ON", nextEvent());
+        assertEquals("LIGHT2:ON", nextEvent());
+        assertTrue(board.isOn(1));
+        assertTrue(board.isOn(2));
+    }
+
+    @Test
+    public void disconnectIsReportedOnceAndClosesTheSocket() throws Exception {
+        connect();
+        transport.disconnect();
+        assertEquals("disconnected", events.poll());
+        assertFalse(transport.isConnected());
+        assertEquals("", transport.getConnectedMac());
+
+        // The close from this side doesn't come back as an error
+        assertNull(events.poll(300, TimeUnit.MILLISECONDS));
+        assertEquals(0, lanLink.getOpenConnections());
+
+        transport.sendCommand("LIGHT1_ON");
+        assertFalse(server.getBoard(0).isOn(1));
+    }
+
+    @Test
+    public void droppedBoardIsAConnectionError() throws Exception {
+        LanBoardServer.Board board = connect();
+        board.awaitClients(1);
+        board.dropConnections();
+        assertEquals("error", nextEvent());
+        assertFalse(transport.isConnected());
+    }
+
+    @Test
+    public void connectingElsewhereClosesTheFirstBoard() throws Exception {
+        connect();
+        LanBoardServer.Board other = server.getBoard(1);
+        transport.connectToDevice("Hall", other.getAddress());
+        assertEquals("connected Hall " + other.getAddress(), nextEvent());
+        assertEquals(1, lanLink.getOpenConnections());
+
+        // Closed from this side: the first board going away is no error
+        server.getBoard(0).dropConnections();
+        transport.sendCommand("LIGHT3_ON");
+        assertEquals("LIGHT3:ON", nextEvent());
+        assertTrue(other.isOn(3));
+        assertFalse(server.getBoard(0).isOn(3));
+    }
+}
@@ -0,0 +1,128 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LatencyTrackerTest {
+
+    // Typical HC-05 SPP figures: ~40 ms each way, ~5 ms for the sketch to switch a relay
+    private static final long LINK_DELAY_MS = 40;
+    private static final long PER_COMMAND_MS = 5;
+
+    // Launch of MainActivity until the grid is tappable and the link is up
+    private static final long APP_LAUNCH_MS = 1200;
+
+    @Test
+    public void completesOnlyStartedToggles() {
+        LatencyTracker tracker = new LatencyTracker();
+        assertEquals(-1, tracker.complete(1, 100));
+
+        tracker.start(1, LatencyTracker.PATH_TILE, 100);
+        assertEquals(LatencyTracker.PATH_TILE, tracker.getPendingPath(1));
+        assertEquals(85, tracker.complete(1, 185));
+        assertEquals(-1, tracker.complete(1, 200));
+        assertEquals(1, tracker.getCount(LatencyTracker.PATH_TILE));
+    }
+
+    @Test
+    public void clearPendingDropsUnconfirmedToggles() {
+        LatencyTracker tracker = new LatencyTracker();
+        tracker.start(2, LatencyTracker.PATH_WIDGET, 0);
+        tracker.clearPending();
+
+        assertEquals(-1, tracker.complete(2, 50));
+        assertEquals(-1, tracker.getPercentile(LatencyTracker.PATH_WIDGET, 50));
+    }
+
+    @Test
+    public void percentilesUseNearestRank() {
+        LatencyTracker tracker = new LatencyTracker();
+        long[] samples = {50, 10, 40, 20, 30};
+        for (long sample : samples) {
+            tracker.start(1, LatencyTracker.PATH_APP, 0);
+            tracker.complete(1, sample);
+        }
+
+        assertEquals(30, tracker.getPercentile(LatencyTracker.PATH_APP, 50));
+        assertEquals(50, tracker.getPercentile(LatencyTracker.PATH_APP, 95));
+        assertEquals(10, tracker.getPercentile(LatencyTracker.PATH_APP, 1));
+    }
+
+    @Test
+    public void tilePathBeatsAppPathOnSimulatedDevice() {
+        FirmwareSimulator board = new FirmwareSimulator(4, LINK_DELAY_MS, PER_COMMAND_MS);
+        LatencyTracker tracker = new LatencyTracker();
+        long now = 0;
+
+        for (int round = 0; round < 10; round++) {
+            int switchIndex = round % 4 + 1;
+
+            // Tile: tap goes straight to the service holding the link
+            tracker.start(switchIndex, LatencyTracker.PATH_TILE, now);
+            now = deliver(board, tracker, "LIGHT" + switchIndex + "_TOGGLE", now);
+
+            // App: launch, wait for the UI, then tap the switch
+            tracker.start(switchIndex, LatencyTracker.PATH_APP, now);
+            now += APP_LAUNCH_MS;
+            now = deliver(board, tracker, "LIGHT" + switchIndex + "_TOGGLE", now);
+        }
+
+        long tileP50 = tracker.getPercentile(LatencyTracker.PATH_TILE, 50);
+        long appP50 = tracker.getPercentile(LatencyTracker.PATH_APP, 50);
+        assertEquals(10, tracker.getCount(LatencyTracker.PATH_TILE));
+        assertEquals(2 * LINK_DELAY_MS + PER_COMMAND_MS, tileP50);
+        assertEquals(APP_LAUNCH_MS + tileP50, appP50);
+        assertEquals(20, board.getFrameCount());
+    }
+
+    // Send one frame and complete the tracker from the board's LIGHTn:ON/OFF reply
+    private long deliver(FirmwareSimulator board, LatencyTracker tracker, String frame, long sentAt) {
+        long repliedAt = sentAt + board.roundTripMs(frame);
+        List<Integer> confirmed = new ArrayList<>();
+        DeviceMessageParser parser = new DeviceMessageParser(new DeviceMessageParser.Listener() {
+            @Override
+            public void onSwitchState(int switchNumber, boolean isOn, String message) {
+                confirmed.add(switchNumber);
+            }
+
+            @Override
+            public void onLevelReport(int switchNumber, int level, String message) {
+            }
+
+            @Override
+            public void onStatusReport(Map<Integer, Boolean> states, String message) {
+            }
+
+            @Override
+            public void onToggleAck(int switchNumber, String message) {
+            }
+
+            @Override
+            public void onDeviceEvent(String message) {
+            }
+
+            @Override
+            public void onDeviceError(String message) {
+            }
+
+            @Override
+            public void onHelpReceived(String message) {
+            }
+
+            @Override
+            public void onUnhandled(String message) {
+            }
+        });
+
+        parser.parse(String.join("\n", board.receive(frame)));
+        for (int switchNumber : confirmed) {
+            tracker.complete(switchNumber, repliedAt);
+        }
+        return repliedAt;
+    }
+}
@@ -0,0 +1,199 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LevelStreamerTest {
+
+    // Classic HC-05 at 9600 baud: ~40 ms each way plus PWM update time
+    private static final long LINK_DELAY_MS = 40;
+    private static final long PER_COMMAND_MS = 5;
+
+    private VirtualClock clock;
+    private SlowLink link;
+    private FirmwareSimulator board;
+    private LevelStreamer streamer;
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock();
+        board = new FirmwareSimulator(4, LINK_DELAY_MS, PER_COMMAND_MS);
+        link = new SlowLink();
+        streamer = new LevelStreamer(link, clock, clock);
+    }
+
+    @Test
+    public void fastDragIsConflatedAndEndsOnTheFinalLevel() {
+        DeviceModel dimmer = dimmer(1);
+
+        // 0 -> 255 in one second, a slider event every 4 ms
+        for (int level = 0; level <= 255; level++) {
+            streamer.submit(1, dimmer.getLevelCommand(level));
+            clock.advance(4);
+        }
+        clock.advance(1000);
+
+        assertEquals(255, board.getLevel(1));
+        assertEquals("LIGHT1_LEVEL_255", last(link.sent));
+        assertTrue(streamer.isIdle());
+
+        // One frame on the link and one level waiting, however fast the drag
+        assertEquals(1, link.maxInFlight);
+        assertEquals(1, streamer.getMaxQueueDepth());
+
+        // Paced by the round trip, not by the 256 slider events
+        long roundTrip = 2 * LINK_DELAY_MS + PER_COMMAND_MS;
+        assertTrue("frames: " + link.frames, link.frames <= 1024 / roundTrip + 2);
+        assertEquals(256, link.frames + streamer.getLevelsConflated());
+        assertEquals(0, streamer.getTimeouts());
+    }
+
+    @Test
+    public void measuresTheLinkRoundTrip() {
+        DeviceModel dimmer = dimmer(1);
+        for (int i = 0; i < 200; i++) {
+            streamer.submit(1, dimmer.getLevelCommand(i));
+            clock.advance(10);
+        }
+        clock.advance(1000);
+
+        long roundTrip = 2 * LINK_DELAY_MS + PER_COMMAND_MS;
+        assertEquals(roundTrip, streamer.getRttMs(), 2);
+        assertEquals(roundTrip * 3, streamer.getTimeoutMs(), 6);
+    }
+
+    @Test
+    public void changedChannelsShareOneFrame() {
+        streamer.submit(1, dimmer(1).getLevelCommand(10));
+        streamer.submit(2, dimmer(2).getLevelCommand(20));
+        streamer.submit(3, dimmer(3).getLevelCommand(30));
+        streamer.submit(2, dimmer(2).getLevelCommand(25));
+        clock.advance(500);
+
+        assertEquals(2, link.frames);
+        assertEquals(Arrays.asList("LIGHT1_LEVEL_10"), link.writes.get(0));
+        assertEquals(Arrays.asList("LIGHT2_LEVEL_25", "LIGHT3_LEVEL_30"), link.writes.get(1));
+        assertEquals(25, board.getLevel(2));
+        assertEquals(2, streamer.getMaxQueueDepth());
+    }
+
+    @Test
+    public void firmwareWithoutEchoStillGetsTheFinalLevel() {
+        link.echoes = false;
+        DeviceModel dimmer = dimmer(1);
+        for (int level = 0; level <= 255; level += 5) {
+            streamer.submit(1, dimmer.getLevelCommand(level));
+            clock.advance(4);
+        }
+        clock.advance(2000);
+
+        assertEquals(255, board.getLevel(1));
+        assertEquals(1, link.maxInFlight);
+        assertTrue(streamer.getTimeouts() > 0);
+        // Nothing measured, so frames go out one timeout apart
+        assertTrue("frames: " + link.frames, link.frames <= 208 / streamer.getTimeoutMs() + 2);
+    }
+
+    @Test
+    public void minimumIntervalHoldsOnAnInstantLink() {
+        board = new FirmwareSimulator(4);
+        DeviceModel dimmer = dimmer(1);
+        for (int level = 0; level < 100; level++) {
+            streamer.submit(1, dimmer.getLevelCommand(level));
+            clock.advance(1);
+        }
+        clock.advance(100);
+
+        assertEquals(99, board.getLevel(1));
+        assertTrue("frames: " + link.frames, link.frames <= 200 / LevelStreamer.MIN_INTERVAL_MS + 1);
+    }
+
+    @Test
+    public void resetDropsUnsentLevels() {
+        DeviceModel dimmer = dimmer(1);
+        streamer.submit(1, dimmer.getLevelCommand(10));
+        streamer.submit(1, dimmer.getLevelCommand(200));
+        assertTrue(streamer.isStreaming(1));
+
+        link.connected = false;
+        streamer.reset();
+        clock.advance(500);
+
+        assertFalse(streamer.isStreaming(1));
+        assertEquals(1, link.frames);
+    }
+
+    @Test
+    public void levelCommandTemplateIsClamped() {
+        DeviceModel fan = new DeviceModel(2, "Fan", "LIGHT2_TOGGLE");
+        fan.setDimmable(true);
+        assertEquals("LIGHT2_LEVEL_0", fan.getLevelCommand(-4));
+
+        fan.setLevelCommand("FAN{level}");
+        assertEquals("FAN255", fan.getLevelCommand(300));
+    }
+
+    private DeviceModel dimmer(int index) {
+        DeviceModel device = new DeviceModel(index, "Dimmer " + index, "LIGHT" + index + "_TOGGLE");
+        device.setDimmable(true);
+        return device;
+    }
+
+    private static String last(List<String> list) {
+        return list.get(list.size() - 1);
+    }
+
+    // Transport that hands each write to the board and delivers its level
+    // echoes one round trip later
+    private class SlowLink implements CommandTransport {
+        boolean connected = true;
+        boolean echoes = true;
+        final List<List<String>> writes = new ArrayList<>();
+        final List<String> sent = new ArrayList<>();
+        int frames = 0;
+        int inFlight = 0;
+        int maxInFlight = 0;
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public void sendCommand(String command) {
+            sendCommands(Arrays.asList(command));
+        }
+
+        @Override
+        public void sendCommands(List<String> commands) {
+            if (!connected) {
+                return;
+            }
+            writes.add(new ArrayList<>(commands));
+            sent.addAll(commands);
+            frames++;
+            inFlight++;
+            maxInFlight = Math.max(maxInFlight, inFlight);
+
+            String frame = String.join("\n", commands);
+            List<String> replies = board.receive(frame);
+            clock.postDelayed(() -> {
+                inFlight--;
+                if (!echoes) {
+                    return;
+                }
+                for (String reply : replies) {
+                    if (reply.contains(":LEVEL=")) {
+                        streamer.onReply();
+                    }
+                }
+            }, board.roundTripMs(frame));
+        }
+    }
+}
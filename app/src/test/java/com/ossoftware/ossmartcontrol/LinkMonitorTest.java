@@ -0,0 +1,210 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LinkMonitorTest {
+
+    // Without a heartbeat the phone only learns of a dead RFCOMM link when the
+    // controller's link supervision timeout expires and BongoBT reports
+    // onError; 20 s is the Bluetooth Classic default most HC-05s keep.
+    private static final long SUPERVISION_TIMEOUT_MS = 20_000;
+
+    private VirtualClock clock;
+    private FirmwareSimulator board;
+    private FreezingLink link;
+    private LinkMonitor monitor;
+    private final List<String> changes = new ArrayList<>();
+
+    // Hands every write to the simulated board and delivers its replies after
+    // the round trip. Once frozen it still claims to be connected but nothing
+    // gets through in either direction, as when the board browns out.
+    private class FreezingLink implements CommandTransport {
+        boolean frozen = false;
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void sendCommand(String command) {
+            write(command);
+        }
+
+        @Override
+        public void sendCommands(List<String> commands) {
+            write(String.join("\n", commands));
+        }
+
+        private void write(String frame) {
+            if (frozen) {
+                return;
+            }
+            List<String> replies = board.receive(frame);
+            if (replies.isEmpty()) {
+                return;
+            }
+            String chunk = String.join("\n", replies) + "\n";
+            clock.postDelayed(() -> {
+                if (!frozen) {
+                    monitor.onReceived(chunk);
+                }
+            }, board.roundTripMs(frame));
+        }
+    }
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock();
+        board = new FirmwareSimulator(4, 15, 2);
+        board.setKnowsPing(true);
+        link = new FreezingLink();
+        monitor = new LinkMonitor(link, clock, clock, (health, reason) -> changes.add(health.name()));
+        monitor.start();
+    }
+
+    // The interval runs from the last thing heard, so each ping's round trip is added
+    @Test
+    public void idleLinkIsPingedOncePerQuietInterval() {
+        clock.advance(60_000);
+        assertEquals(LinkMonitor.Health.HEALTHY, monitor.getHealth());
+        assertEquals(60_000 / (LinkMonitor.DEFAULT_INTERVAL_MS + board.roundTripMs(LinkMonitor.PING)),
+                monitor.getPings());
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void trafficStandsInForThePing() {
+        for (int i = 0; i < 60; i++) {
+            monitor.sendCommand("LIGHT" + (i % 4 + 1) + "_TOGGLE");
+            clock.advance(1000);
+        }
+        assertEquals(0, monitor.getPings());
+        assertTrue(monitor.isHealthy());
+    }
+
+    @Test
+    public void stockFirmwareErrorStillCountsAsAReply() {
+        board.setKnowsPing(false);
+        clock.advance(30_000);
+        assertTrue(monitor.getPings() > 0);
+        assertTrue(monitor.isHealthy());
+    }
+
+    @Test
+    public void oneMissIsDegradedAndAnyReplyRecovers() {
+        clock.advance(3500);
+        link.frozen = true;
+        clock.advance(3000 + LinkMonitor.REPLY_TIMEOUT_MS);
+        assertEquals(LinkMonitor.Health.DEGRADED, monitor.getHealth());
+
+        link.frozen = false;
+        clock.advance(LinkMonitor.REPLY_TIMEOUT_MS);
+        assertEquals(LinkMonitor.Health.HEALTHY, monitor.getHealth());
+        assertEquals(2, changes.size());
+    }
+
+    @Test
+    public void missThresholdDeclaresTheLinkDead() {
+        monitor.configure(2000, 2);
+        monitor.start();
+        link.frozen = true;
+        monitor.sendCommand("LIGHT1_ON");
+        clock.advance(LinkMonitor.REPLY_TIMEOUT_MS);
+        assertEquals(LinkMonitor.Health.DEGRADED, monitor.getHealth());
+        clock.advance(LinkMonitor.REPLY_TIMEOUT_MS);
+        assertEquals(LinkMonitor.Health.DEAD, monitor.getHealth());
+        assertEquals(2 * LinkMonitor.REPLY_TIMEOUT_MS, monitor.getLastDetectionMs());
+
+        // Nothing more goes out on a dead link until the next connection
+        int pings = monitor.getPings();
+        clock.advance(60_000);
+        assertEquals(pings, monitor.getPings());
+        assertEquals(0, clock.pendingTasks());
+    }
+
+    @Test
+    public void configurationIsClamped() {
+        monitor.configure(0, 0);
+        assertEquals(LinkMonitor.MIN_INTERVAL_MS, monitor.getIntervalMs());
+        assertEquals(1, monitor.getMissesToDead());
+    }
+
+    // The link freezes at every 100 ms offset across the ping interval, idle
+    // and with a tap a second, for each preset the app offers
+    @Test
+    public void detectionTimeAndOverhead() {
+        long[][] presets = {{2000, 2}, {3000, 3}, {10_000, 3}};
+        for (long[] preset : presets) {
+            long interval = preset[0];
+            int misses = (int) preset[1];
+            Detection idle = detect(interval, misses, false);
+            Detection busy = detect(interval, misses, true);
+
+            // An hour with nothing to say: the ping and its answer are the overhead
+            setUp();
+            monitor.configure(interval, misses);
+            monitor.start();
+            clock.advance(3_600_000);
+            long overheadBytes = monitor.getBytesOut() + monitor.getBytesIn();
+
+            // Degraded is shown well before the link is given up on
+            assertTrue(idle.degradedAvg < idle.deadAvg);
+            assertTrue(busy.degradedAvg < busy.deadAvg);
+            assertTrue(idle.deadMax <= interval + misses * LinkMonitor.REPLY_TIMEOUT_MS);
+            assertTrue(busy.deadMax <= 1000 + misses * LinkMonitor.REPLY_TIMEOUT_MS);
+            assertTrue(idle.deadMax < SUPERVISION_TIMEOUT_MS);
+            assertEquals(3_600_000 / (interval + board.roundTripMs(LinkMonitor.PING)), monitor.getPings());
+            assertEquals(monitor.getPings() * 10L, overheadBytes);
+        }
+    }
+
+    private static class Detection {
+        double degradedAvg;
+        double deadAvg;
+        long deadMax;
+    }
+
+    private Detection detect(long interval, int misses, boolean busy) {
+        Detection detection = new Detection();
+        int runs = 0;
+        for (long offset = 0; offset < interval; offset += 100) {
+            setUp();
+            monitor.configure(interval, misses);
+            monitor.start();
+
+            long freezeAt = 30_000 + offset;
+            long degradedAt = -1;
+            long deadAt = -1;
+            for (long t = 0; deadAt < 0 && t < freezeAt + 60_000; t += 10) {
+                if (busy && t % 1000 == 0) {
+                    monitor.sendCommand("LIGHT" + (t / 1000 % 4 + 1) + "_TOGGLE");
+                }
+                if (t == freezeAt) {
+                    link.frozen = true;
+                }
+                clock.advance(10);
+                if (degradedAt < 0 && monitor.getHealth() != LinkMonitor.Health.HEALTHY) {
+                    degradedAt = clock.currentTimeMillis();
+                }
+                if (monitor.getHealth() == LinkMonitor.Health.DEAD) {
+                    deadAt = clock.currentTimeMillis();
+                }
+            }
+            assertTrue(deadAt > 0);
+            runs++;
+            detection.degradedAvg += degradedAt - freezeAt;
+            detection.deadAvg += deadAt - freezeAt;
+            detection.deadMax = Math.max(detection.deadMax, deadAt - freezeAt);
+        }
+        detection.degradedAvg /= runs;
+        detection.deadAvg /= runs;
+        return detection;
+    }
+}
@@ -0,0 +1,172 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LinkQualityTest {
+
+    // One replayed trace: the levels passed through and the extremes reached
+    private static class Replay {
+        final List<LinkQuality.Level> levels = new ArrayList<>();
+        final List<String> events = new ArrayList<>();
+        LinkQuality quality;
+        int minScore = 100;
+        long maxRetryMs = 0;
+        int minBatch = Integer.MAX_VALUE;
+        double maxMsPerByte = 0;
+    }
+
+    private Replay replay(String name) throws IOException {
+        Replay replay = new Replay();
+        VirtualClock clock = new VirtualClock();
+        replay.levels.add(LinkQuality.Level.GOOD);
+        replay.quality = new LinkQuality(clock, (level, score) -> replay.levels.add(level));
+        LinkQuality quality = replay.quality;
+
+        InputStream stream = getClass().getClassLoader().getResourceAsStream("link/" + name);
+        assertNotNull(name, stream);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                replay.events.add(line);
+                String[] fields = line.split(" ");
+                clock.advance(Long.parseLong(fields[0]) - clock.currentTimeMillis());
+                switch (fields[1]) {
+                    case "reset":
+                        quality.reset(fields[2].equals("-") ? null : Integer.valueOf(fields[2]));
+                        break;
+                    case "rtt":
+                        quality.onRoundTrip(Long.parseLong(fields[2]));
+                        break;
+                    case "noreply":
+                        quality.onNoReply();
+                        break;
+                    case "lines":
+                        quality.onLines(Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+                        break;
+                    case "rssi":
+                        quality.onRssi(Integer.parseInt(fields[2]));
+                        break;
+                    default:
+                        fail("unknown event: " + line);
+                }
+                replay.minScore = Math.min(replay.minScore, quality.getScore());
+                replay.maxRetryMs = Math.max(replay.maxRetryMs, quality.getRetryTimeoutMs());
+                replay.minBatch = Math.min(replay.minBatch, quality.getMaxBatch());
+                replay.maxMsPerByte = Math.max(replay.maxMsPerByte, quality.getMsPerByte());
+            }
+        }
+        return replay;
+    }
+
+    @Test
+    public void closeRangeStaysGood() throws IOException {
+        Replay replay = replay("close_range.trace");
+        assertEquals(Arrays.asList(LinkQuality.Level.GOOD), replay.levels);
+        assertEquals(LinkQuality.MIN_RETRY_MS, replay.maxRetryMs);
+        assertEquals(OutboundScheduler.UNLIMITED_BATCH, replay.minBatch);
+        assertEquals(4, replay.quality.getBars());
+    }
+
+    @Test
+    public void walkingAwayBacksOffAndRecovers() throws IOException {
+        Replay replay = replay("walk_away.trace");
+        // One step at a time each way, no flapping on the way out or back
+        assertEquals(Arrays.asList(LinkQuality.Level.GOOD, LinkQuality.Level.FAIR, LinkQuality.Level.POOR,
+                LinkQuality.Level.FAIR, LinkQuality.Level.GOOD), replay.levels);
+        assertEquals(1, replay.minBatch);
+        assertTrue(replay.maxRetryMs > 1000);
+        assertEquals(OutboundScheduler.DEFAULT_MS_PER_BYTE * 3, replay.maxMsPerByte, 1e-9);
+        // Back to the start once the round trips are short again
+        assertEquals(LinkQuality.MIN_RETRY_MS, replay.quality.getRetryTimeoutMs());
+    }
+
+    @Test
+    public void interferenceShowsThroughErrorsNotRoundTrips() throws IOException {
+        Replay replay = replay("microwave.trace");
+        // Errors alone never cost more than a level, and it recovers each time
+        assertEquals(Arrays.asList(LinkQuality.Level.GOOD, LinkQuality.Level.FAIR, LinkQuality.Level.GOOD,
+                LinkQuality.Level.FAIR, LinkQuality.Level.GOOD), replay.levels);
+        assertEquals(4, replay.minBatch);
+        assertEquals(LinkQuality.MIN_RETRY_MS, replay.maxRetryMs);
+    }
+
+    @Test
+    public void oneSlowReplyDoesNotChangeTheLevel() throws IOException {
+        Replay replay = replay("one_slow_reply.trace");
+        assertEquals(Arrays.asList(LinkQuality.Level.GOOD), replay.levels);
+        assertEquals(0, replay.quality.getLevelChanges());
+    }
+
+    // The app's own trace is a recording that replays to the same result
+    @Test
+    public void recordedTraceReplaysExactly() throws IOException {
+        Replay first = replay("walk_away.trace");
+        assertEquals(String.join("\n", first.events), first.quality.getTrace());
+        Replay second = replay("walk_away.trace");
+        assertEquals(first.levels, second.levels);
+        assertEquals(first.quality.getSummary(), second.quality.getSummary());
+    }
+
+    @Test
+    public void weakScanSignalStartsLower() {
+        VirtualClock clock = new VirtualClock();
+        LinkQuality quality = new LinkQuality(clock, null);
+        quality.reset(null);
+        assertEquals(100, quality.getScore());
+        quality.reset(-88);
+        assertTrue(quality.getScore() < 100);
+        assertEquals(LinkQuality.Level.GOOD, quality.getLevel());
+    }
+
+    @Test
+    public void garbledLines() {
+        assertFalse(LinkQuality.isGarbled("Status: L1=ON  L2=OFF"));
+        assertTrue(LinkQuality.isGarbled("LIGÿT2:ON"));
+        assertTrue(LinkQuality.isGarbled("LIGHT\u00012:ON"));
+    }
+
+    @Test
+    public void smallerBatchesSplitFrames() {
+        VirtualClock clock = new VirtualClock();
+        FakeTransport link = new FakeTransport();
+        OutboundScheduler outbound = new OutboundScheduler(link, clock, clock);
+        outbound.setMaxBatch(4);
+        List<String> scene = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            scene.add("LIGHT" + i + "_ON");
+        }
+        outbound.sendCommands(scene);
+        clock.advance(1000);
+        assertEquals(3, link.writes.size());
+        assertEquals(scene, link.allCommands());
+        assertEquals(2, link.writes.get(2).size());
+    }
+
+    @Test
+    public void retryTimeoutFollowsTheRoundTrip() {
+        VirtualClock clock = new VirtualClock();
+        FakeTransport link = new FakeTransport();
+        ToggleDebouncer debouncer = new ToggleDebouncer(link, clock, null);
+        debouncer.setConfirmTimeout(1200);
+        DeviceModel device = new DeviceModel(1, "Lamp", "LIGHT1_TOGGLE");
+        debouncer.tap(device);
+        clock.advance(1100);
+        assertEquals(1, link.writes.size());
+        clock.advance(100);
+        assertEquals(2, link.writes.size());
+    }
+}
@@ -0,0 +1,92 @@
+package com.ossoftware.ossmartcontrol;
+
+import android.app.Application;
+import android.content.ComponentName;
+import android.os.Looper;
+import android.view.View;
+import android.widget.GridView;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+// Cold start through Robolectric: saved state is loaded in the background and
+// the first usable switch should appear without blocking onCreate on it
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 34)
+public class MainActivityStartupTest {
+
+    private static final int SWITCH_COUNT = 8;
+    private static final long STARTUP_TIMEOUT_MS = 5000;
+
+    private Application application;
+
+    @Before
+    public void setUp() {
+        application = RuntimeEnvironment.getApplication();
+        PreferencesManager preferencesManager = new PreferencesManager(application);
+
+        Map<String, DeviceModel> devices = new HashMap<>();
+        for (int i = 1; i <= SWITCH_COUNT; i++) {
+            DeviceModel device = new DeviceModel(i, "Switch " + i, "LIGHT" + i + "_TOGGLE");
+            devices.put(device.getId(), device);
+        }
+        preferencesManager.saveDevices(devices);
+
+        List<SceneModel> scenes = new ArrayList<>();
+        SceneModel scene = new SceneModel("SCENE_1", "Movie");
+        scene.addStep(new SceneModel.Step(1, false));
+        scenes.add(scene);
+        preferencesManager.saveScenes(scenes);
+
+        // Robolectric doesn't start services on bind; hand it a real one
+        ControllerService service = Robolectric.setupService(ControllerService.class);
+        shadowOf(application).setComponentNameAndServiceForBindService(
+                new ComponentName(application, ControllerService.class), service.onBind(null));
+    }
+
+    @Test
+    public void firstUsableSwitchAppearsAfterBackgroundLoad() throws InterruptedException {
+        long deadline = System.nanoTime() + STARTUP_TIMEOUT_MS * 1_000_000;
+        ActivityController<MainActivity> controller = Robolectric.buildActivity(MainActivity.class).setup();
+
+        MainActivity activity = controller.get();
+        GridView grid = activity.findViewById(R.id.switchesGrid);
+
+        // Results come back through the main looper from the startup threads;
+        // the wall clock only bounds the wait, it measures nothing
+        while (activity.getReadyMs() < 0 || !scenesShown(activity)) {
+            assertTrue("Startup did not finish", System.nanoTime() < deadline);
+            Thread.sleep(1);
+            shadowOf(Looper.getMainLooper()).idle();
+        }
+
+        // Ready means the bound service delivered the saved switches, not the
+        // first-run defaults, and they are on the grid
+        assertEquals(1, shadowOf(application).getBoundServiceConnections().size());
+        assertEquals(SWITCH_COUNT, grid.getAdapter().getCount());
+        assertEquals("Switch 8", ((DeviceModel) grid.getAdapter().getItem(SWITCH_COUNT - 1)).getName());
+        // Recorded on Robolectric's clock, which stands still until a delayed
+        // task runs: nothing on the way to the first switch waited on one
+        assertEquals(0, activity.getReadyMs());
+
+        controller.pause().stop().destroy();
+    }
+
+    private boolean scenesShown(MainActivity activity) {
+        return activity.findViewById(R.id.sceneBarScroll).getVisibility() == View.VISIBLE;
+    }
+}
@@ -0,0 +1,217 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class OfflineCommandBufferTest {
+
+    private FakeTransport transport;
+    private FirmwareSimulator board;
+    private OfflineCommandBuffer buffer;
+    private List<DeviceModel> switches;
+    private int delivered = 0;
+
+    @Before
+    public void setUp() {
+        transport = new FakeTransport();
+        board = new FirmwareSimulator(4);
+        buffer = new OfflineCommandBuffer();
+        switches = new ArrayList<>();
+        for (int i = 1; i <= 4; i++) {
+            switches.add(new DeviceModel(i, "Switch " + i, "LIGHT" + i + "_TOGGLE"));
+        }
+    }
+
+    @Test
+    public void linkDropsMidSequenceAndTheBoardEndsWhereTheUiIs() {
+        tap(1);
+        tap(2);
+        disconnect();
+
+        // Ten toggles of one switch, a few of the others
+        for (int i = 0; i < 10; i++) {
+            tap(3);
+        }
+        tap(1);
+        tap(2);
+        tap(2);
+        tap(4);
+        tap(4);
+        tap(4);
+        assertEquals(16, buffer.getIntentCount());
+        assertTrue(buffer.isPending(3));
+        assertTrue(switches.get(3).isPending());
+
+        int writesBefore = transport.writes.size();
+        reconnectWithStatus();
+
+        // One write, one command per switch that actually has to change:
+        // 1 is already on and 3 already off on the board
+        assertEquals(writesBefore + 1, transport.writes.size());
+        assertEquals(Arrays.asList("LIGHT2_OFF", "LIGHT4_ON"), last(transport.writes));
+        assertTrue(buffer.isEmpty());
+        assertFalse(switches.get(3).isPending());
+        assertBoardMatchesUi();
+    }
+
+    @Test
+    public void tenTogglesOfOneSwitchCostOneCommand() {
+        disconnect();
+        for (int i = 0; i < 9; i++) {
+            tap(2);
+        }
+
+        List<String> sent = buffer.flush(reconnect(), switches, false);
+
+        assertEquals(Arrays.asList("LIGHT2_ON"), sent);
+        assertEquals(1, transport.writes.size());
+        deliverWrites();
+        assertTrue(board.isOn(2));
+    }
+
+    @Test
+    public void withoutStatusEveryPendingSwitchGetsAnAbsoluteCommand() {
+        tap(1);
+        disconnect();
+        // The board still has 1 on, but the UI was reset to off on disconnect
+        tap(1);
+        tap(1);
+
+        List<String> sent = buffer.flush(reconnect(), switches, false);
+
+        assertEquals(Arrays.asList("LIGHT1_OFF"), sent);
+        deliverWrites();
+        assertBoardMatchesUi();
+    }
+
+    @Test
+    public void linkDropsAgainBeforeTheFlush() {
+        disconnect();
+        tap(1);
+
+        assertNull(buffer.flush(transport, switches, false));
+        assertFalse(buffer.isEmpty());
+        assertTrue(transport.writes.isEmpty());
+
+        assertEquals(Arrays.asList("LIGHT1_ON"), buffer.flush(reconnect(), switches, false));
+    }
+
+    @Test
+    public void toggleOnlyFirmwareFlushesOnlyRealChanges() {
+        switches.get(0).setToggleCommand("RELAY_A");
+        switches.get(1).setToggleCommand("RELAY_B");
+        disconnect();
+        buffer.recordToggle(1, false);
+        buffer.recordToggle(2, false);
+        buffer.recordToggle(2, true);
+
+        List<String> sent = buffer.flush(reconnect(), switches, true);
+
+        assertEquals(Arrays.asList("RELAY_A"), sent);
+    }
+
+    @Test
+    public void rawCommandsKeepTheirLatestPositionAndQueriesAreDropped() {
+        assertFalse(buffer.recordCommand("STATUS"));
+        buffer.recordCommand("SET_TEMP_22");
+        buffer.recordCommand("BUZZER");
+        buffer.recordCommand("SET_TEMP_22");
+        buffer.recordState(1, true);
+
+        List<String> collapsed = buffer.collapse(switches, true);
+
+        assertEquals(Arrays.asList("LIGHT1_ON", "BUZZER", "SET_TEMP_22"), collapsed);
+    }
+
+    @Test
+    public void rawCommandsAreCapped() {
+        for (int i = 0; i < OfflineCommandBuffer.MAX_COMMANDS + 4; i++) {
+            buffer.recordCommand("CMD_" + i);
+        }
+
+        List<String> collapsed = buffer.collapse(switches, true);
+
+        assertEquals(OfflineCommandBuffer.MAX_COMMANDS, collapsed.size());
+        assertEquals("CMD_" + (OfflineCommandBuffer.MAX_COMMANDS + 3), last(collapsed));
+    }
+
+    @Test
+    public void levelsCollapseToTheLastOne() {
+        DeviceModel dimmer = switches.get(2);
+        dimmer.setDimmable(true);
+        for (int level = 0; level <= 200; level += 10) {
+            buffer.recordLevel(3, level);
+        }
+        buffer.applyTo(switches);
+
+        assertEquals(200, dimmer.getLevel());
+        assertTrue(dimmer.isOn());
+        assertEquals(Arrays.asList("LIGHT3_LEVEL_200"), buffer.collapse(switches, true));
+
+        // A later on/off replaces the level
+        buffer.recordState(3, false);
+        assertEquals(Arrays.asList("LIGHT3_OFF"), buffer.collapse(switches, false));
+    }
+
+    // What the service does for a tap: send the toggle while connected,
+    // otherwise record the wanted state and show it as pending
+    private void tap(int switchIndex) {
+        DeviceModel device = switches.get(switchIndex - 1);
+        if (transport.isConnected()) {
+            device.setOn(!device.isOn());
+            transport.sendCommand(device.getToggleCommand());
+        } else {
+            buffer.recordToggle(switchIndex, device.isOn());
+            buffer.applyTo(switches);
+        }
+    }
+
+    private void disconnect() {
+        deliverWrites();
+        transport.connected = false;
+        // Like ControllerService.onDisconnected
+        for (DeviceModel device : switches) {
+            device.setOn(false);
+        }
+    }
+
+    private FakeTransport reconnect() {
+        transport.connected = true;
+        return transport;
+    }
+
+    // Reconnect, read the real states back and send only what differs
+    private void reconnectWithStatus() {
+        reconnect();
+        Map<Integer, Boolean> states = DeviceMessageParser.parseStatus(board.receive("STATUS").get(0));
+        for (DeviceModel device : switches) {
+            device.setOn(states.get(device.getIndex()));
+        }
+
+        buffer.flush(transport, switches, true);
+        deliverWrites();
+    }
+
+    private void deliverWrites() {
+        for (; delivered < transport.writes.size(); delivered++) {
+            board.receive(String.join("\n", transport.writes.get(delivered)));
+        }
+    }
+
+    private void assertBoardMatchesUi() {
+        for (DeviceModel device : switches) {
+            assertEquals("switch " + device.getIndex(), device.isOn(), board.isOn(device.getIndex()));
+        }
+    }
+
+    private static <T> T last(List<T> list) {
+        return list.get(list.size() - 1);
+    }
+}
@@ -0,0 +1,194 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OutboundSchedulerTest {
+
+    private static final List<String> ALL_OFF =
+            Arrays.asList("LIGHT1_OFF", "LIGHT2_OFF", "LIGHT3_OFF", "LIGHT4_OFF");
+
+    private VirtualClock clock;
+    private RecordingLink link;
+    private OutboundScheduler outbound;
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock();
+        link = new RecordingLink();
+        outbound = new OutboundScheduler(link, clock, clock);
+    }
+
+    @Test
+    public void idleLinkWritesAtOnce() {
+        outbound.sendCommand("LIGHT1_ON");
+
+        assertEquals(1, link.writes.size());
+        assertEquals(0, link.times.get(0).longValue());
+    }
+
+    @Test
+    public void safetyPreemptsTwoHundredQueuedBackgroundCommands() {
+        for (int i = 0; i < 200; i++) {
+            outbound.send(OutboundScheduler.Priority.BACKGROUND, "STATUS");
+        }
+        clock.advance(50);
+        long injectedAt = clock.currentTimeMillis();
+        int backgroundAhead = outbound.getQueuedFrames();
+        outbound.send(OutboundScheduler.Priority.SAFETY, ALL_OFF);
+        clock.advance(10_000);
+
+        long latency = link.timeOf(ALL_OFF) - injectedAt;
+        long statusFrameMs = (long) Math.ceil("STATUS\n".length() * OutboundScheduler.DEFAULT_MS_PER_BYTE);
+        long fifoLatency = backgroundAhead * statusFrameMs;
+        // At most the frame already on the wire, not the whole backlog
+        assertTrue("latency " + latency, latency <= statusFrameMs);
+        assertTrue(latency * 100 < fifoLatency);
+        assertEquals(201, link.writes.size());
+    }
+
+    @Test
+    public void newerStateDropsQueuedCommandsForTheSameSwitch() {
+        outbound.send(OutboundScheduler.Priority.BACKGROUND, "STATUS");
+        outbound.sendCommands(Arrays.asList("LIGHT1_ON", "LIGHT2_ON"));
+        outbound.sendCommand("LIGHT3_LEVEL_120");
+        outbound.send(OutboundScheduler.Priority.SAFETY, Arrays.asList("LIGHT1_OFF", "LIGHT3_OFF"));
+        clock.advance(1000);
+
+        assertEquals(Arrays.asList(
+                Arrays.asList("STATUS"),
+                Arrays.asList("LIGHT1_OFF", "LIGHT3_OFF"),
+                Arrays.asList("LIGHT2_ON")), link.writes);
+        assertEquals(2, outbound.getSuperseded());
+    }
+
+    @Test
+    public void lowerPriorityDoesNotDropHigher() {
+        outbound.send(OutboundScheduler.Priority.BACKGROUND, "STATUS");
+        outbound.send(OutboundScheduler.Priority.SAFETY, "LIGHT1_OFF");
+        outbound.send(OutboundScheduler.Priority.BACKGROUND, "LIGHT1_ON");
+        clock.advance(1000);
+
+        assertEquals(Arrays.asList("STATUS", "LIGHT1_OFF", "LIGHT1_ON"), link.allCommands());
+    }
+
+    @Test
+    public void togglesAreNeverDropped() {
+        outbound.send(OutboundScheduler.Priority.BACKGROUND, "STATUS");
+        outbound.sendCommand("LIGHT1_TOGGLE");
+        outbound.sendCommand("LIGHT1_TOGGLE");
+        clock.advance(1000);
+
+        assertEquals(Arrays.asList("STATUS", "LIGHT1_TOGGLE", "LIGHT1_TOGGLE"), link.allCommands());
+
+        // An absolute state still replaces a queued toggle
+        outbound.send(OutboundScheduler.Priority.BACKGROUND, "STATUS");
+        outbound.sendCommand("LIGHT2_TOGGLE");
+        outbound.sendCommand("LIGHT2_OFF");
+        clock.advance(1000);
+        assertEquals("LIGHT2_OFF", link.allCommands().get(link.allCommands().size() - 1));
+        assertFalse(link.allCommands().contains("LIGHT2_TOGGLE"));
+    }
+
+    @Test
+    public void backgroundIsNotStarvedBySaturatingInteractiveTraffic() {
+        for (int i = 0; i < 20; i++) {
+            outbound.send(OutboundScheduler.Priority.BACKGROUND, "STATUS");
+        }
+        // Far more interactive traffic than a 9600 baud link can carry
+        for (int t = 0; t < 5000; t += 5) {
+            outbound.sendCommand("SET_TEMP_" + (t % 30));
+            clock.advance(5);
+        }
+
+        int statusWrites = 0;
+        for (String command : link.allCommands()) {
+            if (command.equals("STATUS")) {
+                statusWrites++;
+            }
+        }
+        assertEquals(20, statusWrites);
+        // The first went out on the idle link, the rest through shared slots
+        assertEquals(19, outbound.getSharedSlots());
+        // Every fifth slot at most: bounded by the interactive frames ahead
+        long slotMs = (long) Math.ceil("SET_TEMP_29\n".length() * OutboundScheduler.DEFAULT_MS_PER_BYTE);
+        long maxWait = outbound.getMaxWaitMs(OutboundScheduler.Priority.BACKGROUND);
+        assertTrue("wait " + maxWait, maxWait <= 20 * (OutboundScheduler.SHARE_EVERY + 1) * slotMs);
+    }
+
+    @Test
+    public void writesArePacedByTheLinkSpeed() {
+        for (int i = 0; i < 10; i++) {
+            outbound.sendCommand("SET_TEMP_" + i);
+        }
+        clock.advance(1000);
+
+        long frameMs = (long) Math.ceil("SET_TEMP_0\n".length() * OutboundScheduler.DEFAULT_MS_PER_BYTE);
+        for (int i = 1; i < link.times.size(); i++) {
+            assertEquals(frameMs, link.times.get(i) - link.times.get(i - 1));
+        }
+    }
+
+    @Test
+    public void unpacedLinkWritesEveryFrameAtOnce() {
+        // A LAN board over TCP: the socket buffers, nothing to wait for
+        outbound.setMsPerByte(OutboundScheduler.UNPACED);
+        for (int i = 0; i < 200; i++) {
+            outbound.sendCommand("SET_TEMP_" + (i % 30));
+        }
+        outbound.send(OutboundScheduler.Priority.BACKGROUND, "STATUS");
+
+        assertEquals(201, link.writes.size());
+        assertEquals(0, outbound.getQueuedFrames());
+        for (long time : link.times) {
+            assertEquals(0, time);
+        }
+    }
+
+    @Test
+    public void switchOfRecognisesTargets() {
+        assertEquals(3, OutboundScheduler.switchOf("LIGHT3_ON"));
+        assertEquals(12, OutboundScheduler.switchOf("LIGHT12_LEVEL_40"));
+        assertEquals(0, OutboundScheduler.switchOf("ALL_OFF"));
+        assertEquals(-1, OutboundScheduler.switchOf("STATUS"));
+    }
+
+    private class RecordingLink implements CommandTransport {
+        final List<List<String>> writes = new ArrayList<>();
+        final List<Long> times = new ArrayList<>();
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void sendCommand(String command) {
+            sendCommands(Arrays.asList(command));
+        }
+
+        @Override
+        public void sendCommands(List<String> commands) {
+            writes.add(new ArrayList<>(commands));
+            times.add(clock.currentTimeMillis());
+        }
+
+        long timeOf(List<String> frame) {
+            return times.get(writes.indexOf(frame));
+        }
+
+        List<String> allCommands() {
+            List<String> all = new ArrayList<>();
+            for (List<String> write : writes) {
+                all.addAll(write);
+            }
+            return all;
+        }
+    }
+}
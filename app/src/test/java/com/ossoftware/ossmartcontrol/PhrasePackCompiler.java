@@ -0,0 +1,166 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+
+// Builds the binary phrase packs in assets/voice from app/voice-packs/*.txt.
+// Source lines are "phrase = replacement"; an empty replacement drops the
+// phrase (filler words). A build tool, so it lives with the tests and stays
+// out of the APK; PhrasePackTest fails while a shipped pack is stale. Run on
+// the unit test classpath after editing a source:
+//   java PhrasePackCompiler app/voice-packs app/src/main/assets/voice
+public final class PhrasePackCompiler {
+
+    private PhrasePackCompiler() {
+    }
+
+    private static class Node {
+        String output;
+        final TreeMap<String, Node> children = new TreeMap<>();
+        int id;
+    }
+
+    public static byte[] compile(String locale, Reader source) throws IOException {
+        Node root = new Node();
+        BufferedReader reader = new BufferedReader(source);
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = Normalizer.normalize(line.trim(), Normalizer.Form.NFC);
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int separator = line.indexOf('=');
+            if (separator < 0) {
+                throw new IOException(locale + ":" + lineNumber + ": expected \"phrase = replacement\"");
+            }
+            List<String> words = SwitchGrammar.tokens(SwitchGrammar.normalize(line.substring(0, separator)));
+            if (words.isEmpty()) {
+                throw new IOException(locale + ":" + lineNumber + ": empty phrase");
+            }
+            Node node = root;
+            for (String word : words) {
+                Node child = node.children.get(word);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(word, child);
+                }
+                node = child;
+            }
+            node.output = SwitchGrammar.normalize(line.substring(separator + 1));
+        }
+        return serialize(locale, root);
+    }
+
+    private static byte[] serialize(String locale, Node root) {
+        // Number nodes breadth first so each node's edges are contiguous
+        List<Node> nodes = new ArrayList<>();
+        Queue<Node> queue = new ArrayDeque<>();
+        queue.add(root);
+        int edgeCount = 0;
+        while (!queue.isEmpty()) {
+            Node node = queue.remove();
+            node.id = nodes.size();
+            nodes.add(node);
+            edgeCount += node.children.size();
+            queue.addAll(node.children.values());
+        }
+
+        List<String> strings = new ArrayList<>();
+        Map<String, Integer> stringIds = new HashMap<>();
+        int localeId = intern(locale, strings, stringIds);
+
+        ByteBuffer nodeData = ByteBuffer.allocate(nodes.size() * PhrasePack.NODE_SIZE);
+        ByteBuffer edgeData = ByteBuffer.allocate(edgeCount * PhrasePack.EDGE_SIZE);
+        int firstEdge = 0;
+        for (Node node : nodes) {
+            nodeData.putInt(node.output != null ? intern(node.output, strings, stringIds) : PhrasePack.NO_OUTPUT);
+            nodeData.putInt(firstEdge);
+            nodeData.putInt(node.children.size());
+
+            List<Map.Entry<String, Node>> edges = new ArrayList<>(node.children.entrySet());
+            edges.sort((a, b) -> Integer.compare(a.getKey().hashCode(), b.getKey().hashCode()));
+            for (Map.Entry<String, Node> edge : edges) {
+                edgeData.putInt(edge.getKey().hashCode());
+                edgeData.putInt(intern(edge.getKey(), strings, stringIds));
+                edgeData.putInt(edge.getValue().id);
+            }
+            firstEdge += edges.size();
+        }
+
+        List<byte[]> encoded = new ArrayList<>();
+        int dataSize = 0;
+        for (String string : strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            encoded.add(bytes);
+            dataSize += bytes.length;
+        }
+
+        ByteBuffer pack = ByteBuffer.allocate(PhrasePack.HEADER_SIZE + nodeData.capacity() + edgeData.capacity()
+                + (strings.size() + 1) * 4 + dataSize);
+        pack.putInt(PhrasePack.MAGIC);
+        pack.putInt(localeId);
+        pack.putInt(nodes.size());
+        pack.putInt(edgeCount);
+        pack.putInt(strings.size());
+        pack.put(nodeData.array());
+        pack.put(edgeData.array());
+        int offset = 0;
+        for (byte[] bytes : encoded) {
+            pack.putInt(offset);
+            offset += bytes.length;
+        }
+        pack.putInt(offset);
+        for (byte[] bytes : encoded) {
+            pack.put(bytes);
+        }
+        return pack.array();
+    }
+
+    private static int intern(String string, List<String> strings, Map<String, Integer> ids) {
+        Integer id = ids.get(string);
+        if (id == null) {
+            id = strings.size();
+            strings.add(string);
+            ids.put(string, id);
+        }
+        return id;
+    }
+
+    public static void main(String[] args) throws IOException {
+        File sourceDir = new File(args[0]);
+        File outputDir = new File(args[1]);
+        File[] sources = sourceDir.listFiles((dir, name) -> name.endsWith(".txt"));
+        if (sources == null) {
+            throw new IOException("No sources in " + sourceDir);
+        }
+        outputDir.mkdirs();
+        for (File source : sources) {
+            String locale = source.getName().replace(".txt", "");
+            byte[] pack;
+            try (Reader reader = new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8)) {
+                pack = compile(locale, reader);
+            }
+            try (OutputStream out = new FileOutputStream(new File(outputDir, locale + ".pack"))) {
+                out.write(pack);
+            }
+        }
+    }
+}
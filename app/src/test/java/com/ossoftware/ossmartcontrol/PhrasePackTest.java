@@ -0,0 +1,168 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PhrasePackTest {
+
+    // Unit tests run from the module directory
+    private static final File SOURCES = new File("voice-packs");
+    private static final File ASSETS = new File("src/main/assets/voice");
+
+    private static final String[] NAMES = {
+            "Kitchen Fan", "Porch Light", "Bedroom Lamp", "Water Pump", "Garage Door", "Ceiling Fan"
+    };
+
+    private static PhrasePack map(String language) throws Exception {
+        try (FileChannel channel = FileChannel.open(new File(ASSETS, language + ".pack").toPath(),
+                StandardOpenOption.READ)) {
+            return PhrasePack.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    private static VoiceCommandParser parserFor(String language) throws Exception {
+        List<DeviceModel> switches = new ArrayList<>();
+        for (int i = 1; i <= 8; i++) {
+            String name = i <= NAMES.length ? NAMES[i - 1] : "Switch " + i;
+            switches.add(new DeviceModel(i, name, "LIGHT" + i + "_TOGGLE"));
+        }
+        VoiceCommandParser parser = new VoiceCommandParser();
+        parser.setSwitches(switches);
+        parser.setPhrasePack(map(language));
+        return parser;
+    }
+
+    // Same order as VoiceManager: compound first, then the single command
+    private static String resolve(VoiceCommandParser parser, String spokenText) {
+        List<VoiceIntent> intents = parser.parseCompound(spokenText);
+        if (intents == null) {
+            return parser.parseCommand(spokenText);
+        }
+        StringBuilder text = new StringBuilder();
+        for (VoiceIntent intent : intents) {
+            text.append(text.length() > 0 ? " " : "").append(intent);
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void shippedPacksMatchSources() throws Exception {
+        File[] sources = SOURCES.listFiles((dir, name) -> name.endsWith(".txt"));
+        assertNotNull(sources);
+        assertTrue(sources.length >= 2);
+        for (File source : sources) {
+            String language = source.getName().replace(".txt", "");
+            byte[] compiled;
+            try (InputStreamReader reader = new InputStreamReader(Files.newInputStream(source.toPath()),
+                    StandardCharsets.UTF_8)) {
+                compiled = PhrasePackCompiler.compile(language, reader);
+            }
+            byte[] shipped = Files.readAllBytes(new File(ASSETS, language + ".pack").toPath());
+            assertTrue(language + ".pack is stale, rerun PhrasePackCompiler", Arrays.equals(compiled, shipped));
+        }
+    }
+
+    @Test
+    public void translatesLongestPhraseAndPassesUnknownWordsThrough() throws Exception {
+        PhrasePack bengali = map("bn");
+        assertEquals("bn", bengali.getLocale());
+        assertEquals("water pump off", bengali.translate("পানির পাম্প বন্ধ"));
+        assertEquals("light 12 on", bengali.translate("লাইট ১২ চালু করো"));
+        assertEquals("kitchen fan off", bengali.translate("kitchen fan বন্ধ করো।"));
+
+        // Nothing to rewrite: the text comes back untouched
+        String english = "turn on movie-night";
+        assertSame(english, bengali.translate(english));
+    }
+
+    @Test
+    public void bengaliCorpus() throws Exception {
+        VoiceCommandParser parser = parserFor("bn");
+        InputStream stream = getClass().getClassLoader().getResourceAsStream("voice_bn_corpus.txt");
+        assertNotNull("voice_bn_corpus.txt missing", stream);
+
+        List<String> misses = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\|");
+                String actual = resolve(parser, parts[0].trim());
+                if (!parts[1].trim().equals(actual)) {
+                    misses.add(parts[0].trim() + " -> " + actual + " (expected " + parts[1].trim() + ")");
+                }
+            }
+        }
+        assertTrue("Misses: " + misses, misses.isEmpty());
+    }
+
+    @Test
+    public void englishPackAddsColloquialForms() throws Exception {
+        VoiceCommandParser parser = parserFor("en");
+        assertEquals("LIGHT2_OFF", parser.parseCommand("kill the porch light"));
+        assertEquals("LIGHT1_ON", parser.parseCommand("power up the kitchen fan"));
+        assertEquals("ALL_LIGHTS_OFF", parser.parseCommand("lights out"));
+        assertEquals("LIGHT3_ON", parser.parseCommand("turn on light number three"));
+    }
+
+    @Test
+    public void measureLoadTimeAndMemory() throws Exception {
+        for (String language : new String[]{"en", "bn"}) {
+            // Warm the mapping path so class loading doesn't count as pack heap
+            for (int i = 0; i < 50; i++) {
+                map(language);
+            }
+            // Enough loads that GC bookkeeping averages out per pack
+            int loads = 5000;
+            Runtime runtime = Runtime.getRuntime();
+            List<PhrasePack> packs = new ArrayList<>(loads);
+            System.gc();
+            long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+            long start = System.nanoTime();
+            for (int i = 0; i < loads; i++) {
+                packs.add(map(language));
+            }
+            long loadMicros = (System.nanoTime() - start) / 1000 / loads;
+            System.gc();
+            long heapPerPack = (runtime.totalMemory() - runtime.freeMemory() - heapBefore) / loads;
+
+            int compiles = 200;
+            start = System.nanoTime();
+            for (int i = 0; i < compiles; i++) {
+                try (InputStreamReader reader = new InputStreamReader(
+                        Files.newInputStream(new File(SOURCES, language + ".txt").toPath()), StandardCharsets.UTF_8)) {
+                    PhrasePackCompiler.compile(language, reader);
+                }
+            }
+            long compileMicros = (System.nanoTime() - start) / 1000 / compiles;
+
+            PhrasePack pack = packs.get(0);
+            String measured = language + ": " + pack.getSizeBytes() + " bytes mapped, " + pack.getNodeCount()
+                    + " nodes, load " + loadMicros + " us, compile " + compileMicros + " us, ~" + heapPerPack
+                    + " bytes heap";
+            assertTrue(measured, pack.getNodeCount() > 0);
+            assertTrue(measured, pack.getSizeBytes() < 16 * 1024);
+            // Read in place: a loaded pack holds less heap than its own bytes
+            assertTrue(measured, heapPerPack < pack.getSizeBytes());
+            assertTrue(measured, loadMicros < compileMicros);
+            packs.clear();
+        }
+    }
+}
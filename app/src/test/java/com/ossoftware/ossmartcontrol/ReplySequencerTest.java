@@ -0,0 +1,273 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReplySequencerTest {
+
+    private static final int SWITCHES = 4;
+
+    private VirtualClock clock;
+    private FakeTransport link;
+    private ReplySequencer sequencer;
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock();
+        link = new FakeTransport();
+        sequencer = new ReplySequencer(link, clock);
+    }
+
+    @Test
+    public void commandsAreTaggedOnlyOnceNegotiated() {
+        sequencer.sendCommand("LIGHT1_ON");
+        sequencer.setSequenced(true);
+        sequencer.sendCommands(Arrays.asList("LIGHT1_OFF", "LIGHT2_TOGGLE", "STATUS", "LIGHT3_LEVEL_40"));
+
+        assertEquals(Arrays.asList("LIGHT1_ON", "LIGHT1_OFF#1", "LIGHT2_TOGGLE#2", "STATUS", "LIGHT3_LEVEL_40"),
+                link.allCommands());
+    }
+
+    @Test
+    public void sequencedDropsRepliesToOlderCommands() {
+        sequencer.setSequenced(true);
+        sequencer.sendCommand("LIGHT2_ON");
+        sequencer.sendCommand("LIGHT2_OFF");
+
+        assertFalse(sequencer.accept(2, true, "LIGHT2:ON#1"));
+        assertTrue(sequencer.accept(2, false, "LIGHT2:OFF#2"));
+        assertTrue(sequencer.isSettled(2));
+        // Even after the newest reply is in
+        assertFalse(sequencer.accept(2, true, "LIGHT2:ON#1"));
+        assertEquals(2, sequencer.getDropped());
+    }
+
+    @Test
+    public void sequenceNumbersWrap() {
+        assertTrue(ReplySequencer.isBefore(250, 3));
+        assertFalse(ReplySequencer.isBefore(3, 250));
+        assertFalse(ReplySequencer.isBefore(7, 7));
+
+        sequencer.setSequenced(true);
+        for (int i = 0; i < 300; i++) {
+            sequencer.sendCommand("LIGHT1_ON");
+        }
+        String last = link.allCommands().get(299);
+        assertEquals(45, ReplySequencer.seqOf(last));
+        assertFalse(sequencer.accept(1, true, "LIGHT1:ON#44"));
+        assertTrue(sequencer.accept(1, true, "LIGHT1:ON#45"));
+    }
+
+    @Test
+    public void plainTextDropsALateReplyToAnEarlierCommand() {
+        sequencer.sendCommand("LIGHT2_ON");
+        sequencer.sendCommand("LIGHT2_OFF");
+
+        assertFalse(sequencer.accept(2, true, "LIGHT2:ON"));
+        assertTrue(sequencer.accept(2, false, "LIGHT2:OFF"));
+    }
+
+    @Test
+    public void plainTextHandlesRepliesInReverse() {
+        sequencer.sendCommand("LIGHT2_ON");
+        sequencer.sendCommand("LIGHT2_OFF");
+
+        assertTrue(sequencer.accept(2, false, "LIGHT2:OFF"));
+        assertFalse(sequencer.accept(2, true, "LIGHT2:ON"));
+        assertTrue(sequencer.isSettled(2));
+    }
+
+    @Test
+    public void plainTextTogglesFromAnUnknownStateCountReplies() {
+        sequencer.sendCommand("LIGHT1_TOGGLE");
+        sequencer.sendCommand("LIGHT1_TOGGLE");
+
+        assertFalse(sequencer.accept(1, true, "LIGHT1:ON"));
+        assertTrue(sequencer.accept(1, false, "LIGHT1:OFF"));
+
+        // The state is known from here on, so toggles have an expected outcome
+        sequencer.sendCommand("LIGHT1_TOGGLE");
+        sequencer.sendCommand("LIGHT1_TOGGLE");
+        sequencer.sendCommand("LIGHT1_TOGGLE");
+        assertTrue(sequencer.accept(1, true, "LIGHT1:ON"));
+        assertFalse(sequencer.accept(1, false, "LIGHT1:OFF"));
+    }
+
+    @Test
+    public void settledSwitchesTakeChangesMadeAtTheBoard() {
+        assertTrue(sequencer.accept(3, true, "LIGHT3:ON"));
+
+        sequencer.setSequenced(true);
+        sequencer.sendCommand("LIGHT3_OFF");
+        assertTrue(sequencer.accept(3, false, "LIGHT3:OFF#1"));
+        assertTrue(sequencer.accept(3, true, "LIGHT3:ON"));
+    }
+
+    @Test
+    public void lostRepliesStopHoldingTheSwitch() {
+        sequencer.sendCommand("LIGHT1_ON");
+        sequencer.sendCommand("LIGHT1_OFF");
+        assertFalse(sequencer.isSettled(1));
+
+        clock.advance(ReplySequencer.SETTLE_TIMEOUT_MS + 1);
+        assertTrue(sequencer.isSettled(1));
+        assertTrue(sequencer.accept(1, true, "LIGHT1:ON"));
+    }
+
+    // Rapid changes over a link that delays each reply line by 40-540 ms
+    // independently, so replies overtake each other. Each pause the user
+    // looks at the grid and re-sends any switch it shows wrong.
+    @Test
+    public void reorderedRepliesNeedNoCorrections() {
+        Result naive = simulate(Mode.NAIVE);
+        Result heuristic = simulate(Mode.HEURISTIC);
+        Result sequenced = simulate(Mode.SEQUENCED);
+
+        assertTrue(naive.corrections > 0);
+        assertTrue(heuristic.toString(), heuristic.corrections < naive.corrections / 2);
+        assertTrue(heuristic.flickers < naive.flickers);
+        assertEquals(0, sequenced.corrections);
+        assertEquals(0, sequenced.flickers);
+    }
+
+    private enum Mode { NAIVE, HEURISTIC, SEQUENCED }
+
+    private static class Result {
+        final Mode mode;
+        int actions;
+        int flickers;
+        int corrections;
+        int dropped;
+
+        Result(Mode mode) {
+            this.mode = mode;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-9s %3d flickers, %3d corrective commands, %3d stale replies dropped",
+                    mode.name().toLowerCase(Locale.US), flickers, corrections, dropped);
+        }
+    }
+
+    private Result simulate(Mode mode) {
+        VirtualClock clock = new VirtualClock();
+        FirmwareSimulator board = new FirmwareSimulator(SWITCHES);
+        board.setKnowsSequence(mode == Mode.SEQUENCED);
+        Random jitter = new Random(3);
+        Random script = new Random(5);
+        boolean[] shown = new boolean[SWITCHES + 1];
+        boolean[] intent = new boolean[SWITCHES + 1];
+        Result result = new Result(mode);
+        ReplySequencer[] holder = new ReplySequencer[1];
+
+        DeviceMessageParser parser = new DeviceMessageParser(new DeviceMessageParser.Listener() {
+            @Override
+            public void onSwitchState(int switchNumber, boolean isOn, String message) {
+                if (mode != Mode.NAIVE && !holder[0].accept(switchNumber, isOn, message)) {
+                    return;
+                }
+                if (shown[switchNumber] != isOn) {
+                    shown[switchNumber] = isOn;
+                    if (isOn != intent[switchNumber]) {
+                        result.flickers++;
+                    }
+                }
+            }
+
+            @Override
+            public void onLevelReport(int switchNumber, int level, String message) {
+            }
+
+            @Override
+            public void onStatusReport(Map<Integer, Boolean> states, String message) {
+            }
+
+            @Override
+            public void onToggleAck(int switchNumber, String message) {
+            }
+
+            @Override
+            public void onDeviceEvent(String message) {
+            }
+
+            @Override
+            public void onDeviceError(String message) {
+            }
+
+            @Override
+            public void onHelpReceived(String message) {
+            }
+
+            @Override
+            public void onUnhandled(String message) {
+                if (message.equals(ReplySequencer.HANDSHAKE_REPLY)) {
+                    holder[0].setSequenced(true);
+                }
+            }
+        });
+
+        // The board gets writes in order; each reply line has its own delay
+        CommandTransport radio = new CommandTransport() {
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+
+            @Override
+            public void sendCommand(String command) {
+                clock.postDelayed(() -> {
+                    for (String reply : board.receive(command)) {
+                        clock.postDelayed(() -> parser.parse(reply), 40 + jitter.nextInt(500));
+                    }
+                }, 40);
+            }
+
+            @Override
+            public void sendCommands(List<String> commands) {
+                sendCommand(String.join("\n", commands));
+            }
+        };
+        ReplySequencer sequencer = new ReplySequencer(radio, clock);
+        holder[0] = sequencer;
+        sequencer.sendCommand(ReplySequencer.HANDSHAKE);
+        clock.advance(1000);
+
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 8; i++) {
+                int switchNumber = 1 + script.nextInt(SWITCHES);
+                intent[switchNumber] = !intent[switchNumber];
+                shown[switchNumber] = intent[switchNumber];
+                boolean toggle = script.nextDouble() < 0.3;
+                sequencer.sendCommand("LIGHT" + switchNumber + "_"
+                        + (toggle ? "TOGGLE" : intent[switchNumber] ? "ON" : "OFF"));
+                result.actions++;
+                clock.advance(80 + script.nextInt(300));
+            }
+            clock.advance(2000);
+
+            for (int i = 1; i <= SWITCHES; i++) {
+                if (shown[i] != intent[i]) {
+                    result.corrections++;
+                    shown[i] = intent[i];
+                    sequencer.sendCommand("LIGHT" + i + "_" + (intent[i] ? "ON" : "OFF"));
+                }
+            }
+            clock.advance(2000);
+        }
+
+        for (int i = 1; i <= SWITCHES; i++) {
+            assertEquals(mode + " switch " + i, intent[i], board.isOn(i));
+        }
+        result.dropped = sequencer.getDropped();
+        return result;
+    }
+}
@@ -0,0 +1,125 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SceneCompilerTest {
+
+    private List<DeviceModel> createSwitches(int count) {
+        List<DeviceModel> switches = new ArrayList<>();
+        for (int i = 1; i <= count; i++) {
+            switches.add(new DeviceModel(i, "Switch " + i, "LIGHT" + i + "_TOGGLE"));
+        }
+        return switches;
+    }
+
+    @Test
+    public void twentySwitchScene_halfAlreadyCorrect_sendsTenCommandsInOneWrite() {
+        List<DeviceModel> switches = createSwitches(20);
+        SceneModel scene = new SceneModel("SCENE_1", "Movie mode");
+        for (DeviceModel device : switches) {
+            // Odd switches already on, scene wants all on
+            device.setOn(device.getIndex() % 2 == 1);
+            scene.addStep(new SceneModel.Step(device.getIndex(), true));
+        }
+
+        SceneCompiler.CompiledScene compiled = SceneCompiler.compile(scene, switches);
+        assertEquals(10, compiled.getCommandCount());
+        assertEquals(1, compiled.getBatches().size());
+
+        FakeTransport transport = new FakeTransport();
+        for (SceneCompiler.Batch batch : compiled.getBatches()) {
+            transport.sendCommands(batch.getCommands());
+        }
+        assertEquals(1, transport.writes.size());
+        assertEquals(10, transport.allCommands().size());
+        assertTrue(transport.allCommands().contains("LIGHT2_ON"));
+        assertFalse(transport.allCommands().contains("LIGHT1_ON"));
+    }
+
+    @Test
+    public void delaysSplitBatchesAndKeepOrder() {
+        List<DeviceModel> switches = createSwitches(3);
+        SceneModel scene = new SceneModel("SCENE_2", "Good night");
+        scene.addStep(new SceneModel.Step(1, true));
+        scene.addStep(new SceneModel.Step(2, true));
+        scene.addStep(new SceneModel.Step(3, true, 2000));
+        scene.addStep(new SceneModel.Step(1, false, 500));
+
+        SceneCompiler.CompiledScene compiled = SceneCompiler.compile(scene, switches);
+        assertEquals(3, compiled.getBatches().size());
+        assertEquals(0, compiled.getBatches().get(0).getDelayMs());
+        assertEquals(2000, compiled.getBatches().get(1).getDelayMs());
+        assertEquals(500, compiled.getBatches().get(2).getDelayMs());
+        assertEquals("LIGHT1_OFF", compiled.getBatches().get(2).getCommands().get(0));
+    }
+
+    @Test
+    public void skippedStepCarriesItsDelay() {
+        List<DeviceModel> switches = createSwitches(3);
+        switches.get(1).setOn(true);
+        SceneModel scene = new SceneModel("SCENE_3", "Evening");
+        scene.addStep(new SceneModel.Step(1, true));
+        scene.addStep(new SceneModel.Step(2, true, 1000)); // already on
+        scene.addStep(new SceneModel.Step(3, true));
+
+        SceneCompiler.CompiledScene compiled = SceneCompiler.compile(scene, switches);
+        assertEquals(2, compiled.getCommandCount());
+        assertEquals(2, compiled.getBatches().size());
+        assertEquals(1000, compiled.getBatches().get(1).getDelayMs());
+    }
+
+    @Test
+    public void leadingDelayIsKept() {
+        List<DeviceModel> switches = createSwitches(2);
+        SceneModel scene = new SceneModel("SCENE_SLEEP", "Sleep timer");
+        scene.addStep(new SceneModel.Step(1, false, 30 * 60_000));
+        switches.get(0).setOn(true);
+
+        SceneCompiler.CompiledScene compiled = SceneCompiler.compile(scene, switches);
+        assertEquals(1, compiled.getBatches().size());
+        assertEquals(30 * 60_000, compiled.getBatches().get(0).getDelayMs());
+    }
+
+    @Test
+    public void elidedFirstStepKeepsItsDelay() {
+        List<DeviceModel> switches = createSwitches(3);
+        switches.get(0).setOn(true);
+        SceneModel scene = new SceneModel("SCENE_4", "Porch");
+        scene.addStep(new SceneModel.Step(1, true, 1000)); // already on
+        scene.addStep(new SceneModel.Step(2, true, 500));
+        scene.addStep(new SceneModel.Step(3, true));
+
+        SceneCompiler.CompiledScene compiled = SceneCompiler.compile(scene, switches);
+        assertEquals(1, compiled.getBatches().size());
+        // The first step sent waits for both delays, as if the elided step had run
+        assertEquals(1500, compiled.getBatches().get(0).getDelayMs());
+        assertEquals(2, compiled.getBatches().get(0).getCommands().size());
+    }
+
+    @Test
+    public void customCommandFallsBackToToggle() {
+        List<DeviceModel> switches = new ArrayList<>();
+        switches.add(new DeviceModel(1, "Fan", "FAN"));
+        SceneModel scene = new SceneModel("SCENE_4", "Fan on");
+        scene.addStep(new SceneModel.Step(1, true));
+
+        SceneCompiler.CompiledScene compiled = SceneCompiler.compile(scene, switches);
+        assertEquals("FAN", compiled.getBatches().get(0).getCommands().get(0));
+    }
+
+    @Test
+    public void sceneAlreadyActive_compilesToNothing() {
+        List<DeviceModel> switches = createSwitches(4);
+        SceneModel scene = new SceneModel("SCENE_5", "All off");
+        for (DeviceModel device : switches) {
+            scene.addStep(new SceneModel.Step(device.getIndex(), false));
+        }
+
+        assertTrue(SceneCompiler.compile(scene, switches).isEmpty());
+    }
+}
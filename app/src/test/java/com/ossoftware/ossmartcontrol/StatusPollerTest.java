@@ -0,0 +1,358 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class StatusPollerTest {
+
+    private static final long ONE_WAY_MS = 40;
+    private static final int SWITCHES = 4;
+    private static final long HOUR_MS = 3_600_000;
+
+    private VirtualClock clock;
+    private FakeTransport link;
+    private OutboundScheduler outbound;
+    private StatusPoller poller;
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock();
+        link = new FakeTransport();
+        outbound = new OutboundScheduler(link, clock, clock);
+        poller = new StatusPoller(outbound, clock, clock);
+    }
+
+    @Test
+    public void firstPollStandsInForTheInitialStatusRequest() {
+        poller.start();
+        clock.advance(StatusPoller.INITIAL_DELAY_MS - 1);
+        assertEquals(0, statusPolls());
+        clock.advance(1);
+        assertEquals(1, statusPolls());
+    }
+
+    @Test
+    public void stableStateBacksOffToTheCeiling() {
+        poller.start();
+        clock.advance(StatusPoller.INITIAL_DELAY_MS);
+
+        long expected = StatusPoller.MIN_INTERVAL_MS;
+        for (int i = 0; i < 10; i++) {
+            poller.onStatus(false);
+            expected = Math.min(expected * 2, StatusPoller.MAX_INTERVAL_MS);
+            assertEquals(expected, poller.getIntervalMs());
+            int before = statusPolls();
+            clock.advance(expected);
+            assertEquals(before + 1, statusPolls());
+        }
+        assertEquals(StatusPoller.MAX_INTERVAL_MS, poller.getIntervalMs());
+    }
+
+    @Test
+    public void driftGoesBackToTheShortestInterval() {
+        poller.start();
+        clock.advance(StatusPoller.INITIAL_DELAY_MS);
+        for (int i = 0; i < 5; i++) {
+            poller.onStatus(false);
+        }
+        assertTrue(poller.getIntervalMs() > StatusPoller.MIN_INTERVAL_MS);
+
+        poller.onStatus(true);
+        assertEquals(StatusPoller.MIN_INTERVAL_MS, poller.getIntervalMs());
+        assertEquals(1, poller.getDriftsFound());
+    }
+
+    @Test
+    public void remoteActivityPollsOnceAfterTheLastPress() {
+        poller.start();
+        clock.advance(StatusPoller.INITIAL_DELAY_MS);
+        poller.onStatus(false);
+        int before = statusPolls();
+
+        for (int i = 0; i < 4; i++) {
+            poller.onRemoteActivity();
+            clock.advance(200);
+        }
+        assertEquals(before, statusPolls());
+        clock.advance(StatusPoller.ACTIVITY_SETTLE_MS);
+        assertEquals(before + 1, statusPolls());
+    }
+
+    @Test
+    public void pushingFirmwareSuspendsPolling() {
+        poller.start();
+        clock.advance(StatusPoller.INITIAL_DELAY_MS);
+        poller.onStatus(false);
+
+        // An echo right after our own write doesn't count
+        outbound.sendCommand("LIGHT1_ON");
+        clock.advance(100);
+        poller.onStateLine();
+        assertFalse(poller.isSuspended());
+
+        clock.advance(StatusPoller.ECHO_WINDOW_MS + 1);
+        poller.onStateLine();
+        assertFalse(poller.isSuspended());
+        poller.onStateLine();
+        assertTrue(poller.isSuspended());
+
+        int before = statusPolls();
+        poller.onRemoteActivity();
+        clock.advance(HOUR_MS);
+        assertEquals(before, statusPolls());
+    }
+
+    @Test
+    public void lostReplyIsRetried() {
+        poller.start();
+        clock.advance(StatusPoller.INITIAL_DELAY_MS);
+        clock.advance(StatusPoller.REPLY_TIMEOUT_MS + StatusPoller.MIN_INTERVAL_MS);
+
+        assertEquals(2, statusPolls());
+        assertEquals(1, poller.getReplyTimeouts());
+    }
+
+    @Test
+    public void stopCancelsPolling() {
+        poller.start();
+        poller.stop();
+        clock.advance(HOUR_MS);
+        assertEquals(0, statusPolls());
+        assertEquals(0, clock.pendingTasks());
+    }
+
+    // An hour of remote and wall-switch use on the board while the app is
+    // connected, comparing one status request, a fixed 5 s poll and the
+    // adaptive poller, and the adaptive poller against pushing firmware
+    @Test
+    public void irHeavyHour() {
+        Run once = simulate(Mode.ONCE, false);
+        Run fixed = simulate(Mode.FIXED, false);
+        Run adaptive = simulate(Mode.ADAPTIVE, false);
+        Run pushing = simulate(Mode.ADAPTIVE, true);
+
+        assertTrue(once.percentile(50) > 60_000);
+        // Remote presses are picked up almost at once, wall switches within a ceiling
+        assertTrue(adaptive.toString(), adaptive.polls < fixed.polls / 2);
+        assertTrue(adaptive.toString(), adaptive.percentile(50) < 1000);
+        assertTrue(adaptive.toString(), adaptive.max() <= StatusPoller.MAX_INTERVAL_MS + 1000);
+        // Pushing firmware: polling stops and the grid follows the pushes
+        assertTrue(pushing.toString(), pushing.polls <= 5);
+        assertTrue(pushing.toString(), pushing.percentile(99) < 500);
+    }
+
+    private enum Mode { ONCE, FIXED, ADAPTIVE }
+
+    private static class Run {
+        final String name;
+        final List<Long> staleness = new ArrayList<>();
+        int polls;
+        int changes;
+
+        Run(String name) {
+            this.name = name;
+        }
+
+        long percentile(int p) {
+            List<Long> sorted = new ArrayList<>(staleness);
+            Collections.sort(sorted);
+            int index = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+            return sorted.get(Math.max(0, index));
+        }
+
+        long max() {
+            return Collections.max(staleness);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-22s %4d polls/h | stale p50 %6d ms p95 %7d ms p99 %7d ms",
+                    name, polls, percentile(50), percentile(95), percentile(99));
+        }
+    }
+
+    private Run simulate(Mode mode, boolean boardPushes) {
+        VirtualClock clock = new VirtualClock();
+        FirmwareSimulator board = new FirmwareSimulator(SWITCHES);
+        board.setPushesState(boardPushes);
+        boolean[] shown = new boolean[SWITCHES + 1];
+        StatusPoller[] holder = new StatusPoller[1];
+        int[] polls = new int[1];
+
+        DeviceMessageParser parser = new DeviceMessageParser(new GridListener(shown, holder));
+        CommandTransport radio = new CommandTransport() {
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+
+            @Override
+            public void sendCommand(String command) {
+                if (command.equals("STATUS")) {
+                    polls[0]++;
+                }
+                clock.postDelayed(() -> {
+                    List<String> replies = board.receive(command);
+                    clock.postDelayed(() -> parser.parse(String.join("\n", replies)), ONE_WAY_MS);
+                }, ONE_WAY_MS);
+            }
+
+            @Override
+            public void sendCommands(List<String> commands) {
+                for (String command : commands) {
+                    sendCommand(command);
+                }
+            }
+        };
+        OutboundScheduler outbound = new OutboundScheduler(radio, clock, clock);
+
+        String name = mode == Mode.ONCE ? "status once"
+                : mode == Mode.FIXED ? "fixed 5 s" : "adaptive";
+        Run run = new Run(name + (boardPushes ? " (pushing)" : ""));
+        if (mode == Mode.ADAPTIVE) {
+            holder[0] = new StatusPoller(outbound, clock, clock);
+            holder[0].start();
+        } else if (mode == Mode.FIXED) {
+            Runnable[] fixedPoll = new Runnable[1];
+            fixedPoll[0] = () -> {
+                outbound.send(OutboundScheduler.Priority.BACKGROUND, "STATUS");
+                clock.postDelayed(fixedPoll[0], 5000);
+            };
+            clock.postDelayed(fixedPoll[0], StatusPoller.INITIAL_DELAY_MS);
+        } else {
+            clock.postDelayed(() -> outbound.send(OutboundScheduler.Priority.BACKGROUND, "STATUS"),
+                    StatusPoller.INITIAL_DELAY_MS);
+        }
+
+        // Scripted use of the remote (mostly) and wall switches at the board
+        Random script = new Random(11);
+        Map<Integer, Long> staleSince = new HashMap<>();
+        long nextChange = 10_000;
+        List<long[]> queuedPresses = new ArrayList<>();
+        for (long t = 0; t < HOUR_MS; t += 100) {
+            clock.advance(100);
+            long now = clock.currentTimeMillis();
+
+            if (now >= nextChange) {
+                boolean remote = script.nextDouble() < 0.75;
+                int presses = remote ? 1 + script.nextInt(3) : 1;
+                for (int i = 0; i < presses; i++) {
+                    queuedPresses.add(new long[]{now + i * 500L, 1 + script.nextInt(SWITCHES), remote ? 1 : 0});
+                }
+                nextChange = now + 5000 + (long) (-Math.log(1 - script.nextDouble()) * 40_000);
+            }
+            for (int i = queuedPresses.size() - 1; i >= 0; i--) {
+                long[] press = queuedPresses.get(i);
+                if (press[0] <= now) {
+                    queuedPresses.remove(i);
+                    int switchNumber = (int) press[1];
+                    List<String> lines = press[2] == 1
+                            ? board.pressRemote(switchNumber) : board.pressWallSwitch(switchNumber);
+                    run.changes++;
+                    if (!staleSince.containsKey(switchNumber)) {
+                        staleSince.put(switchNumber, now);
+                    }
+                    if (!lines.isEmpty()) {
+                        clock.postDelayed(() -> parser.parse(String.join("\n", lines)), ONE_WAY_MS);
+                    }
+                }
+            }
+
+            for (int i = 1; i <= SWITCHES; i++) {
+                Long since = staleSince.get(i);
+                if (since != null && shown[i] == board.isOn(i)) {
+                    run.staleness.add(now - since);
+                    staleSince.remove(i);
+                }
+            }
+        }
+        for (Long since : staleSince.values()) {
+            run.staleness.add(clock.currentTimeMillis() - since);
+        }
+        run.polls = polls[0];
+        return run;
+    }
+
+    // The part of ControllerService that keeps the grid and feeds the poller
+    private static class GridListener implements DeviceMessageParser.Listener {
+        private final boolean[] shown;
+        private final StatusPoller[] poller;
+
+        GridListener(boolean[] shown, StatusPoller[] poller) {
+            this.shown = shown;
+            this.poller = poller;
+        }
+
+        @Override
+        public void onSwitchState(int switchNumber, boolean isOn, String message) {
+            shown[switchNumber] = isOn;
+            if (poller[0] != null) {
+                poller[0].onStateLine();
+            }
+        }
+
+        @Override
+        public void onLevelReport(int switchNumber, int level, String message) {
+        }
+
+        @Override
+        public void onStatusReport(Map<Integer, Boolean> states, String message) {
+            boolean drifted = false;
+            for (Map.Entry<Integer, Boolean> entry : states.entrySet()) {
+                if (shown[entry.getKey()] != entry.getValue()) {
+                    shown[entry.getKey()] = entry.getValue();
+                    drifted = true;
+                }
+            }
+            if (poller[0] != null) {
+                poller[0].onStatus(drifted);
+            }
+        }
+
+        @Override
+        public void onToggleAck(int switchNumber, String message) {
+            if (poller[0] != null && message.startsWith("IR")) {
+                poller[0].onRemoteActivity();
+            }
+        }
+
+        @Override
+        public void onDeviceEvent(String message) {
+            if (poller[0] != null && message.contains("IR Received:")) {
+                poller[0].onRemoteActivity();
+            }
+        }
+
+        @Override
+        public void onDeviceError(String message) {
+        }
+
+        @Override
+        public void onHelpReceived(String message) {
+        }
+
+        @Override
+        public void onUnhandled(String message) {
+        }
+    }
+
+    private int statusPolls() {
+        int count = 0;
+        for (String command : link.allCommands()) {
+            if (command.equals("STATUS")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,146 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SwitchGrammarTest {
+
+    private SwitchGrammar grammar;
+    private List<DeviceModel> switches;
+
+    @Before
+    public void setUp() {
+        grammar = new SwitchGrammar();
+        switches = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            switches.add(new DeviceModel(i, "Switch " + i, "LIGHT" + i + "_TOGGLE"));
+        }
+        switches.get(2).setName("Kitchen Fan");
+        switches.get(4).setName("Porch light");
+        grammar.setSwitches(switches);
+    }
+
+    @Test
+    public void matchesUserGivenNames() {
+        assertEquals("LIGHT3_ON", grammar.match("turn on kitchen fan"));
+        assertEquals("LIGHT3_OFF", grammar.match("Kitchen fan off."));
+        assertEquals("LIGHT5_TOGGLE", grammar.match("toggle porch light"));
+        assertEquals("LIGHT3_ON", grammar.match("could you please switch the kitchen fan on"));
+    }
+
+    @Test
+    public void numbersGoBeyondEight() {
+        assertEquals("LIGHT12_ON", grammar.match("light twelve on"));
+        assertEquals("LIGHT20_OFF", grammar.match("turn off light 20"));
+        assertEquals("LIGHT17_ON", grammar.match("please switch on lamp seventeen"));
+        assertEquals("twenty one", SwitchGrammar.numberToWords(21));
+        assertEquals("three hundred five", SwitchGrammar.numberToWords(305));
+    }
+
+    @Test
+    public void longestTargetWinsAndOneIsNotOn() {
+        // "light one" must not read as "on", and "light 12" must not match "light 1"
+        assertEquals("LIGHT1_OFF", grammar.match("light one is off"));
+        assertEquals("LIGHT12_OFF", grammar.match("set light 12 off"));
+        assertNull(grammar.match("kitchen fan"));
+        assertNull(grammar.match("open the garage"));
+    }
+
+    @Test
+    public void renameOnlyRecompilesThatSwitch() {
+        int perSwitch = grammar.getLastCompiledPhrases() / switches.size();
+
+        switches.get(2).setName("Ceiling fan");
+        grammar.setSwitches(switches);
+
+        assertEquals(perSwitch, grammar.getLastCompiledPhrases());
+        assertNull(grammar.match("turn on kitchen fan"));
+        assertEquals("LIGHT3_ON", grammar.match("turn on ceiling fan"));
+
+        // Unchanged list: nothing recompiled
+        grammar.setSwitches(switches);
+        assertEquals(0, grammar.getLastCompiledPhrases());
+    }
+
+    @Test
+    public void removedSwitchesStopMatching() {
+        switches.subList(10, 20).clear();
+        grammar.setSwitches(switches);
+
+        assertNull(grammar.match("turn on light fifteen"));
+        assertEquals("LIGHT10_ON", grammar.match("turn on light ten"));
+    }
+
+    @Test
+    public void sharedNamePrefersLowestIndexUntilRemoved() {
+        grammar.putSwitch(7, "Kitchen Fan");
+        assertEquals("LIGHT3_ON", grammar.match("turn on kitchen fan"));
+
+        grammar.removeSwitch(3);
+        assertEquals("LIGHT7_ON", grammar.match("turn on kitchen fan"));
+        assertEquals("LIGHT7_OFF", grammar.match("kitchen fan please off"));
+    }
+
+    @Test
+    public void parserUsesSwitchNames() {
+        VoiceCommandParser parser = new VoiceCommandParser();
+        assertEquals("LIGHT2_ON", parser.parseCommand("turn on light two"));
+        assertEquals("UNKNOWN_COMMAND", parser.parseCommand("turn on kitchen fan"));
+
+        parser.setSwitches(switches);
+        assertEquals("LIGHT3_ON", parser.parseCommand("turn on kitchen fan"));
+        assertEquals("LIGHT14_OFF", parser.parseCommand("light fourteen off"));
+        assertEquals("ALL_LIGHTS_OFF", parser.parseCommand("turn off all lights"));
+    }
+
+    @Test
+    public void benchmarkFiveHundredSwitches() {
+        List<DeviceModel> many = new ArrayList<>();
+        for (int i = 1; i <= 500; i++) {
+            many.add(new DeviceModel(i, "Room " + SwitchGrammar.numberToWords(i) + " lamp", "LIGHT" + i + "_TOGGLE"));
+        }
+
+        SwitchGrammar big = new SwitchGrammar();
+        long start = System.nanoTime();
+        big.setSwitches(many);
+        long fullCompileUs = (System.nanoTime() - start) / 1000;
+
+        // Rename one switch a number of times and average
+        int renames = 200;
+        start = System.nanoTime();
+        for (int i = 0; i < renames; i++) {
+            many.get(250).setName("Attic heater " + i);
+            big.setSwitches(many);
+        }
+        long renameUs = (System.nanoTime() - start) / 1000 / renames;
+
+        String[] utterances = {
+                "turn on room two hundred fifty lamp",
+                "turn off light 499",
+                "could you switch the attic heater 199 off",
+                "toggle lamp three hundred",
+                "something unrelated entirely"
+        };
+        int rounds = 2000;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            for (String utterance : utterances) {
+                big.match(utterance);
+            }
+        }
+        double matchUs = (System.nanoTime() - start) / 1000.0 / (rounds * utterances.length);
+
+        assertEquals("LIGHT250_ON", big.match("turn on room two hundred fifty lamp"));
+        assertEquals("LIGHT251_OFF", big.match("could you switch the attic heater 199 off"));
+        // Against the compile on the same machine, not a fixed budget
+        String timings = "full compile " + fullCompileUs + " us, rename " + renameUs
+                + " us, match " + String.format("%.2f", matchUs) + " us";
+        assertTrue("Rename should be far cheaper than a full compile: " + timings, renameUs * 20 < fullCompileUs);
+        assertTrue("Match should be a small fraction of a compile: " + timings, matchUs * 100 < fullCompileUs);
+    }
+}
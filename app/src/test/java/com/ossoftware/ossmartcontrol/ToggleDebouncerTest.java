@@ -0,0 +1,264 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ToggleDebouncerTest {
+
+    private static final long ONE_WAY_MS = 40;
+    private static final int SWITCHES = 4;
+
+    private VirtualClock clock;
+    private FakeTransport transport;
+    private ToggleDebouncer debouncer;
+    private List<DeviceModel> switches;
+
+    @Before
+    public void setUp() {
+        clock = new VirtualClock();
+        transport = new FakeTransport();
+        debouncer = new ToggleDebouncer(transport, clock, null);
+        switches = createSwitches();
+    }
+
+    @Test
+    public void firstTapIsSentAtOnce() {
+        debouncer.tap(switches.get(0));
+
+        assertEquals("LIGHT1_ON", transport.allCommands().get(0));
+        assertTrue(switches.get(0).isOn());
+    }
+
+    @Test
+    public void doubleTapSendsTheFinalAbsoluteState() {
+        DeviceModel device = switches.get(0);
+        debouncer.tap(device);
+        clock.advance(80);
+        debouncer.tap(device);
+        clock.advance(ToggleDebouncer.WINDOW_MS);
+
+        assertEquals(listOf("LIGHT1_ON", "LIGHT1_OFF"), transport.allCommands());
+        assertFalse(device.isOn());
+    }
+
+    @Test
+    public void tripleTapCostsOneCommand() {
+        DeviceModel device = switches.get(1);
+        for (int i = 0; i < 3; i++) {
+            debouncer.tap(device);
+            clock.advance(60);
+            if (i == 1) {
+                // Echo of the leading command
+                debouncer.onStateReported(2, true);
+            }
+        }
+        clock.advance(ToggleDebouncer.WINDOW_MS);
+
+        assertEquals(listOf("LIGHT2_ON"), transport.allCommands());
+        assertFalse(debouncer.isBusy(2));
+    }
+
+    @Test
+    public void unconfirmedStateIsResentUntilEchoed() {
+        DeviceModel device = switches.get(0);
+        debouncer.tap(device);
+        clock.advance(ToggleDebouncer.WINDOW_MS + ToggleDebouncer.CONFIRM_TIMEOUT_MS);
+
+        assertEquals(listOf("LIGHT1_ON", "LIGHT1_ON"), transport.allCommands());
+        // A stale echo doesn't confirm, the matching one does
+        debouncer.onStateReported(1, false);
+        assertTrue(debouncer.isBusy(1));
+        debouncer.onStateReported(1, true);
+        assertFalse(debouncer.isBusy(1));
+        clock.advance(5000);
+        assertEquals(2, transport.allCommands().size());
+    }
+
+    @Test
+    public void retriesAreBounded() {
+        debouncer.tap(switches.get(0));
+        clock.advance(60_000);
+
+        assertEquals(1 + ToggleDebouncer.MAX_RETRIES, transport.allCommands().size());
+        assertFalse(debouncer.isBusy(1));
+    }
+
+    @Test
+    public void configuredAbsoluteCommandsWin() {
+        DeviceModel device = switches.get(0);
+        device.setToggleCommand("RELAY_A");
+        device.setOnCommand("A1");
+        device.setOffCommand("A0");
+
+        debouncer.tap(device);
+        clock.advance(50);
+        debouncer.tap(device);
+        clock.advance(ToggleDebouncer.WINDOW_MS);
+
+        assertEquals(listOf("A1", "A0"), transport.allCommands());
+    }
+
+    @Test
+    public void toggleOnlyFirmwareGetsToggleOnlyForAnOddNumberOfTaps() {
+        DeviceModel device = switches.get(0);
+        device.setToggleCommand("RELAY_A");
+
+        // Leading toggle, then an even count: one more toggle to undo it
+        debouncer.tap(device);
+        clock.advance(50);
+        debouncer.tap(device);
+        clock.advance(50);
+        debouncer.tap(device);
+        clock.advance(50);
+        debouncer.tap(device);
+        clock.advance(ToggleDebouncer.WINDOW_MS + 5000);
+
+        assertEquals(listOf("RELAY_A", "RELAY_A"), transport.allCommands());
+        assertFalse(device.isOn());
+        // No retries without absolute commands
+        assertEquals(0, debouncer.getRetries());
+    }
+
+    // Scripted bursts of rapid taps over a link that loses 10% of frames in
+    // each direction, comparing per-tap toggles with the debouncer
+    @Test
+    public void rapidTapsOnALossyLink() {
+        Result naive = runBursts(false);
+        Result debounced = runBursts(true);
+
+        assertTrue(debounced.commands < naive.commands);
+        assertTrue("naive " + naive.divergence(), naive.divergence() > 5);
+        assertTrue("debounced " + debounced.divergence(), debounced.divergence() < 1);
+    }
+
+    private static class Result {
+        int bursts;
+        int diverged;
+        int commands;
+
+        double divergence() {
+            return 100.0 * diverged / bursts;
+        }
+    }
+
+    private Result runBursts(boolean debounce) {
+        VirtualClock clock = new VirtualClock();
+        FirmwareSimulator board = new FirmwareSimulator(SWITCHES);
+        List<DeviceModel> shown = createSwitches();
+        Random loss = new Random(7);
+        Random script = new Random(42);
+        ToggleDebouncer[] holder = new ToggleDebouncer[1];
+
+        // Board echoes update the grid the way ControllerService does
+        CommandTransport link = new CommandTransport() {
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+
+            @Override
+            public void sendCommand(String command) {
+                if (loss.nextDouble() < 0.1) {
+                    return;
+                }
+                boolean echoLost = loss.nextDouble() < 0.1;
+                clock.postDelayed(() -> {
+                    List<String> replies = board.receive(command);
+                    if (echoLost) {
+                        return;
+                    }
+                    clock.postDelayed(() -> {
+                        for (String reply : replies) {
+                            String[] parts = reply.split(":");
+                            if (parts.length == 2 && parts[0].startsWith("LIGHT")) {
+                                int index = Integer.parseInt(parts[0].substring(5));
+                                boolean isOn = parts[1].equals("ON");
+                                if (holder[0] != null) {
+                                    holder[0].onStateReported(index, isOn);
+                                }
+                                if (holder[0] == null || !holder[0].isBusy(index)) {
+                                    shown.get(index - 1).setOn(isOn);
+                                }
+                            }
+                        }
+                    }, ONE_WAY_MS);
+                }, ONE_WAY_MS);
+            }
+
+            @Override
+            public void sendCommands(List<String> commands) {
+                sendCommand(String.join("\n", commands));
+            }
+        };
+        int[] sent = new int[1];
+        CommandTransport counted = new CommandTransport() {
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+
+            @Override
+            public void sendCommand(String command) {
+                sent[0]++;
+                link.sendCommand(command);
+            }
+
+            @Override
+            public void sendCommands(List<String> commands) {
+                sent[0] += commands.size();
+                link.sendCommands(commands);
+            }
+        };
+        if (debounce) {
+            holder[0] = new ToggleDebouncer(counted, clock, null);
+        }
+
+        Result result = new Result();
+        for (int burst = 0; burst < 300; burst++) {
+            DeviceModel device = shown.get(script.nextInt(SWITCHES));
+            int taps = 1 + script.nextInt(5);
+
+            // The user taps from what the grid shows
+            boolean intended = device.isOn() ^ (taps % 2 == 1);
+            for (int i = 0; i < taps; i++) {
+                if (debounce) {
+                    holder[0].tap(device);
+                } else {
+                    device.setOn(!device.isOn());
+                    counted.sendCommand(device.getToggleCommand());
+                }
+                clock.advance(40 + script.nextInt(80));
+            }
+            clock.advance(3000);
+
+            result.bursts++;
+            if (board.isOn(device.getIndex()) != intended) {
+                result.diverged++;
+            }
+        }
+        result.commands = sent[0];
+        return result;
+    }
+
+    private static List<DeviceModel> createSwitches() {
+        List<DeviceModel> list = new ArrayList<>();
+        for (int i = 1; i <= SWITCHES; i++) {
+            list.add(new DeviceModel(i, "Switch " + i, "LIGHT" + i + "_TOGGLE"));
+        }
+        return list;
+    }
+
+    private static List<String> listOf(String... items) {
+        List<String> list = new ArrayList<>();
+        for (String item : items) {
+            list.add(item);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,145 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class UtteranceCacheTest {
+
+    private List<DeviceModel> switches;
+    private VoiceCommandParser parser;
+
+    @Before
+    public void setUp() {
+        switches = new ArrayList<>();
+        switches.add(new DeviceModel(1, "Kitchen Fan", "LIGHT1_TOGGLE"));
+        switches.add(new DeviceModel(2, "Porch Light", "LIGHT2_TOGGLE"));
+        parser = new VoiceCommandParser();
+        parser.setSwitches(switches);
+    }
+
+    @Test
+    public void normalizeCollapsesCaseAndWhitespace() {
+        assertEquals("turn on kitchen fan", UtteranceCache.normalize("  Turn ON\tkitchen   fan "));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        UtteranceCache cache = new UtteranceCache(2);
+        cache.put("a", VoiceResolution.command("A"));
+        cache.put("b", VoiceResolution.command("B"));
+        assertEquals("A", cache.get("a").getCommand()); // "b" is now the eldest
+        cache.put("c", VoiceResolution.command("C"));
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get("b"));
+        assertEquals("A", cache.get("a").getCommand());
+        assertEquals("C", cache.get("c").getCommand());
+    }
+
+    @Test
+    public void repeatedUtterancesHitTheCache() {
+        for (int i = 0; i < 10; i++) {
+            assertEquals("LIGHT1_ON", parser.resolve("turn on kitchen fan").getCommand());
+            assertEquals("LIGHT1_ON", parser.resolve("Turn on  Kitchen Fan").getCommand());
+        }
+
+        UtteranceCache cache = parser.getCache();
+        assertEquals(20, cache.getLookupCount());
+        assertEquals(19, cache.getHitCount());
+        assertEquals(0.95, cache.getHitRate(), 1e-9);
+    }
+
+    @Test
+    public void compoundAndFuzzyResultsAreCached() {
+        VoiceResolution compound = parser.resolve("turn on kitchen fan and porch light off");
+        assertEquals(VoiceResolution.Kind.INTENTS, compound.getKind());
+        assertEquals(2, compound.getIntents().size());
+        assertSame(compound, parser.resolve("Turn on kitchen fan and porch light  off"));
+
+        VoiceResolution fuzzy = parser.resolve("turn on kitchen van");
+        assertEquals("LIGHT1_ON", fuzzy.getCommand());
+        assertSame(fuzzy, parser.resolve("turn on kitchen van"));
+
+        assertEquals(2, parser.getCache().getHitCount());
+    }
+
+    @Test
+    public void alternativesAreTriedOnAMiss() {
+        VoiceResolution resolution = parser.resolve("turn on kitten fun",
+                Arrays.asList("turn on kitten fun", "turn on kitchen fan"));
+        assertEquals(VoiceResolution.Kind.COMMAND, resolution.getKind());
+        assertEquals("LIGHT1_ON", resolution.getCommand());
+    }
+
+    @Test
+    public void renamesInvalidateTheCache() {
+        assertEquals("LIGHT1_ON", parser.resolve("turn on kitchen fan").getCommand());
+
+        switches.set(0, new DeviceModel(1, "Hall Heater", "LIGHT1_TOGGLE"));
+        parser.setSwitches(switches);
+
+        assertEquals(0, parser.getCache().size());
+        assertEquals("LIGHT1_ON", parser.resolve("turn on hall heater").getCommand());
+        assertNotEquals("LIGHT1_ON", parser.resolve("turn on kitchen fan").getCommand());
+    }
+
+    @Test
+    public void correctionsWinOverParserAndCache() {
+        assertEquals("UNKNOWN_COMMAND", parser.resolve("make it breezy").getCommand());
+        assertEquals("LIGHT2_OFF", parser.resolve("turn off porch light").getCommand());
+
+        parser.learnCorrection("Make it breezy", "LIGHT1_ON");
+        parser.learnCorrection("turn off porch light", "ALL_LIGHTS_OFF");
+
+        assertEquals("LIGHT1_ON", parser.getCorrection("make it  breezy"));
+        assertEquals("LIGHT1_ON", parser.resolve("make it breezy").getCommand());
+        assertEquals("ALL_LIGHTS_OFF", parser.resolve("turn off porch light").getCommand());
+        assertEquals(2, parser.getCache().getCorrectionHitCount());
+    }
+
+    @Test
+    public void correctionsSurviveRenamesAndReload() {
+        parser.learnCorrection("make it breezy", "LIGHT1_ON");
+        parser.setSwitches(switches);
+        assertEquals("LIGHT1_ON", parser.resolve("make it breezy").getCommand());
+
+        Map<String, String> saved = new HashMap<>(parser.getCorrections());
+        VoiceCommandParser reloaded = new VoiceCommandParser();
+        reloaded.setCorrections(saved);
+        assertEquals("LIGHT1_ON", reloaded.resolve("Make it breezy").getCommand());
+    }
+
+    @Test
+    public void benchmarkHitVersusFullParse() {
+        List<DeviceModel> many = new ArrayList<>();
+        for (int i = 1; i <= 200; i++) {
+            many.add(new DeviceModel(i, "Room " + i + " lamp", "LIGHT" + i + "_TOGGLE"));
+        }
+        parser.setSwitches(many);
+
+        String[] household = {
+                "turn on room 3 lamp", "turn off room 3 lamp", "room 12 lamp please on", "all lights off",
+                "get status", "switch off light seven", "could you turn on room 40 lamp", "toggle light 9",
+                "turn on room 1 lamp and room 2 lamp", "lights one to four off", "turn on room 3 lump",
+                "room 7 lamp on and room 8 lamp off"
+        };
+        for (int round = 0; round < 125; round++) {
+            for (String utterance : household) {
+                parser.resolve(utterance);
+            }
+        }
+
+        UtteranceCache cache = parser.getCache();
+        assertEquals(household.length * 125, cache.getLookupCount());
+        assertEquals(household.length, cache.getLookupCount() - cache.getHitCount());
+        assertTrue(cache.getAverageHitMicros() < cache.getAverageMissMicros());
+    }
+}
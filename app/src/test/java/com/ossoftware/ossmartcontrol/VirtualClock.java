@@ -0,0 +1,56 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Clock and scheduler in one, advanced by hand. Tasks due at the same time
+// run in the order they were posted.
+public class VirtualClock implements TimeSource, Scheduler {
+
+    private long now = 0;
+    private final List<long[]> due = new ArrayList<>();
+    private final List<Runnable> tasks = new ArrayList<>();
+
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMs) {
+        due.add(new long[]{now + Math.max(0, delayMs)});
+        tasks.add(task);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        for (int i = tasks.size() - 1; i >= 0; i--) {
+            if (tasks.get(i) == task) {
+                tasks.remove(i);
+                due.remove(i);
+            }
+        }
+    }
+
+    public void advance(long ms) {
+        long end = now + ms;
+        while (true) {
+            int next = -1;
+            for (int i = 0; i < due.size(); i++) {
+                if (due.get(i)[0] <= end && (next < 0 || due.get(i)[0] < due.get(next)[0])) {
+                    next = i;
+                }
+            }
+            if (next < 0) {
+                break;
+            }
+            now = Math.max(now, due.remove(next)[0]);
+            tasks.remove(next).run();
+        }
+        now = end;
+    }
+
+    public int pendingTasks() {
+        return tasks.size();
+    }
+}
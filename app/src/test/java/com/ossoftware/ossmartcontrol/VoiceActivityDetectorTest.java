@@ -0,0 +1,141 @@
+package com.ossoftware.ossmartcontrol;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VoiceActivityDetectorTest {
+
+    private WavFile load(String name) throws Exception {
+        InputStream stream = getClass().getClassLoader().getResourceAsStream("vad/" + name);
+        assertNotNull(name + " missing", stream);
+        try {
+            return WavFile.read(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static VoiceActivityDetector.Config configFor(WavFile wav) {
+        VoiceActivityDetector.Config config = new VoiceActivityDetector.Config();
+        config.sampleRate = wav.sampleRate;
+        return config;
+    }
+
+    // Time of the first onset in ms, or -1. Frames are fed through one
+    // reused buffer, the way HandsFreeListener reads AudioRecord.
+    private static long firstOnsetMs(VoiceActivityDetector detector, short[] audio) {
+        VoiceActivityDetector.Config config = detector.getConfig();
+        short[] frame = new short[config.getFrameSamples()];
+        for (int start = 0; start + frame.length <= audio.length; start += frame.length) {
+            System.arraycopy(audio, start, frame, 0, frame.length);
+            if (detector.processFrame(frame, 0, frame.length) == VoiceActivityDetector.Event.ONSET) {
+                return (start + frame.length) * 1000L / config.sampleRate;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void fixtures() throws Exception {
+        InputStream stream = getClass().getClassLoader().getResourceAsStream("vad/fixtures.txt");
+        assertNotNull("vad/fixtures.txt missing", stream);
+
+        List<String> failures = new ArrayList<>();
+        int total = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\|");
+                String name = parts[0].trim();
+                String expected = parts[1].trim();
+
+                WavFile wav = load(name);
+                long onset = firstOnsetMs(new VoiceActivityDetector(configFor(wav)), wav.samples);
+                total++;
+
+                if (expected.equals("none")) {
+                    if (onset >= 0) {
+                        failures.add(name + ": unexpected onset at " + onset + " ms");
+                    }
+                } else {
+                    String[] range = expected.split("-");
+                    if (onset < Long.parseLong(range[0]) || onset > Long.parseLong(range[1])) {
+                        failures.add(name + ": onset " + onset + " ms, expected " + expected);
+                    }
+                }
+            }
+        }
+        assertTrue(total >= 6);
+        assertTrue("Failures: " + failures, failures.isEmpty());
+    }
+
+    @Test
+    public void hangoverBridgesPausesThenEnds() throws Exception {
+        WavFile wav = load("speech_after_quiet.wav");
+        VoiceActivityDetector.Config config = configFor(wav);
+        VoiceActivityDetector detector = new VoiceActivityDetector(config);
+
+        int frameSamples = config.getFrameSamples();
+        int onsets = 0;
+        long offsetMs = -1;
+        for (int start = 0; start + frameSamples <= wav.samples.length; start += frameSamples) {
+            VoiceActivityDetector.Event event = detector.processFrame(wav.samples, start, frameSamples);
+            if (event == VoiceActivityDetector.Event.ONSET) {
+                onsets++;
+            } else if (event == VoiceActivityDetector.Event.OFFSET) {
+                offsetMs = (start + frameSamples) * 1000L / config.sampleRate;
+            }
+        }
+
+        // One utterance despite the syllable dips; it ends after speech (1300 ms) plus the hangover
+        assertEquals(1, onsets);
+        assertTrue("Offset at " + offsetMs, offsetMs >= 1300 && offsetMs <= 1300 + 2 * config.hangoverFrames * config.frameMs);
+    }
+
+    @Test
+    public void thresholdsAreTunable() throws Exception {
+        WavFile wav = load("speech_after_quiet.wav");
+        VoiceActivityDetector.Config deaf = configFor(wav);
+        deaf.thresholdDb = 80;
+        assertEquals(-1, firstOnsetMs(new VoiceActivityDetector(deaf), wav.samples));
+
+        VoiceActivityDetector.Config slow = configFor(wav);
+        slow.onsetFrames = 10;
+        long normal = firstOnsetMs(new VoiceActivityDetector(configFor(wav)), wav.samples);
+        assertTrue(firstOnsetMs(new VoiceActivityDetector(slow), wav.samples) > normal);
+    }
+
+    @Test
+    public void measureCpuPerSecondOfAudio() throws Exception {
+        WavFile wav = load("speech_over_fan.wav");
+        VoiceActivityDetector detector = new VoiceActivityDetector(configFor(wav));
+        double audioSeconds = (double) wav.samples.length / wav.sampleRate;
+
+        // Warm up, then time repeated passes
+        for (int i = 0; i < 20; i++) {
+            firstOnsetMs(detector, wav.samples);
+        }
+        int passes = 200;
+        long start = System.nanoTime();
+        for (int i = 0; i < passes; i++) {
+            detector.reset();
+            firstOnsetMs(detector, wav.samples);
+        }
+        double microsPerAudioSecond = (System.nanoTime() - start) / 1000.0 / (passes * audioSeconds);
+
+        // Well under 1% of a core
+        assertTrue(microsPerAudioSecond < 10000);
+    }
+}
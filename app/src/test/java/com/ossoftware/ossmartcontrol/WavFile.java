@@ -0,0 +1,58 @@
+package com.ossoftware.ossmartcontrol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Minimal reader for the 16-bit mono PCM WAV fixtures
+public class WavFile {
+
+    public final int sampleRate;
+    public final short[] samples;
+
+    private WavFile(int sampleRate, short[] samples) {
+        this.sampleRate = sampleRate;
+        this.samples = samples;
+    }
+
+    public static WavFile read(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int count;
+        while ((count = input.read(chunk)) > 0) {
+            bytes.write(chunk, 0, count);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != 0x46464952 || buffer.getInt(8) != 0x45564157) { // "RIFF", "WAVE"
+            throw new IOException("Not a WAV file");
+        }
+
+        int sampleRate = 0;
+        int position = 12;
+        while (position + 8 <= buffer.limit()) {
+            int id = buffer.getInt(position);
+            int size = buffer.getInt(position + 4);
+            int body = position + 8;
+            if (id == 0x20746d66) { // "fmt "
+                short format = buffer.getShort(body);
+                short channels = buffer.getShort(body + 2);
+                sampleRate = buffer.getInt(body + 4);
+                short bits = buffer.getShort(body + 14);
+                if (format != 1 || channels != 1 || bits != 16) {
+                    throw new IOException("Only 16-bit mono PCM is supported");
+                }
+            } else if (id == 0x61746164) { // "data"
+                short[] samples = new short[size / 2];
+                for (int i = 0; i < samples.length; i++) {
+                    samples[i] = buffer.getShort(body + i * 2);
+                }
+                return new WavFile(sampleRate, samples);
+            }
+            position = body + size + (size & 1);
+        }
+        throw new IOException("No data chunk");
+    }
+}
@@ -0,0 +1,904 @@
+// Reference firmware for OS Smart Control: relays on an Arduino Uno/Nano
+// behind an HC-05 at 9600 baud.
+//
+// Speaks the app's text protocol (LIGHTn_ON/OFF/TOGGLE/LEVEL_x, ALL_ON/OFF,
+// STATUS, HELP, one command per line) plus two optional extensions the app
+// turns on when CAPS says they are here:
+//
+//   CAPS    -> "CAPS: switches=4 cmds=TOGGLE,SET,LEVEL,ALL,STATUS,SEQ,BIN,PING,PROG"
+//
+//   SEQ_ON  -> "SEQ:ON"  State commands may carry "#seq"; the reply echoes it.
+//   BIN_ON  -> "BIN:ON"  Replies go out as binary frames from here on.
+//   BIN_OFF -> "BIN:OFF" Back to text replies.
+//
+// PING is answered with PONG. The app sends it when the link has been quiet
+// for a few seconds, to tell a frozen link from an idle one; any reply would
+// do, PONG just keeps it out of the error log.
+//
+// Text commands are accepted in either mode. A binary frame is told apart
+// from a text line by its first byte:
+//
+//   SYNC(0xA5) TYPE SWITCH LEN PAYLOAD[LEN] CRC-8
+//
+// CRC-8 is poly 0x07, init 0 over TYPE..PAYLOAD. Every byte after SYNC that is
+// '\n', '\r', SYNC or ESCAPE(0x7D) is sent as ESCAPE, byte ^ 0x20. Each frame
+// ends with '\n'. Frames failing their CRC are dropped without a reply; the
+// app falls back to text when too many go missing.
+//
+// This must stay in step with BinaryFrameCodec.java in the app.
+//
+// Automations can be left with the board, which then runs them from its own
+// clock (a DS3231 on I2C, or millis() from the last TIME_SET without one)
+// while the phone is away. The program is kept in EEPROM behind an 8-byte
+// header, 'P' LEN(2) CRC-16(2), written only once the whole image checked out:
+//
+//   TIME_SET y mo d h mi s wd         -> "TIME:OK"        (wd 0 = Sunday)
+//   PROG_INFO                         -> "PROG: len=N crc=XXXX" or "PROG: none"
+//   PROG_BEGIN len crc                -> "PROG:READY"     stops the old program
+//   PROG_DATA offset hex crc8         -> "PROG:OK next" or "PROG:ERR offset"
+//   PROG_END                          -> "PROG:LOADED len=N crc=XXXX" or "PROG:ERR why"
+//   PROG_CLEAR                        -> "PROG: none"
+//
+// The image format is described in BoardProgram.java, and the runner below
+// must do what BoardProgramInterpreter.java does.
+
+#include <SoftwareSerial.h>
+#include <EEPROM.h>
+#include <Wire.h>
+
+#define SWITCH_COUNT 4
+#define BT_RX 10
+#define BT_TX 11
+
+const uint8_t RELAY_PINS[SWITCH_COUNT] = {2, 3, 4, 5};
+// PWM-capable pins for dimmer channels; 0 where the channel is a plain relay
+const uint8_t PWM_PINS[SWITCH_COUNT] = {0, 0, 0, 0};
+
+const uint8_t SYNC = 0xA5;
+const uint8_t ESCAPE = 0x7D;
+const uint8_t MAX_PAYLOAD = 8;
+
+// Phone -> board
+const uint8_t SET_ON = 0x01;
+const uint8_t SET_OFF = 0x02;
+const uint8_t TOGGLE = 0x03;
+const uint8_t SET_LEVEL = 0x04;
+const uint8_t STATUS_REQUEST = 0x05;
+// Board -> phone
+const uint8_t STATE = 0x11;
+const uint8_t LEVEL = 0x12;
+const uint8_t STATUS = 0x13;
+
+const uint8_t RTC_ADDRESS = 0x68;
+
+// Program image, as BoardProgram.java lays it out
+const uint8_t PROG_HEADER = 8;
+const uint16_t PROG_MAX = 1016;
+const uint8_t PROG_VERSION = 1;
+const uint8_t PROG_CHUNK = 16;
+const uint8_t KIND_CRON = 1;
+const uint8_t KIND_SOLAR = 2;
+const uint8_t CRON_SIZE = 22;
+const uint8_t SOLAR_SIZE = 28;
+const uint16_t NO_TIME = 0xFFFF;
+const uint8_t OP_END = 0;
+const uint8_t OP_ON = 1;
+const uint8_t OP_OFF = 2;
+const uint8_t OP_WAIT = 3;
+const uint8_t SLOTS = 4;
+
+SoftwareSerial bt(BT_RX, BT_TX);
+
+bool relays[SWITCH_COUNT];
+uint8_t levels[SWITCH_COUNT];
+bool sendFrames = false;
+
+// One incoming line, text or stuffed frame; PROG_DATA is the longest at 50
+char line[64];
+uint8_t lineLength = 0;
+bool lineOverflow = false;
+
+// Unstuffed frame: TYPE SWITCH LEN PAYLOAD CRC
+uint8_t frame[4 + MAX_PAYLOAD];
+
+struct Clock {
+  int year;
+  uint8_t month;    // 1-12
+  uint8_t day;      // 1-31
+  uint8_t hour;
+  uint8_t minute;
+  uint8_t second;
+  uint8_t weekday;  // 0-6, Sunday 0
+};
+
+Clock now;
+bool clockSet = false;
+bool hasRtc = false;
+unsigned long lastTick = 0;
+unsigned long lastRtcRead = 0;
+int lastMinute = -1;
+
+bool programLoaded = false;
+int uploadLength = -1;
+uint16_t uploadCrc = 0;
+uint16_t uploadNext = 0;
+
+// Scenes in progress: where each is in the image and when it goes on
+int slotPc[SLOTS];
+uint16_t slotScene[SLOTS];
+unsigned long slotResumeAt[SLOTS];
+
+uint8_t crc8(const uint8_t *data, uint8_t length) {
+  uint8_t crc = 0;
+  for (uint8_t i = 0; i < length; i++) {
+    crc ^= data[i];
+    for (uint8_t bit = 0; bit < 8; bit++) {
+      crc = (crc & 0x80) ? (uint8_t)((crc << 1) ^ 0x07) : (uint8_t)(crc << 1);
+    }
+  }
+  return crc;
+}
+
+void writeStuffed(uint8_t b) {
+  if (b == '\n' || b == '\r' || b == SYNC || b == ESCAPE) {
+    bt.write(ESCAPE);
+    bt.write(b ^ 0x20);
+  } else {
+    bt.write(b);
+  }
+}
+
+// payload may be null when length is 0
+void sendFrame(uint8_t type, uint8_t switchNumber, const uint8_t *payload, uint8_t length) {
+  frame[0] = type;
+  frame[1] = switchNumber;
+  frame[2] = length;
+  for (uint8_t i = 0; i < length; i++) {
+    frame[3 + i] = payload[i];
+  }
+  uint8_t crc = crc8(frame, 3 + length);
+
+  bt.write(SYNC);
+  for (uint8_t i = 0; i < 3 + length; i++) {
+    writeStuffed(frame[i]);
+  }
+  writeStuffed(crc);
+  bt.write('\n');
+}
+
+// seq < 0: none
+void replyState(uint8_t index, int seq) {
+  uint8_t number = index + 1;
+  if (sendFrames) {
+    uint8_t payload[2] = {(uint8_t)(relays[index] ? 1 : 0), (uint8_t)seq};
+    sendFrame(STATE, number, payload, seq >= 0 ? 2 : 1);
+    return;
+  }
+  bt.print(F("LIGHT"));
+  bt.print(number);
+  bt.print(relays[index] ? F(":ON") : F(":OFF"));
+  if (seq >= 0) {
+    bt.print('#');
+    bt.print(seq);
+  }
+  bt.print('\n');
+}
+
+void replyLevel(uint8_t index, int seq) {
+  uint8_t number = index + 1;
+  if (sendFrames) {
+    uint8_t payload[2] = {levels[index], (uint8_t)seq};
+    sendFrame(LEVEL, number, payload, seq >= 0 ? 2 : 1);
+    return;
+  }
+  bt.print(F("LIGHT"));
+  bt.print(number);
+  bt.print(F(":LEVEL="));
+  bt.print(levels[index]);
+  if (seq >= 0) {
+    bt.print('#');
+    bt.print(seq);
+  }
+  bt.print('\n');
+}
+
+void replyStatus() {
+  if (sendFrames) {
+    uint8_t bitmap[(SWITCH_COUNT + 7) / 8] = {0};
+    for (uint8_t i = 0; i < SWITCH_COUNT; i++) {
+      if (relays[i]) {
+        bitmap[i / 8] |= 1 << (i % 8);
+      }
+    }
+    sendFrame(STATUS, SWITCH_COUNT, bitmap, sizeof(bitmap));
+    return;
+  }
+  bt.print(F("Status:"));
+  for (uint8_t i = 0; i < SWITCH_COUNT; i++) {
+    bt.print(F(" L"));
+    bt.print(i + 1);
+    bt.print(relays[i] ? F("=ON") : F("=OFF"));
+  }
+  bt.print('\n');
+}
+
+void applyRelay(uint8_t index) {
+  if (PWM_PINS[index] != 0) {
+    analogWrite(PWM_PINS[index], relays[index] ? levels[index] : 0);
+  } else {
+    digitalWrite(RELAY_PINS[index], relays[index] ? HIGH : LOW);
+  }
+}
+
+// The actions both protocols share; index is 0-based
+void setRelay(uint8_t index, bool on, int seq) {
+  relays[index] = on;
+  applyRelay(index);
+  replyState(index, seq);
+}
+
+void toggleRelay(uint8_t index, int seq) {
+  relays[index] = !relays[index];
+  applyRelay(index);
+  if (!sendFrames) {
+    bt.print(F("Light "));
+    bt.print(index + 1);
+    bt.print(F(" toggled\n"));
+  }
+  replyState(index, seq);
+}
+
+void setLevel(uint8_t index, uint8_t level, int seq) {
+  levels[index] = level;
+  relays[index] = level > 0;
+  applyRelay(index);
+  replyLevel(index, seq);
+}
+
+void handleFrame() {
+  uint8_t size = 0;
+  for (uint8_t i = 1; i < lineLength; i++) {
+    uint8_t b = (uint8_t)line[i];
+    if (b == ESCAPE && i + 1 < lineLength) {
+      b = (uint8_t)line[++i] ^ 0x20;
+    }
+    if (size == sizeof(frame)) {
+      return;
+    }
+    frame[size++] = b;
+  }
+  if (size < 4) {
+    return;
+  }
+  uint8_t length = frame[2];
+  if (length > MAX_PAYLOAD || size != 4 + length || frame[3 + length] != crc8(frame, 3 + length)) {
+    return;
+  }
+
+  uint8_t type = frame[0];
+  uint8_t number = frame[1];
+  if (type == STATUS_REQUEST) {
+    replyStatus();
+    return;
+  }
+  if (number < 1 || number > SWITCH_COUNT) {
+    return;
+  }
+  uint8_t index = number - 1;
+  switch (type) {
+    case SET_ON:
+    case SET_OFF:
+      setRelay(index, type == SET_ON, length >= 1 ? frame[3] : -1);
+      break;
+    case TOGGLE:
+      toggleRelay(index, length >= 1 ? frame[3] : -1);
+      break;
+    case SET_LEVEL:
+      if (length >= 1) {
+        setLevel(index, frame[3], length >= 2 ? frame[4] : -1);
+      }
+      break;
+  }
+}
+
+/* ===== CLOCK ===== */
+
+uint8_t daysInMonth(int year, uint8_t month) {
+  switch (month) {
+    case 2:
+      return ((year % 4 == 0 && year % 100 != 0) || year % 400 == 0) ? 29 : 28;
+    case 4:
+    case 6:
+    case 9:
+    case 11:
+      return 30;
+    default:
+      return 31;
+  }
+}
+
+void tickSecond() {
+  if (++now.second < 60) {
+    return;
+  }
+  now.second = 0;
+  if (++now.minute < 60) {
+    return;
+  }
+  now.minute = 0;
+  if (++now.hour < 24) {
+    return;
+  }
+  now.hour = 0;
+  now.weekday = (now.weekday + 1) % 7;
+  if (++now.day <= daysInMonth(now.year, now.month)) {
+    return;
+  }
+  now.day = 1;
+  if (++now.month <= 12) {
+    return;
+  }
+  now.month = 1;
+  now.year++;
+}
+
+uint8_t fromBcd(uint8_t value) {
+  return (value >> 4) * 10 + (value & 0x0F);
+}
+
+uint8_t toBcd(uint8_t value) {
+  return ((value / 10) << 4) | (value % 10);
+}
+
+// False when there is no RTC or it lost power since it was last set
+bool readRtc() {
+  Wire.beginTransmission(RTC_ADDRESS);
+  Wire.write(0x0F);
+  if (Wire.endTransmission() != 0 || Wire.requestFrom(RTC_ADDRESS, (uint8_t)1) != 1
+      || (Wire.read() & 0x80) != 0) {
+    return false;
+  }
+  Wire.beginTransmission(RTC_ADDRESS);
+  Wire.write(0x00);
+  if (Wire.endTransmission() != 0 || Wire.requestFrom(RTC_ADDRESS, (uint8_t)7) != 7) {
+    return false;
+  }
+  now.second = fromBcd(Wire.read() & 0x7F);
+  now.minute = fromBcd(Wire.read());
+  now.hour = fromBcd(Wire.read() & 0x3F);
+  now.weekday = (Wire.read() - 1) % 7;
+  now.day = fromBcd(Wire.read());
+  now.month = fromBcd(Wire.read() & 0x1F);
+  now.year = 2000 + fromBcd(Wire.read());
+  return true;
+}
+
+void writeRtc() {
+  Wire.beginTransmission(RTC_ADDRESS);
+  Wire.write(0x00);
+  Wire.write(toBcd(now.second));
+  Wire.write(toBcd(now.minute));
+  Wire.write(toBcd(now.hour));
+  Wire.write(now.weekday + 1);
+  Wire.write(toBcd(now.day));
+  Wire.write(toBcd(now.month));
+  Wire.write(toBcd(now.year - 2000));
+  Wire.endTransmission();
+  // Clear the oscillator-stopped flag: the time is good again
+  Wire.beginTransmission(RTC_ADDRESS);
+  Wire.write(0x0F);
+  Wire.write(0x00);
+  hasRtc = Wire.endTransmission() == 0;
+}
+
+void handleTimeSet(const char *arguments) {
+  int year, month, day, hour, minute, second, weekday;
+  if (sscanf(arguments, "%d %d %d %d %d %d %d", &year, &month, &day, &hour, &minute, &second, &weekday) != 7
+      || month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 59
+      || weekday < 0 || weekday > 6) {
+    bt.print(F("TIME:ERR\n"));
+    return;
+  }
+  now.year = year;
+  now.month = month;
+  now.day = day;
+  now.hour = hour;
+  now.minute = minute;
+  now.second = second;
+  now.weekday = weekday;
+  lastTick = millis();
+  // The minute it was set in has already been seen by the phone
+  lastMinute = now.hour * 60 + now.minute;
+  clockSet = true;
+  writeRtc();
+  bt.print(F("TIME:OK\n"));
+}
+
+// Seconds from millis(); the RTC, when there is one, corrects the drift
+void updateClock() {
+  while (millis() - lastTick >= 1000) {
+    lastTick += 1000;
+    tickSecond();
+  }
+  if (hasRtc && millis() - lastRtcRead >= 60000UL) {
+    lastRtcRead = millis();
+    if (readRtc()) {
+      clockSet = true;
+    }
+  }
+}
+
+/* ===== PROGRAM ===== */
+
+uint8_t progByte(uint16_t at) {
+  return EEPROM.read(PROG_HEADER + at);
+}
+
+uint16_t progU16(uint16_t at) {
+  return ((uint16_t)progByte(at) << 8) | progByte(at + 1);
+}
+
+uint16_t headerU16(uint8_t at) {
+  return ((uint16_t)EEPROM.read(at) << 8) | EEPROM.read(at + 1);
+}
+
+// CRC-16/CCITT-FALSE over the image as it sits in EEPROM
+uint16_t progCrc(uint16_t length) {
+  uint16_t crc = 0xFFFF;
+  for (uint16_t i = 0; i < length; i++) {
+    crc ^= (uint16_t)progByte(i) << 8;
+    for (uint8_t bit = 0; bit < 8; bit++) {
+      crc = (crc & 0x8000) ? (crc << 1) ^ 0x1021 : crc << 1;
+    }
+  }
+  return crc;
+}
+
+bool isValidScene(uint16_t pc, uint16_t length) {
+  while (pc < length) {
+    switch (progByte(pc)) {
+      case OP_END:
+        return true;
+      case OP_ON:
+      case OP_OFF:
+        pc += 2;
+        break;
+      case OP_WAIT:
+        pc += 3;
+        break;
+      default:
+        return false;
+    }
+  }
+  return false;
+}
+
+bool isValidProgram(uint16_t length) {
+  if (length < 4 || progByte(0) != 'O' || progByte(1) != 'S' || progByte(2) != PROG_VERSION) {
+    return false;
+  }
+  uint16_t at = 4;
+  for (uint8_t rule = 0; rule < progByte(3); rule++) {
+    if (at + 3 > length) {
+      return false;
+    }
+    uint8_t kind = progByte(at);
+    uint8_t size = kind == KIND_CRON ? CRON_SIZE : kind == KIND_SOLAR ? SOLAR_SIZE : 0;
+    if (size == 0 || at + size > length || !isValidScene(progU16(at + 1), length)) {
+      return false;
+    }
+    at += size;
+  }
+  return true;
+}
+
+void stopScenes() {
+  for (uint8_t i = 0; i < SLOTS; i++) {
+    slotPc[i] = -1;
+  }
+}
+
+// Only a complete image that still checks out runs after a reset
+void loadProgram() {
+  stopScenes();
+  programLoaded = EEPROM.read(0) == 'P' && headerU16(1) <= PROG_MAX
+      && progCrc(headerU16(1)) == headerU16(3) && isValidProgram(headerU16(1));
+}
+
+void unloadProgram() {
+  EEPROM.update(0, 0);
+  programLoaded = false;
+  stopScenes();
+}
+
+void printHex4(uint16_t value) {
+  for (int8_t shift = 12; shift >= 0; shift -= 4) {
+    bt.print("0123456789ABCDEF"[(value >> shift) & 0x0F]);
+  }
+}
+
+void replyInfo(const __FlashStringHelper *prefix, uint16_t length, uint16_t crc) {
+  bt.print(prefix);
+  bt.print(F("len="));
+  bt.print(length);
+  bt.print(F(" crc="));
+  printHex4(crc);
+  bt.print('\n');
+}
+
+void replyChunk(const __FlashStringHelper *result, uint16_t offset) {
+  bt.print(result);
+  bt.print(offset);
+  bt.print('\n');
+}
+
+int hexDigit(char c) {
+  if (c >= '0' && c <= '9') {
+    return c - '0';
+  }
+  if (c >= 'A' && c <= 'F') {
+    return c - 'A' + 10;
+  }
+  if (c >= 'a' && c <= 'f') {
+    return c - 'a' + 10;
+  }
+  return -1;
+}
+
+// "offset hex crc8"; one chunk at a time, in order
+void handleProgData(char *arguments) {
+  char *hex = strchr(arguments, ' ');
+  char *check = hex != NULL ? strchr(hex + 1, ' ') : NULL;
+  if (uploadLength < 0 || check == NULL) {
+    replyChunk(F("PROG:ERR "), uploadNext);
+    return;
+  }
+  *hex++ = '\0';
+  *check++ = '\0';
+  uint16_t offset = atoi(arguments);
+  if (offset < uploadNext) {
+    // Sent again after its OK went missing
+    replyChunk(F("PROG:OK "), uploadNext);
+    return;
+  }
+  uint8_t digits = strlen(hex);
+  if (offset > uploadNext || digits % 2 != 0 || digits / 2 > PROG_CHUNK
+      || offset + digits / 2 > uploadLength) {
+    replyChunk(F("PROG:ERR "), uploadNext);
+    return;
+  }
+  uint8_t chunk[PROG_CHUNK];
+  for (uint8_t i = 0; i < digits / 2; i++) {
+    int high = hexDigit(hex[2 * i]);
+    int low = hexDigit(hex[2 * i + 1]);
+    if (high < 0 || low < 0) {
+      replyChunk(F("PROG:ERR "), offset);
+      return;
+    }
+    chunk[i] = (high << 4) | low;
+  }
+  if (strlen(check) != 2 || hexDigit(check[0]) < 0 || hexDigit(check[1]) < 0
+      || crc8(chunk, digits / 2) != ((hexDigit(check[0]) << 4) | hexDigit(check[1]))) {
+    replyChunk(F("PROG:ERR "), offset);
+    return;
+  }
+  // update() skips bytes that already hold the value, sparing EEPROM wear
+  for (uint8_t i = 0; i < digits / 2; i++) {
+    EEPROM.update(PROG_HEADER + offset + i, chunk[i]);
+  }
+  uploadNext += digits / 2;
+  replyChunk(F("PROG:OK "), uploadNext);
+}
+
+void handleProgram(char *command) {
+  if (strcmp(command, "PROG_INFO") == 0) {
+    if (EEPROM.read(0) == 'P') {
+      replyInfo(F("PROG: "), headerU16(1), headerU16(3));
+    } else {
+      bt.print(F("PROG: none\n"));
+    }
+  } else if (strcmp(command, "PROG_CLEAR") == 0) {
+    unloadProgram();
+    bt.print(F("PROG: none\n"));
+  } else if (strncmp(command, "PROG_BEGIN ", 11) == 0) {
+    char *crc = strchr(command + 11, ' ');
+    int length = atoi(command + 11);
+    if (crc == NULL || length < 0 || length > (int)PROG_MAX) {
+      bt.print(F("PROG:ERR size\n"));
+      return;
+    }
+    // The old program stops now; a half-written one never runs
+    unloadProgram();
+    uploadLength = length;
+    uploadCrc = (uint16_t)strtoul(crc + 1, NULL, 16);
+    uploadNext = 0;
+    bt.print(F("PROG:READY\n"));
+  } else if (strncmp(command, "PROG_DATA ", 10) == 0) {
+    handleProgData(command + 10);
+  } else if (strcmp(command, "PROG_END") == 0) {
+    if (uploadLength < 0 || uploadNext != uploadLength) {
+      bt.print(F("PROG:ERR short\n"));
+    } else if (progCrc(uploadLength) != uploadCrc) {
+      bt.print(F("PROG:ERR crc\n"));
+    } else if (!isValidProgram(uploadLength)) {
+      bt.print(F("PROG:ERR format\n"));
+    } else {
+      EEPROM.update(1, uploadLength >> 8);
+      EEPROM.update(2, uploadLength & 0xFF);
+      EEPROM.update(3, uploadCrc >> 8);
+      EEPROM.update(4, uploadCrc & 0xFF);
+      // The marker goes last, so a reset part way leaves no program
+      EEPROM.update(0, 'P');
+      loadProgram();
+      replyInfo(F("PROG:LOADED "), uploadLength, uploadCrc);
+      uploadLength = -1;
+    }
+  } else {
+    bt.print(F("ERROR: Unknown command "));
+    bt.print(command);
+    bt.print('\n');
+  }
+}
+
+bool progBit(uint16_t field, uint8_t value) {
+  return (progByte(field + value / 8) & (1 << (value % 8))) != 0;
+}
+
+// MINUTES(8) HOURS(3) DAYS(4) MONTHS(2) WEEKDAYS(1) FLAGS(1)
+bool cronMatches(uint16_t at) {
+  if (!progBit(at, now.minute) || !progBit(at + 8, now.hour) || !progBit(at + 15, now.month)) {
+    return false;
+  }
+  bool dayMatch = progBit(at + 11, now.day);
+  bool weekdayMatch = progBit(at + 17, now.weekday);
+  // Cron semantics: when both day fields are restricted either one may match
+  if ((progByte(at + 18) & 3) == 0) {
+    return dayMatch || weekdayMatch;
+  }
+  return dayMatch && weekdayMatch;
+}
+
+// Straight line between the mid-month times either side of today
+int solarMinute(uint16_t table) {
+  uint8_t from;
+  uint8_t to;
+  int span;
+  int position;
+  if (now.day >= 15) {
+    from = now.month;
+    to = now.month % 12 + 1;
+    span = daysInMonth(now.year, now.month);
+    position = now.day - 15;
+  } else {
+    from = now.month == 1 ? 12 : now.month - 1;
+    to = now.month;
+    span = daysInMonth(now.month == 1 ? now.year - 1 : now.year, from);
+    position = now.day - 15 + span;
+  }
+  uint16_t a = progU16(table + 2 * (from - 1));
+  uint16_t b = progU16(table + 2 * (to - 1));
+  if (a == NO_TIME || b == NO_TIME) {
+    return -1;
+  }
+  int difference = (int)b - (int)a;
+  // Times either side of midnight are close, not a day apart
+  if (difference > 720) {
+    difference -= 1440;
+  } else if (difference < -720) {
+    difference += 1440;
+  }
+  long step = (long)difference * position;
+  long shift = step >= 0 ? (step + span / 2) / span : -((-step + span / 2) / span);
+  return (int)((a + shift + 1440) % 1440);
+}
+
+bool solarMatches(uint16_t at) {
+  return progBit(at, now.weekday) && solarMinute(at + 1) == now.hour * 60 + now.minute;
+}
+
+// A rule firing while its scene is still running restarts it
+void startScene(uint16_t scene) {
+  int8_t slot = -1;
+  for (uint8_t i = 0; i < SLOTS; i++) {
+    if (slotPc[i] >= 0 && slotScene[i] == scene) {
+      slot = i;
+      break;
+    }
+    if (slotPc[i] < 0 && slot < 0) {
+      slot = i;
+    }
+  }
+  if (slot < 0) {
+    // All busy: the oldest start gives way
+    slot = 0;
+  }
+  slotScene[slot] = scene;
+  slotPc[slot] = scene;
+  slotResumeAt[slot] = millis();
+}
+
+void onMinute() {
+  uint16_t at = 4;
+  for (uint8_t rule = 0; rule < progByte(3); rule++) {
+    uint8_t kind = progByte(at);
+    if (kind == KIND_CRON ? cronMatches(at + 3) : solarMatches(at + 3)) {
+      startScene(progU16(at + 1));
+    }
+    at += kind == KIND_CRON ? CRON_SIZE : SOLAR_SIZE;
+  }
+}
+
+// Steps whose delay is over; relays changed here are reported like any other
+void runScenes() {
+  for (uint8_t i = 0; i < SLOTS; i++) {
+    while (slotPc[i] >= 0 && (long)(millis() - slotResumeAt[i]) >= 0) {
+      uint16_t pc = slotPc[i];
+      uint8_t op = progByte(pc);
+      if (op == OP_ON || op == OP_OFF) {
+        uint8_t number = progByte(pc + 1);
+        if (number >= 1 && number <= SWITCH_COUNT) {
+          setRelay(number - 1, op == OP_ON, -1);
+        }
+        slotPc[i] = pc + 2;
+      } else if (op == OP_WAIT) {
+        // From when the wait was due, so delays don't drift with the loop
+        slotResumeAt[i] += progU16(pc + 1) * 100UL;
+        slotPc[i] = pc + 3;
+      } else {
+        slotPc[i] = -1;
+      }
+    }
+  }
+}
+
+void runProgram() {
+  updateClock();
+  if (!programLoaded) {
+    return;
+  }
+  int minute = now.hour * 60 + now.minute;
+  if (clockSet && minute != lastMinute) {
+    lastMinute = minute;
+    onMinute();
+  }
+  runScenes();
+}
+
+void handleText(char *command) {
+  // Optional "#seq" tag
+  int seq = -1;
+  char *hash = strchr(command, '#');
+  if (hash != NULL) {
+    *hash = '\0';
+    seq = atoi(hash + 1);
+  }
+
+  if (strcmp(command, "STATUS") == 0) {
+    replyStatus();
+  } else if (strcmp(command, "HELP") == 0) {
+    bt.print(F("Bluetooth Commands:\n"));
+    bt.print(F("LIGHTx_ON, LIGHTx_OFF, LIGHTx_TOGGLE, LIGHTx_LEVEL_n (x = 1-"));
+    bt.print(SWITCH_COUNT);
+    bt.print(F(")\n"));
+    bt.print(F("ALL_ON, ALL_OFF, STATUS, HELP, CAPS, SEQ_ON, BIN_ON, BIN_OFF, PING\n"));
+    bt.print(F("TIME_SET, PROG_INFO, PROG_BEGIN, PROG_DATA, PROG_END, PROG_CLEAR\n"));
+  } else if (strcmp(command, "CAPS") == 0) {
+    bt.print(F("CAPS: switches="));
+    bt.print(SWITCH_COUNT);
+    bt.print(F(" cmds=TOGGLE,SET,LEVEL,ALL,STATUS,SEQ,BIN,PING,PROG\n"));
+  } else if (strcmp(command, "ALL_ON") == 0 || strcmp(command, "ALL_OFF") == 0) {
+    bool on = strcmp(command, "ALL_ON") == 0;
+    for (uint8_t i = 0; i < SWITCH_COUNT; i++) {
+      relays[i] = on;
+      applyRelay(i);
+    }
+    replyStatus();
+  } else if (strcmp(command, "PING") == 0) {
+    bt.print(F("PONG\n"));
+  } else if (strncmp(command, "TIME_SET ", 9) == 0) {
+    handleTimeSet(command + 9);
+  } else if (strncmp(command, "PROG_", 5) == 0) {
+    handleProgram(command);
+  } else if (strcmp(command, "SEQ_ON") == 0) {
+    bt.print(F("SEQ:ON\n"));
+  } else if (strcmp(command, "BIN_ON") == 0) {
+    bt.print(F("BIN:ON\n"));
+    sendFrames = true;
+  } else if (strcmp(command, "BIN_OFF") == 0) {
+    sendFrames = false;
+    bt.print(F("BIN:OFF\n"));
+  } else if (strncmp(command, "LIGHT", 5) == 0) {
+    char *underscore = strchr(command, '_');
+    int number = atoi(command + 5);
+    if (underscore == NULL || number < 1 || number > SWITCH_COUNT) {
+      bt.print(F("ERROR: Unknown command "));
+      bt.print(command);
+      bt.print('\n');
+      return;
+    }
+    uint8_t index = number - 1;
+    const char *action = underscore + 1;
+    if (strcmp(action, "ON") == 0) {
+      setRelay(index, true, seq);
+    } else if (strcmp(action, "OFF") == 0) {
+      setRelay(index, false, seq);
+    } else if (strcmp(action, "TOGGLE") == 0) {
+      toggleRelay(index, seq);
+    } else if (strncmp(action, "LEVEL_", 6) == 0) {
+      int level = atoi(action + 6);
+      if (level < 0 || level > 255) {
+        bt.print(F("ERROR: Level out of range "));
+        bt.print(command);
+        bt.print('\n');
+        return;
+      }
+      setLevel(index, (uint8_t)level, seq);
+    } else {
+      bt.print(F("ERROR: Unknown command "));
+      bt.print(command);
+      bt.print('\n');
+    }
+  } else {
+    bt.print(F("ERROR: Unknown command "));
+    bt.print(command);
+    bt.print('\n');
+  }
+}
+
+void handleLine() {
+  if (lineLength == 0) {
+    return;
+  }
+  if ((uint8_t)line[0] == SYNC) {
+    handleFrame();
+    return;
+  }
+  // Text: drop a trailing carriage return
+  if (line[lineLength - 1] == '\r') {
+    lineLength--;
+  }
+  line[lineLength] = '\0';
+  handleText(line);
+}
+
+void setup() {
+  for (uint8_t i = 0; i < SWITCH_COUNT; i++) {
+    pinMode(RELAY_PINS[i], OUTPUT);
+    if (PWM_PINS[i] != 0) {
+      pinMode(PWM_PINS[i], OUTPUT);
+    }
+    relays[i] = false;
+    levels[i] = 255;
+    applyRelay(i);
+  }
+  bt.begin(9600);
+
+  Wire.begin();
+  hasRtc = readRtc();
+  clockSet = hasRtc;
+  lastTick = millis();
+  lastRtcRead = lastTick;
+  if (clockSet) {
+    // Don't fire the minute the board happened to start in
+    lastMinute = now.hour * 60 + now.minute;
+  }
+  loadProgram();
+}
+
+void loop() {
+  while (bt.available()) {
+    int c = bt.read();
+    if (c == '\n') {
+      if (!lineOverflow) {
+        handleLine();
+      }
+      lineLength = 0;
+      lineOverflow = false;
+    } else if (lineLength < sizeof(line) - 1) {
+      line[lineLength++] = (char)c;
+    } else {
+      lineOverflow = true;
+    }
+  }
+  runProgram();
+}